@@ -96,21 +96,69 @@ public class LayerRow
     }
 
     public static int writeToCSV(List<XmlFlattenerSpecColumn> columnOrder, List<LayerRow> layerRows, CSVPrinter csvPrinter) throws IOException
+    {
+        return write(columnOrder, layerRows, values -> {
+            csvPrinter.printRecord(values);
+            return true;
+        });
+    }
+
+    /**
+     * Where the values of the rows go - e.g. the CSV printer of an output table, by way of its dedupe index and sorter.
+     */
+    interface ValuesWriter
+    {
+        /**
+         * @return true if the row was written - false if it was skipped (e.g. as a duplicate)
+         */
+        boolean write(List<String> values) throws IOException;
+    }
+
+    static int write(List<XmlFlattenerSpecColumn> columnOrder, List<LayerRow> layerRows, ValuesWriter writer) throws IOException
     {
         int count= 0;
         for(LayerRow r : layerRows){
-            List<String> row = new ArrayList<>();
-            for(XmlFlattenerSpecColumn col : columnOrder){
-                int index = r.rowColumns.indexOf(col);
-                String val = (index == -1) ? "" : r.rowItems.get(index);
-                row.add(val);
-            }
-            count++;
-            csvPrinter.printRecord(row);
+            if (writer.write(r.getValues(columnOrder))) count++;
         }
         return count;
     }
 
+    /**
+     * Encodes the values of this row into the buffer - each with the ordinal of its column (the columns that are not
+     * in the ordinals are left out, as with {@link #getValues(List)}).
+     */
+    void writeTo(XmlRowBuffer buffer, Map<XmlFlattenerSpecColumn, Integer> columnOrdinals)
+    {
+        int valueCount = 0;
+        long chars = 0;
+        for (int i = 0; i < rowColumns.size(); i++)
+        {
+            if (columnOrdinals.containsKey(rowColumns.get(i)) == false) continue;
+            valueCount++;
+            chars += rowItems.get(i).length();
+        }
+        buffer.startRow(valueCount, chars);
+        for (int i = 0; i < rowColumns.size(); i++)
+        {
+            final Integer ordinal = columnOrdinals.get(rowColumns.get(i));
+            if (ordinal != null) buffer.addValue(ordinal, rowItems.get(i));
+        }
+    }
+
+    /**
+     * @return the values of this row in the column order - with an empty value for the columns the row does not have
+     */
+    List<String> getValues(List<XmlFlattenerSpecColumn> columnOrder)
+    {
+        List<String> row = new ArrayList<>(columnOrder.size());
+        for(XmlFlattenerSpecColumn col : columnOrder){
+            int index = rowColumns.indexOf(col);
+            String val = (index == -1) ? "" : rowItems.get(index);
+            row.add(val);
+        }
+        return row;
+    }
+
     public static String toString(List<LayerRow> layerRows){
         final SortedSet<XmlFlattenerSpecColumn> ss = new TreeSet<>();
         layerRows.forEach(r-> ss.addAll(r.rowColumns));
@@ -1,17 +1,12 @@
 package uk.co.devworx.xmlflattener;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
-import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -25,6 +20,7 @@ public class LayerRowsContainer
 
     private final int layer;
     private final List<XmlFlattenerSpecColumn> xmlFlattenerColumns;
+    private final XmlLayerPlan plan;
     private final ConcurrentMap<XmlFlattenerSpecColumn, List<String>> columnValues;
     private final List<LayerRow> layerRows;
     private final String name;
@@ -94,7 +90,7 @@ public class LayerRowsContainer
             List<XmlFlattenerSpecColumn> preCols = new CopyOnWriteArrayList<>();
             for(XmlFlattenerSpecColumn c : xmlFlattenerColumnsP)
             {
-                if(c.getType().equals(XmlFlattenerSourceType.dynAttribute) == true)
+                if(c.getType().isDynamic() == true)
                 {
                     preCols.addAll(c.getResolvedColumns());
                 }
@@ -105,6 +101,11 @@ public class LayerRowsContainer
             }
             this.xmlFlattenerColumns = Collections.unmodifiableList(preCols);
         }
+        this.plan = XmlLayerPlan.compile(xmlFlattenerColumns);
+        if(logger.isDebugEnabled())
+        {
+            logger.debug(name + " @ LEVEL " + layer + " - walks " + plan.getSharedPathSteps() + " shared path steps rather than " + plan.getPathSteps() + " | folded " + plan.getFoldedColumnCount() + " eval column(s)");
+        }
 
         this.columnValues = new ConcurrentSkipListMap<>();
         this.layerRows = new CopyOnWriteArrayList<>();
@@ -133,6 +134,11 @@ public class LayerRowsContainer
         return Collections.unmodifiableList(layerRows);
     }
 
+    XmlLayerPlan getPlan()
+    {
+        return plan;
+    }
+
     public int getLayer()
     {
         return layer;
@@ -160,9 +166,17 @@ public class LayerRowsContainer
             throw new IllegalArgumentException("Layer - " + layer + " - Name - " + name + " - processDocument() -- Has Column Length of " + xmlFlattenerColumns.size());
         }
 
-        //Resolve the values
-        final Stream<XmlFlattenerSpecColumn> specStream = XmlFlattener_EnableParallelJavaLambdaStreams ? xmlFlattenerColumns.parallelStream() : xmlFlattenerColumns.stream();
-        specStream.forEach(col -> ___processDocumentColumn(col, paramBag));
+        //Resolve the explode lineage once - all the columns share it (other than those streamed from the document)
+        final Map<XmlFlattenerExplodeItem, List<int[]>> lineages = ___resolveLineages(paramBag, col -> paramBag.getStreamedValues(col) == null);
+
+        //Resolve the values - the path columns sharing a context together, and the rest one by one
+        for(XmlLayerPlan.PathGroup group : plan.getPathGroups())
+        {
+            ___processDocumentPathGroup(group, paramBag, lineages);
+        }
+        final List<XmlFlattenerSpecColumn> columnByColumn = plan.getColumnByColumn();
+        final Stream<XmlFlattenerSpecColumn> specStream = XmlFlattener_EnableParallelJavaLambdaStreams ? columnByColumn.parallelStream() : columnByColumn.stream();
+        specStream.forEach(col -> ___processDocumentColumn(col, paramBag, lineages));
 
         //Now normalise the level rows
         final SortedMap<XmlFlattenerSpecColumn, List<String>> depthFirst = new TreeMap<>((o1, o2) ->
@@ -218,13 +232,31 @@ public class LayerRowsContainer
      */
     public void preProcessDocument(ParameterBag paramBag){
         //Resolve the values
+        final Map<XmlFlattenerExplodeItem, List<int[]>> lineages = ___resolveLineages(paramBag, col -> col.getType().isDynamic());
         final Stream<XmlFlattenerSpecColumn> specStream = XmlFlattener_EnableParallelJavaLambdaStreams ? xmlFlattenerColumns.parallelStream() : xmlFlattenerColumns.stream();
-        specStream.forEach(col -> ___preProcessDocumentColumn(col, paramBag));
+        specStream.forEach(col -> ___preProcessDocumentColumn(col, paramBag, lineages));
+    }
+
+    /**
+     * Resolves the node lists of the parent explode item(s) of the columns - the columns of a container all
+     * normally share the one parent, so the lineage is only walked once per document rather than once per column.
+     */
+    private Map<XmlFlattenerExplodeItem, List<int[]>> ___resolveLineages(ParameterBag paramBag, Predicate<XmlFlattenerSpecColumn> columnFilter)
+    {
+        final Map<XmlFlattenerExplodeItem, List<int[]>> lineages = new IdentityHashMap<>();
+        for(XmlFlattenerSpecColumn col : xmlFlattenerColumns)
+        {
+            final Optional<XmlFlattenerExplodeItem> parent = col.getParent();
+            if(parent.isPresent() == false || col.getXpathExpression().isPresent() == false || columnFilter.test(col) == false) continue;
+            if(lineages.containsKey(parent.get()) == true) continue;
+            lineages.put(parent.get(), parent.get().resolveLineageNodeLists(paramBag));
+        }
+        return lineages;
     }
 
-    private void ___preProcessDocumentColumn(XmlFlattenerSpecColumn col, ParameterBag paramBag)
+    private void ___preProcessDocumentColumn(XmlFlattenerSpecColumn col, ParameterBag paramBag, Map<XmlFlattenerExplodeItem, List<int[]>> lineages)
     {
-        if(col.getType().equals(XmlFlattenerSourceType.dynAttribute) == false) return;
+        if(col.getType().isDynamic() == false) return;
 
         Optional<XPathExpression> xpathOpt = col.getXpathExpression();
         if(xpathOpt.isPresent() == false)
@@ -232,19 +264,18 @@ public class LayerRowsContainer
             return;
         }
 
-        final XPathExpression xpath = xpathOpt.get();
         if(col.getParent().isPresent() == false)
         {
-            ___preProcessDocumentColumn_evaluate_xpath(col, paramBag, xpath);
+            ___preProcessDocumentColumn_evaluate_xpath(col, paramBag);
         }
         else
         {
-            ___preProcessDocumentColumn_evaluate_xpath_parent_recurse(col, paramBag, xpath);
+            ___preProcessDocumentColumn_evaluate_xpath_parent_recurse(col, paramBag, lineages.get(col.getParent().get()));
         }
 
     }
 
-    private void ___processDocumentColumn(XmlFlattenerSpecColumn col, ParameterBag paramBag)
+    private void ___processDocumentColumn(XmlFlattenerSpecColumn col, ParameterBag paramBag, Map<XmlFlattenerExplodeItem, List<int[]>> lineages)
     {
         Optional<XPathExpression> xpathOpt = col.getXpathExpression();
         if(xpathOpt.isPresent() == false)
@@ -253,14 +284,13 @@ public class LayerRowsContainer
             return;
         }
 
-        final XPathExpression xpath = xpathOpt.get();
         if(col.getParent().isPresent() == false)
         {
-            ___processDocumentColumn_evaluate_xpath(col, paramBag, xpath);
+            ___processDocumentColumn_evaluate_xpath(col, paramBag);
         }
         else
         {
-            ___processDocumentColumn_evaluate_xpath_parent_recurse(col, paramBag, xpath);
+            ___processDocumentColumn_evaluate_xpath_parent_recurse(col, paramBag, lineages.get(col.getParent().get()));
         }
 
         if(logger.isDebugEnabled() == true)
@@ -285,19 +315,26 @@ public class LayerRowsContainer
             case xpath: throw new IllegalStateException("This can't happen as it should've been caught by XPath optional!");
 
             case eval:
+                final String folded = plan.getFoldedValue(col, paramBag);
+                if(folded != null)
+                {
+                    columnValues.get(col).add(folded);
+                    return;
+                }
                 final String sourceVal = col.getSource();
                 if(sourceVal.equalsIgnoreCase(ParameterBag.BATCH_TIME_COLNAME) == true ||
                    sourceVal.equalsIgnoreCase(ParameterBag.CURRENT_TIME_COLNAME) == true)
                 {
-                    columnValues.get(col).add(paramBag.getBatchtime().toString());
+                    columnValues.get(col).add(col.toCanonicalValue(paramBag.getBatchtime().toString()));
                 }
                 else
                 {
-                    columnValues.get(col).add(sourceVal);
+                    columnValues.get(col).add(col.toCanonicalValue(sourceVal));
                 }
                 return;
 
             case dynAttribute:
+            case dynElement:
                 throw new IllegalArgumentException("At this point in the non-xml parsing - " + col.getType() + " type. Should already have been resolved. Something wrong with the coding logic?");
 
             default:
@@ -305,116 +342,124 @@ public class LayerRowsContainer
         }
     }
 
-    private void ___preProcessDocumentColumn_evaluate_xpath(final XmlFlattenerSpecColumn col,
-                                                         final ParameterBag paramBag,
-                                                         final XPathExpression xpath){
-        Objects.requireNonNull(xpath, "XPath Expression cannot be null at this point");
-        //At the root of the hierarchy, so we expect a single value.
-        try
+    /**
+     * Evaluates the path columns of the group for each of their context nodes - walking their common prefixes once.
+     * As with the columns one by one, the values at the root are taken as they are and the nested values are trimmed.
+     */
+    private void ___processDocumentPathGroup(final XmlLayerPlan.PathGroup group,
+                                             final ParameterBag paramBag,
+                                             final Map<XmlFlattenerExplodeItem, List<int[]>> lineages)
+    {
+        final List<XmlFlattenerSpecColumn> cols = group.getColumns();
+        if(paramBag.getStreamedValues(cols.get(0)) != null)
         {
-            final Document xmlDoc = ___processDocumentColumn_evaluate_xpath_getdoc(paramBag);
+            ___processDocumentStreamedGroup(group, paramBag);
+            return;
+        }
+        final XmlTreePathTrie.Evaluation evaluation = group.getTrie().evaluate(paramBag.getDocumentTree());
+        final String[] values = new String[cols.size()];
 
-            NodeList ndeList = (NodeList)xpath.evaluate(xmlDoc, XPathConstants.NODESET);
-            for (int i = 0; i < ndeList.getLength(); i++)
+        if(group.getParent().isPresent() == false)
+        {
+            evaluation.evaluateStrings(XmlDocumentTree.DOCUMENT_NODE, values);
+            for(int c = 0; c < values.length; c++)
             {
-                Node item = ndeList.item(i);
-                if(item instanceof Element)
-                {
-                    col.addResolvedColumns((Element)item);
-                }
+                columnValues.get(cols.get(c)).add(cols.get(c).toCanonicalValue(values[c]));
             }
-        } catch (Exception e)
-        {
-            throw new RuntimeException("Unable to evaluate the xpath for the column : " + col + " | " + e, e);
+            return;
         }
-    }
 
-    private void ___processDocumentColumn_evaluate_xpath(final XmlFlattenerSpecColumn col,
-                                                         final ParameterBag paramBag,
-                                                         final XPathExpression xpath){
-        Objects.requireNonNull(xpath, "XPath Expression cannot be null at this point");
-        //At the root of the hierarchy, so we expect a single value.
-        try
+        for(int[] nl : lineages.get(group.getParent().get()))
         {
-            final Document xmlDoc = ___processDocumentColumn_evaluate_xpath_getdoc(paramBag);
-            String value = ___processDocumentColumn_evaluate_xpath_process(col, xmlDoc, xpath);
-            columnValues.get(col).add(value);
+            for(int node : nl)
+            {
+                evaluation.evaluateStrings(node, values);
+                for(int c = 0; c < values.length; c++)
+                {
+                    columnValues.get(cols.get(c)).add(cols.get(c).toCanonicalValue(values[c].trim()));
+                }
+            }
         }
-        catch (Exception e)
+        for(XmlFlattenerSpecColumn col : cols)
         {
-            throw new RuntimeException("Unable to evaluate the xpath for the column : " + col + " | " + e, e);
+            if(columnValues.get(col).isEmpty()) columnValues.get(col).add("");
         }
     }
 
-    private String ___processDocumentColumn_evaluate_xpath_process(final XmlFlattenerSpecColumn col,
-                                                                   final Document xmlDoc,
-                                                                   final XPathExpression xpath) throws XPathExpressionException
+    /**
+     * Takes the values of the path columns of the group as they were streamed from the document - in the same order,
+     * and trimmed the same way, as they are evaluated against the tree.
+     */
+    private void ___processDocumentStreamedGroup(final XmlLayerPlan.PathGroup group, final ParameterBag paramBag)
     {
-        try{
-            return String.valueOf(xpath.evaluate(xmlDoc, XPathConstants.STRING));
-        }
-        catch(OutOfMemoryError oome)
+        final boolean nested = group.getParent().isPresent();
+        for(XmlFlattenerSpecColumn col : group.getColumns())
         {
-            String msg = "Encountered an OOME while attempting to evaluate the XPath [col=" + col.getColumnName() + ", source=" + col.getSource() + ", level=" + col.getLevel()+ "]...."+ oome
-                    + "\n Please tweak your XPATH.";
-            logger.error(msg, oome);
-            oome.printStackTrace();
-            throw oome;
+            final List<String> target = columnValues.get(col);
+            for(String value : paramBag.getStreamedValues(col))
+            {
+                target.add(col.toCanonicalValue(nested ? value.trim() : value));
+            }
+            if(target.isEmpty()) target.add("");
         }
     }
 
-    private Document ___processDocumentColumn_evaluate_xpath_getdoc(final ParameterBag paramBag){
-        return paramBag.getThreadSafeXmlDoc();
+    private void ___preProcessDocumentColumn_evaluate_xpath(final XmlFlattenerSpecColumn col,
+                                                         final ParameterBag paramBag){
+        //At the root of the hierarchy - resolve against the document
+        try
+        {
+            final XmlDocumentTree tree = paramBag.getDocumentTree();
+            final int[] elements = col.evaluateElements(paramBag, XmlDocumentTree.DOCUMENT_NODE);
+            for (int element : elements)
+            {
+                col.addResolvedColumns(tree, element);
+            }
+        } catch (Exception e)
+        {
+            throw new RuntimeException("Unable to evaluate the xpath for the column : " + col + " | " + e, e);
+        }
     }
 
-    private String ___processDocumentColumn_evaluate_xpath_parent_recurse_process(final XmlFlattenerSpecColumn col,
-                                                                                  final Node node,
-                                                                                  final XPathExpression xpath) throws XPathExpressionException
-    {
+    private void ___processDocumentColumn_evaluate_xpath(final XmlFlattenerSpecColumn col,
+                                                         final ParameterBag paramBag){
+        //At the root of the hierarchy, so we expect a single value.
         try
         {
-            return String.valueOf(xpath.evaluate(node, XPathConstants.STRING)).trim();
+            String value = col.evaluateString(paramBag, XmlDocumentTree.DOCUMENT_NODE);
+            columnValues.get(col).add(col.toCanonicalValue(value));
         }
-        catch (OutOfMemoryError oome)
+        catch (XPathExpressionException e)
         {
-            String msg = "Encountered an OOME while attempting to evaluate the XPath [col=" + col.getColumnName() + ", source=" + col.getSource() + ", level=" + col.getLevel()+ "]...."+ oome
-                    + "\n Please tweak your XPATH.";
-            logger.error(msg, oome);
-            oome.printStackTrace();
-            throw oome;
+            throw new RuntimeException("Unable to evaluate the xpath for the column : " + col + " | " + e, e);
         }
     }
 
     private void ___preProcessDocumentColumn_evaluate_xpath_parent_recurse(final XmlFlattenerSpecColumn col,
                                                                            final ParameterBag paramBag,
-                                                                           final XPathExpression xpath)
+                                                                           final List<int[]> nodeLists)
     {
-        //Obtain the nodelist from the parent items
-        List<NodeList> nodeLists = col.getRecursiveParentNodeList(paramBag);
+        final XmlDocumentTree tree = paramBag.getDocumentTree();
         logger.info("Total Recursive Parent Node Lists for - " + col.getColumnName() + " - " + nodeLists.size());
-        for(NodeList nl : nodeLists)
+        for(int[] nl : nodeLists)
         {
-            logger.info("Sub Node List Length - " + nl.getLength());
+            logger.info("Sub Node List Length - " + nl.length);
 
-            for(int i = 0; i < nl.getLength(); i++)
+            for(int i = 0; i < nl.length; i++)
             {
-                Node node = nl.item(i);
+                int node = nl[i];
                 try
                 {
-                    if(col.getSource().trim().equals("") && node instanceof Element)
+                    if(col.getSource().trim().equals(""))
                     {
-                        col.addResolvedColumns((Element)node);
+                        col.addResolvedColumns(tree, node);
                         continue;
                     }
 
-                    final NodeList matchingElements = (NodeList)xpath.evaluate(node, XPathConstants.NODESET);
-                    for (int j = 0; j < matchingElements.getLength(); j++)
+                    final int[] matchingElements = col.evaluateElements(paramBag, node);
+                    for (int element : matchingElements)
                     {
-                        Node item = matchingElements.item(j);
-                        if(item instanceof Element)
-                        {
-                            col.addResolvedColumns((Element)item);
-                        }
+                        col.addResolvedColumns(tree, element);
                     }
                 }
                 catch (XPathExpressionException e)
@@ -427,25 +472,22 @@ public class LayerRowsContainer
 
     private void ___processDocumentColumn_evaluate_xpath_parent_recurse(final XmlFlattenerSpecColumn col,
                                                                         final ParameterBag paramBag,
-                                                                        final XPathExpression xpath)
+                                                                        final List<int[]> nodeLists)
     {
-        //Obtain the nodelist from the parent items
         boolean hasAddedAValue = false;
-        List<NodeList> nodeLists = col.getRecursiveParentNodeList(paramBag);
 
         logger.debug("Total Recursive Parent Node Lists for - " + col.getColumnName() + " - " + nodeLists.size());
 
-        for(NodeList nl : nodeLists)
+        for(int[] nl : nodeLists)
         {
-            logger.debug("Sub Node List Length - " + nl.getLength());
+            logger.debug("Sub Node List Length - " + nl.length);
 
-            for(int i = 0; i < nl.getLength(); i++)
+            for(int i = 0; i < nl.length; i++)
             {
-                Node node = nl.item(i);
                 try
                 {
-                    String value = ___processDocumentColumn_evaluate_xpath_parent_recurse_process(col, node, xpath);
-                    columnValues.get(col).add(value);
+                    String value = col.evaluateString(paramBag, nl[i]).trim();
+                    columnValues.get(col).add(col.toCanonicalValue(value));
                     hasAddedAValue = true;
                 }
                 catch (XPathExpressionException e)
@@ -1,38 +1,92 @@
 package uk.co.devworx.xmlflattener;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.ByteArrayInputStream;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
 import java.io.IOException;
 import java.sql.Timestamp;
-import java.util.Collections;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
 
 /**
  * Parameter bag is a class that contains extra items that could be referenced by some of the column definitions
  * e.g. the batchtime
+ *
+ * It also holds the parsed document. The document is parsed exactly once into an immutable {@link XmlDocumentTree}
+ * which all the worker threads evaluate against concurrently. Only the XPath expressions that cannot be evaluated
+ * against the tree fall back to the W3C DOM - which is parsed (once, lazily) on the first such request and then
+ * shared by the worker threads, each evaluating its own compiled copy of the expression (see {@link XmlDocumentDom}
+ * for why the DOM can be shared). The expressions of specs that bind namespace
+ * prefixes are evaluated against a namespace aware DOM instead - parsed the same way, only if it is needed.
+ *
+ * Where the columns of the spec are compiled to an {@link XmlStreamingPlan}, their values are instead picked up in the
+ * one pass over the document - and the tree is then only parsed (lazily) if something else asks for it.
  */
 
 public class ParameterBag
 {
+    private static final Logger logger = Logger.getLogger(ParameterBag.class);
+
     static final DocumentBuilderFactory docFactory;
-    static final DocumentBuilder builder;
-    static final CachingContextClassLoader contextClassLoader;
-    public static final boolean USE_STRATEGY_1_FOR_XML_DOC = Boolean.valueOf(System.getProperty("uk.co.devworx.xmlflattener.XmlExtractor.uk.co.devworx.xmlflattener.ParameterBag.Strategy_1", "false"));
+    static final DocumentBuilderFactory namespaceAwareFactory;
+
+    /**
+     * The builders are not thread safe - so each thread parses its (fallback) DOMs with its own, rather than all the
+     * threads queueing on a shared one.
+     */
+    static final ThreadLocal<DocumentBuilder> builder;
+    static final ThreadLocal<DocumentBuilder> namespaceAwareBuilder;
 
     static
+    {
+        docFactory = DocumentBuilderFactory.newInstance();
+        namespaceAwareFactory = DocumentBuilderFactory.newInstance();
+        namespaceAwareFactory.setNamespaceAware(true);
+        ___expandNodes(docFactory);
+        ___expandNodes(namespaceAwareFactory);
+        builder = ThreadLocal.withInitial(() -> ___newDocumentBuilder(docFactory));
+        namespaceAwareBuilder = ThreadLocal.withInitial(() -> ___newDocumentBuilder(namespaceAwareFactory));
+        //fail fast (as before) if the parsing libraries are not there
+        builder.get();
+    }
+
+    /**
+     * The DOM is built in full as it is parsed - a deferred DOM expands its nodes as they are first read, so cannot
+     * be read from more than one thread.
+     */
+    private static void ___expandNodes(DocumentBuilderFactory factory)
+    {
+        try
+        {
+            factory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException("Could not create the XML parsing libraries - something is wrong with your setup : " + e);
+        }
+    }
+
+    private static DocumentBuilder ___newDocumentBuilder(DocumentBuilderFactory factory)
     {
         try
         {
-            docFactory = DocumentBuilderFactory.newInstance();
-            builder = docFactory.newDocumentBuilder();
-            contextClassLoader = new CachingContextClassLoader(ClassLoader.getSystemClassLoader());
+            synchronized (factory)
+            {
+                return factory.newDocumentBuilder();
+            }
         } catch (Exception e)
         {
             throw new RuntimeException("Could not create the XML parsing libraries - something is wrong with your setup : " + e);
@@ -41,7 +95,21 @@ public class ParameterBag
 
     public static ParameterBag create(byte[] documentData, Timestamp batchtime, Map<String, String> sqlValues) throws SAXException, IOException
     {
-        return new ParameterBag(documentData, batchtime, sqlValues);
+        return new ParameterBag(XmlDocumentSource.of(documentData), batchtime, sqlValues, null);
+    }
+
+    public static ParameterBag create(XmlDocumentSource documentSource, Timestamp batchtime, Map<String, String> sqlValues) throws SAXException, IOException
+    {
+        return new ParameterBag(documentSource, batchtime, sqlValues, null);
+    }
+
+    /**
+     * Streams the document through the plan (if any) rather than parsing it to the tree - falling back to the tree for
+     * the documents the byte scanner does not support.
+     */
+    static ParameterBag create(XmlDocumentSource documentSource, Timestamp batchtime, Map<String, String> sqlValues, XmlStreamingPlan streamingPlan) throws SAXException, IOException
+    {
+        return new ParameterBag(documentSource, batchtime, sqlValues, streamingPlan);
     }
 
     public static final String BATCH_TIME_COLNAME = "batchTime";
@@ -49,23 +117,55 @@ public class ParameterBag
 
     private final Timestamp batchtime;
     private final Map<String, String> sqlValues;
-    private final Document xmlDoc;
-    private final ReentrantLock xmlDocCloneLock = new ReentrantLock();
-    private final ThreadLocal<Document> xmlDocThreadHolder = new ThreadLocal<>();
-    private final ThreadLocal<DocumentBuilder> documentBuilderThreadLocal = new ThreadLocal<>();
-    private final byte[] documentData;
+    private final XmlDocumentSource documentSource;
+    private final Map<XmlFlattenerSpecColumn, List<String>> streamedValues;
+    private volatile XmlDocumentTree documentTree;
+    private volatile XmlDocumentDom documentDom;
+    private volatile XmlDocumentDom namespaceAwareDom;
+    private final ConcurrentMap<Integer, List<int[]>> explodeNodeLists;
 
-    private ParameterBag(byte[] documentData, Timestamp batchtime, Map<String, String> sqlValues) throws SAXException, IOException
+    private ParameterBag(XmlDocumentSource documentSource, Timestamp batchtime, Map<String, String> sqlValues, XmlStreamingPlan streamingPlan) throws SAXException, IOException
     {
         this.batchtime = batchtime;
         this.sqlValues = Collections.unmodifiableMap(new ConcurrentHashMap<>(sqlValues));
-        this.documentData = documentData;
-        xmlDoc = builder.parse(new ByteArrayInputStream(documentData));
+        this.documentSource = documentSource;
+        this.streamedValues = streamingPlan == null ? Collections.emptyMap() : ___stream(documentSource, streamingPlan);
+        this.documentTree = streamedValues.isEmpty() ? XmlDocumentTree.parse(documentSource) : null;
+        this.explodeNodeLists = new ConcurrentHashMap<>();
     }
 
+    /**
+     * @return the streamed values of the columns - or empty if the document has to be parsed to the tree instead
+     */
+    private static Map<XmlFlattenerSpecColumn, List<String>> ___stream(XmlDocumentSource documentSource, XmlStreamingPlan streamingPlan)
+    {
+        try
+        {
+            return streamingPlan.evaluate(documentSource);
+        }
+        catch (UnsupportedXmlException e)
+        {
+            if (logger.isDebugEnabled()) logger.debug("Building the tree for " + documentSource + " - " + e.getMessage());
+        }
+        catch (SAXParseException e)
+        {
+            //The JDK parser has the final say on whether a document is broken (and gives the better message)
+            if (logger.isDebugEnabled()) logger.debug("The byte scanner rejected " + documentSource + " - " + e.getMessage() + " - checking with the JDK parser");
+        }
+        return Collections.emptyMap();
+    }
+
+    public XmlDocumentSource getDocumentSource()
+    {
+        return documentSource;
+    }
+
+    /**
+     * @return the raw document - note this is a copy of the (possibly memory mapped) document source.
+     */
     public byte[] getDocumentData()
     {
-        return documentData;
+        return documentSource.toByteArray();
     }
 
     public Timestamp getBatchtime()
@@ -78,121 +178,217 @@ public class ParameterBag
         return sqlValues;
     }
 
-    public Document getThreadSafeXmlDoc()
+    /**
+     * @return the parsed document - safe to use from any number of threads.
+     */
+    public XmlDocumentTree getDocumentTree()
     {
-        if (USE_STRATEGY_1_FOR_XML_DOC == true)
+        final XmlDocumentTree tree = documentTree;
+        if (tree != null)
         {
-            return ___getThreadSafeXmlDoc_strategy_1();
-        } else
+            return tree;
+        }
+        synchronized (this)
         {
-            return ___getThreadSafeXmlDoc_strategy_2();
+            if (documentTree == null)
+            {
+                try
+                {
+                    documentTree = XmlDocumentTree.parse(documentSource);
+                }
+                catch (SAXException | IOException e)
+                {
+                    throw new RuntimeException("Unable to parse the document : " + e, e);
+                }
+            }
+            return documentTree;
         }
     }
 
-    private Document ___getThreadSafeXmlDoc_strategy_1()
+    /**
+     * @return the values of the column streamed from the document (one per node of its parent explode item) - or null
+     *         if the column is evaluated against the tree.
+     */
+    List<String> getStreamedValues(XmlFlattenerSpecColumn col)
     {
-        Document xmlDocInThread = xmlDocThreadHolder.get();
-        if (xmlDocInThread != null)
-        {
-            return xmlDocInThread;
-        }
-        try
-        {
-            xmlDocCloneLock.lock();
-            xmlDocInThread = (Document) xmlDoc.cloneNode(true);
-            xmlDocThreadHolder.set(xmlDocInThread);
-            return xmlDocInThread;
-        } catch (Exception e)
-        {
-            throw new RuntimeException("Unable to clone / parse the document : " + e, e);
-        } finally
-        {
-            xmlDocCloneLock.unlock();
-        }
+        return streamedValues.get(col);
     }
 
-    private Document ___getThreadSafeXmlDoc_strategy_2()
+    /**
+     * Evaluate a (general) XPath expression to a string, against the node of the document tree.
+     */
+    String evaluateString(XPathExpression xpath, int contextNode) throws XPathExpressionException
     {
-        Document xmlDocInThread = xmlDocThreadHolder.get();
-        if (xmlDocInThread != null)
+        return evaluateString(xpath, contextNode, false);
+    }
+
+    /**
+     * Evaluate a (general) XPath expression to a string - against the namespace aware DOM if the expression was
+     * compiled with namespace bindings.
+     */
+    String evaluateString(XPathExpression xpath, int contextNode, boolean namespaceAware) throws XPathExpressionException
+    {
+        return getDocumentDom(namespaceAware).evaluateString(xpath, contextNode);
+    }
+
+    /**
+     * Evaluate a (general) XPath expression to a node set, against the node of the document tree.
+     * @return the ids of the selected elements in the document tree
+     */
+    int[] evaluateElements(XPathExpression xpath, int contextNode) throws XPathExpressionException
+    {
+        return evaluateElements(xpath, contextNode, false);
+    }
+
+    int[] evaluateElements(XPathExpression xpath, int contextNode, boolean namespaceAware) throws XPathExpressionException
+    {
+        return getDocumentDom(namespaceAware).evaluateElements(xpath, contextNode);
+    }
+
+    /**
+     * @return the node lists already resolved for the explode item (by its lineage key) - or null if there are none yet.
+     */
+    List<int[]> getCachedExplodeNodeLists(int lineageKey)
+    {
+        return explodeNodeLists.get(lineageKey);
+    }
+
+    /**
+     * @return the node lists of the explode item - resolved at most once for this document, with any other threads
+     * asking for the same item waiting on the one resolution.
+     */
+    List<int[]> getExplodeNodeLists(int lineageKey, Supplier<List<int[]>> resolver)
+    {
+        return explodeNodeLists.computeIfAbsent(lineageKey, k -> resolver.get());
+    }
+
+    private XmlDocumentDom getDocumentDom(boolean namespaceAware)
+    {
+        XmlDocumentDom dom = namespaceAware ? namespaceAwareDom : documentDom;
+        if (dom != null)
         {
-            return xmlDocInThread;
+            return dom;
         }
-        try
+        synchronized (this)
         {
-            final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-            if ((classLoader == contextClassLoader) == false)
+            dom = namespaceAware ? namespaceAwareDom : documentDom;
+            if (dom == null)
             {
-                Thread.currentThread().setContextClassLoader(contextClassLoader);
+                final DocumentBuilder domBuilder = namespaceAware ? namespaceAwareBuilder.get() : builder.get();
+                try
+                {
+                    final Document xmlDoc = domBuilder.parse(documentSource.newInputStream());
+                    dom = new XmlDocumentDom(xmlDoc, getDocumentTree());
+                }
+                catch (SAXException | IOException e)
+                {
+                    throw new RuntimeException("Unable to parse the document : " + e, e);
+                }
+                if (namespaceAware) namespaceAwareDom = dom;
+                else documentDom = dom;
             }
-            xmlDocInThread = getThreadSafeDocumentBuilder().parse(new ByteArrayInputStream(documentData));
-            xmlDocThreadHolder.set(xmlDocInThread);
-            return xmlDocInThread;
-        } catch (Exception e)
-        {
-            throw new RuntimeException("Unable to clone / parse the document : " + e, e);
+            return dom;
         }
     }
+}
 
-    private DocumentBuilder getThreadSafeDocumentBuilder()
+/**
+ * The W3C DOM of the document - along with the mapping between the DOM elements and the nodes of the
+ * document tree.
+ *
+ * The DOM is read by any number of threads at once, without a lock. The W3C DOM makes no promise that this is safe,
+ * but the one it is parsed to here is built in full up front (no deferred nodes) and the XPath evaluation only walks
+ * it - the last of the nodes it creates lazily (the attribute maps and the text of the attributes) are created by
+ * {@link #___mapNodes}, before the DOM is shared. The compiled expressions are not safe to share, so each thread
+ * passes its own (see {@link XmlNamespaceBindings#compilePerThread(String)}).
+ */
+class XmlDocumentDom
+{
+    private final Document xmlDoc;
+    private final Node[] domNodes;
+    private final Map<Node, Integer> treeNodes;
+
+    XmlDocumentDom(Document xmlDoc, XmlDocumentTree tree)
+    {
+        this.xmlDoc = xmlDoc;
+        this.domNodes = new Node[tree.size()];
+        this.treeNodes = new IdentityHashMap<>();
+        ___mapNodes(xmlDoc, tree);
+    }
+
+    /**
+     * Walks the DOM and the tree side by side - the elements appear in the same (document) order in both.
+     */
+    private void ___mapNodes(Document xmlDoc, XmlDocumentTree tree)
     {
-        DocumentBuilder docBuilder = documentBuilderThreadLocal.get();
-        if (docBuilder != null)
+        final Deque<Node> domStack = new ArrayDeque<>();
+        final Deque<Integer> treeStack = new ArrayDeque<>();
+        domStack.push(xmlDoc);
+        treeStack.push(XmlDocumentTree.DOCUMENT_NODE);
+        while (domStack.isEmpty() == false)
         {
-            return docBuilder;
+            final Node domNode = domStack.pop();
+            final int treeNode = treeStack.pop();
+            domNodes[treeNode] = domNode;
+            treeNodes.put(domNode, treeNode);
+            ___expandAttributes(domNode);
+
+            Node domChild = ___nextElement(domNode.getFirstChild());
+            int treeChild = tree.getFirstChildElement(treeNode);
+            while (domChild != null && treeChild != XmlDocumentTree.NONE)
+            {
+                domStack.push(domChild);
+                treeStack.push(treeChild);
+                domChild = ___nextElement(domChild.getNextSibling());
+                treeChild = tree.getNextSiblingElement(treeChild);
+            }
         }
-        try
-        {
-            docBuilder = docFactory.newDocumentBuilder();
-            documentBuilderThreadLocal.set(docBuilder);
-            return docBuilder;
-        } catch (Exception e)
+    }
+
+    private static void ___expandAttributes(Node node)
+    {
+        final NamedNodeMap attributes = node.getAttributes();
+        if (attributes == null) return;
+        for (int i = 0; i < attributes.getLength(); i++)
         {
-            throw new RuntimeException("Could not create the XML parsing libraries - something must be wrong with your setup : " + e, e);
+            attributes.item(i).getFirstChild();
         }
     }
-}
-
-class CachingContextClassLoader extends ClassLoader
-{
-    private final ClassLoader delegate;
-    private final ConcurrentHashMap<String, Class<?>> clazzCache;
 
-    public CachingContextClassLoader(ClassLoader delegate)
+    private static Node ___nextElement(Node node)
     {
-        super(delegate);
-        this.delegate = delegate;
-        clazzCache = new ConcurrentHashMap<>();
+        while (node != null && node instanceof Element == false) node = node.getNextSibling();
+        return node;
     }
 
-    @Override
-    protected Class<?> findClass(String className) throws ClassNotFoundException
+    /**
+     * @param xpath the expression compiled for the calling thread
+     */
+    String evaluateString(XPathExpression xpath, int contextNode) throws XPathExpressionException
     {
-        Class<?> prev = clazzCache.get(className);
-        if (prev != null) return prev;
-        prev = super.findClass(className);
-        clazzCache.put(className, prev);
-        return prev;
+        return String.valueOf(xpath.evaluate(domNodes[contextNode], XPathConstants.STRING));
     }
 
-    @Override
-    public Class<?> loadClass(String className) throws ClassNotFoundException
+    /**
+     * @param xpath the expression compiled for the calling thread
+     */
+    int[] evaluateElements(XPathExpression xpath, int contextNode) throws XPathExpressionException
     {
-        Class<?> prev = clazzCache.get(className);
-        if (prev != null) return prev;
-        prev = super.loadClass(className);
-        clazzCache.put(className, prev);
-        return prev;
+        final NodeList nodeList = (NodeList) xpath.evaluate(domNodes[contextNode], XPathConstants.NODESET);
+        final IntArrayBuilder result = new IntArrayBuilder();
+        for (int i = 0; i < nodeList.getLength(); i++)
+        {
+            //only the elements (and the document) are in the tree - any text or attribute nodes selected are skipped
+            final Integer treeNode = treeNodes.get(nodeList.item(i));
+            if (treeNode == null) continue;
+            result.add(treeNode);
+        }
+        return result.toArray();
     }
 
     @Override
-    protected Class<?> loadClass(String className, boolean resolveClass) throws ClassNotFoundException
+    public String toString()
     {
-        Class<?> prev = clazzCache.get(className);
-        if (prev != null) return prev;
-        prev = super.loadClass(className, resolveClass);
-        clazzCache.put(className, prev);
-        return prev;
+        return "XmlDocumentDom{" + "xmlDoc=" + xmlDoc + '}';
     }
-
 }
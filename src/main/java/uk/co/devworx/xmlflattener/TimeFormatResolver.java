@@ -0,0 +1,204 @@
+package uk.co.devworx.xmlflattener;
+
+import java.text.ParsePosition;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.Year;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Parses date / time values against a list of candidate formats - without using exceptions for the misses.
+ *
+ * Each candidate is tried with {@link DateTimeFormatter#parseUnresolved(CharSequence, ParsePosition)} (which
+ * reports a failure through the parse position rather than throwing) and the fields are then validated and
+ * resolved here. The resolver remembers the format that last matched and tries it first - the values of a column
+ * nearly always share the one format, so after the first value each parse is normally a single attempt.
+ *
+ * The candidates built from a pattern are also pre-screened on the shape of the input - its length, and the
+ * sequence of (non digit) separators - so that most of the candidates are never even tried.
+ *
+ * Each column (or caller) should have its own resolver. It is safe to share one between threads.
+ */
+public class TimeFormatResolver
+{
+    private final List<DateTimeFormatter> candidates;
+    private final FormatShape[] shapes;
+    private volatile int preferred;
+
+    /**
+     * @return a resolver for the ISO local date-time, followed by {@link TimeUtils#DateTimeParseCandidates}
+     */
+    public static TimeFormatResolver create()
+    {
+        final List<DateTimeFormatter> candidates = new ArrayList<>();
+        candidates.add(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        candidates.addAll(TimeUtils.DateTimeParseCandidates);
+        return new TimeFormatResolver(candidates);
+    }
+
+    TimeFormatResolver(List<DateTimeFormatter> candidates)
+    {
+        this.candidates = Collections.unmodifiableList(new ArrayList<>(candidates));
+        this.shapes = new FormatShape[candidates.size()];
+        for (int i = 0; i < shapes.length; i++)
+        {
+            shapes[i] = TimeUtils.getCandidatePattern(candidates.get(i)).map(FormatShape::create).orElse(null);
+        }
+    }
+
+    /**
+     * @return the parsed value (midnight for the formats without a time) - or empty if no format matches.
+     */
+    public Optional<LocalDateTime> parse(CharSequence text)
+    {
+        final int first = preferred;
+        LocalDateTime result = ___tryParse(first, text);
+        if (result != null) return Optional.of(result);
+
+        for (int i = 0; i < candidates.size(); i++)
+        {
+            if (i == first) continue;
+            result = ___tryParse(i, text);
+            if (result != null)
+            {
+                preferred = i;
+                return Optional.of(result);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the format that last matched
+     */
+    public DateTimeFormatter getPreferredFormat()
+    {
+        return candidates.get(preferred);
+    }
+
+    private LocalDateTime ___tryParse(int candidate, CharSequence text)
+    {
+        if (shapes[candidate] != null && shapes[candidate].accepts(text) == false) return null;
+        final ParsePosition position = new ParsePosition(0);
+        final TemporalAccessor parsed = candidates.get(candidate).parseUnresolved(text, position);
+        if (parsed == null || position.getErrorIndex() >= 0 || position.getIndex() != text.length()) return null;
+        return ___resolve(parsed);
+    }
+
+    private static LocalDateTime ___resolve(TemporalAccessor parsed)
+    {
+        final long year;
+        if (parsed.isSupported(ChronoField.YEAR)) year = parsed.getLong(ChronoField.YEAR);
+        else if (parsed.isSupported(ChronoField.YEAR_OF_ERA)) year = parsed.getLong(ChronoField.YEAR_OF_ERA);
+        else return null;
+        if (parsed.isSupported(ChronoField.MONTH_OF_YEAR) == false || parsed.isSupported(ChronoField.DAY_OF_MONTH) == false) return null;
+
+        final long month = parsed.getLong(ChronoField.MONTH_OF_YEAR);
+        final long day = parsed.getLong(ChronoField.DAY_OF_MONTH);
+        final long hour = ___field(parsed, ChronoField.HOUR_OF_DAY);
+        final long minute = ___field(parsed, ChronoField.MINUTE_OF_HOUR);
+        final long second = ___field(parsed, ChronoField.SECOND_OF_MINUTE);
+        final long nano = ___field(parsed, ChronoField.NANO_OF_SECOND);
+
+        if (year < Year.MIN_VALUE || year > Year.MAX_VALUE) return null;
+        if (month < 1 || month > 12) return null;
+        if (day < 1 || day > Month.of((int) month).length(Year.isLeap(year))) return null;
+        if (ChronoField.HOUR_OF_DAY.range().isValidValue(hour) == false) return null;
+        if (ChronoField.MINUTE_OF_HOUR.range().isValidValue(minute) == false) return null;
+        if (ChronoField.SECOND_OF_MINUTE.range().isValidValue(second) == false) return null;
+        if (ChronoField.NANO_OF_SECOND.range().isValidValue(nano) == false) return null;
+
+        return LocalDateTime.of((int) year, (int) month, (int) day, (int) hour, (int) minute, (int) second, (int) nano);
+    }
+
+    private static long ___field(TemporalAccessor parsed, ChronoField field)
+    {
+        return parsed.isSupported(field) ? parsed.getLong(field) : 0;
+    }
+
+    /**
+     * The shape of the values a pattern can parse - the separators (everything other than the digits) in order,
+     * along with the minimum / maximum length. The shape is deliberately loose - it only ever rules out the
+     * values the pattern could not possibly parse.
+     */
+    static class FormatShape
+    {
+        private final String separators;
+        private final int minLength;
+        private final int maxLength;
+
+        private FormatShape(String separators, int minLength, int maxLength)
+        {
+            this.separators = separators;
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+        }
+
+        static FormatShape create(String pattern)
+        {
+            final StringBuilder separators = new StringBuilder();
+            int minLength = 0;
+            int maxLength = 0;
+            int i = 0;
+            while (i < pattern.length())
+            {
+                final char c = pattern.charAt(i);
+                if (c == '\'')
+                {
+                    final int end = pattern.indexOf('\'', i + 1);
+                    if (end == -1) return null;
+                    final String literal = pattern.substring(i + 1, end);
+                    separators.append(literal);
+                    minLength += literal.length();
+                    maxLength += literal.length();
+                    i = end + 1;
+                    continue;
+                }
+                if (Character.isLetter(c) == false)
+                {
+                    separators.append(c);
+                    minLength++;
+                    maxLength++;
+                    i++;
+                    continue;
+                }
+                int count = 1;
+                while (i + count < pattern.length() && pattern.charAt(i + count) == c) count++;
+                if ("yudMHhmsS".indexOf(c) == -1 || (c == 'M' && count > 2)) return null; //e.g. text fields - no shape
+                if (c == 'y' || c == 'u')
+                {
+                    minLength += count == 2 ? 2 : count;
+                    maxLength += count == 2 ? 2 : 19;
+                }
+                else
+                {
+                    minLength += count;
+                    maxLength += Math.max(count, 2);
+                }
+                i += count;
+            }
+            return new FormatShape(separators.toString(), minLength, maxLength);
+        }
+
+        boolean accepts(CharSequence text)
+        {
+            final int length = text.length();
+            if (length < minLength || length > maxLength) return false;
+            int s = 0;
+            for (int i = 0; i < length; i++)
+            {
+                final char c = text.charAt(i);
+                if (c >= '0' && c <= '9') continue;
+                if (s == separators.length() || separators.charAt(s) != c) return false;
+                s++;
+            }
+            return s == separators.length();
+        }
+    }
+}
@@ -1,74 +1,93 @@
 package uk.co.devworx.xmlflattener;
 
 import java.sql.Timestamp;
-import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 /**
  * Generic utility for converting times.
+ *
+ * The input formats are resolved without exceptions - the misses are simply skipped (see {@link TimeFormatResolver}).
  */
 public class TimeUtils
 {
-	private static final Logger logger = Logger.getLogger(TimeUtils.class);
-
 	public static final List<DateTimeFormatter> DateTimeParseCandidates;
 
+	/**
+	 * The pattern each of the candidates was built from - so that the candidates can be pre-screened on the
+	 * shape of the input. The ISO formatters have no pattern.
+	 */
+	private static final Map<DateTimeFormatter, String> DateTimeParsePatterns = new IdentityHashMap<>();
+
+	private static final TimeFormatResolver defaultFormatResolver;
+
 	static
 	{
 		List<DateTimeFormatter> preDateParseCandidates = new ArrayList<>();
 		preDateParseCandidates.add(DateTimeFormatter.ISO_LOCAL_DATE);
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyyMMdd"));
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("dd/MM/yyyy"));
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("M/d/y H:m")); // for westpac - Calypso
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("M/d/y")); // for westpac - Calypso
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss")); // for more clients
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyy/M/dd HH:mm:ss")); // for more clients
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyy/M/d HH:mm:ss")); // for more clients
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyy/MM/d HH:mm:ss")); // for more clients
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyy/M/d")); // for more clients
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyy/MM/d")); // for more clients
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyy/M/dd")); // for more clients
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyy/MM/dd H:mm:ss")); // for more clients
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyy/M/dd H:mm:ss")); // for more clients
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyy/M/d H:mm:ss")); // for more clients
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyy/MM/d H:mm:ss")); // for more clients
-		preDateParseCandidates.add(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")); // for more clients
+		preDateParseCandidates.add(ofPattern("yyyyMMdd"));
+		preDateParseCandidates.add(ofPattern("dd/MM/yyyy"));
+		preDateParseCandidates.add(ofPattern("M/d/y H:m")); // for westpac - Calypso
+		preDateParseCandidates.add(ofPattern("M/d/y")); // for westpac - Calypso
+		preDateParseCandidates.add(ofPattern("yyyy/MM/dd HH:mm:ss")); // for more clients
+		preDateParseCandidates.add(ofPattern("yyyy/M/dd HH:mm:ss")); // for more clients
+		preDateParseCandidates.add(ofPattern("yyyy/M/d HH:mm:ss")); // for more clients
+		preDateParseCandidates.add(ofPattern("yyyy/MM/d HH:mm:ss")); // for more clients
+		preDateParseCandidates.add(ofPattern("yyyy/M/d")); // for more clients
+		preDateParseCandidates.add(ofPattern("yyyy/MM/d")); // for more clients
+		preDateParseCandidates.add(ofPattern("yyyy/M/dd")); // for more clients
+		preDateParseCandidates.add(ofPattern("yyyy/MM/dd H:mm:ss")); // for more clients
+		preDateParseCandidates.add(ofPattern("yyyy/M/dd H:mm:ss")); // for more clients
+		preDateParseCandidates.add(ofPattern("yyyy/M/d H:mm:ss")); // for more clients
+		preDateParseCandidates.add(ofPattern("yyyy/MM/d H:mm:ss")); // for more clients
+		preDateParseCandidates.add(ofPattern("yyyy-MM-dd HH:mm:ss")); // for more clients
 
 
 		DateTimeParseCandidates = Collections.unmodifiableList(preDateParseCandidates);
+		defaultFormatResolver = TimeFormatResolver.create();
 	}
 
+	private static DateTimeFormatter ofPattern(String pattern)
+	{
+		final DateTimeFormatter formatter = DateTimeFormatter.ofPattern(pattern);
+		DateTimeParsePatterns.put(formatter, pattern);
+		return formatter;
+	}
 
-	public static Timestamp convertToSQLTimestamp(String input)
+	/**
+	 * @return the pattern the candidate was built from - if any.
+	 */
+	static Optional<String> getCandidatePattern(DateTimeFormatter candidate)
 	{
-		try
-		{
-			LocalDateTime parsed = LocalDateTime.parse(input);
-			return Timestamp.valueOf(parsed);
-		}
-		catch(Exception e)
-		{
-			logger.debug("Could not parse the input using the default method : " + input);
-		}
+		return Optional.ofNullable(DateTimeParsePatterns.get(candidate));
+	}
+
+	/**
+	 * Parse the input - trying the ISO local date-time and then each of the {@link #DateTimeParseCandidates}.
+	 *
+	 * The formats are resolved through a shared {@link TimeFormatResolver} - callers parsing a column of values
+	 * should rather use their own (see {@link TimeFormatResolver#create()}) so that it learns their format.
+	 *
+	 * @return the timestamp - or empty if the input is not in any of the formats. This never throws.
+	 */
+	public static Optional<Timestamp> parseSQLTimestamp(String input)
+	{
+		if (input == null) return Optional.empty();
+		return defaultFormatResolver.parse(input).map(Timestamp::valueOf);
+	}
 
-		for (DateTimeFormatter dateFormat : DateTimeParseCandidates)
+	public static Timestamp convertToSQLTimestamp(String input)
+	{
+		final Optional<Timestamp> parsed = parseSQLTimestamp(input);
+		if (parsed.isPresent() == true)
 		{
-			try
-			{
-				LocalDateTime localDate = LocalDateTime.parse(input, dateFormat);
-				return Timestamp.valueOf(localDate);
-			}
-			catch(Exception e)
-			{
-				logger.debug(e);
-				continue;
-			}
+			return parsed.get();
 		}
-
 		throw new IllegalArgumentException("Unable to parse the input - " + input + " - to a timestamp. It is not in a format that is understood");
-
 	}
 }
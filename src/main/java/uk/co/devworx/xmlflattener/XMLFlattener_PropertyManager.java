@@ -7,6 +7,44 @@ public class XMLFlattener_PropertyManager
 	public static String XmlFlattener_LocalRunXMLDirectory = "";
 	public static String XmlFlattener_DumpXMLDirectory = "";
 	public static int XmlFlattener_PrintReportSize = 1000;
+	public static int XmlFlattener_DirectoryScanParallelism = Runtime.getRuntime().availableProcessors();
+	public static int XmlFlattener_DirectoryScanQueueSize = 10000;
+	public static long XmlFlattener_MemoryMapThresholdBytes = 16L * 1024 * 1024;
+	public static long XmlFlattener_ReadAheadThresholdBytes = 1024 * 1024;
+	public static int XmlFlattener_ReadAheadChunkBytes = 256 * 1024;
+	public static int XmlFlattener_ReadAheadChunks = 4;
+	public static boolean XmlFlattener_FailOnInvalidTypedValue = false;
+	public static int XmlFlattener_InvalidTypedValueReportLimit = 100;
+	public static boolean XmlFlattener_CompactDocumentTree = Boolean.getBoolean("XmlFlattener_CompactDocumentTree");
+	public static boolean XmlFlattener_StreamingColumns = Boolean.parseBoolean(System.getProperty("XmlFlattener_StreamingColumns", "true"));
+	public static int XmlFlattener_ServerPort = 8765;
+	public static int XmlFlattener_ServerSpecCacheSize = 64;
+	public static int XmlFlattener_ServerWorkerThreads = Runtime.getRuntime().availableProcessors();
+	public static boolean XmlFlattener_WatchPolling = Boolean.getBoolean("XmlFlattener_WatchPolling");
+	public static long XmlFlattener_WatchPollMillis = 1000;
+	public static long XmlFlattener_WatchFlushRows = 1000;
+	public static long XmlFlattener_WatchFlushMillis = 5000;
+	public static long XmlFlattener_WatchRollRows = 1000000;
+	public static long XmlFlattener_WatchRollMillis = 60L * 60 * 1000;
+	public static long XmlFlattener_SplitThresholdBytes = Long.getLong("XmlFlattener_SplitThresholdBytes", 256L * 1024 * 1024);
+	public static int XmlFlattener_SplitChunkBytes = 4 * 1024 * 1024;
+	public static int XmlFlattener_SplitParallelism = Runtime.getRuntime().availableProcessors();
+	public static long XmlFlattener_DedupeHeapBytes = 64L * 1024 * 1024;
+	public static long XmlFlattener_DedupeOffHeapBytes = 1024L * 1024 * 1024;
+	public static String XmlFlattener_DedupeSpillDirectory = System.getProperty("java.io.tmpdir");
+	public static long XmlFlattener_SortRunBytes = 256L * 1024 * 1024;
+	public static int XmlFlattener_SortMergeFanIn = 64;
+	public static String XmlFlattener_SortSpillDirectory = System.getProperty("java.io.tmpdir");
+	public static long XmlFlattener_RowBufferPoolBytes = 64L * 1024 * 1024;
+	public static int XmlFlattener_CsvBufferBytes = 1024 * 1024;
+	public static int XmlFlattener_WriterRingSlots = Integer.getInteger("XmlFlattener_WriterRingSlots", 4096);
+	public static double XmlFlattener_ExplainSampleFraction = 0.1;
+	public static long XmlFlattener_ExplainRowsPerDocumentWarning = 10000;
+	public static double XmlFlattener_ProfileCircuitBreakerHeadroom = 2.0;
+	public static String XmlFlattener_QuarantineMode = System.getProperty("XmlFlattener_QuarantineMode", "link");
+	public static int XmlFlattener_QuarantineQueueSize = 1024;
+	public static double XmlFlattener_MaxBrokenPercent = 100;
+	public static long XmlFlattener_ErrorBudgetMinFiles = 100;
 
 	private XMLFlattener_PropertyManager() {}
 
@@ -0,0 +1,733 @@
+package uk.co.devworx.xmlflattener;
+
+import org.xml.sax.SAXParseException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A minimal, non-validating XML tokenizer that works directly on the UTF-8 bytes of a document.
+ *
+ * Rather than producing strings, it reports the byte ranges of the text and attribute values (which can be decoded
+ * later - and only if they are actually needed) along with interned name symbols. Adjacent text, references and
+ * CDATA sections are reported as a single text range. Comments and processing instructions are skipped.
+ *
+ * The scanner can also be run over a document that is still being read ({@link XmlDocumentSource#awaitRead(int)}) -
+ * it then waits for the bytes as it gets to them, so the document is scanned while the rest of it is read.
+ *
+ * It does check the document is well-formed, as the JDK parser would - a file it accepts is not parsed again, so it
+ * must not accept anything the JDK parser rejects (the characters that are not XML characters, ]]&gt; in the text,
+ * -- in a comment, a misplaced XML declaration ...).
+ *
+ * Documents that this scanner does not handle - those with a DOCTYPE (and so possibly entity declarations) or in
+ * an encoding other than UTF-8 / US-ASCII - are rejected with an {@link UnsupportedXmlException}, so that the
+ * caller can fall back to the JDK parser.
+ */
+class XmlByteScanner
+{
+    private static final byte[] CDATA_START = "<![CDATA[".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COMMENT_START = "<!--".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DOUBLE_HYPHEN = "--".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PI_END = "?>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] XML_DECL_START = "<?xml".getBytes(StandardCharsets.US_ASCII);
+
+    private final ByteBuffer buffer;
+    private final XmlDocumentSource source;
+    private final int length;
+    private final XmlSymbolTable symbols;
+    private final XmlByteScanHandler handler;
+
+    private int limit; //the end of the bytes read so far
+
+    private int pos;
+    private int[] elementStack = new int[32];
+    private int depth;
+
+    private int attributeCount;
+    private int[] attributeNameIds = new int[16];
+    private int[] attributeValueStarts = new int[16];
+    private int[] attributeValueEnds = new int[16];
+    private boolean[] attributeValueEncoded = new boolean[16];
+
+    XmlByteScanner(ByteBuffer buffer, XmlSymbolTable symbols, XmlByteScanHandler handler)
+    {
+        this.buffer = buffer;
+        this.source = null;
+        this.length = buffer.limit();
+        this.limit = length;
+        this.symbols = symbols;
+        this.handler = handler;
+    }
+
+    /**
+     * Scans the document source as it is read - the buffer must be that of {@link XmlDocumentSource#getBufferAhead()}.
+     */
+    XmlByteScanner(XmlDocumentSource source, ByteBuffer buffer, XmlSymbolTable symbols, XmlByteScanHandler handler)
+    {
+        this.buffer = buffer;
+        this.source = source;
+        this.length = buffer.limit();
+        this.limit = source.awaitRead(0);
+        this.symbols = symbols;
+        this.handler = handler;
+    }
+
+    int getDepth()
+    {
+        return depth;
+    }
+
+    int getAttributeCount()
+    {
+        return attributeCount;
+    }
+
+    int getAttributeNameId(int index)
+    {
+        return attributeNameIds[index];
+    }
+
+    int getAttributeValueStart(int index)
+    {
+        return attributeValueStarts[index];
+    }
+
+    int getAttributeValueEnd(int index)
+    {
+        return attributeValueEnds[index];
+    }
+
+    boolean isAttributeValueEncoded(int index)
+    {
+        return attributeValueEncoded[index];
+    }
+
+    String getAttributeValue(int index)
+    {
+        return decodeAttribute(buffer, attributeValueStarts[index], attributeValueEnds[index], attributeValueEncoded[index]);
+    }
+
+    /**
+     * Scan the whole document, reporting the events to the handler.
+     */
+    void scan() throws SAXParseException
+    {
+        pos = buffer.position();
+        ___scanProlog();
+
+        boolean seenRoot = false;
+        int textStart = -1;
+        boolean textEncoded = false;
+
+        while (___has(pos))
+        {
+            final byte b = buffer.get(pos);
+            if (b == '<')
+            {
+                if (___startsWith(CDATA_START, pos))
+                {
+                    if (depth == 0) throw error("CDATA is not allowed outside of the root element");
+                    if (textStart == -1) textStart = pos;
+                    textEncoded = true;
+                    final int end = ___indexOf(CDATA_END, pos + CDATA_START.length, "CDATA section");
+                    pos += CDATA_START.length;
+                    ___scanChars(end);
+                    pos = end + CDATA_END.length;
+                    continue;
+                }
+                if (textStart != -1)
+                {
+                    handler.text(textStart, pos, textEncoded);
+                    textStart = -1;
+                    textEncoded = false;
+                }
+                if (___startsWith(COMMENT_START, pos))
+                {
+                    ___scanComment();
+                    continue;
+                }
+                final byte next = ___byteAt(pos + 1);
+                if (next == '?')
+                {
+                    ___scanProcessingInstruction();
+                    continue;
+                }
+                if (next == '!')
+                {
+                    throw new UnsupportedXmlException("Document type declarations are not supported by the byte scanner");
+                }
+                if (next == '/')
+                {
+                    ___scanEndTag();
+                    continue;
+                }
+                if (depth == 0 && seenRoot == true) throw error("Only one root element is allowed");
+                seenRoot = true;
+                ___scanStartTag();
+                continue;
+            }
+
+            if (depth == 0)
+            {
+                if (___isWhitespace(b) == false) throw error("Content is not allowed outside of the root element");
+                pos++;
+                continue;
+            }
+
+            if (textStart == -1) textStart = pos;
+            if (b == '&')
+            {
+                pos = ___scanReference(pos);
+                textEncoded = true;
+            }
+            else if (b == '\r')
+            {
+                textEncoded = true;
+                pos++;
+            }
+            else if (b < 0)
+            {
+                pos = ___scanUtf8(pos);
+            }
+            else if (b == ']' && ___startsWith(CDATA_END, pos))
+            {
+                throw error("The character sequence \"]]>\" must not appear in content unless used to mark the end of a CDATA section");
+            }
+            else
+            {
+                ___checkAscii(b);
+                pos++;
+            }
+        }
+
+        if (seenRoot == false) throw error("The document does not contain a root element");
+        if (depth != 0) throw error("The document ended before the element '" + symbols.getName(elementStack[depth - 1]) + "' was closed");
+    }
+
+    private void ___scanProlog() throws SAXParseException
+    {
+        if (___has(pos + 1))
+        {
+            final int b0 = buffer.get(pos) & 0xFF;
+            final int b1 = buffer.get(pos + 1) & 0xFF;
+            if ((b0 == 0xFE && b1 == 0xFF) || (b0 == 0xFF && b1 == 0xFE) || b0 == 0 || b1 == 0)
+            {
+                throw new UnsupportedXmlException("UTF-16 / UTF-32 documents are not supported by the byte scanner");
+            }
+        }
+        if (___has(pos + 2) && (buffer.get(pos) & 0xFF) == 0xEF && (buffer.get(pos + 1) & 0xFF) == 0xBB && (buffer.get(pos + 2) & 0xFF) == 0xBF)
+        {
+            pos += 3;
+        }
+        if (___startsWith(XML_DECL_START, pos) && ___isWhitespace(___byteAt(pos + XML_DECL_START.length)))
+        {
+            final int end = ___indexOf(PI_END, pos, "XML declaration");
+            final String declaration = decodeText(buffer, pos, end, false);
+            final String encoding = ___pseudoAttribute(declaration, "encoding");
+            if (encoding != null)
+            {
+                final String enc = encoding.toUpperCase(Locale.ROOT);
+                if (enc.equals("UTF-8") == false && enc.equals("UTF8") == false && enc.equals("US-ASCII") == false && enc.equals("ASCII") == false)
+                {
+                    throw new UnsupportedXmlException("The encoding " + encoding + " is not supported by the byte scanner");
+                }
+            }
+            pos = end + PI_END.length;
+        }
+    }
+
+    /**
+     * The comment cannot contain -- (so the first -- must be that of the -->).
+     */
+    private void ___scanComment() throws SAXParseException
+    {
+        pos += COMMENT_START.length;
+        final int end = ___indexOf(DOUBLE_HYPHEN, pos, "comment");
+        if (___byteAt(end + DOUBLE_HYPHEN.length) != '>')
+        {
+            pos = end;
+            throw error("The string \"--\" is not permitted within comments");
+        }
+        ___scanChars(end);
+        pos = end + COMMENT_END.length;
+    }
+
+    /**
+     * The target of the instruction cannot be xml - an XML declaration is only allowed at the very start of the
+     * document, where {@link #___scanProlog()} has already consumed it.
+     */
+    private void ___scanProcessingInstruction() throws SAXParseException
+    {
+        pos += 2; //the <?
+        final int targetStart = pos;
+        while (___has(pos) && ___isWhitespace(buffer.get(pos)) == false && buffer.get(pos) != '?') pos++;
+        if (pos == targetStart) throw error("The processing instruction must begin with the name of the target");
+        if (pos - targetStart == 3 && decodeText(buffer, targetStart, pos, false).equalsIgnoreCase("xml"))
+        {
+            throw error("The processing instruction target matching \"[xX][mM][lL]\" is not allowed");
+        }
+        final int end = ___indexOf(PI_END, pos, "processing instruction");
+        ___scanChars(end);
+        pos = end + PI_END.length;
+    }
+
+    /**
+     * Validates the characters from the current position to the end (of a comment, CDATA section or processing
+     * instruction) - none of which have any markup to look for.
+     */
+    private void ___scanChars(int end) throws SAXParseException
+    {
+        while (pos < end)
+        {
+            final byte b = buffer.get(pos);
+            if (b < 0)
+            {
+                pos = ___scanUtf8(pos);
+            }
+            else
+            {
+                ___checkAscii(b);
+                pos++;
+            }
+        }
+    }
+
+    private static String ___pseudoAttribute(String declaration, String name)
+    {
+        final int index = declaration.indexOf(name);
+        if (index == -1) return null;
+        int start = declaration.indexOf('"', index);
+        final int singleQuote = declaration.indexOf('\'', index);
+        if (start == -1 || (singleQuote != -1 && singleQuote < start)) start = singleQuote;
+        if (start == -1) return null;
+        final int end = declaration.indexOf(declaration.charAt(start), start + 1);
+        if (end == -1) return null;
+        return declaration.substring(start + 1, end);
+    }
+
+    private void ___scanStartTag() throws SAXParseException
+    {
+        pos++; //the <
+        final int nameId = ___scanName();
+        attributeCount = 0;
+        while (true)
+        {
+            final boolean hadWhitespace = ___skipWhitespace();
+            final byte b = ___byteAt(pos);
+            if (b == '>')
+            {
+                pos++;
+                ___pushElement(nameId);
+                handler.startElement(this, nameId);
+                return;
+            }
+            if (b == '/')
+            {
+                if (___byteAt(pos + 1) != '>') throw error("Expected '/>' to close the empty element");
+                pos += 2;
+                ___pushElement(nameId);
+                handler.startElement(this, nameId);
+                depth--;
+                handler.endElement(nameId);
+                return;
+            }
+            if (hadWhitespace == false) throw error("Attributes must be separated by whitespace");
+            ___scanAttribute();
+        }
+    }
+
+    private void ___scanAttribute() throws SAXParseException
+    {
+        final int nameId = ___scanName();
+        for (int i = 0; i < attributeCount; i++)
+        {
+            if (attributeNameIds[i] == nameId) throw error("The attribute '" + symbols.getName(nameId) + "' appears more than once");
+        }
+        ___skipWhitespace();
+        if (___byteAt(pos) != '=') throw error("Expected '=' after the attribute name '" + symbols.getName(nameId) + "'");
+        pos++;
+        ___skipWhitespace();
+        final byte quote = ___byteAt(pos);
+        if (quote != '"' && quote != '\'') throw error("The attribute value must be quoted");
+        pos++;
+        final int valueStart = pos;
+        boolean encoded = false;
+        while (true)
+        {
+            if (___has(pos) == false) throw error("The document ended inside an attribute value");
+            final byte b = buffer.get(pos);
+            if (b == quote) break;
+            if (b == '<') throw error("The character '<' is not allowed in attribute values");
+            if (b == '&')
+            {
+                pos = ___scanReference(pos);
+                encoded = true;
+            }
+            else if (b == '\t' || b == '\n' || b == '\r')
+            {
+                encoded = true;
+                pos++;
+            }
+            else if (b < 0)
+            {
+                pos = ___scanUtf8(pos);
+            }
+            else
+            {
+                ___checkAscii(b);
+                pos++;
+            }
+        }
+        if (attributeCount == attributeNameIds.length)
+        {
+            final int newLength = attributeCount * 2;
+            attributeNameIds = Arrays.copyOf(attributeNameIds, newLength);
+            attributeValueStarts = Arrays.copyOf(attributeValueStarts, newLength);
+            attributeValueEnds = Arrays.copyOf(attributeValueEnds, newLength);
+            attributeValueEncoded = Arrays.copyOf(attributeValueEncoded, newLength);
+        }
+        attributeNameIds[attributeCount] = nameId;
+        attributeValueStarts[attributeCount] = valueStart;
+        attributeValueEnds[attributeCount] = pos;
+        attributeValueEncoded[attributeCount] = encoded;
+        attributeCount++;
+        pos++; //the closing quote
+    }
+
+    private void ___scanEndTag() throws SAXParseException
+    {
+        pos += 2; //the </
+        final int nameId = ___scanName();
+        ___skipWhitespace();
+        if (___byteAt(pos) != '>') throw error("Expected '>' to close the end tag");
+        pos++;
+        if (depth == 0) throw error("Unexpected end tag '" + symbols.getName(nameId) + "'");
+        final int expected = elementStack[depth - 1];
+        if (expected != nameId)
+        {
+            throw error("The element type '" + symbols.getName(expected) + "' must be terminated by the matching end-tag '</" + symbols.getName(expected) + ">'");
+        }
+        depth--;
+        handler.endElement(nameId);
+    }
+
+    private void ___pushElement(int nameId)
+    {
+        if (depth == elementStack.length) elementStack = Arrays.copyOf(elementStack, depth * 2);
+        elementStack[depth++] = nameId;
+    }
+
+    private int ___scanName() throws SAXParseException
+    {
+        final int start = pos;
+        while (___has(pos))
+        {
+            final byte b = buffer.get(pos);
+            if (___isWhitespace(b) || b == '/' || b == '>' || b == '=' || b == '<' || b == '"' || b == '\'') break;
+            pos++;
+        }
+        if (pos == start) throw error("Expected an element or attribute name");
+        final byte first = buffer.get(start);
+        if (first == '-' || first == '.' || (first >= '0' && first <= '9')) throw error("Invalid name - names cannot start with '" + (char) first + "'");
+        return symbols.intern(buffer, start, pos);
+    }
+
+    /**
+     * Validates the entity or character reference that starts at the offset.
+     * @return the offset just after the reference
+     */
+    private int ___scanReference(int start) throws SAXParseException
+    {
+        int end = start + 1;
+        while (___has(end) && buffer.get(end) != ';' && end - start < 16) end++;
+        if (___has(end) == false || buffer.get(end) != ';') throw error("The entity reference must end with ';'");
+        final int codePoint = ___decodeReference(buffer, start + 1, end);
+        if (codePoint == -1)
+        {
+            throw error("The entity '" + decodeText(buffer, start + 1, end, false) + "' was referenced, but not declared");
+        }
+        if (buffer.get(start + 1) == '#' && ___isXmlChar(codePoint) == false)
+        {
+            throw error("Character reference \"&" + decodeText(buffer, start + 1, end, false) + "\" is an invalid XML character");
+        }
+        return end + 1;
+    }
+
+    /**
+     * Validates the multi-byte UTF-8 sequence starting at the offset - which must be the shortest encoding of an XML
+     * character.
+     * @return the offset just after the sequence
+     */
+    private int ___scanUtf8(int start) throws SAXParseException
+    {
+        final int lead = buffer.get(start) & 0xFF;
+        final int length;
+        if (lead >= 0xC2 && lead <= 0xDF) length = 2;
+        else if (lead >= 0xE0 && lead <= 0xEF) length = 3;
+        else if (lead >= 0xF0 && lead <= 0xF4) length = 4;
+        else throw error("Invalid byte 1 of " + "UTF-8 sequence");
+        if (___has(start + length - 1) == false) throw error("Incomplete UTF-8 sequence");
+        int codePoint = lead & (0xFF >> (length + 1));
+        for (int i = 1; i < length; i++)
+        {
+            final int b = buffer.get(start + i) & 0xFF;
+            if ((b & 0xC0) != 0x80) throw error("Invalid byte " + (i + 1) + " of " + length + "-byte UTF-8 sequence");
+            codePoint = (codePoint << 6) | (b & 0x3F);
+        }
+        final int shortest = length == 2 ? 0x80 : length == 3 ? 0x800 : 0x10000;
+        if (codePoint < shortest) throw error("Invalid byte 2 of " + length + "-byte UTF-8 sequence");
+        if (___isXmlChar(codePoint) == false) throw error("An invalid XML character (Unicode: 0x" + Integer.toHexString(codePoint) + ") was found in the document");
+        return start + length;
+    }
+
+    /**
+     * The only characters below the space allowed in the document are tab, line feed and carriage return.
+     */
+    private void ___checkAscii(byte b) throws SAXParseException
+    {
+        if (b < 0x20 && b != '\t' && b != '\n' && b != '\r')
+        {
+            throw error("An invalid XML character (Unicode: 0x" + Integer.toHexString(b) + ") was found in the document");
+        }
+    }
+
+    /**
+     * @return true if the code point is a Char of the XML 1.0 spec
+     */
+    private static boolean ___isXmlChar(int c)
+    {
+        return c == 0x9 || c == 0xA || c == 0xD || (c >= 0x20 && c <= 0xD7FF) || (c >= 0xE000 && c <= 0xFFFD) || (c >= 0x10000 && c <= 0x10FFFF);
+    }
+
+    private boolean ___skipWhitespace()
+    {
+        final int start = pos;
+        while (___has(pos) && ___isWhitespace(buffer.get(pos))) pos++;
+        return pos != start;
+    }
+
+    private byte ___byteAt(int offset) throws SAXParseException
+    {
+        if (___has(offset) == false) throw error("The document ended unexpectedly");
+        return buffer.get(offset);
+    }
+
+    private boolean ___startsWith(byte[] prefix, int offset)
+    {
+        if (___has(offset + prefix.length - 1) == false) return false;
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (buffer.get(offset + i) != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private int ___indexOf(byte[] toFind, int from, String construct) throws SAXParseException
+    {
+        final byte first = toFind[0];
+        for (int i = from; ___has(i + toFind.length - 1); i++)
+        {
+            if (buffer.get(i) == first && ___startsWith(toFind, i)) return i;
+        }
+        throw error("The document ended inside a " + construct);
+    }
+
+    /**
+     * @return true if the byte at the offset is part of the document - waiting for it to be read, if need be.
+     */
+    private boolean ___has(int offset)
+    {
+        if (offset < limit) return true;
+        if (source == null || limit == length || offset >= length) return false;
+        //waits for a whole chunk at a time, rather than for the one byte
+        limit = Math.min(length, source.awaitRead(offset + 1));
+        return offset < limit;
+    }
+
+    private static boolean ___isWhitespace(byte b)
+    {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    SAXParseException error(String message)
+    {
+        int line = 1;
+        int lineStart = 0;
+        final int errorPos = Math.min(pos, limit);
+        for (int i = 0; i < errorPos; i++)
+        {
+            if (buffer.get(i) == '\n')
+            {
+                line++;
+                lineStart = i + 1;
+            }
+        }
+        return new SAXParseException(message, null, null, line, errorPos - lineStart + 1);
+    }
+
+    /**
+     * @return the code point of the reference (without the & and ;) or -1 if it is not a valid reference
+     */
+    private static int ___decodeReference(ByteBuffer buffer, int start, int end)
+    {
+        final int length = end - start;
+        if (length <= 0) return -1;
+        if (buffer.get(start) == '#')
+        {
+            int codePoint = 0;
+            final boolean hex = length > 1 && buffer.get(start + 1) == 'x';
+            final int digitsStart = start + (hex ? 2 : 1);
+            if (digitsStart == end) return -1;
+            for (int i = digitsStart; i < end; i++)
+            {
+                final int digit = Character.digit((char) buffer.get(i), hex ? 16 : 10);
+                if (digit == -1) return -1;
+                codePoint = codePoint * (hex ? 16 : 10) + digit;
+                if (codePoint > Character.MAX_CODE_POINT) return -1;
+            }
+            return codePoint;
+        }
+        if (___equalsAscii(buffer, start, end, "lt")) return '<';
+        if (___equalsAscii(buffer, start, end, "gt")) return '>';
+        if (___equalsAscii(buffer, start, end, "amp")) return '&';
+        if (___equalsAscii(buffer, start, end, "apos")) return '\'';
+        if (___equalsAscii(buffer, start, end, "quot")) return '"';
+        return -1;
+    }
+
+    private static boolean ___equalsAscii(ByteBuffer buffer, int start, int end, String value)
+    {
+        if (end - start != value.length()) return false;
+        for (int i = 0; i < value.length(); i++)
+        {
+            if (buffer.get(start + i) != value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a text range reported by the scanner - resolving the references, unwrapping the CDATA sections and
+     * normalising the line endings.
+     */
+    static String decodeText(ByteBuffer buffer, int start, int end, boolean encoded)
+    {
+        return ___decode(buffer, start, end, encoded, false);
+    }
+
+    /**
+     * Decodes an attribute value reported by the scanner - as per the text, but also normalising the whitespace.
+     */
+    static String decodeAttribute(ByteBuffer buffer, int start, int end, boolean encoded)
+    {
+        return ___decode(buffer, start, end, encoded, true);
+    }
+
+    private static String ___decode(ByteBuffer buffer, int start, int end, boolean encoded, boolean attribute)
+    {
+        final int length = end - start;
+        if (length == 0) return "";
+        final byte[] raw = new byte[length];
+        final ByteBuffer view = buffer.duplicate();
+        ((java.nio.Buffer) view).position(start);
+        view.get(raw);
+        if (encoded == false)
+        {
+            return new String(raw, StandardCharsets.UTF_8);
+        }
+
+        final byte[] out = new byte[length];
+        int o = 0;
+        int i = 0;
+        while (i < length)
+        {
+            final byte b = raw[i];
+            if (attribute == false && b == '<' && i + CDATA_START.length <= length && ___regionMatches(raw, i, CDATA_START))
+            {
+                i += CDATA_START.length;
+                while (i < length && (___regionMatches(raw, i, CDATA_END) == false))
+                {
+                    if (raw[i] == '\r')
+                    {
+                        out[o++] = '\n';
+                        if (i + 1 < length && raw[i + 1] == '\n') i++;
+                    }
+                    else
+                    {
+                        out[o++] = raw[i];
+                    }
+                    i++;
+                }
+                i += CDATA_END.length;
+                continue;
+            }
+            if (b == '&')
+            {
+                int semi = i + 1;
+                while (raw[semi] != ';') semi++;
+                final int codePoint = ___decodeReference(ByteBuffer.wrap(raw), i + 1, semi);
+                final byte[] encodedChar = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+                System.arraycopy(encodedChar, 0, out, o, encodedChar.length);
+                o += encodedChar.length;
+                i = semi + 1;
+                continue;
+            }
+            if (b == '\r')
+            {
+                out[o++] = attribute ? (byte) ' ' : (byte) '\n';
+                if (i + 1 < length && raw[i + 1] == '\n') i++;
+                i++;
+                continue;
+            }
+            if (attribute && (b == '\n' || b == '\t'))
+            {
+                out[o++] = ' ';
+                i++;
+                continue;
+            }
+            out[o++] = b;
+            i++;
+        }
+        return new String(out, 0, o, StandardCharsets.UTF_8);
+    }
+
+    private static boolean ___regionMatches(byte[] raw, int offset, byte[] toMatch)
+    {
+        if (offset + toMatch.length > raw.length) return false;
+        for (int i = 0; i < toMatch.length; i++)
+        {
+            if (raw[offset + i] != toMatch[i]) return false;
+        }
+        return true;
+    }
+}
+
+/**
+ * Receives the events of the {@link XmlByteScanner}. The attributes of an element are available from the scanner
+ * for the duration of the startElement call.
+ */
+interface XmlByteScanHandler
+{
+    void startElement(XmlByteScanner scanner, int nameId);
+
+    void endElement(int nameId);
+
+    void text(int start, int end, boolean encoded);
+}
+
+/**
+ * Raised when the document uses a feature the byte scanner does not support - the document is not broken and
+ * should instead be parsed with the JDK parser.
+ */
+class UnsupportedXmlException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    UnsupportedXmlException(String message)
+    {
+        super(message);
+    }
+}
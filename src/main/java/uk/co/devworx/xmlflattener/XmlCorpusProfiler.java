@@ -0,0 +1,708 @@
+package uk.co.devworx.xmlflattener;
+
+import de.vandermeer.asciitable.AsciiTable;
+import de.vandermeer.asciitable.CWC_LongestLine;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * The profile mode of the {@link XmlFlattenerRunner} - streams the whole input corpus of a spec and records the
+ * structure of the documents, so that the explode items (and their circuit breakers) can be set from the data rather
+ * than guessed.
+ *
+ * The documents are streamed through the {@link XmlByteScanner} (or the JDK's SAX parser, for the documents it does
+ * not support) - no DOM or document tree is built, so the corpus is profiled in the memory of a single element path
+ * tree. For each element path it records:
+ * <ul>
+ *     <li>how often it occurs - and in how many documents.</li>
+ *     <li>its fan-out - how many of the elements each parent element has - with the max and percentiles.</li>
+ *     <li>the attributes it is seen with.</li>
+ *     <li>the length (in UTF-8 bytes) of its text - for the elements without child elements, i.e. the values the
+ *         columns extract.</li>
+ * </ul>
+ *
+ * A circuit breaker is then suggested for each explode item with a plain path - the largest fan-out of any of its
+ * steps, times the XmlFlattener_ProfileCircuitBreakerHeadroom. The paths are profiled by their names as written in
+ * the documents, so a step with a prefix bound by the spec matches on its local name.
+ */
+class XmlCorpusProfiler
+{
+    private static final Logger logger = Logger.getLogger(XmlCorpusProfiler.class);
+    private static final SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+
+    private final XmlFlattenerSpec spec;
+    private final XmlSymbolTable symbols;
+    private final PathNode root;
+    private final List<Suggestion> suggestions;
+    private SAXParser saxParser;
+
+    private Frame[] frames = new Frame[32];
+    private int depth;
+    private long nextInstance;
+    private long documents;
+    private long brokenFiles;
+    private long bytes;
+
+    /**
+     * Profiles every one of the input files of the spec.
+     */
+    static XmlCorpusProfiler profile(final XmlFlattenerSpec spec, final Path inputPath) throws IOException
+    {
+        final XmlCorpusProfiler profiler = new XmlCorpusProfiler(spec);
+        final Path xmlInputsDirectory = XmlFlattener.getRelativeOrAbsolutePath(inputPath, XMLFlattener_PropertyManager.XmlFlattener_LocalRunXMLDirectory);
+        try (Stream<XmlInputFile> allXMLFiles = XmlInputFileScanner.scan(xmlInputsDirectory, spec.getInputFilter()))
+        {
+            final Iterator<XmlInputFile> xmlFileIterator = allXMLFiles.iterator();
+            while (xmlFileIterator.hasNext())
+            {
+                final XmlInputFile xmlFile = xmlFileIterator.next();
+                try
+                {
+                    profiler.add(XmlDocumentSource.read(xmlFile.getPath(), xmlFile.getSize()));
+                }
+                catch (SAXException e)
+                {
+                    logger.warn("Unable to profile the XML file " + xmlFile.getPath() + " - " + e);
+                    profiler.brokenFiles++;
+                }
+            }
+        }
+        profiler.finish();
+        return profiler;
+    }
+
+    private XmlCorpusProfiler(XmlFlattenerSpec spec)
+    {
+        this.spec = spec;
+        this.symbols = new XmlSymbolTable();
+        this.root = new PathNode(null, "", 0);
+        final List<Suggestion> suggestionsP = new ArrayList<>();
+        for (FlattenerListItem item : spec.getSpecListItems().values())
+        {
+            for (XmlFlattenerExplodeItem ei : item.getExplodeItems())
+            {
+                ___addDepthFirst(item, ei, suggestionsP);
+            }
+        }
+        this.suggestions = Collections.unmodifiableList(suggestionsP);
+    }
+
+    private static void ___addDepthFirst(FlattenerListItem item, XmlFlattenerExplodeItem ei, List<Suggestion> suggestions)
+    {
+        suggestions.add(new Suggestion(item, ei));
+        for (XmlFlattenerExplodeItem child : ei.getAllExplodeItems())
+        {
+            ___addDepthFirst(item, child, suggestions);
+        }
+    }
+
+    /**
+     * Profiles the document - with the byte scanner, or the JDK parser if the scanner does not support it.
+     * @throws SAXException if the document is broken - nothing of it is then profiled
+     */
+    void add(XmlDocumentSource source) throws SAXException, IOException
+    {
+        //the events are only applied to the path tree once the document is known to be well formed
+        final ByteBuffer buffer = source.getBufferAhead();
+        final ScannerHandler handler = new ScannerHandler(buffer);
+        try
+        {
+            new XmlByteScanner(source, buffer, symbols, handler).scan();
+            ___replay(handler.events);
+        }
+        catch (UnsupportedXmlException | SAXException e)
+        {
+            if (logger.isDebugEnabled()) logger.debug("Profiling " + source + " with the JDK parser - " + e.getMessage());
+            final SaxHandler saxHandler = new SaxHandler();
+            final SAXParser parser = ___getSAXParser();
+            try
+            {
+                parser.parse(new InputSource(source.newInputStream()), saxHandler);
+            }
+            finally
+            {
+                parser.reset();
+            }
+            ___replay(saxHandler.events);
+        }
+        bytes += source.length();
+    }
+
+    private SAXParser ___getSAXParser()
+    {
+        if (saxParser != null) return saxParser;
+        try
+        {
+            saxParser = saxParserFactory.newSAXParser();
+            return saxParser;
+        }
+        catch (ParserConfigurationException | SAXException e)
+        {
+            throw new RuntimeException("Could not create the XML parsing libraries - something must be wrong with your setup : " + e, e);
+        }
+    }
+
+    /**
+     * Applies the events of a (well formed) document to the path tree.
+     */
+    private void ___replay(EventList events)
+    {
+        final long document = documents++;
+        depth = 0;
+        frames[0] = new Frame(root, nextInstance++);
+        for (int i = 0; i < events.size; i++)
+        {
+            final int type = events.types[i];
+            final int value = events.values[i];
+            if (type == EventList.START)
+            {
+                final Frame parent = frames[depth];
+                parent.hasChildren = true;
+                final PathNode node = parent.node.child(value, symbols);
+                node.occur(parent.instance, document);
+                if (++depth == frames.length) frames = Arrays.copyOf(frames, depth * 2);
+                frames[depth] = new Frame(node, nextInstance++);
+            }
+            else if (type == EventList.ATTRIBUTE)
+            {
+                frames[depth].node.addAttribute(value, symbols);
+            }
+            else if (type == EventList.TEXT)
+            {
+                frames[depth].textBytes += value;
+            }
+            else
+            {
+                final Frame frame = frames[depth--];
+                if (frame.hasChildren == false) frame.node.textBytes.add(frame.textBytes);
+            }
+        }
+    }
+
+    /**
+     * Records the fan-out still pending for the last parent of each of the paths.
+     */
+    private void finish()
+    {
+        root.flushAll();
+        for (Suggestion s : suggestions) s.resolve(root);
+    }
+
+    /**
+     * @return the profile of the element path - as written in the documents, e.g. iati-activities/iati-activity
+     */
+    PathNode getPath(String path)
+    {
+        PathNode node = root;
+        for (String step : path.split("/"))
+        {
+            node = node.children.values().stream().filter(c -> c.name.equals(step)).findFirst().orElse(null);
+            if (node == null) return null;
+        }
+        return node;
+    }
+
+    List<Suggestion> getSuggestions()
+    {
+        return suggestions;
+    }
+
+    long getDocuments()
+    {
+        return documents;
+    }
+
+    long getBrokenFiles()
+    {
+        return brokenFiles;
+    }
+
+    /**
+     * @return the report of the element paths - followed by the circuit breakers suggested for the explode items
+     */
+    @Override
+    public String toString()
+    {
+        final AsciiTable paths = new AsciiTable();
+        paths.addRule();
+        paths.addRow("Path", "Count", "Documents", "Max Fan-out", "P50 Fan-out", "P99 Fan-out", "Attributes", "Avg Text Bytes", "P99 Text Bytes", "Max Text Bytes");
+        paths.addRule();
+        final List<PathNode> all = new ArrayList<>();
+        root.addDepthFirst(all);
+        for (PathNode node : all)
+        {
+            final boolean leaf = node.textBytes.size() > 0;
+            paths.addRow(node.path,
+                         String.valueOf(node.occurrences),
+                         String.valueOf(node.documents),
+                         String.valueOf(node.fanOut.max()),
+                         String.valueOf(node.fanOut.percentile(50)),
+                         String.valueOf(node.fanOut.percentile(99)),
+                         node.attributes.isEmpty() ? "-" : String.join(" ", node.attributes.keySet()),
+                         leaf ? String.format("%.1f", node.textBytes.average()) : "-",
+                         leaf ? String.valueOf(node.textBytes.percentile(99)) : "-",
+                         leaf ? String.valueOf(node.textBytes.max()) : "-");
+        }
+        paths.addRule();
+        paths.getRenderer().setCWC(new CWC_LongestLine());
+
+        final StringBuilder report = new StringBuilder();
+        report.append("\n").append(spec.getName()).append(" - profiled ").append(documents).append(" document(s), ").append(bytes).append(" bytes")
+              .append(brokenFiles > 0 ? " (" + brokenFiles + " broken file(s) skipped)" : "")
+              .append("\n").append(paths.render());
+        if (suggestions.isEmpty() == true) return report.toString();
+
+        final AsciiTable breakers = new AsciiTable();
+        breakers.addRule();
+        breakers.addRow("Output Table", "Explode Item", "Path", "Circuit Breaker", "Max Fan-out", "P99 Fan-out", "Suggested Circuit Breaker");
+        breakers.addRule();
+        for (Suggestion s : suggestions)
+        {
+            breakers.addRow(s.item.getMapName(),
+                            s.explodeItem.getName(),
+                            s.path == null ? s.explodeItem.getSource() : s.path,
+                            s.explodeItem.getCircuitBreaker().isPresent() == false ? "-" : String.valueOf(s.explodeItem.getCircuitBreaker().getAsInt()),
+                            s.path == null || s.seen == false ? "-" : String.valueOf(s.maxFanOut),
+                            s.path == null || s.seen == false ? "-" : String.valueOf(s.p99FanOut),
+                            s.getSuggestedCircuitBreaker().isPresent() ? String.valueOf(s.getSuggestedCircuitBreaker().getAsInt()) : s.path == null ? "(not a plain path)" : "(not in the corpus)");
+        }
+        breakers.addRule();
+        breakers.getRenderer().setCWC(new CWC_LongestLine());
+        return report.append("\nSuggested circuit breakers (the largest fan-out of the steps of each explode item x ")
+                     .append(XMLFlattener_PropertyManager.XmlFlattener_ProfileCircuitBreakerHeadroom).append(")\n")
+                     .append(breakers.render()).toString();
+    }
+
+    /**
+     * The profile of one element path - a node of the path tree.
+     */
+    static class PathNode
+    {
+        private final String name;
+        private final String path;
+        private final int depth;
+        private final Map<Integer, PathNode> children = new LinkedHashMap<>();
+        private final Map<String, Long> attributes = new TreeMap<>();
+        private final Distribution fanOut = new Distribution();
+        private final Distribution textBytes = new Distribution();
+        private long occurrences;
+        private long documents;
+        private long lastDocument = -1;
+        private long pendingParent = -1;
+        private long pendingCount;
+
+        private PathNode(PathNode parent, String name, int depth)
+        {
+            this.name = name;
+            this.path = parent == null || parent.path.isEmpty() ? name : parent.path + "/" + name;
+            this.depth = depth;
+        }
+
+        private PathNode child(int nameId, XmlSymbolTable symbols)
+        {
+            PathNode child = children.get(nameId);
+            if (child == null)
+            {
+                child = new PathNode(this, symbols.getName(nameId), depth + 1);
+                children.put(nameId, child);
+            }
+            return child;
+        }
+
+        /**
+         * Counts an element of this path under the parent element - the fan-out of the previous parent is recorded
+         * once an element turns up under another one.
+         */
+        private void occur(long parentInstance, long document)
+        {
+            occurrences++;
+            if (lastDocument != document)
+            {
+                lastDocument = document;
+                documents++;
+            }
+            if (pendingParent != parentInstance)
+            {
+                ___flush();
+                pendingParent = parentInstance;
+            }
+            pendingCount++;
+        }
+
+        private void addAttribute(int nameId, XmlSymbolTable symbols)
+        {
+            attributes.merge(symbols.getName(nameId), 1L, Long::sum);
+        }
+
+        private void ___flush()
+        {
+            if (pendingCount > 0) fanOut.add(pendingCount);
+            pendingCount = 0;
+        }
+
+        private void flushAll()
+        {
+            ___flush();
+            for (PathNode child : children.values()) child.flushAll();
+        }
+
+        private void addDepthFirst(List<PathNode> all)
+        {
+            for (PathNode child : children.values())
+            {
+                all.add(child);
+                child.addDepthFirst(all);
+            }
+        }
+
+        String getPath()
+        {
+            return path;
+        }
+
+        long getOccurrences()
+        {
+            return occurrences;
+        }
+
+        long getDocuments()
+        {
+            return documents;
+        }
+
+        /**
+         * @return the attributes seen on the elements of the path - with the number of elements each was seen on
+         */
+        Map<String, Long> getAttributes()
+        {
+            return Collections.unmodifiableMap(attributes);
+        }
+
+        /**
+         * @return the largest number of elements of the path under a single parent element
+         */
+        long getMaxFanOut()
+        {
+            return fanOut.max();
+        }
+
+        long getFanOutPercentile(int percentile)
+        {
+            return fanOut.percentile(percentile);
+        }
+
+        long getMaxTextBytes()
+        {
+            return textBytes.max();
+        }
+
+        double getAverageTextBytes()
+        {
+            return textBytes.average();
+        }
+    }
+
+    /**
+     * The circuit breaker suggested for an explode item.
+     */
+    static class Suggestion
+    {
+        private final FlattenerListItem item;
+        private final XmlFlattenerExplodeItem explodeItem;
+        private final String path;
+        private final List<String[]> steps;
+        private boolean seen;
+        private long maxFanOut;
+        private long p99FanOut;
+
+        private Suggestion(FlattenerListItem item, XmlFlattenerExplodeItem explodeItem)
+        {
+            this.item = item;
+            this.explodeItem = explodeItem;
+            //the path of the item from the document - through each of its parent items
+            final List<String[]> stepsP = new ArrayList<>();
+            final List<XmlFlattenerExplodeItem> lineage = new ArrayList<>();
+            for (XmlFlattenerExplodeItem ei = explodeItem; ei != null; ei = ei.getParent().orElse(null)) lineage.add(0, ei);
+            boolean plain = true;
+            for (XmlFlattenerExplodeItem ei : lineage)
+            {
+                if (ei.getTreePath().isPresent() == false)
+                {
+                    plain = false;
+                    break;
+                }
+                final XmlTreePath treePath = ei.getTreePath().get();
+                for (int i = 0; i < treePath.getElementSteps().size(); i++)
+                {
+                    //the steps of the item itself are the ones its circuit breaker applies to
+                    final boolean own = ei == explodeItem;
+                    final String name = treePath.getElementStepNamespace(i) == null ? treePath.getElementSteps().get(i) : treePath.getElementStepName(i);
+                    stepsP.add(new String[] { name, treePath.getElementStepNamespace(i) == null ? "" : "local", own ? "own" : "" });
+                }
+            }
+            this.steps = plain ? stepsP : null;
+            this.path = plain ? ___join(stepsP) : null;
+        }
+
+        private static String ___join(List<String[]> steps)
+        {
+            final StringBuilder sb = new StringBuilder();
+            for (String[] step : steps)
+            {
+                if (sb.length() > 0) sb.append('/');
+                sb.append(step[0]);
+            }
+            return sb.toString();
+        }
+
+        private void resolve(PathNode root)
+        {
+            if (steps == null) return;
+            List<PathNode> nodes = Collections.singletonList(root);
+            for (String[] step : steps)
+            {
+                final List<PathNode> matched = new ArrayList<>();
+                for (PathNode node : nodes)
+                {
+                    for (PathNode child : node.children.values())
+                    {
+                        final String localName = child.name.substring(child.name.indexOf(':') + 1);
+                        if (step[1].isEmpty() ? child.name.equals(step[0]) : localName.equals(step[0])) matched.add(child);
+                    }
+                }
+                if (matched.isEmpty()) return;
+                if (step[2].isEmpty() == false)
+                {
+                    for (PathNode m : matched)
+                    {
+                        maxFanOut = Math.max(maxFanOut, m.fanOut.max());
+                        p99FanOut = Math.max(p99FanOut, m.fanOut.percentile(99));
+                    }
+                }
+                nodes = matched;
+            }
+            seen = true;
+        }
+
+        String getPath()
+        {
+            return path;
+        }
+
+        long getMaxFanOut()
+        {
+            return maxFanOut;
+        }
+
+        /**
+         * @return the suggested circuit breaker - or empty if the item's path is not a plain one, or is not in the corpus
+         */
+        OptionalInt getSuggestedCircuitBreaker()
+        {
+            if (seen == false) return OptionalInt.empty();
+            final double suggested = Math.ceil(Math.max(1, maxFanOut) * XMLFlattener_PropertyManager.XmlFlattener_ProfileCircuitBreakerHeadroom);
+            return OptionalInt.of((int) Math.min(Integer.MAX_VALUE, suggested));
+        }
+    }
+
+    /**
+     * The distribution of a measure over the whole corpus - the small values are counted in an array, the rest by value.
+     * So unlike the samples of the explain mode, it does not grow with the number of elements.
+     */
+    private static class Distribution
+    {
+        private static final int DENSE = 1024;
+
+        private final long[] dense = new long[DENSE];
+        private final Map<Long, long[]> sparse = new HashMap<>();
+        private long count;
+        private long total;
+        private long max;
+
+        void add(long value)
+        {
+            if (value < DENSE) dense[(int) value]++;
+            else sparse.computeIfAbsent(value, v -> new long[1])[0]++;
+            count++;
+            total = total + value < 0 ? Long.MAX_VALUE : total + value;
+            max = Math.max(max, value);
+        }
+
+        long size()
+        {
+            return count;
+        }
+
+        long max()
+        {
+            return max;
+        }
+
+        double average()
+        {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        long percentile(int percentile)
+        {
+            if (count == 0) return 0;
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int v = 0; v < DENSE; v++)
+            {
+                seen += dense[v];
+                if (seen >= rank) return v;
+            }
+            final List<Long> values = new ArrayList<>(sparse.keySet());
+            Collections.sort(values);
+            for (Long v : values)
+            {
+                seen += sparse.get(v)[0];
+                if (seen >= rank) return v;
+            }
+            return max;
+        }
+    }
+
+    private static class Frame
+    {
+        private final PathNode node;
+        private final long instance;
+        private long textBytes;
+        private boolean hasChildren;
+
+        private Frame(PathNode node, long instance)
+        {
+            this.node = node;
+            this.instance = instance;
+        }
+    }
+
+    /**
+     * The events of a document - as (type, value) pairs of ints - held until the document is known to be well formed.
+     */
+    private static class EventList
+    {
+        static final int START = 0;
+        static final int ATTRIBUTE = 1;
+        static final int TEXT = 2;
+        static final int END = 3;
+
+        private int[] types = new int[256];
+        private int[] values = new int[256];
+        private int size;
+
+        void add(int type, int value)
+        {
+            if (size == types.length)
+            {
+                types = Arrays.copyOf(types, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            types[size] = type;
+            values[size++] = value;
+        }
+    }
+
+    private static class ScannerHandler implements XmlByteScanHandler
+    {
+        private final ByteBuffer buffer;
+        private final EventList events = new EventList();
+
+        private ScannerHandler(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void startElement(XmlByteScanner scanner, int nameId)
+        {
+            events.add(EventList.START, nameId);
+            for (int i = 0; i < scanner.getAttributeCount(); i++)
+            {
+                events.add(EventList.ATTRIBUTE, scanner.getAttributeNameId(i));
+            }
+        }
+
+        @Override
+        public void endElement(int nameId)
+        {
+            events.add(EventList.END, nameId);
+        }
+
+        @Override
+        public void text(int start, int end, boolean encoded)
+        {
+            //the references and CDATA sections are decoded, so their length is that of the value rather than the markup
+            events.add(EventList.TEXT, encoded ? ___utf8Length(XmlByteScanner.decodeText(buffer, start, end, true)) : end - start);
+        }
+    }
+
+    private class SaxHandler extends DefaultHandler
+    {
+        private final EventList events = new EventList();
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+        {
+            events.add(EventList.START, symbols.intern(qName));
+            for (int i = 0; i < attributes.getLength(); i++)
+            {
+                events.add(EventList.ATTRIBUTE, symbols.intern(attributes.getQName(i)));
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+        {
+            events.add(EventList.END, 0);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length)
+        {
+            events.add(EventList.TEXT, ___utf8Length(ch, start, length));
+        }
+    }
+
+    private static int ___utf8Length(CharSequence text)
+    {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) length += ___utf8Length(text.charAt(i));
+        return length;
+    }
+
+    private static int ___utf8Length(char[] ch, int start, int length)
+    {
+        int bytes = 0;
+        for (int i = start; i < start + length; i++) bytes += ___utf8Length(ch[i]);
+        return bytes;
+    }
+
+    private static int ___utf8Length(char c)
+    {
+        if (c < 0x80) return 1;
+        if (c < 0x800 || Character.isSurrogate(c)) return 2; //a surrogate pair is 4 bytes
+        return 3;
+    }
+}
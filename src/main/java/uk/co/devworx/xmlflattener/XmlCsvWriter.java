@@ -0,0 +1,277 @@
+package uk.co.devworx.xmlflattener;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes CSV rows straight to UTF-8 bytes - a purpose built replacement for the commons-csv CSVPrinter, producing
+ * exactly the same output as its Excel format (CSVFormat.EXCEL) does.
+ *
+ * That is - the values are separated by ',' and the rows by "\r\n". A value is quoted (with any '"' doubled up) if it
+ * contains a ',', '"', '\r' or '\n', starts with a character up to and including '#', or ends with a character up to
+ * and including ' '. An empty value is quoted only if it is the first of its row.
+ *
+ * The bytes go into a large reusable buffer (XmlFlattener_CsvBufferBytes), which is written out through a
+ * {@link FileChannel} when full. Each value is scanned once (for whether it needs to be quoted) and then encoded
+ * straight into the buffer. The encoded bytes of the last value of each column are kept - so the values that repeat
+ * from row to row (the batch time, or the root level values of an exploded table) are only encoded once.
+ */
+class XmlCsvWriter implements Closeable, Flushable
+{
+    private static final int MAX_CACHED_CHARS = 256;
+    private static final int MIN_BUFFER_BYTES = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] bytes;
+
+    //the last value of each column - and how it was encoded
+    private String[] lastValues = new String[0];
+    private byte[][] lastEncoded = new byte[0][];
+    private byte[] scratch = new byte[256];
+
+    private XmlCsvWriter(FileChannel channel, int bufferBytes)
+    {
+        this.channel = channel;
+        this.bytes = new byte[bufferBytes];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Creates (or truncates) the file.
+     */
+    static XmlCsvWriter open(Path file) throws IOException
+    {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new XmlCsvWriter(channel, Math.max(MIN_BUFFER_BYTES, XMLFlattener_PropertyManager.XmlFlattener_CsvBufferBytes));
+    }
+
+    void writeRow(List<String> row) throws IOException
+    {
+        final int size = row.size();
+        ___ensureColumns(size);
+        for (int i = 0; i < size; i++)
+        {
+            ___writeValue(i, row.get(i));
+        }
+        ___endRow();
+    }
+
+    void writeRow(String[] row) throws IOException
+    {
+        ___ensureColumns(row.length);
+        for (int i = 0; i < row.length; i++)
+        {
+            ___writeValue(i, row[i]);
+        }
+        ___endRow();
+    }
+
+    /**
+     * Writes the current row of the cursor - straight from its UTF-8 bytes.
+     */
+    void writeRow(XmlRowBuffer.Cursor cursor, int columnCount) throws IOException
+    {
+        for (int i = 0; i < columnCount; i++)
+        {
+            final int length = cursor.getByteLength(i);
+            if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+            cursor.copyBytes(i, scratch, 0);
+            ___writeEncoded(i, scratch, length);
+        }
+        ___endRow();
+    }
+
+    private void ___ensureColumns(int size)
+    {
+        if (lastValues.length < size)
+        {
+            lastValues = Arrays.copyOf(lastValues, size);
+            lastEncoded = Arrays.copyOf(lastEncoded, size);
+        }
+    }
+
+    private void ___writeValue(int column, String value) throws IOException
+    {
+        if (value == null) value = "";
+        if (column > 0) ___put((byte) ',');
+
+        final String last = lastValues[column];
+        if (last != null && (last == value || last.equals(value)))
+        {
+            ___put(lastEncoded[column], lastEncoded[column].length);
+            return;
+        }
+
+        final int length = value.length();
+        final boolean quote = length == 0 ? column == 0 : ___needsQuotes(value, length);
+        if (length > MAX_CACHED_CHARS)
+        {
+            ___encode(value, quote);
+            return;
+        }
+
+        final int start = buffer.position();
+        if (bytes.length - start < length * 6 + 16)
+        {
+            ___flushBuffer();
+        }
+        final int from = buffer.position();
+        ___encode(value, quote);
+        lastValues[column] = value;
+        lastEncoded[column] = Arrays.copyOfRange(bytes, from, buffer.position());
+    }
+
+    private static boolean ___needsQuotes(String value, int length)
+    {
+        if (value.charAt(0) <= '#' || value.charAt(length - 1) <= ' ') return true;
+        for (int i = 0; i < length; i++)
+        {
+            final char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n') return true;
+        }
+        return false;
+    }
+
+    private void ___writeEncoded(int column, byte[] value, int length) throws IOException
+    {
+        if (column > 0) ___put((byte) ',');
+        final boolean quote;
+        if (length == 0)
+        {
+            quote = column == 0;
+        }
+        else
+        {
+            //the special characters are all ASCII - so the same checks work on the UTF-8 bytes
+            boolean q = (value[0] & 0xff) <= '#' || (value[length - 1] & 0xff) <= ' ';
+            for (int i = 0; i < length && q == false; i++)
+            {
+                final byte b = value[i];
+                q = b == ',' || b == '"' || b == '\r' || b == '\n';
+            }
+            quote = q;
+        }
+        if (quote == false)
+        {
+            ___put(value, length);
+            return;
+        }
+        ___put((byte) '"');
+        for (int i = 0; i < length; i++)
+        {
+            if (value[i] == '"') ___put((byte) '"');
+            ___put(value[i]);
+        }
+        ___put((byte) '"');
+    }
+
+    /**
+     * Encodes the value into the buffer as UTF-8 - flushing the buffer as it fills up.
+     */
+    private void ___encode(String value, boolean quote) throws IOException
+    {
+        if (quote) ___put((byte) '"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++)
+        {
+            if (bytes.length - buffer.position() < 8) ___flushBuffer();
+            int position = buffer.position();
+            final char c = value.charAt(i);
+            if (c < 0x80)
+            {
+                if (quote && c == '"') bytes[position++] = '"';
+                bytes[position++] = (byte) c;
+            }
+            else if (c < 0x800)
+            {
+                bytes[position++] = (byte) (0xc0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                final int cp = Character.toCodePoint(c, value.charAt(++i));
+                bytes[position++] = (byte) (0xf0 | (cp >> 18));
+                bytes[position++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                bytes[position++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                bytes[position++] = (byte) (0x80 | (cp & 0x3f));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                bytes[position++] = '?'; //an unpaired surrogate - as String.getBytes(UTF_8) does
+            }
+            else
+            {
+                bytes[position++] = (byte) (0xe0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+            ((java.nio.Buffer) buffer).position(position);
+        }
+        if (quote) ___put((byte) '"');
+    }
+
+    private void ___endRow() throws IOException
+    {
+        ___put((byte) '\r');
+        ___put((byte) '\n');
+    }
+
+    private void ___put(byte b) throws IOException
+    {
+        if (buffer.hasRemaining() == false) ___flushBuffer();
+        buffer.put(b);
+    }
+
+    private void ___put(byte[] value, int length) throws IOException
+    {
+        int offset = 0;
+        while (offset < length)
+        {
+            if (buffer.hasRemaining() == false) ___flushBuffer();
+            final int count = Math.min(buffer.remaining(), length - offset);
+            buffer.put(value, offset, count);
+            offset += count;
+        }
+    }
+
+    private void ___flushBuffer() throws IOException
+    {
+        ((java.nio.Buffer) buffer).flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        ((java.nio.Buffer) buffer).clear();
+    }
+
+    /**
+     * Writes out the rows buffered so far.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if (channel.isOpen()) ___flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (channel.isOpen() == false) return;
+        try
+        {
+            ___flushBuffer();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+}
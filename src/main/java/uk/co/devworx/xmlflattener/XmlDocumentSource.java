@@ -0,0 +1,253 @@
+package uk.co.devworx.xmlflattener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * The raw bytes of a single XML document.
+ *
+ * Small files are read onto the heap as before. Files at or above the memory map threshold are mapped instead,
+ * so that the parser (and anything that needs to go back to the raw bytes) reads straight from the page cache
+ * rather than from a heap copy of the whole file. The files in between - at or above the read ahead threshold - are
+ * read onto the heap in the background ({@link XmlReadAhead}), so the parser can start on them before they have been
+ * read in full.
+ *
+ * Whichever way the file is read, exactly the size it had when it was found is read - a file that has since grown is
+ * cut off at that size, and one that has since shrunk is an I/O error (rather than a broken document).
+ *
+ * There is no way to unmap a file in Java 8 - the mapping is only released once the buffer has been garbage collected.
+ * On Windows, the mapped input files stay locked (they cannot be moved, deleted or rewritten) until then. Raise the
+ * XmlFlattener_MemoryMapThresholdBytes beyond the size of the largest input file to not map the files at all.
+ */
+public class XmlDocumentSource
+{
+    private final Optional<Path> path;
+    private final ByteBuffer buffer;
+    private final boolean memoryMapped;
+    private final XmlReadAhead readAhead;
+
+    /**
+     * Read the file - memory mapping it if its size is at or above the configured threshold.
+     * @param size the size of the file when it was found - exactly this many bytes are read (or mapped)
+     */
+    public static XmlDocumentSource read(Path file, long size) throws IOException
+    {
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("The file " + file.toAbsolutePath() + " is " + size + " bytes - this is larger than the maximum single document size of " + Integer.MAX_VALUE + " bytes.");
+        }
+        if (size < XMLFlattener_PropertyManager.XmlFlattener_MemoryMapThresholdBytes && size >= XMLFlattener_PropertyManager.XmlFlattener_ReadAheadThresholdBytes)
+        {
+            final XmlReadAhead readAhead = XmlReadAhead.start(file, (int) size);
+            return new XmlDocumentSource(Optional.of(file), readAhead.getBuffer(), false, readAhead);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            final long currentSize = channel.size();
+            if (currentSize < size)
+            {
+                throw new IOException("The file " + file.toAbsolutePath() + " is now " + currentSize + " bytes - it was " + size + " bytes when it was found");
+            }
+            if (size < XMLFlattener_PropertyManager.XmlFlattener_ReadAheadThresholdBytes)
+            {
+                final ByteBuffer data = ByteBuffer.allocate((int) size);
+                while (data.hasRemaining())
+                {
+                    if (channel.read(data) == -1)
+                    {
+                        throw new IOException("The file " + file.toAbsolutePath() + " ended at " + data.position() + " bytes - it was " + size + " bytes when it was found");
+                    }
+                }
+                ((Buffer) data).flip();
+                return new XmlDocumentSource(Optional.of(file), data, false);
+            }
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new XmlDocumentSource(Optional.of(file), mapped, true);
+        }
+    }
+
+    public static XmlDocumentSource read(Path file) throws IOException
+    {
+        return read(file, Files.size(file));
+    }
+
+    public static XmlDocumentSource of(byte[] documentData)
+    {
+        return new XmlDocumentSource(Optional.empty(), ByteBuffer.wrap(documentData), false);
+    }
+
+    private XmlDocumentSource(Optional<Path> path, ByteBuffer buffer, boolean memoryMapped)
+    {
+        this(path, buffer, memoryMapped, null);
+    }
+
+    private XmlDocumentSource(Optional<Path> path, ByteBuffer buffer, boolean memoryMapped, XmlReadAhead readAhead)
+    {
+        this.path = path;
+        this.buffer = buffer.asReadOnlyBuffer();
+        this.memoryMapped = memoryMapped;
+        this.readAhead = readAhead;
+    }
+
+    public Optional<Path> getPath()
+    {
+        return path;
+    }
+
+    public int length()
+    {
+        return buffer.capacity();
+    }
+
+    public boolean isMemoryMapped()
+    {
+        return memoryMapped;
+    }
+
+    /**
+     * @return a read-only view over the whole document - each caller gets its own position and limit. If the document
+     *         is still being read, this waits until it has been read in full.
+     * @throws UncheckedIOException if the document could not be read
+     */
+    public ByteBuffer getBuffer()
+    {
+        if (readAhead != null)
+        {
+            try
+            {
+                readAhead.awaitAll();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * @return a view over the whole document without waiting for it to be read - only the bytes up to
+     *         {@link #awaitRead(int)} may be looked at.
+     */
+    ByteBuffer getBufferAhead()
+    {
+        return buffer.duplicate();
+    }
+
+    /**
+     * Waits until at least the given number of bytes of the document have been read.
+     * @return the number of bytes read so far - less than asked for only if the document has been read (or has failed
+     *         to be read) short of them
+     */
+    int awaitRead(int bytes)
+    {
+        return readAhead == null ? length() : readAhead.awaitRead(bytes);
+    }
+
+    /**
+     * @return a new stream over the document bytes - this does not copy the document. If the document is still
+     *         being read, the stream waits for the bytes as it gets to them.
+     */
+    public InputStream newInputStream()
+    {
+        return new ByteBufferInputStream(getBufferAhead(), readAhead);
+    }
+
+    /**
+     * @return a heap copy of the document. Avoid this on the hot path for large documents.
+     */
+    public byte[] toByteArray()
+    {
+        final byte[] bytes = new byte[length()];
+        getBuffer().get(bytes);
+        return bytes;
+    }
+
+    public void writeTo(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            final ByteBuffer toWrite = getBuffer();
+            while (toWrite.hasRemaining())
+            {
+                channel.write(toWrite);
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "XmlDocumentSource{" + "path=" + path.orElse(null) + ", length=" + length() + ", memoryMapped=" + memoryMapped + '}';
+    }
+}
+
+class ByteBufferInputStream extends InputStream
+{
+    private final ByteBuffer buffer;
+    private final XmlReadAhead readAhead;
+
+    ByteBufferInputStream(ByteBuffer buffer)
+    {
+        this(buffer, null);
+    }
+
+    ByteBufferInputStream(ByteBuffer buffer, XmlReadAhead readAhead)
+    {
+        this.buffer = buffer;
+        this.readAhead = readAhead;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (___awaitRemaining(1) == 0) return -1;
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0) return 0;
+        final int remaining = ___awaitRemaining(1);
+        if (remaining == 0) return -1;
+        final int toRead = Math.min(len, remaining);
+        buffer.get(b, off, toRead);
+        return toRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        final int toSkip = (int) Math.max(0, Math.min(n, ___awaitRemaining((int) Math.min(n, Integer.MAX_VALUE))));
+        ((Buffer) buffer).position(buffer.position() + toSkip);
+        return toSkip;
+    }
+
+    @Override
+    public int available()
+    {
+        return (readAhead == null ? buffer.limit() : readAhead.awaitRead(0)) - buffer.position();
+    }
+
+    /**
+     * @return the bytes that can be read without blocking - once at least the given number have been read (or the
+     *         document has been read in full)
+     */
+    private int ___awaitRemaining(int bytes) throws IOException
+    {
+        if (readAhead == null) return buffer.remaining();
+        final int read = readAhead.awaitRead(buffer.position() + bytes);
+        if (read < buffer.position() + bytes) readAhead.awaitAll(); //throws if the read failed short of the end
+        return read - buffer.position();
+    }
+}
@@ -0,0 +1,934 @@
+package uk.co.devworx.xmlflattener;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * An immutable, read-only view of a parsed XML document.
+ *
+ * The document is parsed exactly once and the nodes are held in parallel arrays (indexed by node id) - the
+ * document node is always node 0 and the remaining nodes are numbered in document order. As nothing is ever
+ * mutated after the build, any number of threads can evaluate against the same tree at the same time - unlike
+ * the W3C DOM, which needed to be re-parsed or cloned for each worker thread.
+ *
+ * Only the document, element and text nodes are kept. Adjacent text and CDATA sections are merged into a
+ * single text node (as per the XPath data model), comments and processing instructions are dropped.
+ *
+ * The namespace declarations are tracked as the document is built, so each element (and prefixed attribute) also
+ * holds the id of the namespace it is in - see {@link XmlSymbolTable#lookupNamespace(String)}. The names are still
+ * kept as they appear in the document, so the unprefixed paths match just as before.
+ *
+ * The text and attribute values are held in one of two ways:
+ * <ul>
+ *     <li>as Strings - the default, built from the JDK's SAX parser.</li>
+ *     <li>as offsets into the (possibly memory mapped) document bytes - the compact form, built by the
+ *     {@link XmlByteScanner} when {@link XMLFlattener_PropertyManager#XmlFlattener_CompactDocumentTree} is set.
+ *     The values are only decoded when they are asked for, so the tree itself holds no character data at all.
+ *     Documents the scanner does not support (a DOCTYPE, or an encoding other than UTF-8) are built the
+ *     default way.</li>
+ * </ul>
+ */
+public class XmlDocumentTree
+{
+    private static final Logger logger = Logger.getLogger(XmlDocumentTree.class);
+
+    public static final int NONE = -1;
+    public static final int DOCUMENT_NODE = 0;
+
+    static final byte KIND_DOCUMENT = 0;
+    static final byte KIND_ELEMENT = 1;
+    static final byte KIND_TEXT = 2;
+
+    private static final SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+    private static final ThreadLocal<SAXParser> saxParserThreadLocal = new ThreadLocal<>();
+
+    private final int size;
+    private final byte[] kinds;
+    private final int[] parents;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+    private final int[] nameIds;
+    private final int[] namespaceIds;
+    private final int[] attributeStarts;
+    private final int[] attributeNameIds;
+    private final int[] attributeNamespaceIds;
+    private final int[] childIndexStarts;
+    private final long[] childIndex;
+    private final XmlTreeValues values;
+    private final XmlSymbolTable symbols;
+
+    /**
+     * Parse the document source into a tree.
+     */
+    public static XmlDocumentTree parse(XmlDocumentSource source) throws SAXException, IOException
+    {
+        if (XMLFlattener_PropertyManager.XmlFlattener_CompactDocumentTree == true)
+        {
+            try
+            {
+                return parseCompact(source);
+            }
+            catch (UnsupportedXmlException e)
+            {
+                if (logger.isDebugEnabled()) logger.debug("Building the default tree for " + source + " - " + e.getMessage());
+            }
+            catch (SAXParseException e)
+            {
+                //The JDK parser has the final say on whether a document is broken (and gives the better message)
+                if (logger.isDebugEnabled()) logger.debug("The byte scanner rejected " + source + " - " + e.getMessage() + " - checking with the JDK parser");
+            }
+        }
+        return parseStrings(source);
+    }
+
+    /**
+     * Parse the document with the JDK's SAX parser, holding the values as Strings.
+     */
+    static XmlDocumentTree parseStrings(XmlDocumentSource source) throws SAXException, IOException
+    {
+        final SAXParser parser = getThreadSafeSAXParser();
+        final StringValuesHandler handler = new StringValuesHandler();
+        try
+        {
+            parser.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
+            parser.parse(new InputSource(source.newInputStream()), handler);
+        }
+        finally
+        {
+            parser.reset();
+        }
+        return handler.build();
+    }
+
+    /**
+     * Parse the document with the byte scanner, holding the values as offsets into the document source.
+     * @throws UnsupportedXmlException if the document needs the JDK parser
+     */
+    static XmlDocumentTree parseCompact(XmlDocumentSource source) throws SAXParseException
+    {
+        //scanned as it is read - the values are only decoded from the buffer once it has been scanned in full
+        final ByteBuffer buffer = source.getBufferAhead();
+        final OffsetValuesHandler handler = new OffsetValuesHandler(buffer);
+        new XmlByteScanner(source, buffer, handler.builder.symbols, handler).scan();
+        return handler.build();
+    }
+
+    private static SAXParser getThreadSafeSAXParser()
+    {
+        SAXParser parser = saxParserThreadLocal.get();
+        if (parser != null)
+        {
+            return parser;
+        }
+        try
+        {
+            parser = saxParserFactory.newSAXParser();
+            saxParserThreadLocal.set(parser);
+            return parser;
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException("Could not create the XML parsing libraries - something must be wrong with your setup : " + e, e);
+        }
+    }
+
+    private XmlDocumentTree(Builder b, XmlTreeValues values)
+    {
+        this.size = b.size;
+        this.kinds = Arrays.copyOf(b.kinds, size);
+        this.parents = Arrays.copyOf(b.parents, size);
+        this.firstChildren = Arrays.copyOf(b.firstChildren, size);
+        this.nextSiblings = Arrays.copyOf(b.nextSiblings, size);
+        this.nameIds = Arrays.copyOf(b.nameIds, size);
+        this.namespaceIds = Arrays.copyOf(b.namespaceIds, size);
+        //one extra slot, so the count of attributes is the difference between neighbouring starts
+        this.attributeStarts = Arrays.copyOf(b.attributeStarts, size + 1);
+        this.attributeStarts[size] = b.attributeSize;
+        this.attributeNameIds = Arrays.copyOf(b.attributeNameIds, b.attributeSize);
+        this.attributeNamespaceIds = Arrays.copyOf(b.attributeNamespaceIds, b.attributeSize);
+        this.values = values;
+        this.symbols = b.symbols;
+        this.childIndexStarts = new int[size + 1];
+        this.childIndex = ___buildChildIndex();
+    }
+
+    /**
+     * Groups the child elements of each node by their local name - so that a step of a path can go straight to
+     * the matching children, rather than scanning (and comparing) all of them. Each entry holds the local name
+     * symbol in the high int and the element in the low int, so sorting a node's entries orders them by name and
+     * then by document order.
+     */
+    private long[] ___buildChildIndex()
+    {
+        for (int n = 1; n < size; n++)
+        {
+            if (kinds[n] == KIND_ELEMENT) childIndexStarts[parents[n] + 1]++;
+        }
+        for (int n = 0; n < size; n++)
+        {
+            childIndexStarts[n + 1] += childIndexStarts[n];
+        }
+        final long[] index = new long[childIndexStarts[size]];
+        final int[] fill = Arrays.copyOf(childIndexStarts, size);
+        for (int n = 1; n < size; n++)
+        {
+            if (kinds[n] == KIND_ELEMENT) index[fill[parents[n]]++] = ((long) symbols.getLocalNameId(nameIds[n]) << 32) | n;
+        }
+        for (int n = 0; n < size; n++)
+        {
+            if (childIndexStarts[n + 1] - childIndexStarts[n] > 1) Arrays.sort(index, childIndexStarts[n], childIndexStarts[n + 1]);
+        }
+        return index;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return true if the values are held as offsets into the document source, rather than as Strings
+     */
+    public boolean isCompact()
+    {
+        return values instanceof OffsetTreeValues;
+    }
+
+    public boolean isElement(int node)
+    {
+        return kinds[node] == KIND_ELEMENT;
+    }
+
+    public boolean isText(int node)
+    {
+        return kinds[node] == KIND_TEXT;
+    }
+
+    public int getParent(int node)
+    {
+        return parents[node];
+    }
+
+    public int getFirstChild(int node)
+    {
+        return firstChildren[node];
+    }
+
+    public int getNextSibling(int node)
+    {
+        return nextSiblings[node];
+    }
+
+    public int getFirstChildElement(int node)
+    {
+        int c = firstChildren[node];
+        while (c != NONE && kinds[c] != KIND_ELEMENT) c = nextSiblings[c];
+        return c;
+    }
+
+    public int getNextSiblingElement(int node)
+    {
+        int c = nextSiblings[node];
+        while (c != NONE && kinds[c] != KIND_ELEMENT) c = nextSiblings[c];
+        return c;
+    }
+
+    /**
+     * @return the position (in the child index) of the first child element of the node with the local name - the
+     * matching children are then at the following positions, up to {@link #getChildIndexEnd(int, int)}.
+     */
+    int getChildIndexStart(int node, int localNameId)
+    {
+        return ___childIndexLowerBound(node, localNameId);
+    }
+
+    /**
+     * @return the position (in the child index) just after the last child element of the node with the local name.
+     */
+    int getChildIndexEnd(int node, int localNameId)
+    {
+        return ___childIndexLowerBound(node, localNameId + 1);
+    }
+
+    /**
+     * @return the element at the position of the child index
+     */
+    int getChildIndexElement(int position)
+    {
+        return (int) childIndex[position];
+    }
+
+    private int ___childIndexLowerBound(int node, int localNameId)
+    {
+        int low = childIndexStarts[node];
+        int high = childIndexStarts[node + 1];
+        while (low < high)
+        {
+            final int mid = (low + high) >>> 1;
+            if ((int) (childIndex[mid] >>> 32) < localNameId) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return the symbol of the element name (as it appears in the document, including any prefix)
+     */
+    public int getNameId(int element)
+    {
+        return nameIds[element];
+    }
+
+    /**
+     * @return the symbol of the element name without any prefix
+     */
+    public int getLocalNameId(int element)
+    {
+        return symbols.getLocalNameId(nameIds[element]);
+    }
+
+    public String getName(int element)
+    {
+        return symbols.getName(nameIds[element]);
+    }
+
+    /**
+     * @return the id of the namespace the element is in - or NONE if it is not in one
+     */
+    public int getNamespaceId(int element)
+    {
+        return namespaceIds[element];
+    }
+
+    /**
+     * @return the URI of the namespace the element is in - or null if it is not in one
+     */
+    public String getNamespace(int element)
+    {
+        return namespaceIds[element] == NONE ? null : symbols.getNamespace(namespaceIds[element]);
+    }
+
+    public XmlSymbolTable getSymbols()
+    {
+        return symbols;
+    }
+
+    public int getAttributeCount(int element)
+    {
+        return attributeStarts[element + 1] - attributeStarts[element];
+    }
+
+    public String getAttributeName(int element, int index)
+    {
+        return symbols.getName(attributeNameIds[attributeStarts[element] + index]);
+    }
+
+    public String getAttributeValue(int element, int index)
+    {
+        return values.getAttributeValue(attributeStarts[element] + index);
+    }
+
+    /**
+     * @return the value of the first attribute with the symbol, or null if there is none.
+     */
+    public String getAttributeValueById(int element, int symbolId, boolean matchLocalName)
+    {
+        final int start = attributeStarts[element];
+        final int end = attributeStarts[element + 1];
+        for (int i = start; i < end; i++)
+        {
+            final int attrNameId = matchLocalName ? symbols.getLocalNameId(attributeNameIds[i]) : attributeNameIds[i];
+            if (attrNameId == symbolId) return values.getAttributeValue(i);
+        }
+        return null;
+    }
+
+    /**
+     * @return the value of the first attribute with the local name in the namespace, or null if there is none.
+     */
+    public String getAttributeValueByNamespace(int element, int localNameId, int namespaceId)
+    {
+        final int start = attributeStarts[element];
+        final int end = attributeStarts[element + 1];
+        for (int i = start; i < end; i++)
+        {
+            if (attributeNamespaceIds[i] == namespaceId && symbols.getLocalNameId(attributeNameIds[i]) == localNameId) return values.getAttributeValue(i);
+        }
+        return null;
+    }
+
+    public String getText(int textNode)
+    {
+        //text nodes have no name - the name id refers to the text value instead
+        return values.getText(nameIds[textNode]);
+    }
+
+    /**
+     * @return the value of the first text child - i.e. the result of text() - or null if there is none.
+     */
+    public String getFirstText(int node)
+    {
+        for (int c = firstChildren[node]; c != NONE; c = nextSiblings[c])
+        {
+            if (kinds[c] == KIND_TEXT) return getText(c);
+        }
+        return null;
+    }
+
+    /**
+     * @return the XPath string-value of the node - the concatenation of all the descendant text.
+     */
+    public String getStringValue(int node)
+    {
+        if (kinds[node] == KIND_TEXT) return getText(node);
+
+        final int first = firstChildren[node];
+        if (first == NONE) return "";
+        if (nextSiblings[first] == NONE && kinds[first] == KIND_TEXT) return getText(first);
+
+        final StringBuilder bldr = new StringBuilder();
+        int current = first;
+        while (current != NONE && current != node)
+        {
+            if (kinds[current] == KIND_TEXT) bldr.append(getText(current));
+            if (firstChildren[current] != NONE)
+            {
+                current = firstChildren[current];
+                continue;
+            }
+            while (current != node && nextSiblings[current] == NONE)
+            {
+                current = parents[current];
+            }
+            if (current != node) current = nextSiblings[current];
+        }
+        return bldr.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "XmlDocumentTree{" + "size=" + size + ", symbols=" + symbols.size() + ", compact=" + isCompact() + '}';
+    }
+
+    /**
+     * Collects the nodes into the arrays - the values are collected separately, by the front ends.
+     */
+    private static class Builder
+    {
+        private int size;
+        private byte[] kinds = new byte[256];
+        private int[] parents = new int[256];
+        private int[] firstChildren = new int[256];
+        private int[] nextSiblings = new int[256];
+        private int[] lastChildren = new int[256];
+        private int[] nameIds = new int[256];
+        private int[] namespaceIds = new int[256];
+        private int[] attributeStarts = new int[256];
+
+        private int attributeSize;
+        private int[] attributeNameIds = new int[64];
+        private int[] attributeNamespaceIds = new int[64];
+
+        //the namespaces in scope - (prefix, namespace) pairs, with the size of the bindings before each open element
+        private int[] bindings = new int[16];
+        private int bindingSize;
+        private int[] bindingMarks = new int[64];
+        private int depth;
+        private int xmlNamespaceId = NONE;
+
+        private int textSize;
+
+        private final XmlSymbolTable symbols = new XmlSymbolTable();
+
+        private int currentNode;
+
+        private Builder()
+        {
+            currentNode = ___addNode(KIND_DOCUMENT, NONE, 0);
+        }
+
+        private int ___addNode(byte kind, int parent, int nameId)
+        {
+            if (size == kinds.length)
+            {
+                final int newLength = size * 2;
+                kinds = Arrays.copyOf(kinds, newLength);
+                parents = Arrays.copyOf(parents, newLength);
+                firstChildren = Arrays.copyOf(firstChildren, newLength);
+                nextSiblings = Arrays.copyOf(nextSiblings, newLength);
+                lastChildren = Arrays.copyOf(lastChildren, newLength);
+                nameIds = Arrays.copyOf(nameIds, newLength);
+                namespaceIds = Arrays.copyOf(namespaceIds, newLength);
+                attributeStarts = Arrays.copyOf(attributeStarts, newLength);
+            }
+            final int node = size++;
+            kinds[node] = kind;
+            parents[node] = parent;
+            firstChildren[node] = NONE;
+            nextSiblings[node] = NONE;
+            lastChildren[node] = NONE;
+            nameIds[node] = nameId;
+            namespaceIds[node] = NONE;
+            attributeStarts[node] = attributeSize;
+            if (parent != NONE)
+            {
+                if (lastChildren[parent] == NONE) firstChildren[parent] = node;
+                else nextSiblings[lastChildren[parent]] = node;
+                lastChildren[parent] = node;
+            }
+            return node;
+        }
+
+        private void startElement(int nameId)
+        {
+            if (depth == bindingMarks.length) bindingMarks = Arrays.copyOf(bindingMarks, depth * 2);
+            bindingMarks[depth++] = bindingSize;
+            currentNode = ___addNode(KIND_ELEMENT, currentNode, nameId);
+        }
+
+        /**
+         * @return the index of the attribute value
+         */
+        private int addAttribute(int nameId)
+        {
+            if (attributeSize == attributeNameIds.length)
+            {
+                attributeNameIds = Arrays.copyOf(attributeNameIds, attributeSize * 2);
+                attributeNamespaceIds = Arrays.copyOf(attributeNamespaceIds, attributeSize * 2);
+            }
+            attributeNameIds[attributeSize] = nameId;
+            return attributeSize++;
+        }
+
+        /**
+         * Binds the prefix of the (xmlns or xmlns:p) declaration for the current element and its descendants - an
+         * empty URI undeclares the default namespace.
+         */
+        private void declareNamespace(int declarationNameId, String uri)
+        {
+            final int prefixId = symbols.getPrefixId(declarationNameId) == NONE ? NONE : symbols.getLocalNameId(declarationNameId);
+            if (bindingSize + 2 > bindings.length) bindings = Arrays.copyOf(bindings, bindings.length * 2);
+            bindings[bindingSize++] = prefixId;
+            bindings[bindingSize++] = uri.isEmpty() ? NONE : symbols.internNamespace(uri);
+        }
+
+        /**
+         * Resolves the namespaces of the current element and its attributes - once all of its declarations are in.
+         */
+        private void endStartTag()
+        {
+            namespaceIds[currentNode] = ___resolveNamespace(symbols.getPrefixId(nameIds[currentNode]));
+            for (int i = attributeStarts[currentNode]; i < attributeSize; i++)
+            {
+                final int prefixId = symbols.getPrefixId(attributeNameIds[i]);
+                //unprefixed attributes are in no namespace - whatever the default namespace is
+                attributeNamespaceIds[i] = prefixId == NONE || symbols.isNamespaceDeclaration(attributeNameIds[i]) ? NONE : ___resolveNamespace(prefixId);
+            }
+        }
+
+        private int ___resolveNamespace(int prefixId)
+        {
+            for (int i = bindingSize - 2; i >= 0; i -= 2)
+            {
+                if (bindings[i] == prefixId) return bindings[i + 1];
+            }
+            if (prefixId != NONE && symbols.getName(prefixId).equals(XMLConstants.XML_NS_PREFIX))
+            {
+                if (xmlNamespaceId == NONE) xmlNamespaceId = symbols.internNamespace(XMLConstants.XML_NS_URI);
+                return xmlNamespaceId;
+            }
+            return NONE;
+        }
+
+        private void endElement()
+        {
+            bindingSize = bindingMarks[--depth];
+            currentNode = parents[currentNode];
+        }
+
+        /**
+         * @return the index of the text value
+         */
+        private int addText()
+        {
+            final int index = textSize++;
+            ___addNode(KIND_TEXT, currentNode, index);
+            return index;
+        }
+    }
+
+    /**
+     * Builds the tree from the SAX events - the values are held as Strings.
+     */
+    private static class StringValuesHandler extends DefaultHandler implements LexicalHandler
+    {
+        private final Builder builder = new Builder();
+        private final List<String> textValues = new ArrayList<>();
+        private final List<String> attributeValues = new ArrayList<>();
+        private final StringBuilder pendingText = new StringBuilder();
+
+        private XmlDocumentTree build()
+        {
+            final String[] texts = textValues.toArray(new String[0]);
+            final String[] attributes = attributeValues.toArray(new String[0]);
+            return new XmlDocumentTree(builder, new XmlTreeValues()
+            {
+                @Override public String getText(int index) { return texts[index]; }
+                @Override public String getAttributeValue(int index) { return attributes[index]; }
+            });
+        }
+
+        private void ___flushText()
+        {
+            if (pendingText.length() == 0) return;
+            builder.addText();
+            textValues.add(pendingText.toString());
+            pendingText.setLength(0);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+        {
+            ___flushText();
+            builder.startElement(builder.symbols.intern(qName));
+            final int length = attributes.getLength();
+            for (int i = 0; i < length; i++)
+            {
+                final int nameId = builder.symbols.intern(attributes.getQName(i));
+                builder.addAttribute(nameId);
+                attributeValues.add(attributes.getValue(i));
+                if (builder.symbols.isNamespaceDeclaration(nameId) == true) builder.declareNamespace(nameId, attributes.getValue(i));
+            }
+            builder.endStartTag();
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+        {
+            ___flushText();
+            builder.endElement();
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length)
+        {
+            pendingText.append(ch, start, length);
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length)
+        {
+            pendingText.append(ch, start, length);
+        }
+
+        @Override
+        public void processingInstruction(String target, String data)
+        {
+            ___flushText();
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length)
+        {
+            ___flushText();
+        }
+
+        @Override public void startDTD(String name, String publicId, String systemId) { }
+        @Override public void endDTD() { }
+        @Override public void startEntity(String name) { }
+        @Override public void endEntity(String name) { }
+        @Override public void startCDATA() { }
+        @Override public void endCDATA() { }
+    }
+
+    /**
+     * Builds the tree from the byte scanner events - the values are held as offsets into the document.
+     */
+    private static class OffsetValuesHandler implements XmlByteScanHandler
+    {
+        private final Builder builder = new Builder();
+        private final ByteBuffer buffer;
+
+        private int[] textRanges = new int[128];
+        private int[] attributeRanges = new int[128];
+
+        private OffsetValuesHandler(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        private XmlDocumentTree build()
+        {
+            return new XmlDocumentTree(builder, new OffsetTreeValues(buffer,
+                                                                     Arrays.copyOf(textRanges, builder.textSize * 2),
+                                                                     Arrays.copyOf(attributeRanges, builder.attributeSize * 2)));
+        }
+
+        @Override
+        public void startElement(XmlByteScanner scanner, int nameId)
+        {
+            builder.startElement(nameId);
+            final int count = scanner.getAttributeCount();
+            for (int i = 0; i < count; i++)
+            {
+                final int attributeNameId = scanner.getAttributeNameId(i);
+                final int index = builder.addAttribute(attributeNameId);
+                attributeRanges = ___set(attributeRanges, index, scanner.getAttributeValueStart(i), scanner.getAttributeValueEnd(i), scanner.isAttributeValueEncoded(i));
+                if (builder.symbols.isNamespaceDeclaration(attributeNameId) == true) builder.declareNamespace(attributeNameId, scanner.getAttributeValue(i));
+            }
+            builder.endStartTag();
+        }
+
+        @Override
+        public void endElement(int nameId)
+        {
+            builder.endElement();
+        }
+
+        @Override
+        public void text(int start, int end, boolean encoded)
+        {
+            final int index = builder.addText();
+            textRanges = ___set(textRanges, index, start, end, encoded);
+        }
+
+        private static int[] ___set(int[] ranges, int index, int start, int end, boolean encoded)
+        {
+            if (index * 2 + 1 >= ranges.length) ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            ranges[index * 2] = start;
+            ranges[index * 2 + 1] = encoded ? (end | OffsetTreeValues.ENCODED) : end;
+            return ranges;
+        }
+    }
+}
+
+/**
+ * The text and attribute values of a {@link XmlDocumentTree}, by index.
+ */
+interface XmlTreeValues
+{
+    String getText(int index);
+
+    String getAttributeValue(int index);
+}
+
+/**
+ * Values held as [start, end) byte offsets into the UTF-8 document. The high bit of the end offset marks the
+ * values that contain references, CDATA sections or characters that need to be normalised - every other value
+ * is decoded straight from the bytes.
+ */
+class OffsetTreeValues implements XmlTreeValues
+{
+    static final int ENCODED = Integer.MIN_VALUE;
+
+    private final ByteBuffer buffer;
+    private final int[] textRanges;
+    private final int[] attributeRanges;
+
+    OffsetTreeValues(ByteBuffer buffer, int[] textRanges, int[] attributeRanges)
+    {
+        this.buffer = buffer;
+        this.textRanges = textRanges;
+        this.attributeRanges = attributeRanges;
+    }
+
+    @Override
+    public String getText(int index)
+    {
+        final int end = textRanges[index * 2 + 1];
+        return XmlByteScanner.decodeText(buffer, textRanges[index * 2], end & ~ENCODED, (end & ENCODED) != 0);
+    }
+
+    @Override
+    public String getAttributeValue(int index)
+    {
+        final int end = attributeRanges[index * 2 + 1];
+        return XmlByteScanner.decodeAttribute(buffer, attributeRanges[index * 2], end & ~ENCODED, (end & ENCODED) != 0);
+    }
+}
+
+/**
+ * Interns the element and attribute names of a document, so that names can be compared as ints.
+ * Each name also records the symbols of its local part (the name without any prefix) and of its prefix - and
+ * whether it is a namespace declaration (xmlns or xmlns:p). The namespace URIs declared in the document are
+ * interned too, separately from the names.
+ *
+ * Names can also be interned straight from the UTF-8 bytes of the document, in which case a String is only
+ * created the first time a name is seen.
+ */
+class XmlSymbolTable
+{
+    static final String XMLNS = "xmlns";
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private int[] localNameIds = new int[64];
+    private int[] prefixIds = new int[64];
+    private boolean[] declarations = new boolean[64];
+
+    private final Map<String, Integer> namespaceIds = new HashMap<>();
+    private final List<String> namespaces = new ArrayList<>();
+
+    private int[] byteSlots = new int[64];
+    private byte[][] nameBytes = new byte[64][];
+    private int byteSlotsUsed;
+
+    int intern(String name)
+    {
+        final Integer existing = ids.get(name);
+        if (existing != null) return existing;
+
+        final int id = names.size();
+        names.add(name);
+        ids.put(name, id);
+
+        final int colon = name.indexOf(':');
+        final int localNameId = colon == -1 ? id : intern(name.substring(colon + 1));
+        final int prefixId = colon == -1 ? XmlDocumentTree.NONE : intern(name.substring(0, colon));
+        if (id >= localNameIds.length)
+        {
+            final int newLength = Math.max(localNameIds.length * 2, id + 1);
+            localNameIds = Arrays.copyOf(localNameIds, newLength);
+            prefixIds = Arrays.copyOf(prefixIds, newLength);
+            declarations = Arrays.copyOf(declarations, newLength);
+        }
+        localNameIds[id] = localNameId;
+        prefixIds[id] = prefixId;
+        declarations[id] = colon == -1 ? name.equals(XMLNS) : name.startsWith(XMLNS) && colon == XMLNS.length();
+        return id;
+    }
+
+    /**
+     * @return the namespace id of the URI - interning it the first time it is seen.
+     */
+    int internNamespace(String uri)
+    {
+        final Integer existing = namespaceIds.get(uri);
+        if (existing != null) return existing;
+        final int id = namespaces.size();
+        namespaces.add(uri);
+        namespaceIds.put(uri, id);
+        return id;
+    }
+
+    /**
+     * @return the namespace id or {@link XmlDocumentTree#NONE} if the URI is not declared in the document
+     */
+    int lookupNamespace(String uri)
+    {
+        final Integer existing = namespaceIds.get(uri);
+        return existing == null ? XmlDocumentTree.NONE : existing;
+    }
+
+    String getNamespace(int namespaceId)
+    {
+        return namespaces.get(namespaceId);
+    }
+
+    /**
+     * Intern the UTF-8 encoded name held in the [start, end) range of the buffer.
+     */
+    int intern(ByteBuffer buffer, int start, int end)
+    {
+        int hash = 1;
+        for (int i = start; i < end; i++) hash = 31 * hash + buffer.get(i);
+
+        final int mask = byteSlots.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (byteSlots[slot] != 0)
+        {
+            final int id = byteSlots[slot] - 1;
+            if (___bytesEqual(nameBytes[id], buffer, start, end)) return id;
+            slot = (slot + 1) & mask;
+        }
+
+        final byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; i++) bytes[i - start] = buffer.get(i);
+        final int id = intern(new String(bytes, StandardCharsets.UTF_8));
+        if (id >= nameBytes.length) nameBytes = Arrays.copyOf(nameBytes, Math.max(nameBytes.length * 2, id + 1));
+        nameBytes[id] = bytes;
+        byteSlots[slot] = id + 1;
+        if (++byteSlotsUsed * 2 > byteSlots.length) ___rehashByteSlots();
+        return id;
+    }
+
+    private void ___rehashByteSlots()
+    {
+        final int[] old = byteSlots;
+        byteSlots = new int[old.length * 2];
+        final int mask = byteSlots.length - 1;
+        for (int entry : old)
+        {
+            if (entry == 0) continue;
+            final byte[] bytes = nameBytes[entry - 1];
+            int hash = 1;
+            for (byte b : bytes) hash = 31 * hash + b;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (byteSlots[slot] != 0) slot = (slot + 1) & mask;
+            byteSlots[slot] = entry;
+        }
+    }
+
+    private static boolean ___bytesEqual(byte[] bytes, ByteBuffer buffer, int start, int end)
+    {
+        if (bytes.length != end - start) return false;
+        for (int i = 0; i < bytes.length; i++)
+        {
+            if (bytes[i] != buffer.get(start + i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the symbol or {@link XmlDocumentTree#NONE} if the name does not appear in the document
+     */
+    int lookup(String name)
+    {
+        final Integer existing = ids.get(name);
+        return existing == null ? XmlDocumentTree.NONE : existing;
+    }
+
+    int getLocalNameId(int id)
+    {
+        return localNameIds[id];
+    }
+
+    /**
+     * @return the symbol of the prefix of the name - or {@link XmlDocumentTree#NONE} if it has none
+     */
+    int getPrefixId(int id)
+    {
+        return prefixIds[id];
+    }
+
+    /**
+     * @return true if the (attribute) name declares a namespace - i.e. it is xmlns or xmlns:p
+     */
+    boolean isNamespaceDeclaration(int id)
+    {
+        return declarations[id];
+    }
+
+    String getName(int id)
+    {
+        return names.get(id);
+    }
+
+    int size()
+    {
+        return names.size();
+    }
+}
@@ -3,14 +3,13 @@ package uk.co.devworx.xmlflattener;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.FileTime;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Given an xml file and spec, this worker produces the flattened CSV
@@ -22,7 +21,43 @@ public class XmlFlattener
 
     public static void produceCSVFlattens(final Timestamp batchTime, final XmlFlattenerSpec spec)
     {
-        ___produceCSVFlattens_Local(batchTime, spec);
+        ___produceCSVFlattens_Local(batchTime, spec, spec.getInputPath());
+    }
+
+    /**
+     * As per {@link #produceCSVFlattens(Timestamp, XmlFlattenerSpec)} - but reading from the given input path rather
+     * than the spec's own.
+     */
+    public static void produceCSVFlattens(final Timestamp batchTime, final XmlFlattenerSpec spec, final Path inputPath)
+    {
+        ___produceCSVFlattens_Local(batchTime, spec, inputPath);
+    }
+
+    /**
+     * Flattens the documents straight to rows - without writing (or reading) any files.
+     *
+     * The returned stream is lazy: each document is only pulled from the input stream (and parsed) once the rows of
+     * the previous one have been consumed - so a slow consumer simply slows the flatten down. Closing the returned
+     * stream closes the input stream.
+     *
+     * Unlike the CSV flatten, the dynamic columns are discovered as the documents are streamed (there is no
+     * pre-processing pass) - see {@link XmlFlattenerRow}. As the discovered columns are added to the spec, a spec
+     * should only be streamed once at a time. A document that is not valid XML fails the stream.
+     */
+    public static Stream<XmlFlattenerRow> stream(final XmlFlattenerSpec spec, final Stream<XmlDocumentSource> documents)
+    {
+        return stream(Collections.singletonList(spec), documents);
+    }
+
+    /**
+     * As per {@link #stream(XmlFlattenerSpec, Stream)} - but for several output tables at once, so each document is
+     * only parsed the once. The rows of each document are returned table by table - {@link XmlFlattenerRow#getTableName()}.
+     */
+    public static Stream<XmlFlattenerRow> stream(final Collection<XmlFlattenerSpec> specs, final Stream<XmlDocumentSource> documents)
+    {
+        final Timestamp batchTime = new Timestamp(System.currentTimeMillis());
+        final XmlFlattenerRowIterator rows = new XmlFlattenerRowIterator(specs, documents.iterator(), batchTime);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(documents::close);
     }
 
     private static List<FlattenerListItem> getItemsRequiringResolution(final XmlFlattenerSpec spec)
@@ -33,7 +68,13 @@ public class XmlFlattener
     public static void fullyResolveDynamicColumns(final Timestamp batchTime,
                                                   final XmlFlattenerSpec spec)
     {
-        final Path inputPath = spec.getInputPath();
+        fullyResolveDynamicColumns(batchTime, spec, spec.getInputPath());
+    }
+
+    public static void fullyResolveDynamicColumns(final Timestamp batchTime,
+                                                  final XmlFlattenerSpec spec,
+                                                  final Path inputPath)
+    {
         try
         {
 
@@ -50,46 +91,56 @@ public class XmlFlattener
             }
 
             final Path XmlInputsDirectory = getRelativeOrAbsolutePath(inputPath, XMLFlattener_PropertyManager.XmlFlattener_LocalRunXMLDirectory);
-            final List<Path> allXMLFiles = getAllXmlFiles(XmlInputsDirectory);
 
             int rows = 0;
-            for(int i = 0; i < allXMLFiles.size(); i++)
+            try(Stream<XmlInputFile> allXMLFiles = XmlInputFileScanner.scan(XmlInputsDirectory, spec.getInputFilter());
+                XmlQuarantine quarantine = XmlQuarantine.countOnly(spec))
             {
-                rows++;
-                final Map<String, String> paramBag = new HashMap<>();
-                FileTime lastModifiedTime = Files.getLastModifiedTime(allXMLFiles.get(i));
-                paramBag.put("currenttime", batchTime.toString());
-
-                ParameterBag paramBagPre = null;
-
-                final byte[] data = Files.readAllBytes(allXMLFiles.get(i));
-                spec.addToBytesProcessed(data.length);
-                spec.addXmlsProcessed();
-
-                long xmlConvStart = System.nanoTime();
-                try
+                final Iterator<XmlInputFile> xmlFileIterator = allXMLFiles.iterator();
+                while(xmlFileIterator.hasNext())
                 {
-                    paramBagPre = ParameterBag.create(data, batchTime, paramBag);
-                }
-                catch (SAXException | IOException ex)
-                {
-                    handleAndLogBrokenXMLInFeed(inputPath, spec, rows, ex, "Unable to read the XML for the file for ", data);
-                    continue;
-                }
-                if(paramBagPre == null)
-                {
-                    throw new RuntimeException("Found a null XML document - this is not expected");
-                }
-                final ParameterBag paramBag2 = paramBagPre;
-
-                spec.addToXmlDocConversionDuration(System.nanoTime() - xmlConvStart);
-
-                final Stream<FlattenerListItem> mapListItemStream = XmlFlattener_EnableParallelJavaLambdaStreams ? flattenerListItems.parallelStream() : flattenerListItems.stream();
-                mapListItemStream.forEach(m-> ___preProcessMapItemRow(m, paramBag2));
-
-                if(rows % XMLFlattener_PropertyManager.XmlFlattener_PrintReportSize == 0)
-                {
-                    logger.info("Have now pre-processed a total of " + (rows) + " rows for the extractor spec : " + spec.getName());
+                    final XmlInputFile xmlFile = xmlFileIterator.next();
+                    rows++;
+                    quarantine.addFile();
+                    final Map<String, String> paramBag = new HashMap<>();
+                    paramBag.put("currenttime", batchTime.toString());
+
+                    if (XmlSplitFlattener.shouldSplit(spec, xmlFile) && XmlSplitFlattener.preProcess(batchTime, spec, flattenerListItems, xmlFile, quarantine))
+                    {
+                        continue;
+                    }
+
+                    ParameterBag paramBagPre = null;
+
+                    final XmlDocumentSource data = XmlDocumentSource.read(xmlFile.getPath(), xmlFile.getSize());
+                    spec.addToBytesProcessed(data.length());
+                    spec.addXmlsProcessed();
+
+                    long xmlConvStart = System.nanoTime();
+                    try
+                    {
+                        paramBagPre = ParameterBag.create(data, batchTime, paramBag);
+                    }
+                    catch (SAXException | IOException ex)
+                    {
+                        quarantine.quarantine(data, ex);
+                        continue;
+                    }
+                    if(paramBagPre == null)
+                    {
+                        throw new RuntimeException("Found a null XML document - this is not expected");
+                    }
+                    final ParameterBag paramBag2 = paramBagPre;
+
+                    spec.addToXmlDocConversionDuration(System.nanoTime() - xmlConvStart);
+
+                    final Stream<FlattenerListItem> mapListItemStream = XmlFlattener_EnableParallelJavaLambdaStreams ? flattenerListItems.parallelStream() : flattenerListItems.stream();
+                    mapListItemStream.forEach(m-> ___preProcessMapItemRow(m, paramBag2));
+
+                    if(rows % XMLFlattener_PropertyManager.XmlFlattener_PrintReportSize == 0)
+                    {
+                        logger.info("Have now pre-processed a total of " + (rows) + " rows for the extractor spec : " + spec.getName());
+                    }
                 }
             }
             logger.info("Now pre-processed a total of " + rows + " | Closing all items ");
@@ -101,9 +152,8 @@ public class XmlFlattener
         }
     }
 
-    static void ___produceCSVFlattens_Local(final Timestamp batchTime, final XmlFlattenerSpec spec)
+    static void ___produceCSVFlattens_Local(final Timestamp batchTime, final XmlFlattenerSpec spec, final Path inputPath)
     {
-        final Path inputPath = spec.getInputPath();
         final Path rootPath = spec.getRootPath();
 
         try
@@ -115,48 +165,34 @@ public class XmlFlattener
                 m.setUpCSVPrinterAndContainers(rootPath);
                 m.setMatchesExistingTable(false);
             }
+            final Optional<XmlStreamingPlan> streamingPlan = XmlStreamingPlan.compile(flattenerListItems);
             final Path XmlInputsDirectory = getRelativeOrAbsolutePath(inputPath, XMLFlattener_PropertyManager.XmlFlattener_LocalRunXMLDirectory);
-            final List<Path> allXMLFiles = getAllXmlFiles(XmlInputsDirectory);
 
             int rows = 0;
-            for(int i = 0; i < allXMLFiles.size(); i++)
+            try(Stream<XmlInputFile> allXMLFiles = XmlInputFileScanner.scan(XmlInputsDirectory, spec.getInputFilter());
+                XmlQuarantine quarantine = XmlQuarantine.open(spec, rootPath))
             {
-                rows++;
-                final Map<String, String> paramBag = new HashMap<>();
-                FileTime lastModifiedTime = Files.getLastModifiedTime(allXMLFiles.get(i));
-                paramBag.put("source_xml_date", lastModifiedTime.toInstant().toString());
-                paramBag.put("input_file_name", allXMLFiles.get(i).getFileName().toString());
-                paramBag.put("currenttime", batchTime.toString());
-
-                ParameterBag paramBagPre = null;
-
-                final byte[] data = Files.readAllBytes(allXMLFiles.get(i));
-                spec.addToBytesProcessed(data.length);
-                spec.addXmlsProcessed();
-                long xmlConvStart = System.nanoTime();
-                try{
-                    paramBagPre = ParameterBag.create(data, batchTime, paramBag);
-                }
-                catch (SAXException | IOException ex)
-                {
-                    handleAndLogBrokenXMLInFeed(rootPath, spec, rows, ex, "Unable to read the XML for the file for ", data);
-                    continue;
-                }
-                if(paramBagPre == null)
+                final Iterator<XmlInputFile> xmlFileIterator = allXMLFiles.iterator();
+                while(xmlFileIterator.hasNext())
                 {
-                    throw new RuntimeException("Found a null XML document - this is not expected");
+                    final XmlInputFile xmlFile = xmlFileIterator.next();
+                    rows++;
+                    flattenInputFile(batchTime, spec, flattenerListItems, xmlFile, rows, quarantine, streamingPlan);
+
+                    if(rows % XMLFlattener_PropertyManager.XmlFlattener_PrintReportSize == 0)
+                    {
+                        logger.info("Have now processed a total of " + (rows) + " rows for the extractor spec : " + spec.getName());
+                    }
                 }
-                final ParameterBag paramBag2 = paramBagPre;
-
-                spec.addToXmlDocConversionDuration(System.nanoTime() - xmlConvStart);
-
-                final Stream<FlattenerListItem> mapListItemStream = XmlFlattener_EnableParallelJavaLambdaStreams ? flattenerListItems.parallelStream() : flattenerListItems.stream();
-                mapListItemStream.forEach(m-> ___processMapItemRow(m, paramBag2));
-
-                if(rows % XMLFlattener_PropertyManager.XmlFlattener_PrintReportSize == 0)
+            }
+            catch (XmlErrorBudgetExceededException e)
+            {
+                //close the outputs (along with their writer threads) with the rows written so far
+                for(FlattenerListItem m : flattenerListItems)
                 {
-                    logger.info("Have now processed a total of " + (rows) + " rows for the extractor spec : " + spec.getName());
+                    m.close();
                 }
+                throw e;
             }
             logger.info("Now processed a total of " + rows + " | Closing all items ");
             for(FlattenerListItem m : flattenerListItems)
@@ -170,26 +206,59 @@ public class XmlFlattener
         }
     }
 
-    private static Path getRelativeOrAbsolutePath(Path rootPath, String pathStr)
+    /**
+     * Flattens a single input file to (the already set up) CSV printers of the items - a broken file is handed to the
+     * quarantine. The path columns are streamed from the file, if the items have a streaming plan.
+     */
+    static void flattenInputFile(final Timestamp batchTime,
+                                 final XmlFlattenerSpec spec,
+                                 final Collection<FlattenerListItem> flattenerListItems,
+                                 final XmlInputFile xmlFile,
+                                 final int rows,
+                                 final XmlQuarantine quarantine,
+                                 final Optional<XmlStreamingPlan> streamingPlan) throws IOException
     {
-        if(pathStr.startsWith("/")) return Paths.get(pathStr);
-        return rootPath.resolve(pathStr);
+        quarantine.addFile();
+        if (XmlSplitFlattener.shouldSplit(spec, xmlFile) && XmlSplitFlattener.flatten(batchTime, spec, flattenerListItems, xmlFile, quarantine))
+        {
+            return;
+        }
+
+        final Map<String, String> paramBag = new HashMap<>();
+        paramBag.put("source_xml_date", xmlFile.getLastModifiedTime().toInstant().toString());
+        paramBag.put("input_file_name", xmlFile.getPath().getFileName().toString());
+        paramBag.put("currenttime", batchTime.toString());
+
+        ParameterBag paramBagPre = null;
+
+        final XmlDocumentSource data = XmlDocumentSource.read(xmlFile.getPath(), xmlFile.getSize());
+        spec.addToBytesProcessed(data.length());
+        spec.addXmlsProcessed();
+        long xmlConvStart = System.nanoTime();
+        try{
+            paramBagPre = ParameterBag.create(data, batchTime, paramBag, streamingPlan.orElse(null));
+        }
+        catch (SAXException | IOException ex)
+        {
+            quarantine.quarantine(data, ex);
+            return;
+        }
+        if(paramBagPre == null)
+        {
+            throw new RuntimeException("Found a null XML document - this is not expected");
+        }
+        final ParameterBag paramBag2 = paramBagPre;
+
+        spec.addToXmlDocConversionDuration(System.nanoTime() - xmlConvStart);
+
+        final Stream<FlattenerListItem> mapListItemStream = XmlFlattener_EnableParallelJavaLambdaStreams ? flattenerListItems.parallelStream() : flattenerListItems.stream();
+        mapListItemStream.forEach(m-> ___processMapItemRow(m, paramBag2));
     }
 
-    private static void handleAndLogBrokenXMLInFeed(final Path rootPath,
-                                                    final XmlFlattenerSpec spec,
-                                                    final int rows,
-                                                    final Exception ex,
-                                                    final String s,
-                                                    byte[] bytes)throws IOException{
-        logger.warn(s + spec.getName() + " - exception was : " + ex, ex);
-        logger.warn("Skipping the row");
-        final Path xmlSubDir = getRelativeOrAbsolute(rootPath, XMLFlattener_PropertyManager.XmlFlattener_DumpXMLDirectory);
-
-        if(Files.exists(xmlSubDir) == false) Files.createDirectories(xmlSubDir);
-        Path xmlOutputFile = xmlSubDir.resolve(rows + "-broken.xml");
-        logger.warn("Dumping the XML to disk : " + xmlOutputFile.toAbsolutePath());
-        Files.write(xmlOutputFile, bytes);
+    static Path getRelativeOrAbsolutePath(Path rootPath, String pathStr)
+    {
+        if(pathStr.startsWith("/")) return Paths.get(pathStr);
+        return rootPath.resolve(pathStr);
     }
 
     private static void ___preProcessMapItemRow(FlattenerListItem m, ParameterBag paramBag)
@@ -248,34 +317,4 @@ public class XmlFlattener
         }
     }
 
-    private static final Path getRelativeOrAbsolute(Path rootPath, String pathStr){
-        if(pathStr.startsWith("/")) return Paths.get(pathStr);
-        else return rootPath.resolve(pathStr);
-    }
-
-
-    private static List<Path> getAllXmlFiles(Path XmlInputsDirectory) throws IOException
-    {
-        logger.info("Finding all the XML files in the " + XmlInputsDirectory.toAbsolutePath() + " directory.");
-
-        if(Files.exists(XmlInputsDirectory) == false)
-        {
-            throw new RuntimeException("The path you specified " + XmlInputsDirectory.toAbsolutePath() + " does not exist.");
-        }
-
-        final Stream<Path> allPaths = Files.walk(XmlInputsDirectory);
-        final List<Path> allXMLFiles = new ArrayList<>();
-
-        allPaths.forEach(p->
-                         {
-                             if(p.getFileName().toString().endsWith(".xml") == true)
-                             {
-                                 allXMLFiles.add(p);
-                             }
-                         });
-        logger.info("Found a total of " + allXMLFiles.size() + " to process. ");
-        return allXMLFiles;
-    }
-
-
 }
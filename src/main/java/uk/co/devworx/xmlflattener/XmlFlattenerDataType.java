@@ -0,0 +1,83 @@
+package uk.co.devworx.xmlflattener;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The (optional) data type of a column - as specified by the 'dataType' of the column in the YAML spec.
+ *
+ * The values of a typed column are validated and written out in a canonical form during the flatten:
+ * <ul>
+ *     <li>INT / LONG - plain digits, with an optional leading '-'</li>
+ *     <li>DECIMAL - a plain (non scientific) decimal number</li>
+ *     <li>DATE - yyyy-MM-dd</li>
+ *     <li>TIMESTAMP - yyyy-MM-dd HH:mm:ss.f (as per java.sql.Timestamp)</li>
+ *     <li>BOOLEAN - true / false</li>
+ * </ul>
+ * Typed sinks can then get at the Java value with {@link #toTypedValue(String)}.
+ */
+public enum XmlFlattenerDataType
+{
+    STRING,
+    INT,
+    LONG,
+    DECIMAL,
+    DATE,
+    TIMESTAMP,
+    BOOLEAN;
+
+    /**
+     * @return the data type with the (case insensitive) name - or STRING if none is specified.
+     */
+    public static XmlFlattenerDataType fromSpec(String dataType)
+    {
+        if (dataType == null || dataType.trim().isEmpty()) return STRING;
+        try
+        {
+            return valueOf(dataType.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Invalid dataType : " + dataType + " - it must be one of " + Arrays.toString(values()));
+        }
+    }
+
+    /**
+     * Convert a canonical value (as produced by the flattener) into its Java type - Integer, Long, BigDecimal,
+     * LocalDate, Timestamp, Boolean or String.
+     * @return the value, or null for an empty value
+     */
+    public Object toTypedValue(String canonicalValue)
+    {
+        if (canonicalValue == null || (this != STRING && canonicalValue.isEmpty())) return null;
+        switch (this)
+        {
+            case INT: return Integer.valueOf(canonicalValue);
+            case LONG: return Long.valueOf(canonicalValue);
+            case DECIMAL: return new BigDecimal(canonicalValue);
+            case DATE: return LocalDate.parse(canonicalValue);
+            case TIMESTAMP: return Timestamp.valueOf(canonicalValue);
+            case BOOLEAN: return Boolean.valueOf(canonicalValue);
+            default: return canonicalValue;
+        }
+    }
+
+    /**
+     * Compares two canonical values in the natural order of the type - with the empty values first. The canonical
+     * dates, timestamps and booleans already sort as strings, so only the numbers need to be parsed.
+     */
+    public int compareValues(String left, String right)
+    {
+        if (left.isEmpty() || right.isEmpty()) return Boolean.compare(left.isEmpty() == false, right.isEmpty() == false);
+        switch (this)
+        {
+            case INT:
+            case LONG: return Long.compare(Long.parseLong(left), Long.parseLong(right));
+            case DECIMAL: return new BigDecimal(left).compareTo(new BigDecimal(right));
+            default: return left.compareTo(right);
+        }
+    }
+}
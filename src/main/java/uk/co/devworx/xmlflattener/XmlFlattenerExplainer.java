@@ -0,0 +1,390 @@
+package uk.co.devworx.xmlflattener;
+
+import de.vandermeer.asciitable.AsciiTable;
+import de.vandermeer.asciitable.CWC_LongestLine;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * The explain mode of the {@link XmlFlattenerRunner} - estimates the cost of flattening an output table from a sample
+ * of the input files, without writing anything out.
+ *
+ * Each layer of the table (as built by {@link XmlFlattener#createLevelRowContainers(FlattenerListItem, boolean)}) is
+ * evaluated on its own for the sampled documents - which is linear in the size of the document. The rows of a document
+ * are then worked out as the cross product of the layer rows, as per {@link LayerRowsContainer#mergeLayerRows(LayerRowsContainer...)},
+ * rather than by building them. So a spec that would run out of memory on the flatten can still be explained.
+ *
+ * The dynamic columns are not resolved - each dynamic column is counted as the one value of its source.
+ */
+class XmlFlattenerExplainer
+{
+    private static final Logger logger = Logger.getLogger(XmlFlattenerExplainer.class);
+
+    private final FlattenerListItem item;
+    private final List<Layer> layers;
+    private final int columnCount;
+    private final Samples rowsPerDocument;
+    private final Samples bytesPerDocument;
+    private long inputFiles;
+    private long sampledFiles;
+    private long brokenFiles;
+
+    /**
+     * Samples the input files of the spec - every file for a fraction of 1, every 10th file for 0.1 and so on (and
+     * always the first file) - and explains each of its output tables.
+     */
+    static List<XmlFlattenerExplainer> explain(final Timestamp batchTime,
+                                               final XmlFlattenerSpec spec,
+                                               final Path inputPath,
+                                               final double sampleFraction) throws IOException
+    {
+        if (sampleFraction <= 0 || sampleFraction > 1)
+        {
+            throw new IllegalArgumentException("The sample fraction must be greater than 0 and at most 1 - you specified : " + sampleFraction);
+        }
+
+        final List<XmlFlattenerExplainer> explainers = new ArrayList<>();
+        for (FlattenerListItem item : spec.getSpecListItems().values())
+        {
+            explainers.add(new XmlFlattenerExplainer(item));
+        }
+
+        final Path xmlInputsDirectory = XmlFlattener.getRelativeOrAbsolutePath(inputPath, XMLFlattener_PropertyManager.XmlFlattener_LocalRunXMLDirectory);
+        long files = 0;
+        long sampled = 0;
+        long broken = 0;
+        try (Stream<XmlInputFile> allXMLFiles = XmlInputFileScanner.scan(xmlInputsDirectory, spec.getInputFilter()))
+        {
+            final Iterator<XmlInputFile> xmlFileIterator = allXMLFiles.iterator();
+            while (xmlFileIterator.hasNext())
+            {
+                final XmlInputFile xmlFile = xmlFileIterator.next();
+                final long index = files++;
+                if (index > 0 && (long) (index * sampleFraction) == (long) ((index - 1) * sampleFraction)) continue;
+
+                sampled++;
+                final Map<String, String> params = new HashMap<>();
+                params.put("source_xml_date", xmlFile.getLastModifiedTime().toInstant().toString());
+                params.put("input_file_name", xmlFile.getPath().getFileName().toString());
+                params.put("currenttime", batchTime.toString());
+
+                final ParameterBag paramBag;
+                try
+                {
+                    paramBag = ParameterBag.create(XmlDocumentSource.read(xmlFile.getPath(), xmlFile.getSize()), batchTime, params);
+                }
+                catch (SAXException e)
+                {
+                    logger.warn("Unable to read the sampled XML file " + xmlFile.getPath() + " - " + e);
+                    broken++;
+                    continue;
+                }
+                for (XmlFlattenerExplainer explainer : explainers)
+                {
+                    explainer.___sample(paramBag);
+                }
+            }
+        }
+
+        for (XmlFlattenerExplainer explainer : explainers)
+        {
+            explainer.inputFiles = files;
+            explainer.sampledFiles = sampled;
+            explainer.brokenFiles = broken;
+        }
+        return Collections.unmodifiableList(explainers);
+    }
+
+    private XmlFlattenerExplainer(FlattenerListItem item)
+    {
+        this.item = item;
+        final List<LayerRowsContainer> containers = XmlFlattener.createLevelRowContainers(item, false);
+        final List<XmlFlattenerExplodeItem> explodeItems = new ArrayList<>();
+        for (XmlFlattenerExplodeItem ei : item.getExplodeItems())
+        {
+            ___addDepthFirst(ei, explodeItems);
+        }
+
+        //the containers are created depth first - the root, then each of the explode items in turn
+        final List<Layer> layersP = new ArrayList<>();
+        layersP.add(new Layer(containers.get(0), null, 0));
+        for (int i = 1; i < containers.size(); i++)
+        {
+            final XmlFlattenerExplodeItem ei = explodeItems.get(i - 1);
+            int depth = 1;
+            for (XmlFlattenerExplodeItem p = ei; p.getParent().isPresent(); p = p.getParent().get()) depth++;
+            layersP.add(new Layer(containers.get(i), ei, depth));
+        }
+        this.layers = Collections.unmodifiableList(layersP);
+        this.columnCount = LayerRowsContainer.getColumns(containers).size();
+        this.rowsPerDocument = new Samples();
+        this.bytesPerDocument = new Samples();
+    }
+
+    private static void ___addDepthFirst(XmlFlattenerExplodeItem ei, List<XmlFlattenerExplodeItem> explodeItems)
+    {
+        explodeItems.add(ei);
+        for (XmlFlattenerExplodeItem child : ei.getAllExplodeItems())
+        {
+            ___addDepthFirst(child, explodeItems);
+        }
+    }
+
+    private void ___sample(ParameterBag paramBag)
+    {
+        final long[] layerRows = new long[layers.size()];
+        long rows = 1;
+        double rowBytes = columnCount; //a separator (or the line end) for each of the values
+        for (int l = 0; l < layers.size(); l++)
+        {
+            final Layer layer = layers.get(l);
+            layer.container.clear();
+            layer.container.processDocument(paramBag);
+            final List<LayerRow> containerRows = layer.container.getLayerRows();
+            final List<XmlFlattenerSpecColumn> containerColumns = layer.container.getXmlExtractorColumns();
+            long bytes = 0;
+            for (LayerRow row : containerRows)
+            {
+                for (String value : row.getValues(containerColumns)) bytes += value.length();
+            }
+            if (layer.explodeItem != null)
+            {
+                for (int[] nodes : layer.explodeItem.resolveLineageNodeLists(paramBag)) layer.fanOut.add(nodes.length);
+            }
+            layerRows[l] = Math.max(1, containerRows.size());
+            layer.rows.add(layerRows[l]);
+            layer.valueBytes += bytes;
+            layer.valueRows += containerRows.size();
+            rows = ___saturatedMultiply(rows, layerRows[l]);
+            rowBytes += containerRows.isEmpty() ? 0 : (double) bytes / containerRows.size();
+        }
+        for (int l = 0; l < layers.size(); l++)
+        {
+            //the rows of this layer are repeated for each combination of the rows of the other layers
+            if (layerRows[l] > 1 && rows / layerRows[l] > 1) layers.get(l).crossedRows.add(rows);
+        }
+        rowsPerDocument.add(rows);
+        bytesPerDocument.add(rows * rowBytes >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) (rows * rowBytes));
+        for (Layer layer : layers) layer.container.clear();
+    }
+
+    private static long ___saturatedMultiply(long a, long b)
+    {
+        final long product = a * b;
+        if (a != 0 && (product / a != b || product < 0)) return Long.MAX_VALUE;
+        return product;
+    }
+
+    FlattenerListItem getItem()
+    {
+        return item;
+    }
+
+    List<Layer> getLayers()
+    {
+        return layers;
+    }
+
+    long getSampledFiles()
+    {
+        return sampledFiles;
+    }
+
+    /**
+     * @return the average rows flattened from a (sampled) document - i.e. the cross product of its layer rows
+     */
+    double getAverageRowsPerDocument()
+    {
+        return rowsPerDocument.average();
+    }
+
+    long getP99RowsPerDocument()
+    {
+        return rowsPerDocument.percentile(99);
+    }
+
+    double getAverageBytesPerDocument()
+    {
+        return bytesPerDocument.average();
+    }
+
+    /**
+     * @return true if any of the layers are likely to make the rows explode
+     */
+    boolean isLikelyToExplode()
+    {
+        return layers.stream().anyMatch(Layer::isLikelyToExplode);
+    }
+
+    /**
+     * @return the layer tree of the table, with the estimates for each layer - followed by those for the whole table
+     */
+    @Override
+    public String toString()
+    {
+        final AsciiTable at = new AsciiTable();
+        at.addRule();
+        at.addRow("Layer", "Source", "Circuit Breaker", "Avg Fan-out", "P99 Fan-out", "Avg Layer Rows", "Avg Value Bytes/Row", "Warning");
+        at.addRule();
+        for (Layer layer : layers)
+        {
+            at.addRow(___indent(layer.depth) + layer.container.getName(),
+                      layer.explodeItem == null ? "(document)" : layer.explodeItem.getSource(),
+                      layer.explodeItem == null || layer.explodeItem.getCircuitBreaker().isPresent() == false ? "-" : String.valueOf(layer.explodeItem.getCircuitBreaker().getAsInt()),
+                      layer.explodeItem == null ? "-" : String.format("%.1f", layer.fanOut.average()),
+                      layer.explodeItem == null ? "-" : String.valueOf(layer.fanOut.percentile(99)),
+                      String.format("%.1f", layer.rows.average()),
+                      String.format("%.1f", layer.getAverageValueBytesPerRow()),
+                      layer.getWarning());
+        }
+        at.addRule();
+        at.getRenderer().setCWC(new CWC_LongestLine());
+
+        final double estimatedFiles = inputFiles - (sampledFiles == 0 ? 0 : inputFiles * (double) brokenFiles / sampledFiles);
+        return "\n" + item.getMapName() + " - sampled " + sampledFiles + " of " + inputFiles + " file(s)" + (brokenFiles > 0 ? " (" + brokenFiles + " broken)" : "") +
+               "\n" + at.render() +
+               "\nRows per document - avg " + String.format("%.1f", getAverageRowsPerDocument()) + " | p99 " + getP99RowsPerDocument() + " | max " + rowsPerDocument.percentile(100) +
+               "\nOutput bytes per document - avg " + String.format("%.0f", getAverageBytesPerDocument()) +
+               "\nEstimated output - " + String.format("%.0f", estimatedFiles * getAverageRowsPerDocument()) + " rows | " + String.format("%.0f", estimatedFiles * getAverageBytesPerDocument()) + " bytes";
+    }
+
+    /**
+     * @return the prefix of the name of a layer, showing its depth in the tree (the table trims leading spaces)
+     */
+    private static String ___indent(int depth)
+    {
+        if (depth == 0) return "";
+        final char[] indent = new char[depth * 2 + 1];
+        Arrays.fill(indent, '-');
+        indent[indent.length - 1] = ' ';
+        return new String(indent);
+    }
+
+    /**
+     * The estimates for one layer of the table - the root, or one of its explode items.
+     */
+    static class Layer
+    {
+        private final LayerRowsContainer container;
+        private final XmlFlattenerExplodeItem explodeItem;
+        private final int depth;
+        private final Samples fanOut = new Samples();
+        private final Samples rows = new Samples();
+        private long valueBytes;
+        private long valueRows;
+        private final Samples crossedRows = new Samples(); //the rows of the documents where the layer is crossed
+
+        private Layer(LayerRowsContainer container, XmlFlattenerExplodeItem explodeItem, int depth)
+        {
+            this.container = container;
+            this.explodeItem = explodeItem;
+            this.depth = depth;
+        }
+
+        String getName()
+        {
+            return container.getName();
+        }
+
+        /**
+         * @return the average number of elements each parent element (or the document, for a top level explode item)
+         *         explodes into
+         */
+        double getAverageFanOut()
+        {
+            return fanOut.average();
+        }
+
+        long getP99FanOut()
+        {
+            return fanOut.percentile(99);
+        }
+
+        double getAverageRows()
+        {
+            return rows.average();
+        }
+
+        double getAverageValueBytesPerRow()
+        {
+            return valueRows == 0 ? 0 : (double) valueBytes / valueRows;
+        }
+
+        /**
+         * @return the fraction of the sampled documents where the rows of this layer were multiplied by those of the
+         *         other layers
+         */
+        double getCrossedFraction()
+        {
+            return rows.size() == 0 ? 0 : (double) crossedRows.size() / rows.size();
+        }
+
+        /**
+         * @return true if the rows of this layer are multiplied by those of the other layers - and the p99 of the rows
+         *         of those documents is at least XmlFlattener_ExplainRowsPerDocumentWarning
+         */
+        boolean isLikelyToExplode()
+        {
+            return crossedRows.size() > 0 && crossedRows.percentile(99) >= XMLFlattener_PropertyManager.XmlFlattener_ExplainRowsPerDocumentWarning;
+        }
+
+        private String getWarning()
+        {
+            if (crossedRows.size() == 0) return "";
+            final String crossed = String.format("crossed with other layers in %.0f%% of documents", getCrossedFraction() * 100);
+            return isLikelyToExplode() ? "LIKELY TO EXPLODE - " + crossed : crossed;
+        }
+    }
+
+    /**
+     * The sampled values of a measure - held in full, so that the percentiles are exact for the sample.
+     */
+    private static class Samples
+    {
+        private long[] values = new long[64];
+        private int size;
+        private boolean sorted = true;
+        private long total;
+
+        void add(long value)
+        {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+            sorted = false;
+            total = total + value < 0 ? Long.MAX_VALUE : total + value;
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        double average()
+        {
+            return size == 0 ? 0 : (double) total / size;
+        }
+
+        long percentile(int percentile)
+        {
+            if (size == 0) return 0;
+            if (sorted == false)
+            {
+                Arrays.sort(values, 0, size);
+                sorted = true;
+            }
+            final int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+            return values[Math.max(0, Math.min(size - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package uk.co.devworx.xmlflattener;
+
+import java.util.*;
+
+/**
+ * A single flattened row - as returned by {@link XmlFlattener#stream(XmlFlattenerSpec, java.util.stream.Stream)}.
+ *
+ * The values are held in their canonical (CSV) form; {@link #getValue(int)} converts them to the Java type of the
+ * column's {@link XmlFlattenerDataType}. The rows of a table share the one set of column names - although a table
+ * with dynamic columns gains columns as new attributes are discovered, so its later rows can have more columns than
+ * the earlier ones.
+ */
+public class XmlFlattenerRow
+{
+    private final Columns columns;
+    private final long documentNumber;
+    private final String[] values;
+
+    XmlFlattenerRow(Columns columns, long documentNumber, List<String> values)
+    {
+        this.columns = columns;
+        this.documentNumber = documentNumber;
+        this.values = values.toArray(new String[0]);
+        if (this.values.length != columns.names.size())
+        {
+            throw new IllegalArgumentException("Mismatch between row values and columns - " + this.values.length + " vs. " + columns.names.size());
+        }
+    }
+
+    /**
+     * @return the name of the output table this row belongs to
+     */
+    public String getTableName()
+    {
+        return columns.tableName;
+    }
+
+    /**
+     * @return the (1 based) number of the input document that produced this row
+     */
+    public long getDocumentNumber()
+    {
+        return documentNumber;
+    }
+
+    public List<String> getColumnNames()
+    {
+        return columns.names;
+    }
+
+    public int size()
+    {
+        return values.length;
+    }
+
+    public XmlFlattenerDataType getDataType(int index)
+    {
+        return columns.dataTypes.get(index);
+    }
+
+    public String getString(int index)
+    {
+        return values[index];
+    }
+
+    public String getString(String columnName)
+    {
+        return values[___indexOf(columnName)];
+    }
+
+    /**
+     * @return the value converted to the type of the column - or null for an empty (typed) value
+     */
+    public Object getValue(int index)
+    {
+        return getDataType(index).toTypedValue(values[index]);
+    }
+
+    public Object getValue(String columnName)
+    {
+        return getValue(___indexOf(columnName));
+    }
+
+    private int ___indexOf(String columnName)
+    {
+        final Integer index = columns.indexes.get(columnName);
+        if (index == null)
+        {
+            throw new IllegalArgumentException("The table - " + columns.tableName + " - does not have the column : " + columnName + " | columns are : " + columns.names);
+        }
+        return index;
+    }
+
+    @Override
+    public String toString()
+    {
+        return columns.tableName + " " + Arrays.toString(values);
+    }
+
+    /**
+     * The columns shared by the rows of a table.
+     */
+    static class Columns
+    {
+        private final String tableName;
+        private final List<String> names;
+        private final List<XmlFlattenerDataType> dataTypes;
+        private final Map<String, Integer> indexes;
+
+        Columns(String tableName, List<XmlFlattenerSpecColumn> columns)
+        {
+            final List<String> namesP = new ArrayList<>(columns.size());
+            final List<XmlFlattenerDataType> dataTypesP = new ArrayList<>(columns.size());
+            final Map<String, Integer> indexesP = new HashMap<>();
+            for (XmlFlattenerSpecColumn col : columns)
+            {
+                indexesP.put(col.getColumnName(), namesP.size());
+                namesP.add(col.getColumnName());
+                dataTypesP.add(col.getDataType());
+            }
+            this.tableName = tableName;
+            this.names = Collections.unmodifiableList(namesP);
+            this.dataTypes = Collections.unmodifiableList(dataTypesP);
+            this.indexes = indexesP;
+        }
+    }
+}
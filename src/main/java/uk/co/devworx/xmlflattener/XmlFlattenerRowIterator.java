@@ -0,0 +1,170 @@
+package uk.co.devworx.xmlflattener;
+
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.*;
+
+/**
+ * Lazily flattens the documents of an iterator into rows - the next document is only read (and parsed) once the
+ * rows of the previous one have all been consumed. So the caller controls the pace, and at most one document's worth
+ * of rows is held at any time.
+ *
+ * Each document is parsed once and flattened for each of the output tables in turn. Every iterator has its own
+ * level row containers - but the dynamic columns it discovers are added to the columns of the spec itself, so only
+ * one iterator should run over a spec at any one time.
+ */
+class XmlFlattenerRowIterator implements Iterator<XmlFlattenerRow>
+{
+    private static final Logger logger = Logger.getLogger(XmlFlattenerRowIterator.class);
+
+    private final List<TableState> tables;
+    private final Iterator<XmlDocumentSource> documents;
+    private final Timestamp batchTime;
+
+    private long documentNumber;
+    private int currentTable;
+    private List<LayerRow> currentRows;
+    private int currentRow;
+    private ParameterBag currentDocument;
+
+    XmlFlattenerRowIterator(Collection<XmlFlattenerSpec> specs, Iterator<XmlDocumentSource> documents, Timestamp batchTime)
+    {
+        this.tables = new ArrayList<>();
+        for (XmlFlattenerSpec spec : specs)
+        {
+            for (FlattenerListItem item : spec.getSpecListItems().values())
+            {
+                tables.add(new TableState(spec, item));
+            }
+        }
+        this.documents = documents;
+        this.batchTime = batchTime;
+        this.currentRows = Collections.emptyList();
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (tables.isEmpty()) return false;
+        while (currentRow == currentRows.size())
+        {
+            if (currentDocument == null || currentTable == tables.size() - 1)
+            {
+                currentDocument = null; //release the previous document before reading the next
+                if (documents.hasNext() == false) return false;
+                currentDocument = ___read(documents.next());
+                currentTable = 0;
+            }
+            else
+            {
+                currentTable++;
+            }
+            currentRows = tables.get(currentTable).flatten(currentDocument);
+            currentRow = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public XmlFlattenerRow next()
+    {
+        if (hasNext() == false) throw new NoSuchElementException();
+        final TableState table = tables.get(currentTable);
+        return new XmlFlattenerRow(table.columns, documentNumber, currentRows.get(currentRow++).getValues(table.allColumns));
+    }
+
+    private ParameterBag ___read(XmlDocumentSource source)
+    {
+        documentNumber++;
+        final Map<String, String> sqlValues = new HashMap<>();
+        sqlValues.put("currenttime", batchTime.toString());
+        try
+        {
+            if (source.getPath().isPresent() == true)
+            {
+                //as for the CSV flatten - only the documents read from a file have these
+                final Path file = source.getPath().get();
+                sqlValues.put("source_xml_date", Files.getLastModifiedTime(file).toInstant().toString());
+                sqlValues.put("input_file_name", file.getFileName().toString());
+            }
+            final ParameterBag paramBag = ParameterBag.create(source, batchTime, sqlValues);
+            for (TableState table : tables)
+            {
+                table.spec.addToBytesProcessed(source.length());
+                table.spec.addXmlsProcessed();
+            }
+            return paramBag;
+        }
+        catch (SAXException | IOException e)
+        {
+            String msg = "Unable to read the XML document number " + documentNumber + " (" + source + ") - " + e;
+            logger.error(msg, e);
+            throw new RuntimeException(msg, e);
+        }
+    }
+
+    /**
+     * The containers and columns of one output table.
+     */
+    private static class TableState
+    {
+        private final XmlFlattenerSpec spec;
+        private final FlattenerListItem item;
+        private final List<LayerRowsContainer> preProcessContainers;
+
+        private List<LayerRowsContainer> containers;
+        private List<XmlFlattenerSpecColumn> allColumns;
+        private XmlFlattenerRow.Columns columns;
+        private int resolvedColumnCount = -1;
+
+        TableState(XmlFlattenerSpec spec, FlattenerListItem item)
+        {
+            this.spec = spec;
+            this.item = item;
+            this.preProcessContainers = item.containsDynamicColunns() ? XmlFlattener.createLevelRowContainers(item, false) : null;
+        }
+
+        List<LayerRow> flatten(ParameterBag paramBag)
+        {
+            if (preProcessContainers != null)
+            {
+                //the dynamic columns can only be discovered as we go - so the columns grow with each new attribute
+                FlattenerListItem.preProcessRow(paramBag, preProcessContainers);
+            }
+
+            final int count = ___resolvedColumnCount();
+            if (containers == null || count != resolvedColumnCount)
+            {
+                containers = XmlFlattener.createLevelRowContainers(item, true);
+                allColumns = LayerRowsContainer.getColumns(containers);
+                columns = new XmlFlattenerRow.Columns(item.getMapName(), allColumns);
+                resolvedColumnCount = count;
+            }
+
+            for (LayerRowsContainer c : containers)
+            {
+                c.clear();
+                c.processDocument(paramBag);
+            }
+            return LayerRowsContainer.mergeLayerRows(containers);
+        }
+
+        private int ___resolvedColumnCount()
+        {
+            if (preProcessContainers == null) return 0;
+            int count = 0;
+            for (LayerRowsContainer c : preProcessContainers)
+            {
+                for (XmlFlattenerSpecColumn col : c.getXmlExtractorColumns())
+                {
+                    if (col.getType().isDynamic()) count += col.getResolvedColumns().size();
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package uk.co.devworx.xmlflattener;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Timestamp;
@@ -25,13 +26,39 @@ public class XmlFlattenerRunner
         {
             String msg = "The class expects 1 parameter: \n" +
                     "[0] - The YAML File describing the flattening criteria \n" +
+                    "[1] - (optional) --watch to keep flattening the new files as they arrive \n" +
+                    "      or --explain [fraction] to estimate the rows of each output table from a sample of the files \n" +
+                    "      or --profile to report the structure of all the files, with a suggested circuit breaker for each explode item \n" +
+                    "\nOr, to run as a (local) flatten server: --server [port] \n" +
                     "\nYou have specified: " + Arrays.toString(args);
             System.err.println(msg);
             System.exit(1);
             return;
         }
 
+        if (args[0].equals("--server"))
+        {
+            final int port = args.length > 1 ? Integer.parseInt(args[1]) : XMLFlattener_PropertyManager.XmlFlattener_ServerPort;
+            XmlFlattenerServer.start(port);
+            return;
+        }
+
         final XmlFlattenerRunner runner = new XmlFlattenerRunner(Paths.get(args[0]));
+        if (args.length > 1 && args[1].equals("--watch"))
+        {
+            runner.watch();
+            return;
+        }
+        if (args.length > 1 && args[1].equals("--explain"))
+        {
+            runner.explain(args.length > 2 ? Double.parseDouble(args[2]) : XMLFlattener_PropertyManager.XmlFlattener_ExplainSampleFraction);
+            return;
+        }
+        if (args.length > 1 && args[1].equals("--profile"))
+        {
+            runner.profile();
+            return;
+        }
         runner.execute();
 
     }
@@ -55,14 +82,77 @@ public class XmlFlattenerRunner
 
     public void execute()
     {
-         extractorSpecs.forEach((k,v) ->
+        final List<FlattenerListItem> mapItems = flatten(batchTime, extractorSpecs, null);
+
+        for(FlattenerListItem mi : mapItems)
+        {
+            logger.info("Output Table - " + mi.getMapName() + " - " + mi.getCsvRowsWritten() + " CSV Rows - " + mi.getOutputCSVFile().toAbsolutePath());
+        }
+    }
+
+    /**
+     * Estimates the rows and output bytes of each output table from a sample of the input files - without flattening
+     * them. See {@link XmlFlattenerExplainer}.
+     * @param sampleFraction the fraction of the input files to sample - e.g. 0.1 for every 10th file
+     */
+    public void explain(double sampleFraction) throws IOException
+    {
+        for (XmlFlattenerSpec s : extractorSpecs.values())
+        {
+            for (XmlFlattenerExplainer explainer : XmlFlattenerExplainer.explain(batchTime, s, s.getInputPath(), sampleFraction))
+            {
+                logger.info("Explain of the spec : " + s.getName() + explainer);
+            }
+        }
+    }
+
+    /**
+     * Streams all the input files and reports the element paths they contain - with the circuit breaker suggested for
+     * each explode item. See {@link XmlCorpusProfiler}.
+     */
+    public void profile() throws IOException
+    {
+        for (XmlFlattenerSpec s : extractorSpecs.values())
+        {
+            logger.info("Profile of the spec : " + s.getName() + XmlCorpusProfiler.profile(s, s.getInputPath()));
+        }
+    }
+
+    /**
+     * Keeps flattening the new files as they arrive - until the JVM is shut down.
+     */
+    public void watch() throws IOException
+    {
+        final XmlFlattenerWatcher watcher = new XmlFlattenerWatcher(extractorSpecs);
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        {
+            try
+            {
+                watcher.close();
+            }
+            catch (IOException e)
+            {
+                logger.error("Unable to cleanly close the watch - " + e, e);
+            }
+        }));
+        watcher.run();
+    }
+
+    /**
+     * Runs the flatten for all the specs
+     * @param inputPath the input path to read from - or null to use the input path of each spec
+     * @return the output tables that were written
+     */
+    static List<FlattenerListItem> flatten(Timestamp batchTime, Map<String, XmlFlattenerSpec> extractorSpecs, Path inputPath)
+    {
+        extractorSpecs.forEach((k,v) ->
         {
-            XmlFlattener.fullyResolveDynamicColumns(batchTime, v);
+            XmlFlattener.fullyResolveDynamicColumns(batchTime, v, inputPath == null ? v.getInputPath() : inputPath);
         });
 
         extractorSpecs.forEach((k,v) ->
         {
-            XmlFlattener.produceCSVFlattens(batchTime, v);
+            XmlFlattener.produceCSVFlattens(batchTime, v, inputPath == null ? v.getInputPath() : inputPath);
         });
 
         List<FlattenerListItem> mapItems = new ArrayList<>();
@@ -71,14 +161,7 @@ public class XmlFlattenerRunner
                                         {
                                             s.getSpecListItems().values().forEach(mapItems::add);
                                         });
-
-        for(FlattenerListItem mi : mapItems)
-        {
-            logger.info("Output Table - " + mi.getMapName() + " - " + mi.getCsvRowsWritten() + " CSV Rows - " + mi.getOutputCSVFile().toAbsolutePath());
-        }
+        return mapItems;
     }
 
-
-
-
 }
@@ -0,0 +1,331 @@
+package uk.co.devworx.xmlflattener;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long running flatten server - so that each (small) flatten job does not have to pay for the JVM start up, the
+ * parsing of the YAML spec and the compiling of its XPaths, or for running on cold code.
+ *
+ * The server listens on the loopback address only, and accepts HTTP requests of the form:
+ * <pre>
+ *     /flatten?spec=/path/to/spec.yml[&amp;input=/path/to/input/dir]
+ *     /status
+ * </pre>
+ * The flatten request blocks until the job is done and returns a JSON summary of the tables written. If no input is
+ * given, the inputPath of the spec is used.
+ *
+ * The parsed specs are kept in an LRU cache (keyed on the spec path - a spec is re-read if its file is modified). The
+ * jobs run on a shared worker pool - although the jobs for the same spec are run one at a time, as they write to
+ * the same output files. Rather than blocking a worker, each job is chained on to the last job queued for its spec,
+ * so the jobs waiting their turn do not hold up the jobs of the other specs.
+ */
+public class XmlFlattenerServer implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(XmlFlattenerServer.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final HttpServer httpServer;
+    private final ExecutorService requestExecutor;
+    private final ExecutorService workers;
+    private final Map<Path, CachedSpec> specCache;
+    private final Map<Path, CompletableFuture<Map<String, Object>>> specQueues;
+
+    private final AtomicLong specsParsed;
+    private final AtomicLong jobsCompleted;
+    private final AtomicLong jobsFailed;
+
+    /**
+     * Starts the server on the given (loopback) port.
+     */
+    public static XmlFlattenerServer start(int port) throws IOException
+    {
+        final XmlFlattenerServer server = new XmlFlattenerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                                                                 XMLFlattener_PropertyManager.XmlFlattener_ServerWorkerThreads,
+                                                                 XMLFlattener_PropertyManager.XmlFlattener_ServerSpecCacheSize);
+        server.httpServer.start();
+        logger.info("The XML Flattener server is listening on : http://" + server.httpServer.getAddress().getHostString() + ":" + server.getPort() + "/flatten");
+        return server;
+    }
+
+    XmlFlattenerServer(InetSocketAddress address, int workerThreads, int specCacheSize) throws IOException
+    {
+        this.httpServer = HttpServer.create(address, 0);
+        this.requestExecutor = Executors.newCachedThreadPool(___threadFactory("xml-flattener-request-"));
+        this.workers = Executors.newFixedThreadPool(workerThreads, ___threadFactory("xml-flattener-worker-"));
+        this.specCache = new LinkedHashMap<Path, CachedSpec>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, CachedSpec> eldest)
+            {
+                return size() > specCacheSize;
+            }
+        };
+        this.specQueues = new HashMap<>();
+        this.specsParsed = new AtomicLong();
+        this.jobsCompleted = new AtomicLong();
+        this.jobsFailed = new AtomicLong();
+
+        httpServer.setExecutor(requestExecutor);
+        httpServer.createContext("/flatten", this::___handleFlatten);
+        httpServer.createContext("/status", this::___handleStatus);
+    }
+
+    public int getPort()
+    {
+        return httpServer.getAddress().getPort();
+    }
+
+    public long getSpecsParsed()
+    {
+        return specsParsed.get();
+    }
+
+    public long getJobsCompleted()
+    {
+        return jobsCompleted.get();
+    }
+
+    /**
+     * Submit a flatten job to the worker pool - it runs once the jobs already queued for the same spec are done.
+     * @param inputPath the input to read from - or null to use the inputPath of the spec
+     * @return the summary of the tables written
+     */
+    public Future<Map<String, Object>> submit(final Path specFile, final Path inputPath)
+    {
+        //queued on the spec path rather than on the cached spec - so a job for a re-parsed spec still waits for the
+        //jobs running the previous version, and the spec is only parsed once if concurrent first requests come in
+        final Path key = specFile.toAbsolutePath().normalize();
+        final CompletableFuture<Map<String, Object>> job = new CompletableFuture<>();
+        final CompletableFuture<Map<String, Object>> previous;
+        synchronized (specQueues)
+        {
+            previous = specQueues.get(key);
+            specQueues.put(key, job);
+        }
+
+        final CompletableFuture<?> turn = previous == null ? CompletableFuture.completedFuture(null) : previous;
+        turn.handleAsync((result, failure) -> ___run(key, specFile, inputPath), workers).whenComplete((result, failure) ->
+        {
+            synchronized (specQueues)
+            {
+                specQueues.remove(key, job); //the last job of the spec - so the queue does not outlive it
+            }
+            if (failure != null) job.completeExceptionally(failure);
+            else job.complete(result);
+        });
+        return job;
+    }
+
+    /**
+     * @return the number of specs with jobs running or waiting to run
+     */
+    int getQueuedSpecs()
+    {
+        synchronized (specQueues)
+        {
+            return specQueues.size();
+        }
+    }
+
+    private Map<String, Object> ___run(final Path key, final Path specFile, final Path inputPath)
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            final List<Map<String, Object>> tables = new ArrayList<>();
+            final CachedSpec cached = ___getSpec(key);
+            cached.specs.values().forEach(XmlFlattenerSpec::reset);
+            final Timestamp batchTime = new Timestamp(System.currentTimeMillis());
+            for (FlattenerListItem mi : XmlFlattenerRunner.flatten(batchTime, cached.specs, inputPath))
+            {
+                final Map<String, Object> table = new LinkedHashMap<>();
+                table.put("name", mi.getMapName());
+                table.put("rows", mi.getCsvRowsWritten());
+                table.put("outputFile", mi.getOutputCSVFile().toAbsolutePath().toString());
+                tables.add(table);
+            }
+
+            final Map<String, Object> result = new LinkedHashMap<>();
+            result.put("spec", specFile.toString());
+            result.put("durationMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            result.put("tables", tables);
+            jobsCompleted.incrementAndGet();
+            return result;
+        }
+        catch (IOException e)
+        {
+            jobsFailed.incrementAndGet();
+            throw new CompletionException(e);
+        }
+        catch (RuntimeException e)
+        {
+            jobsFailed.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Only called from the queue of the spec path - the cache lock is only held for the lookup and the store, so a slow
+     * spec does not hold up the others.
+     */
+    private CachedSpec ___getSpec(final Path key) throws IOException
+    {
+        final FileTime lastModified = Files.getLastModifiedTime(key);
+        synchronized (specCache)
+        {
+            final CachedSpec cached = specCache.get(key);
+            if (cached != null && cached.lastModified.equals(lastModified)) return cached;
+        }
+
+        final CachedSpec parsed = new CachedSpec(XmlFlattenerSpecFactory.parse(key), lastModified);
+        specsParsed.incrementAndGet();
+        logger.info("Parsed and cached the spec : " + key);
+        synchronized (specCache)
+        {
+            specCache.put(key, parsed);
+        }
+        return parsed;
+    }
+
+    private void ___handleFlatten(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            final Map<String, String> params = ___parseParams(exchange);
+            final String spec = params.get("spec");
+            if (spec == null || spec.trim().isEmpty())
+            {
+                ___respond(exchange, 400, Collections.singletonMap("error", "You must specify the spec - e.g. /flatten?spec=/path/to/spec.yml"));
+                return;
+            }
+            final String input = params.get("input");
+            final Future<Map<String, Object>> job = submit(Paths.get(spec), input == null ? null : Paths.get(input).toAbsolutePath());
+            ___respond(exchange, 200, job.get());
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            logger.error("The flatten job failed - " + cause, cause);
+            ___respond(exchange, cause instanceof NoSuchFileException ? 404 : 500, Collections.singletonMap("error", String.valueOf(cause)));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            ___respond(exchange, 503, Collections.singletonMap("error", "Interrupted while waiting for the job"));
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Unable to handle the request - " + e, e);
+            ___respond(exchange, 400, Collections.singletonMap("error", String.valueOf(e)));
+        }
+    }
+
+    private void ___handleStatus(HttpExchange exchange) throws IOException
+    {
+        final Map<String, Object> status = new LinkedHashMap<>();
+        synchronized (specCache)
+        {
+            status.put("cachedSpecs", specCache.size());
+        }
+        status.put("queuedSpecs", getQueuedSpecs());
+        status.put("specsParsed", specsParsed.get());
+        status.put("jobsCompleted", jobsCompleted.get());
+        status.put("jobsFailed", jobsFailed.get());
+        ___respond(exchange, 200, status);
+    }
+
+    private static Map<String, String> ___parseParams(HttpExchange exchange) throws IOException
+    {
+        final Map<String, String> params = new HashMap<>();
+        ___parseParams(exchange.getRequestURI().getRawQuery(), params);
+        if ("POST".equalsIgnoreCase(exchange.getRequestMethod()))
+        {
+            ___parseParams(___readBody(exchange.getRequestBody()), params);
+        }
+        return params;
+    }
+
+    private static void ___parseParams(String query, Map<String, String> params) throws UnsupportedEncodingException
+    {
+        if (query == null || query.isEmpty()) return;
+        for (String pair : query.split("&"))
+        {
+            final int eq = pair.indexOf('=');
+            if (eq == -1) continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+    }
+
+    private static String ___readBody(InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) bos.write(buffer, 0, read);
+        return new String(bos.toByteArray(), "UTF-8").trim();
+    }
+
+    private static void ___respond(HttpExchange exchange, int status, Map<String, ?> body) throws IOException
+    {
+        final byte[] bytes = mapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(bytes);
+        }
+    }
+
+    private static ThreadFactory ___threadFactory(final String prefix)
+    {
+        final AtomicInteger counter = new AtomicInteger();
+        return r ->
+        {
+            final Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    @Override
+    public void close()
+    {
+        httpServer.stop(0);
+        requestExecutor.shutdownNow();
+        workers.shutdown();
+    }
+
+    private static class CachedSpec
+    {
+        private final Map<String, XmlFlattenerSpec> specs;
+        private final FileTime lastModified;
+
+        private CachedSpec(Map<String, XmlFlattenerSpec> specs, FileTime lastModified)
+        {
+            this.specs = specs;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -1,16 +1,14 @@
 package uk.co.devworx.xmlflattener;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
-import org.w3c.dom.*;
-
 import javax.xml.xpath.*;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -29,6 +27,8 @@ public class XmlFlattenerSpec
     private final Path originatingFile;
     private final Path inputPath;
     private final Path rootPath;
+    private final XmlInputFileFilter inputFilter;
+    private final OptionalDouble maxBrokenPercent;
 
     private final Map<String, FlattenerListItem> specListItems;
 
@@ -40,13 +40,17 @@ public class XmlFlattenerSpec
     XmlFlattenerSpec(Path originatingFile,
                      String name,
                      Map<String, FlattenerListItem> mapListItemsP,
-                     Path inputPath)
+                     Path inputPath,
+                     XmlInputFileFilter inputFilter,
+                     OptionalDouble maxBrokenPercent)
     {
         this.originatingFile = originatingFile;
         this.name = name;
         this.specListItems = mapListItemsP;
         this.inputPath = inputPath;
-        this.rootPath = originatingFile.getParent();
+        this.inputFilter = inputFilter;
+        this.maxBrokenPercent = maxBrokenPercent;
+        this.rootPath = originatingFile == null ? null : originatingFile.getParent();
         specListItems.values().forEach(m ->
         {
             m.setParent(this);
@@ -62,11 +66,25 @@ public class XmlFlattenerSpec
         return inputPath;
     }
 
+    public XmlInputFileFilter getInputFilter()
+    {
+        return inputFilter;
+    }
+
     public Path getRootPath()
     {
         return rootPath;
     }
 
+    /**
+     * @return the percentage of the input files that may be broken before the flatten is aborted - if the spec sets
+     *         its own error budget (otherwise XmlFlattener_MaxBrokenPercent applies)
+     */
+    public OptionalDouble getMaxBrokenPercent()
+    {
+        return maxBrokenPercent;
+    }
+
     public Path getOriginatingFiles()
     {
         return originatingFile;
@@ -111,6 +129,19 @@ public class XmlFlattenerSpec
     {
         return totalXmlConversionDuration.get();
     }
+
+    /**
+     * Clears down the state of the previous run - so that a (cached) spec can be run again, e.g. by the
+     * {@link XmlFlattenerServer}. It must not be called while a run is in progress.
+     */
+    void reset()
+    {
+        specListItems.values().forEach(FlattenerListItem::reset);
+        totalBytesProcessed.set(0);
+        totalBytesToXmlDocConversionDuration.set(0);
+        totalXmlsProcessed.set(0);
+        totalXmlConversionDuration.set(0);
+    }
 }
 
 enum XmlFlattenerSourceType
@@ -118,7 +149,16 @@ enum XmlFlattenerSourceType
     xpath,
     eval,
     dynAttribute,
-    dynElement
+    dynElement;
+
+    /**
+     * @return true if the columns of this type are resolved from the documents, by the pre-processing pass - as one
+     *         column per matching attribute (dynAttribute) or child element (dynElement)
+     */
+    boolean isDynamic()
+    {
+        return this == dynAttribute || this == dynElement;
+    }
 }
 
 class FlattenerListItem implements Closeable
@@ -130,39 +170,63 @@ class FlattenerListItem implements Closeable
     //Set up Lazily
     private volatile List<String> columnNames;
     private volatile List<XmlFlattenerSpecColumn> allColumns;
-    private volatile CSVPrinter csvPrinter;
+    private volatile XmlCsvWriter csvWriter;
     private volatile List<LayerRowsContainer> containers;
     private volatile Boolean matchesExistingTable;
     private volatile String matchingDatabaseTable;
     private volatile Path outputCSVFile;
+    private volatile XmlRowHashIndex dedupeIndex;
+    private volatile int[] dedupeColumnIndexes;
+    private volatile XmlRowSorter sorter;
+    private volatile XmlRowRingBuffer rowRing;
+    private final Object writeLock = new Object(); //held whenever the rows are written - by the writer thread (if any)
 
     //Preprossing (if required)
     private volatile List<LayerRowsContainer> preprocess_containers;
 
     private final String mapName;
     private final String outputPath;
+    private final List<String> dedupeOn;
+    private final List<String> sortBy;
     private final List<XmlFlattenerSpecColumn> columns;
     private final List<XmlFlattenerExplodeItem> explodeItems;
     private final AtomicLong xmlsProcessed;
     private final AtomicLong csvRowsWritten;
     private final AtomicLong processDocumentDurations;
+    private final AtomicLong duplicateRowsSkipped;
 
     public static FlattenerListItem create(final String mapName,
                                            final String outputPath)
     {
-        return new FlattenerListItem(mapName, outputPath);
+        return create(mapName, outputPath, Collections.emptyList(), Collections.emptyList());
     }
 
-    private FlattenerListItem(String mapName, String outputPath)
+    /**
+     * @param dedupeOn the columns a row is deduplicated on - a row with the same values in these columns as a row that
+     *                 has already been written is skipped. Empty if the rows are not deduplicated.
+     * @param sortBy the columns the output file is sorted on - empty if the rows are written in the order flattened.
+     */
+    public static FlattenerListItem create(final String mapName,
+                                           final String outputPath,
+                                           final List<String> dedupeOn,
+                                           final List<String> sortBy)
+    {
+        return new FlattenerListItem(mapName, outputPath, dedupeOn, sortBy);
+    }
+
+    private FlattenerListItem(String mapName, String outputPath, List<String> dedupeOn, List<String> sortBy)
     {
         this.mapName = mapName;
         this.outputPath = outputPath;
+        this.dedupeOn = Collections.unmodifiableList(new ArrayList<>(dedupeOn));
+        this.sortBy = Collections.unmodifiableList(new ArrayList<>(sortBy));
 
         columns = new ArrayList<>();
         explodeItems = new ArrayList<>();
         xmlsProcessed = new AtomicLong();
         csvRowsWritten = new AtomicLong();
         processDocumentDurations = new AtomicLong();
+        duplicateRowsSkipped = new AtomicLong();
     }
 
     public void preProcessRow(ParameterBag paramBag)
@@ -175,16 +239,125 @@ class FlattenerListItem implements Closeable
 
     public void processRow(ParameterBag paramBag)
     {
-        if (containers == null || csvPrinter == null)
+        if (containers == null || csvWriter == null)
         {
             throw new RuntimeException("You cannot process a row as you have not successfully run : setUpCSVPrinterAndContainers() for - " + getMapName());
         }
         xmlsProcessed.incrementAndGet();
         long startOfProcessRow = System.nanoTime();
-        processRow(paramBag, allColumns, containers, csvPrinter, csvRowsWritten);
+        processRow(paramBag, allColumns, containers, this::___publishRow);
         processDocumentDurations.addAndGet(System.nanoTime() - startOfProcessRow);
     }
 
+    /**
+     * Hands the row over to the writer thread of the table - or writes it straight away, if the table has none.
+     */
+    private boolean ___publishRow(List<String> row) throws IOException
+    {
+        final XmlRowRingBuffer ring = rowRing;
+        if (ring != null)
+        {
+            ring.publish(row);
+            return true;
+        }
+        synchronized (writeLock)
+        {
+            return ___writeRow(row);
+        }
+    }
+
+    /**
+     * Writes rows that have already been flattened (e.g. by the {@link XmlSplitFlattener}) - with the ordinals of the
+     * values in the order of the columns.
+     */
+    synchronized void writeRows(XmlRowBuffer rows) throws IOException
+    {
+        if (csvWriter == null)
+        {
+            throw new RuntimeException("You cannot write rows as you have not successfully run : setUpCSVPrinterAndContainers() for - " + getMapName());
+        }
+        ___drainRowRing();
+        synchronized (writeLock)
+        {
+            final XmlRowBuffer.Cursor cursor = rows.cursor();
+            if (dedupeIndex == null && sorter == null)
+            {
+                //straight from the bytes of the buffer to the bytes of the file
+                while (cursor.next())
+                {
+                    csvWriter.writeRow(cursor, rows.getColumnCount());
+                }
+                csvRowsWritten.addAndGet(rows.getRows());
+                return;
+            }
+
+            final String[] values = new String[rows.getColumnCount()];
+            final List<String> row = Arrays.asList(values);
+            while (cursor.next())
+            {
+                for (int i = 0; i < values.length; i++)
+                {
+                    values[i] = cursor.getString(i);
+                }
+                ___writeRow(row);
+            }
+        }
+    }
+
+    /**
+     * Writes the row to the output file - or the sorter, if the table is sorted - unless it is a duplicate. Only called
+     * under the write lock.
+     * @return true if the row was written
+     */
+    private boolean ___writeRow(List<String> row) throws IOException
+    {
+        if (___isNewRow(row) == false) return false;
+        if (sorter != null) sorter.add(row);
+        else csvWriter.writeRow(row);
+        csvRowsWritten.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Waits for the writer thread to write out all of the rows handed over to it so far.
+     */
+    private void ___drainRowRing() throws IOException
+    {
+        final XmlRowRingBuffer ring = rowRing;
+        if (ring != null) ring.drain();
+    }
+
+    private void ___closeRowRing() throws IOException
+    {
+        final XmlRowRingBuffer ring = rowRing;
+        rowRing = null;
+        if (ring != null) ring.close();
+    }
+
+    /**
+     * @return true if the row is to be written - i.e. the table is not deduplicated, or the values of its dedupeOn
+     *         columns have not been seen before.
+     */
+    private boolean ___isNewRow(List<String> row)
+    {
+        if (dedupeIndex == null) return true;
+        try
+        {
+            if (dedupeIndex.add(row, dedupeColumnIndexes)) return true;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Unable to grow the dedupe index of " + getMapName() + " - " + e, e);
+        }
+        duplicateRowsSkipped.incrementAndGet();
+        return false;
+    }
+
+    void addXmlsProcessed()
+    {
+        xmlsProcessed.incrementAndGet();
+    }
+
     /**
      * Checks whether this item has dynamic columns.
      * If it does, then you need to resolve these first with pre-processing.
@@ -197,7 +370,7 @@ class FlattenerListItem implements Closeable
 
         for(XmlFlattenerSpecColumn col : columns)
         {
-            if(col.getType().equals(XmlFlattenerSourceType.dynAttribute))
+            if(col.getType().isDynamic())
             {
                 return true;
             }
@@ -212,11 +385,32 @@ class FlattenerListItem implements Closeable
         return false;
     }
 
+    /**
+     * @return the names resolved so far for each of the dynamic columns - so a file that is pre-processed in parts
+     *         can have what it added dropped again ({@link #retainResolvedColumns(Map)}) if it turns out to be broken
+     */
+    Map<XmlFlattenerSpecColumn, Set<String>> getResolvedColumnNames()
+    {
+        final Map<XmlFlattenerSpecColumn, Set<String>> names = new HashMap<>();
+        final List<XmlFlattenerSpecColumn> cols = new ArrayList<>(columns);
+        explodeItems.forEach(expl -> cols.addAll(expl.getAllColumns()));
+        for (XmlFlattenerSpecColumn col : cols)
+        {
+            if (col.getType().isDynamic()) names.put(col, col.getResolvedColumnNames());
+        }
+        return names;
+    }
+
+    void retainResolvedColumns(Map<XmlFlattenerSpecColumn, Set<String>> names)
+    {
+        names.forEach(XmlFlattenerSpecColumn::retainResolvedColumns);
+    }
+
     private static boolean containsDynamicColunns(List<XmlFlattenerSpecColumn> cols)
     {
         for(XmlFlattenerSpecColumn col : cols)
         {
-            if(col.getType().equals(XmlFlattenerSourceType.dynAttribute))
+            if(col.getType().isDynamic())
             {
                 return true;
             }
@@ -234,6 +428,21 @@ class FlattenerListItem implements Closeable
         return csvRowsWritten.get();
     }
 
+    public long getDuplicateRowsSkipped()
+    {
+        return duplicateRowsSkipped.get();
+    }
+
+    public List<String> getDedupeOn()
+    {
+        return dedupeOn;
+    }
+
+    public List<String> getSortBy()
+    {
+        return sortBy;
+    }
+
     public Boolean getMatchesExistingTable()
     {
         if (matchesExistingTable == null) return false;
@@ -250,6 +459,14 @@ class FlattenerListItem implements Closeable
         return outputCSVFile;
     }
 
+    /**
+     * @return the containers set up by {@link #setUpCSVPrinterAndContainers(Path)} - or null if they are not set up
+     */
+    List<LayerRowsContainer> getContainers()
+    {
+        return containers;
+    }
+
     static void preProcessRow( ParameterBag paramBag,
                                List<LayerRowsContainer> containers)
     {
@@ -262,8 +479,7 @@ class FlattenerListItem implements Closeable
     static int processRow(ParameterBag paramBag,
                           List<XmlFlattenerSpecColumn> allColumns,
                           List<LayerRowsContainer> containers,
-                          CSVPrinter csvPrinterParam,
-                          AtomicLong csvRowsWritten)
+                          LayerRow.ValuesWriter writer)
     {
         for(LayerRowsContainer c : containers)
         {
@@ -274,9 +490,7 @@ class FlattenerListItem implements Closeable
         try
         {
             final List<LayerRow> rows = LayerRowsContainer.mergeLayerRows(containers);
-            int rowsWritten = LayerRow.writeToCSV(allColumns, rows, csvPrinterParam);
-            csvRowsWritten.addAndGet(rowsWritten);
-            return rowsWritten;
+            return LayerRow.write(allColumns, rows, writer);
         } catch (IOException e)
         {
             String msg = "Encountered an IO Exception attempting to Write to the file: " + e;
@@ -301,13 +515,113 @@ class FlattenerListItem implements Closeable
 
     synchronized void setUpCSVPrinterAndContainers(Path rootPath) throws IOException
     {
-        if (containers != null || csvPrinter != null)
+        setUpCSVPrinterAndContainers(rootPath, null);
+    }
+
+    /**
+     * @param rollSuffix if set, this is added to the name of the output file - see {@link #rollCSVPrinter(Path, String)}
+     */
+    synchronized void setUpCSVPrinterAndContainers(Path rootPath, String rollSuffix) throws IOException
+    {
+        if (containers != null || csvWriter != null)
         {
             throw new RuntimeException("You have already set up the containers and CSV file for " + getMapName() + " - you cannot do so again!");
         }
 
-        outputCSVFile = rootPath.resolve(getOutputPath());
-        matchingDatabaseTable = outputCSVFile.getFileName().toString().replace(".csv", "");
+        containers = XmlFlattener.createLevelRowContainers(this, true);
+        columnNames = LayerRowsContainer.getColumnNames(containers);
+        allColumns = LayerRowsContainer.getColumns(containers);
+        ___setUpDedupeIndex();
+        ___setUpSorter();
+        ___openCSVPrinter(rootPath, rollSuffix);
+        if (XMLFlattener_PropertyManager.XmlFlattener_WriterRingSlots > 0)
+        {
+            rowRing = new XmlRowRingBuffer(getMapName(), XMLFlattener_PropertyManager.XmlFlattener_WriterRingSlots, columnNames.size(), writeLock, this::___writeRow);
+        }
+    }
+
+    private void ___setUpDedupeIndex()
+    {
+        if (dedupeOn.isEmpty()) return;
+        final int[] indexes = new int[dedupeOn.size()];
+        for (int i = 0; i < indexes.length; i++)
+        {
+            indexes[i] = columnNames.indexOf(dedupeOn.get(i));
+            if (indexes[i] == -1)
+            {
+                throw new RuntimeException("The dedupeOn column - " + dedupeOn.get(i) + " - is not one of the columns of " + getMapName() + " : " + columnNames);
+            }
+        }
+        dedupeColumnIndexes = indexes;
+        dedupeIndex = new XmlRowHashIndex(getMapName());
+    }
+
+    private void ___setUpSorter()
+    {
+        if (sortBy.isEmpty()) return;
+        final int[] indexes = new int[sortBy.size()];
+        final XmlFlattenerDataType[] dataTypes = new XmlFlattenerDataType[sortBy.size()];
+        for (int i = 0; i < indexes.length; i++)
+        {
+            indexes[i] = columnNames.indexOf(sortBy.get(i));
+            if (indexes[i] == -1)
+            {
+                throw new RuntimeException("The sortBy column - " + sortBy.get(i) + " - is not one of the columns of " + getMapName() + " : " + columnNames);
+            }
+            dataTypes[i] = allColumns.get(indexes[i]).getDataType();
+        }
+        sorter = new XmlRowSorter(getMapName(), indexes, dataTypes);
+    }
+
+    /**
+     * Writes out the (sorted) rows held by the sorter - if the table is sorted.
+     */
+    private void ___writeSortedRows() throws IOException
+    {
+        if (sorter == null || csvWriter == null) return;
+        sorter.writeTo(csvWriter::writeRow);
+    }
+
+    private void ___closeDedupeIndex() throws IOException
+    {
+        if (dedupeIndex == null) return;
+        logger.info(mapName + " - skipped a total of " + duplicateRowsSkipped.get() + " duplicate row(s) on " + dedupeOn + " - the index of " + dedupeIndex.size() + " rows was held " + dedupeIndex.getTier());
+        dedupeIndex.close();
+        dedupeIndex = null;
+    }
+
+    /**
+     * Closes the current output file and continues with a new one - the name of the output file with the suffix added
+     * (ahead of the extension). Used by the watch mode, so that each rolling file is complete once it is closed.
+     */
+    synchronized void rollCSVPrinter(Path rootPath, String rollSuffix) throws IOException
+    {
+        if (containers == null || csvWriter == null)
+        {
+            throw new RuntimeException("You cannot roll the CSV file as you have not successfully run : setUpCSVPrinterAndContainers() for - " + getMapName());
+        }
+        ___drainRowRing();
+        synchronized (writeLock)
+        {
+            ___writeSortedRows();
+            csvWriter.close();
+            ___openCSVPrinter(rootPath, rollSuffix);
+        }
+    }
+
+    synchronized void flushCSVPrinter() throws IOException
+    {
+        ___drainRowRing();
+        synchronized (writeLock)
+        {
+            if (csvWriter != null) csvWriter.flush();
+        }
+    }
+
+    private void ___openCSVPrinter(Path rootPath, String rollSuffix) throws IOException
+    {
+        outputCSVFile = rootPath.resolve(rollSuffix == null ? getOutputPath() : ___rolledPath(getOutputPath(), rollSuffix));
+        matchingDatabaseTable = rootPath.resolve(getOutputPath()).getFileName().toString().replace(".csv", "");
         final Path csvPattern = outputCSVFile.getParent();
         try
         {
@@ -317,16 +631,21 @@ class FlattenerListItem implements Closeable
             throw new RuntimeException("Create a new directory : " + csvPattern.toAbsolutePath());
         }
 
-        containers = XmlFlattener.createLevelRowContainers(this, true);
-        columnNames = LayerRowsContainer.getColumnNames(containers);
-        allColumns = LayerRowsContainer.getColumns(containers);
-        csvPrinter = new CSVPrinter(Files.newBufferedWriter(outputCSVFile), CSVFormat.EXCEL);
-        writeCSVHeaders(csvPrinter, columnNames);
+        csvWriter = XmlCsvWriter.open(outputCSVFile);
+        writeCSVHeaders(csvWriter, columnNames);
+    }
+
+    private static String ___rolledPath(String outputPath, String rollSuffix)
+    {
+        final int dot = outputPath.lastIndexOf('.');
+        final int slash = Math.max(outputPath.lastIndexOf('/'), outputPath.lastIndexOf('\\'));
+        if (dot <= slash) return outputPath + "-" + rollSuffix;
+        return outputPath.substring(0, dot) + "-" + rollSuffix + outputPath.substring(dot);
     }
 
-    private void writeCSVHeaders(CSVPrinter csvPrinter, List<String> columnNames) throws IOException
+    private void writeCSVHeaders(XmlCsvWriter csvWriter, List<String> columnNames) throws IOException
     {
-        csvPrinter.printRecord(columnNames);
+        csvWriter.writeRow(columnNames);
     }
 
     void setParent(XmlFlattenerSpec parent)
@@ -334,6 +653,60 @@ class FlattenerListItem implements Closeable
         this.parent = parent;
     }
 
+    /**
+     * Clears down the CSV printer, containers and (resolved) dynamic columns of the previous run.
+     */
+    synchronized void reset()
+    {
+        try
+        {
+            ___closeRowRing();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Unable to write out the rows of the previous run for " + getMapName() + " - " + e, e);
+        }
+        if (csvWriter != null)
+        {
+            try
+            {
+                csvWriter.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Unable to close the CSV printer of the previous run for " + getMapName() + " - " + e, e);
+            }
+        }
+        csvWriter = null;
+        try
+        {
+            ___closeDedupeIndex();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Unable to close the dedupe index of the previous run for " + getMapName() + " - " + e, e);
+        }
+        dedupeColumnIndexes = null;
+        if (sorter != null) sorter.close();
+        sorter = null;
+        containers = null;
+        preprocess_containers = null;
+        columnNames = null;
+        allColumns = null;
+        matchesExistingTable = null;
+        matchingDatabaseTable = null;
+        outputCSVFile = null;
+        xmlsProcessed.set(0);
+        csvRowsWritten.set(0);
+        processDocumentDurations.set(0);
+        duplicateRowsSkipped.set(0);
+
+        for (XmlFlattenerSpecColumn col : LayerRowsContainer.getColumns(XmlFlattener.createLevelRowContainers(this, false)))
+        {
+            col.reset();
+        }
+    }
+
     public XmlFlattenerSpec getParent()
     {
         return parent;
@@ -367,13 +740,48 @@ class FlattenerListItem implements Closeable
     @Override
     public void close() throws IOException
     {
-        if (csvPrinter != null) csvPrinter.close(true);
+        //the writer thread failures come out of closing the ring - the sorter, the file and the index are still closed
+        try
+        {
+            ___closeRowRing();
+            ___writeSortedRows();
+        }
+        finally
+        {
+            try
+            {
+                if (sorter != null) sorter.close();
+            }
+            finally
+            {
+                try
+                {
+                    if (csvWriter != null) csvWriter.close();
+                }
+                finally
+                {
+                    ___closeDedupeIndex();
+                }
+            }
+        }
+        if (allColumns == null) return;
+        for (XmlFlattenerSpecColumn col : allColumns)
+        {
+            if (col.getInvalidValueCount() > 0)
+            {
+                logger.warn(mapName + " - the column " + col.getColumnName() + " had a total of " + col.getInvalidValueCount() + " invalid " + col.getDataType() + " value(s) - written out as empty values.");
+            }
+        }
     }
 }
 
 class XmlFlattenerExplodeItem
 {
+    private static final Logger logger = Logger.getLogger(XmlFlattenerExplodeItem.class);
+    private static final AtomicInteger nextLineageKey = new AtomicInteger();
+
     private final Optional<XmlFlattenerExplodeItem> parent;
+    private final int lineageKey;
     private final List<XmlFlattenerSpecColumn> allColumns;
     private final List<XmlFlattenerExplodeItem> allExplodeItems;
 
@@ -381,8 +789,10 @@ class XmlFlattenerExplodeItem
 
     private final String name;
     private final String source;
-    private final XPathExpression xPathExpression;
+    private final ThreadLocal<XPathExpression> xPathExpression;
+    private final Optional<XmlTreePath> treePath;
     private final OptionalInt circuitBreaker;
+    private final XmlNamespaceBindings namespaces;
 
     public static XmlFlattenerExplodeItem create(int level,
                                                  Optional<XmlFlattenerExplodeItem> parent,
@@ -390,29 +800,43 @@ class XmlFlattenerExplodeItem
                                                  String source,
                                                  OptionalInt circuitBreaker)
     {
-    return new XmlFlattenerExplodeItem(level, parent, name, source, circuitBreaker);
+    return new XmlFlattenerExplodeItem(level, parent, name, source, circuitBreaker, XmlNamespaceBindings.NONE);
+    }
+
+    static XmlFlattenerExplodeItem create(int level,
+                                          Optional<XmlFlattenerExplodeItem> parent,
+                                          String name,
+                                          String source,
+                                          OptionalInt circuitBreaker,
+                                          XmlNamespaceBindings namespaces)
+    {
+        return new XmlFlattenerExplodeItem(level, parent, name, source, circuitBreaker, namespaces);
     }
 
     private XmlFlattenerExplodeItem(int level,
                                     Optional<XmlFlattenerExplodeItem> parent,
                                     String name,
                                     String source,
-                                    OptionalInt circuitBreaker)
+                                    OptionalInt circuitBreaker,
+                                    XmlNamespaceBindings namespaces)
     {
         this.level = level;
         this.parent = parent;
+        this.lineageKey = nextLineageKey.getAndIncrement();
         this.name = name;
         this.source = source;
         this.circuitBreaker = circuitBreaker;
+        this.namespaces = namespaces;
 
         try
         {
-            xPathExpression = XmlFlattenerSpec.xPath.compile(source);
+            xPathExpression = namespaces.compilePerThread(source);
         }
         catch (XPathExpressionException e)
         {
             throw new RuntimeException("The XPath specified for the explodeitem - " + name + " is not valid.  Your expression was: " + source + " - error was: " + e, e);
         }
+        treePath = XmlTreePath.compile(source, namespaces).filter(XmlTreePath::selectsElements);
 
         allColumns = new ArrayList<>();
         allExplodeItems = new ArrayList<>();
@@ -443,9 +867,91 @@ class XmlFlattenerExplodeItem
         return source;
     }
 
+    /**
+     * @return the expression compiled for the calling thread
+     */
     public XPathExpression getXpathExpression()
     {
-        return xPathExpression;
+        return xPathExpression.get();
+    }
+
+    /**
+     * @return the namespace prefixes bound by the spec - which the expression was compiled with
+     */
+    XmlNamespaceBindings getNamespaces()
+    {
+        return namespaces;
+    }
+
+    public Optional<XmlTreePath> getTreePath()
+    {
+        return treePath;
+    }
+
+    /**
+     * Resolve the elements this item explodes into, underneath the context node of the document tree.
+     */
+    public int[] resolveNodes(final ParameterBag parameterBag, final int contextNode)
+    {
+        if (treePath.isPresent() == true)
+        {
+            return treePath.get().selectElements(parameterBag.getDocumentTree(), contextNode, circuitBreaker, name);
+        }
+        try
+        {
+            return parameterBag.evaluateElements(xPathExpression.get(), contextNode, namespaces.isEmpty() == false);
+        }
+        catch (XPathExpressionException xe)
+        {
+            throw new RuntimeException("Unable to parse XPath against nodeset for : " + this + " | " + xe, xe);
+        }
+        catch (OutOfMemoryError oome)
+        {
+            String msg = "Encountered and OOME while attempting to evaluate the XPath  "
+                    + "[expression=" + source + "][subjectExplodeItem_Name=" + name + ",level=" + level + "]- Aborted.  " + oome
+                    + "\n There is not much we can do.  Please try another XPath.";
+            logger.error(msg, oome);
+            throw oome;
+        }
+    }
+
+    /**
+     * Resolve this item's nodes through its whole lineage - each of the parent explode items in turn, from the
+     * document root down.
+     *
+     * The node lists are cached against the document - so each level is only resolved once per document, no
+     * matter how many containers / columns sit underneath it - and each level is built from its parent's cached
+     * node lists rather than from the document root.
+     *
+     * @return one node list for each node of the parent item (or a single list for a top level item)
+     */
+    public List<int[]> resolveLineageNodeLists(final ParameterBag parameterBag)
+    {
+        final List<int[]> cached = parameterBag.getCachedExplodeNodeLists(lineageKey);
+        if (cached != null)
+        {
+            return cached;
+        }
+        //resolved ahead of (rather than inside) the computation, as the cache cannot be updated recursively
+        final Optional<List<int[]>> parentNodeLists = parent.map(p -> p.resolveLineageNodeLists(parameterBag));
+        return parameterBag.getExplodeNodeLists(lineageKey, () -> ___resolveNodeLists(parameterBag, parentNodeLists));
+    }
+
+    private List<int[]> ___resolveNodeLists(final ParameterBag parameterBag, final Optional<List<int[]>> parentNodeLists)
+    {
+        if (parentNodeLists.isPresent() == false)
+        {
+            return Collections.singletonList(resolveNodes(parameterBag, XmlDocumentTree.DOCUMENT_NODE));
+        }
+        final List<int[]> nodeLists = new ArrayList<>();
+        for (int[] parentNodes : parentNodeLists.get())
+        {
+            for (int node : parentNodes)
+            {
+                nodeLists.add(resolveNodes(parameterBag, node));
+            }
+        }
+        return Collections.unmodifiableList(nodeLists);
     }
 
     public List<XmlFlattenerSpecColumn> getAllColumns()
@@ -477,7 +983,7 @@ class XmlFlattenerExplodeItem
 
     @Override public String toString()
     {
-        return "XmlFlattenerExplodeItem{" + "level=" + level + ", name='" + name + '\'' + ", source='" + source + '\'' + ", xPathExpression=" + xPathExpression + ", circuitBreaker=" + circuitBreaker + '}';
+        return "XmlFlattenerExplodeItem{" + "level=" + level + ", name='" + name + '\'' + ", source='" + source + '\'' + ", xPathExpression=" + xPathExpression.get() + ", circuitBreaker=" + circuitBreaker + '}';
     }
 }
 
@@ -493,33 +999,52 @@ class XmlFlattenerSpecColumn implements Comparable<XmlFlattenerSpecColumn>
     private final int level;
 
     private final Optional<String> attributeFilter;
-    private final Optional<XPathExpression> xpathExpression;
-    private final Optional<Pattern> regexOfAttributes;
+    private final XmlNamespaceBindings namespaces;
+    private final Optional<ThreadLocal<XPathExpression>> xpathExpression;
+    private final Optional<XmlTreePath> treePath;
+    private final Optional<Pattern> regexOfNames;
+    private final XmlTypedValueConverter typedValueConverter;
+    private final AtomicLong invalidValueCount;
 
     private final Map<String , XmlFlattenerSpecColumn> resolvedColumns;
 
-    public void addResolvedColumns(Element element)
+    /**
+     * Adds a resolved column for each of the attributes (dynAttribute) or child elements (dynElement) of the element
+     * whose name matches the filter - and that has not been resolved already.
+     */
+    public void addResolvedColumns(XmlDocumentTree tree, int element)
     {
-        if(regexOfAttributes.isPresent() == false)
+        if(regexOfNames.isPresent() == false)
         {
             throw new IllegalArgumentException("You cannot add Resolved Columns - as this column type is not dynamic");
         }
 
-        final NamedNodeMap allAttributes = element.getAttributes();
-        int length = allAttributes.getLength();
-        for (int i = 0; i < length; i++)
+        if(type == XmlFlattenerSourceType.dynElement)
         {
-            Attr attr = (Attr)allAttributes.item(i);
-            String name = attr.getName();
-            if(resolvedColumns.containsKey(name))
+            for (int child = tree.getFirstChildElement(element); child != XmlDocumentTree.NONE; child = tree.getNextSiblingElement(child))
             {
-                continue;
+                ___addResolvedColumn(tree.getName(child));
             }
+            return;
+        }
 
-            if(regexOfAttributes.get().matcher(name).matches() == true)
-            {
-                resolvedColumns.put(name, createResolvedClone(name));
-            }
+        int length = tree.getAttributeCount(element);
+        for (int i = 0; i < length; i++)
+        {
+            ___addResolvedColumn(tree.getAttributeName(element, i));
+        }
+    }
+
+    private void ___addResolvedColumn(String name)
+    {
+        if(resolvedColumns.containsKey(name))
+        {
+            return;
+        }
+
+        if(regexOfNames.get().matcher(name).matches() == true)
+        {
+            resolvedColumns.putIfAbsent(name, createResolvedClone(name));
         }
     }
 
@@ -528,6 +1053,16 @@ class XmlFlattenerSpecColumn implements Comparable<XmlFlattenerSpecColumn>
         return resolvedColumns.values();
     }
 
+    Set<String> getResolvedColumnNames()
+    {
+        return new HashSet<>(resolvedColumns.keySet());
+    }
+
+    void retainResolvedColumns(Set<String> names)
+    {
+        resolvedColumns.keySet().retainAll(names);
+    }
+
     private XmlFlattenerSpecColumn createResolvedClone(String name)
     {
         try
@@ -537,24 +1072,46 @@ class XmlFlattenerSpecColumn implements Comparable<XmlFlattenerSpecColumn>
                                               parent,
                                               columnName + "_" + name,
                                               XmlFlattenerSourceType.xpath,
-                                              source.trim().equals("") ? source + "@" + name : source + "/@" + name,
-                                              attributeFilter);
+                                              ___resolvedSource(name),
+                                              attributeFilter,
+                                              typedValueConverter.getDataType(),
+                                              namespaces);
         }
         catch (XPathExpressionException e)
         {
-            throw new RuntimeException("Unable to create expanded XPath for Attribute : " + name + " - " + e, e);
+            throw new RuntimeException("Unable to create expanded XPath for " + (type == XmlFlattenerSourceType.dynElement ? "Element" : "Attribute") + " : " + name + " - " + e, e);
         }
     }
 
+    private String ___resolvedSource(String name)
+    {
+        final String step = type == XmlFlattenerSourceType.dynElement ? name : "@" + name;
+        return source.trim().equals("") ? source + step : source + "/" + step;
+    }
+
     public static XmlFlattenerSpecColumn create(int level,
                                                 int overallOrder,
                                                 Optional<XmlFlattenerExplodeItem> parent,
                                                 String columnName,
                                                 XmlFlattenerSourceType type,
                                                 String source,
-                                                Optional<String> attributeFilter) throws XPathExpressionException
+                                                Optional<String> attributeFilter,
+                                                XmlFlattenerDataType dataType) throws XPathExpressionException
     {
-        return new XmlFlattenerSpecColumn(level, overallOrder, parent, columnName, type, source, attributeFilter);
+        return new XmlFlattenerSpecColumn(level, overallOrder, parent, columnName, type, source, attributeFilter, dataType, XmlNamespaceBindings.NONE);
+    }
+
+    static XmlFlattenerSpecColumn create(int level,
+                                         int overallOrder,
+                                         Optional<XmlFlattenerExplodeItem> parent,
+                                         String columnName,
+                                         XmlFlattenerSourceType type,
+                                         String source,
+                                         Optional<String> attributeFilter,
+                                         XmlFlattenerDataType dataType,
+                                         XmlNamespaceBindings namespaces) throws XPathExpressionException
+    {
+        return new XmlFlattenerSpecColumn(level, overallOrder, parent, columnName, type, source, attributeFilter, dataType, namespaces);
     }
 
     private XmlFlattenerSpecColumn(int level,
@@ -563,7 +1120,9 @@ class XmlFlattenerSpecColumn implements Comparable<XmlFlattenerSpecColumn>
                                    String columnName,
                                    XmlFlattenerSourceType type,
                                    String source,
-                                   Optional<String> attributeFilterP) throws XPathExpressionException
+                                   Optional<String> attributeFilterP,
+                                   XmlFlattenerDataType dataType,
+                                   XmlNamespaceBindings namespaces) throws XPathExpressionException
     {
         this.parent = parent;
         this.level = level;
@@ -573,25 +1132,32 @@ class XmlFlattenerSpecColumn implements Comparable<XmlFlattenerSpecColumn>
         this.source = source;
         this.resolvedColumns = new ConcurrentHashMap<>();
         this.attributeFilter = attributeFilterP;
+        this.namespaces = namespaces;
+        this.typedValueConverter = new XmlTypedValueConverter(dataType);
+        this.invalidValueCount = new AtomicLong();
 
         if (type == XmlFlattenerSourceType.xpath)
         {
-            regexOfAttributes = Optional.empty();
+            regexOfNames = Optional.empty();
             try
             {
-                xpathExpression = Optional.of(XmlFlattenerSpec.xPath.compile(source));
+                xpathExpression = Optional.of(namespaces.compilePerThread(source));
             }
             catch (XPathExpressionException e)
             {
                 throw new RuntimeException("The Xpath specified for column - " + columnName + " - is not valid.  Your expression was - " + source + " - error was : " + e, e);
             }
         }
-        else if(type == XmlFlattenerSourceType.dynAttribute)
+        else if(type.isDynamic())
         {
-            regexOfAttributes = Optional.of(Pattern.compile(attributeFilter.get()));
+            if(attributeFilter.isPresent() == false)
+            {
+                throw new RuntimeException("The " + type + " column - " + columnName + " - must specify the " + (type == XmlFlattenerSourceType.dynElement ? "elementFilter" : "attributeFilter") + " regex of the names it resolves to columns");
+            }
+            regexOfNames = Optional.of(Pattern.compile(attributeFilter.get()));
             try
             {
-                xpathExpression = Optional.of(XmlFlattenerSpec.xPath.compile(source));
+                xpathExpression = Optional.of(namespaces.compilePerThread(source));
             }
             catch (XPathExpressionException e)
             {
@@ -601,8 +1167,9 @@ class XmlFlattenerSpecColumn implements Comparable<XmlFlattenerSpecColumn>
         else
         {
             xpathExpression = Optional.empty();
-            regexOfAttributes = Optional.empty();
+            regexOfNames = Optional.empty();
         }
+        treePath = xpathExpression.isPresent() ? XmlTreePath.compile(source, namespaces) : Optional.empty();
     }
 
     public String getColumnName()
@@ -631,263 +1198,160 @@ class XmlFlattenerSpecColumn implements Comparable<XmlFlattenerSpecColumn>
         return parent;
     }
 
-    public int getOverallOrder()
+    public XmlFlattenerDataType getDataType()
     {
-        return getOverallOrder();
-    }
-
-    public int getLevel()
-    {
-        return getLevel();
-    }
-
-    public Optional<XPathExpression> getXpathExpression()
-    {
-        return xpathExpression;
-    }
-
-    @Override
-    public boolean equals(Object o)
-    {
-        if (this == o)
-            return true;
-        if (o == null || getClass() != o.getClass())
-            return false;
-        XmlFlattenerSpecColumn that = (XmlFlattenerSpecColumn) o;
-        return Objects.equals(columnName, that.columnName) && type == that.type && Objects.equals(source, that.source);
-    }
-
-    @Override
-    public int hashCode()
-    {
-        return Objects.hash(columnName, type, source);
-    }
-
-    @Override
-    public int compareTo(XmlFlattenerSpecColumn o)
-    {
-        if (overallOrder > o.overallOrder)
-        {
-            return 1;
-        }
-        if (overallOrder < o.overallOrder)
-        {
-            return -1;
-        }
-        return columnName.compareTo(o.columnName);
+        return typedValueConverter.getDataType();
     }
 
-    public List<NodeList> getRecursiveParentNodeList(final ParameterBag parameterBag)
+    /**
+     * @return the number of values that were not valid for the data type of the column
+     */
+    public long getInvalidValueCount()
     {
-        final List<NodeList> fullList = new ArrayList<>();
-        final List<XmlFlattenerExplodeItem> lineage = new ArrayList<>();
-        Optional<XmlFlattenerExplodeItem> parentItem = getParent();
-        if (parentItem.isPresent() == false)
-        {
-            throw new IllegalArgumentException("You cannot get the recursive parent node list for a column that does not have a parent!");
-        }
-        do
-        {
-            XmlFlattenerExplodeItem p = parentItem.get();
-            lineage.add(p);
-            parentItem = p.getParent();
-        }
-        while (parentItem.isPresent() == true);
-
-        final XmlFlattenerExplodeItem deepestExplodeItem = lineage.get(0);
-        Collections.reverse(lineage); //working top down
-
-        final XmlFlattenerExplodeItem topExplodeItem = lineage.get(0);
-        final int index = 1;
-
-        try
-        {
-            final NodeList ndeList = ___recurseNodeListDown_evaluate(topExplodeItem,  topExplodeItem.getXpathExpression(),  parameterBag.getThreadSafeXmlDoc());
-            recurseNodeListDown(index, lineage, ndeList, fullList);
-        } catch (XPathExpressionException xe)
-        {
-            throw new RuntimeException("Unable to parse the xpath against root nodeset for : " + topExplodeItem + " | " + xe, xe);
-        }
-        return fullList;
+        return invalidValueCount.get();
     }
 
-    private List<Element> ___direct_node_resolve(final Node subject, final String elementMatchingName, final XmlFlattenerExplodeItem explodeItem)
+    /**
+     * Validate the value against the data type of the column, and convert it to the canonical form.
+     *
+     * Invalid values are either reported and written out as empty values - or, if
+     * XmlFlattener_FailOnInvalidTypedValue is set, fail the flatten.
+     */
+    public String toCanonicalValue(final String value)
     {
-        final List<Element> resultNodes = new ArrayList<>();
-        if (subject instanceof Element == false && subject instanceof Document == false) return resultNodes;
-
-        NodeList childNodes = null;
-        if (subject instanceof Document)
+        final String converted = typedValueConverter.convert(value);
+        if (converted != null)
         {
-            Document doc = (Document) subject;
-            childNodes = doc.getChildNodes();
+            return converted;
         }
-        if (subject instanceof Element)
+        final String report = "The value '" + value + "' of the column - " + columnName + " - is not a valid " + getDataType();
+        if (XMLFlattener_PropertyManager.XmlFlattener_FailOnInvalidTypedValue == true)
         {
-            Element el = (Element) subject;
-            childNodes = el.getChildNodes();
+            throw new IllegalArgumentException(report);
         }
-        final OptionalInt circuitBreaker = explodeItem.getCircuitBreaker();
-
-        for (int i = 0; i < childNodes.getLength(); i++)
+        if (invalidValueCount.incrementAndGet() <= XMLFlattener_PropertyManager.XmlFlattener_InvalidTypedValueReportLimit)
         {
-            if (circuitBreaker.isPresent() == true && i >= circuitBreaker.getAsInt())
-            {
-                s_log.warn("Invoking the Circuit Breaker for " + explodeItem.getName() + " - Total Item Count : " + i + ".  You may need to review your Exploded Items and the Expression : " + explodeItem.getSource() + ". Try flattening the levels it goes through instead.");
-                break;
-            }
-            final Node item = childNodes.item(i);
-            if (item instanceof Element)
-            {
-                Element e = (Element) item;
-                final String nodeName = e.getNodeName();
-                final String localName = nodeName.indexOf(":") != -1 ? nodeName.substring(nodeName.indexOf(":") + 1) : nodeName;
-                if (localName.equals(elementMatchingName) || nodeName.equals(elementMatchingName))
-                {
-                    resultNodes.add(e);
-                }
-            }
+            s_log.warn(report + " - writing an empty value instead.");
         }
-        return resultNodes;
+        return "";
     }
 
     /**
-     * See if we can use the single-level resolve for this item - effectively optimising the XPath
-     * resolution path;
-     *
-     * @param source
-     * @return
+     * @return the canonical form of the value - or null if it is not valid for the data type of the column (which,
+     *         unlike {@link #toCanonicalValue(String)}, is not reported)
      */
-    private boolean ___isSingleLevelResolve(String source)
+    String convertQuietly(final String value)
     {
-        return (source.indexOf('/') == -1 && source.contains("[") == false && source.contains("]") == false);
+        return typedValueConverter.convert(value);
     }
 
     /**
-     * See if we can use the two-level resolve for this item - effectively optimising the XPath
-     * resolution path;
-     *
-     * @param source
-     * @return
+     * Forget the resolved (dynamic) columns and the invalid value count of the previous run.
      */
-    private boolean ___isTwoLevelResolve(String source)
+    void reset()
     {
-        int index = source.indexOf('/');
-        if (index == -1) return false;
-        if (index == source.length() - 1) return false;
-
-        String val1 = source.substring(0, index);
-        String val2 = source.substring(index + 1, source.length());
-
-        return ___isSingleLevelResolve(val1) && ___isSingleLevelResolve(val2);
+        resolvedColumns.clear();
+        invalidValueCount.set(0);
     }
 
-    private NodeList ___recurseNodeListDown_evaluate_single_level_resolve(final XmlFlattenerExplodeItem subjectExplodeItem,
-                                                                          final XPathExpression xpathExpression,
-                                                                          final Node node) throws XPathExpressionException
+    public int getOverallOrder()
     {
-        final String source = subjectExplodeItem.getSource();
-        final List<Element> items = ___direct_node_resolve(node, source, subjectExplodeItem);
-        return new NodeListBasedOnList(items);
+        return getOverallOrder();
     }
 
-    private NodeList ___recurseNodeListDown_evaluate_two_level_resolve(final XmlFlattenerExplodeItem subjectExplodeItem,
-                                                                       final XPathExpression xpathExpression,
-                                                                       final Node node) throws XPathExpressionException
-
+    public int getLevel()
     {
-        final String source = subjectExplodeItem.getSource();
-        int index = source.indexOf('/');
-        String val1 = source.substring(0, index);
-        String val2 = source.substring(index + 1, source.length());
+        return getLevel();
+    }
 
-        final List<Element> overall = new ArrayList<>();
-        final List<Element> items = ___direct_node_resolve(node, val1, subjectExplodeItem);
-        for (Element e : items)
-        {
-            final List<Element> items2 = ___direct_node_resolve(e, val2, subjectExplodeItem);
-            overall.addAll(items2);
-        }
-        return new NodeListBasedOnList(overall);
+    /**
+     * @return the expression compiled for the calling thread - if the column has one
+     */
+    public Optional<XPathExpression> getXpathExpression()
+    {
+        return xpathExpression.map(ThreadLocal::get);
     }
 
-    private NodeList ___recurseNodeListDown_evaluate(final XmlFlattenerExplodeItem subjectExplodeItem,
-                                                     final XPathExpression xpathExpression,
-                                                     final Node node) throws XPathExpressionException
+    public Optional<XmlTreePath> getTreePath()
+    {
+        return treePath;
+    }
 
+    /**
+     * Evaluate the column expression to a string, against the node of the document tree.
+     */
+    public String evaluateString(final ParameterBag parameterBag, final int contextNode) throws XPathExpressionException
     {
-        if (___isSingleLevelResolve(subjectExplodeItem.getSource()) == true)
+        if (treePath.isPresent() == true)
         {
-            return ___recurseNodeListDown_evaluate_single_level_resolve(subjectExplodeItem, xpathExpression, node);
-        }
-        if (___isTwoLevelResolve(subjectExplodeItem.getSource()) == true)
-        {
-            return ___recurseNodeListDown_evaluate_two_level_resolve(subjectExplodeItem, xpathExpression, node);
+            return treePath.get().evaluateString(parameterBag.getDocumentTree(), contextNode);
         }
         try
         {
-            NodeList nodeList = (NodeList) xpathExpression.evaluate(node, XPathConstants.NODESET);
-            return nodeList;
-        } catch (OutOfMemoryError oome)
+            return parameterBag.evaluateString(xpathExpression.get().get(), contextNode, namespaces.isEmpty() == false);
+        }
+        catch(OutOfMemoryError oome)
         {
-            String msg = "Encountered and OOME while attempting to evaluate the XPath  "
-                    + "[expression=" + subjectExplodeItem.getSource() + "][subjectExplodeItem_Name=" + subjectExplodeItem.getName() + ",level=" + subjectExplodeItem.getLevel() + "]- Aborted.  " + oome
-                    + "\n There is not much we can do.  Please try another XPath.";
+            String msg = "Encountered an OOME while attempting to evaluate the XPath [col=" + columnName + ", source=" + source + ", level=" + level + "]...."+ oome
+                    + "\n Please tweak your XPATH.";
             s_log.error(msg, oome);
             throw oome;
         }
     }
 
-    private void recurseNodeListDown(final int indexOfList,
-                                     final List<XmlFlattenerExplodeItem> explodeItems,
-                                     final NodeList currentNodeList,
-                                     final List<NodeList> resultNodeList)
+    /**
+     * Evaluate the column expression to the elements it selects underneath the node of the document tree.
+     */
+    public int[] evaluateElements(final ParameterBag parameterBag, final int contextNode) throws XPathExpressionException
     {
-        if (indexOfList >= explodeItems.size())
+        if (treePath.isPresent() == true && treePath.get().selectsElements() == true)
         {
-            resultNodeList.add(currentNodeList);
-            return;
-        }
-        final XmlFlattenerExplodeItem subjectExplodeItem = explodeItems.get(indexOfList);
-
-        for (int i=0; i < currentNodeList.getLength(); i++)
-        {
-            Node node = currentNodeList.item(i);
-
-            try
-            {
-                final XPathExpression xpathExpression = subjectExplodeItem.getXpathExpression();
-                final NodeList nodeList = ___recurseNodeListDown_evaluate(subjectExplodeItem, xpathExpression, node);
-                {
-                    recurseNodeListDown(indexOfList + 1, explodeItems, nodeList, resultNodeList);
-                }
-            } catch (XPathExpressionException xe)
-            {
-                throw new RuntimeException("Unable to parse XPath against nodeset for : " + subjectExplodeItem + " | " + xe, xe);
-            }
+            return treePath.get().selectElements(parameterBag.getDocumentTree(), contextNode, OptionalInt.empty(), columnName);
         }
+        return parameterBag.evaluateElements(xpathExpression.get().get(), contextNode, namespaces.isEmpty() == false);
     }
-}
-
-class NodeListBasedOnList implements NodeList
-{
-    private final List<Element> elements;
 
-    public NodeListBasedOnList(List<Element> elementsP)
+    @Override
+    public boolean equals(Object o)
     {
-        elements = elementsP;
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        XmlFlattenerSpecColumn that = (XmlFlattenerSpecColumn) o;
+        return Objects.equals(columnName, that.columnName) && type == that.type && Objects.equals(source, that.source);
     }
 
     @Override
-    public Node item(int index)
+    public int hashCode()
     {
-        return elements.get(index);
+        return Objects.hash(columnName, type, source);
     }
 
     @Override
-    public int getLength()
+    public int compareTo(XmlFlattenerSpecColumn o)
     {
-        return elements.size();
+        if (overallOrder > o.overallOrder)
+        {
+            return 1;
+        }
+        if (overallOrder < o.overallOrder)
+        {
+            return -1;
+        }
+        return columnName.compareTo(o.columnName);
     }
 
+    /**
+     * @return the node lists of the parent explode item - one list per node of the grandparent item.
+     */
+    public List<int[]> getRecursiveParentNodeList(final ParameterBag parameterBag)
+    {
+        Optional<XmlFlattenerExplodeItem> parentItem = getParent();
+        if (parentItem.isPresent() == false)
+        {
+            throw new IllegalArgumentException("You cannot get the recursive parent node list for a column that does not have a parent!");
+        }
+        return parentItem.get().resolveLineageNodeLists(parameterBag);
+    }
 }
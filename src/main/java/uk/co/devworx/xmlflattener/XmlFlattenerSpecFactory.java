@@ -8,8 +8,10 @@ import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import javax.xml.xpath.XPathExpressionException;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -49,17 +51,67 @@ public class XmlFlattenerSpecFactory
 		}
 	}
 
+	static Yaml_Spec parseYamlSpec(Reader yaml)
+	{
+		try
+		{
+			return mapper.readValue(yaml, Yaml_Spec.class);
+		}
+		catch (JsonMappingException | JsonParseException e)
+		{
+			String msg = "Unable to read the mapping value from the spec : " + e;
+			logger.error(msg, e);
+			throw new RuntimeException(msg,e);
+		}
+		catch (IOException e)
+		{
+			String msg = "Unable to read the spec - " + e;
+			logger.error(msg, e);
+			throw new RuntimeException(msg,e);
+		}
+	}
+
 	public static Map<String, XmlFlattenerSpec> parse(Path yamlFile)
 	{
 		final Yaml_Spec yamlSpec = parseYamlSpec(yamlFile);
-		final Path inputPath = yamlFile.getParent().resolve(yamlSpec.getInputPath());
+		return parse(yamlSpec, yamlFile, yamlFile.getParent().resolve(yamlSpec.getInputPath()));
+	}
+
+	/**
+	 * Parses a spec that does not live in a file - e.g. one held by a service that flattens its documents with
+	 * {@link XmlFlattener#stream(XmlFlattenerSpec, java.util.stream.Stream)}. The (optional) inputPath is resolved
+	 * against the working directory.
+	 */
+	public static Map<String, XmlFlattenerSpec> parse(Reader yaml)
+	{
+		final Yaml_Spec yamlSpec = parseYamlSpec(yaml);
+		return parse(yamlSpec, null, yamlSpec.getInputPath() == null ? null : Paths.get(yamlSpec.getInputPath()));
+	}
+
+	private static Map<String, XmlFlattenerSpec> parse(final Yaml_Spec yamlSpec, final Path yamlFile, final Path inputPath)
+	{
+		final XmlInputFileFilter inputFilter = parseInputFilter(yamlSpec.getInputFilter());
+		if (yamlSpec.getMaxBrokenPercent() != null && (yamlSpec.getMaxBrokenPercent() < 0 || yamlSpec.getMaxBrokenPercent() > 100))
+		{
+			throw new RuntimeException("The maxBrokenPercent of the spec must be between 0 and 100 - not " + yamlSpec.getMaxBrokenPercent());
+		}
+		final OptionalDouble maxBrokenPercent = yamlSpec.getMaxBrokenPercent() == null ? OptionalDouble.empty() : OptionalDouble.of(yamlSpec.getMaxBrokenPercent());
+		final XmlNamespaceBindings namespaces;
+		try
+		{
+			namespaces = XmlNamespaceBindings.create(yamlSpec.getNamespaces());
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new RuntimeException("Invalid namespaces in the spec : " + e.getMessage());
+		}
 
 		final Map<String, XmlFlattenerSpec> results = new LinkedHashMap<>();
 		final AtomicInteger overallColumnOrderSeq = new AtomicInteger();
 
  		if (yamlSpec.getOutputTables() == null || yamlSpec.getOutputTables().isEmpty())
 		{
-			throw new RuntimeException("Your file : " + yamlFile.toAbsolutePath() + " - does not contain the top level field : " + "outputTables");
+			throw new RuntimeException("Your file : " + (yamlFile == null ? yamlSpec.getName() : yamlFile.toAbsolutePath()) + " - does not contain the top level field : " + "outputTables");
 		}
 
 		final List<Yaml_Spec_OutputTable> outputTables = yamlSpec.getOutputTables();
@@ -68,10 +120,16 @@ public class XmlFlattenerSpecFactory
 			final String name = outputTable.getName();
 			final Map<String, FlattenerListItem> mapListItems = new LinkedHashMap<>();
 
-			Objects.requireNonNull(outputTable.getOutputFile(), "You must specify an output table in your configuration");
+			if (yamlFile != null)
+			{
+				//the streamed specs do not write out a file
+				Objects.requireNonNull(outputTable.getOutputFile(), "You must specify an output table in your configuration");
+			}
 
 			final FlattenerListItem mli = FlattenerListItem.create(name,
-																   outputTable.getOutputFile());
+																   outputTable.getOutputFile(),
+																   outputTable.getDedupeOn() == null ? Collections.emptyList() : outputTable.getDedupeOn(),
+																   outputTable.getSortBy() == null ? Collections.emptyList() : outputTable.getSortBy());
 			mapListItems.put(mli.getMapName(), mli);
 
 			//Now the columns
@@ -90,13 +148,16 @@ public class XmlFlattenerSpecFactory
 										   overallColumnOrderSeq,
 										   yamlColumn,
 										   Optional.empty(),
+										   namespaces,
 										   allColumns, allExplodeItems);
 			}
 
 			results.put(name, new XmlFlattenerSpec(yamlFile,
 												   name,
 												   mapListItems,
-												   inputPath));
+												   inputPath,
+												   inputFilter,
+												   maxBrokenPercent));
 		}
 
 
@@ -131,16 +192,30 @@ public class XmlFlattenerSpecFactory
 	}
 
 
+	private static XmlInputFileFilter parseInputFilter(final Yaml_Spec_InputFilter filter)
+	{
+		if (filter == null)
+		{
+			return XmlInputFileFilter.acceptAllXml();
+		}
+		return XmlInputFileFilter.create(filter.getInclude(),
+										 filter.getExclude(),
+										 Optional.ofNullable(filter.getModifiedAfter()),
+										 filter.getMinSize() == null ? OptionalLong.empty() : OptionalLong.of(filter.getMinSize()),
+										 filter.getMaxSize() == null ? OptionalLong.empty() : OptionalLong.of(filter.getMaxSize()));
+	}
+
 	private static void parseColumnsAndExplodeItem(final int layer,
 												   final AtomicInteger overallColumnSeq,
 												   final Yaml_Spec_Column column,
 												   final Optional<XmlFlattenerExplodeItem> parent,
+												   final XmlNamespaceBindings namespaces,
 												   final List<XmlFlattenerSpecColumn> allColumns,
 										   		   final List<XmlFlattenerExplodeItem> allExplodeItems)
 	{
 		if (column.getExplode() == null || column.getExplode() == false)
 		{
-			XmlFlattenerSpecColumn col = parseColumnSpec(layer, overallColumnSeq, parent, column);
+			XmlFlattenerSpecColumn col = parseColumnSpec(layer, overallColumnSeq, parent, namespaces, column);
 			allColumns.add(col);
 		}
 		else
@@ -156,7 +231,8 @@ public class XmlFlattenerSpecFactory
 			final XmlFlattenerExplodeItem childItem = XmlFlattenerExplodeItem.create(layer + 1,
 																					 parent, explodeItemName,
 																					 explodeItemSource,
-																					 circuitBreaker);
+																					 circuitBreaker,
+																					 namespaces);
 
 			final List<XmlFlattenerSpecColumn> childAllColumns = childItem.getAllColumns();
 			final List<XmlFlattenerExplodeItem> childAllExplodes = childItem.getAllExplodeItems();
@@ -173,6 +249,7 @@ public class XmlFlattenerSpecFactory
 										   overallColumnSeq,
 										   yaml_spec_column,
 										   Optional.of(childItem),
+										   namespaces,
 										   childAllColumns,
 										   childAllExplodes);
 			}
@@ -185,13 +262,14 @@ public class XmlFlattenerSpecFactory
 	private static XmlFlattenerSpecColumn parseColumnSpec(final int level,
 														  final AtomicInteger overallColumnOrderSeq,
 														  final Optional<XmlFlattenerExplodeItem> parent,
+														  final XmlNamespaceBindings namespaces,
 														  final Yaml_Spec_Column column)
 	{
 		String columnName = column.getColumnName();
 		String sourceTypeStr = column.getSourceType();
 		String source = column.getSourceDef();
 
-		String attFilter = column.getAttributeFilter();
+		String attFilter = "dynElement".equals(sourceTypeStr) ? column.getElementFilter() : column.getAttributeFilter();
 
 		if (columnName == null)
 			throw new RuntimeException("You have a missing column name in the json node : " + column);
@@ -200,6 +278,16 @@ public class XmlFlattenerSpecFactory
 		if (source == null)
 			throw new RuntimeException("You have a missing source in teh json node : " + column);
 
+		final XmlFlattenerDataType dataType;
+		try
+		{
+			dataType = XmlFlattenerDataType.fromSpec(column.getDataType());
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new RuntimeException("Invalid dataType for the column " + columnName + " : " + e.getMessage());
+		}
+
 		try
 		{
 			XmlFlattenerSourceType sourceType = XmlFlattenerSourceType.valueOf(sourceTypeStr);
@@ -209,7 +297,9 @@ public class XmlFlattenerSpecFactory
 												 columnName,
 												 sourceType,
 												 source,
-												 Optional.ofNullable(attFilter));
+												 Optional.ofNullable(attFilter),
+												 dataType,
+												 namespaces);
 		}
 		catch (IllegalArgumentException | XPathExpressionException e)
 		{
@@ -227,6 +317,9 @@ class Yaml_Spec
 	private String name;
 	private List<Yaml_Spec_OutputTable> outputTables;
 	private String inputPath;
+	private Yaml_Spec_InputFilter inputFilter;
+	private Map<String, String> namespaces;
+	private Double maxBrokenPercent;
 
 	public String getName()
 	{
@@ -257,6 +350,95 @@ class Yaml_Spec
 	{
 		this.inputPath = inputPath;
 	}
+
+	public Yaml_Spec_InputFilter getInputFilter()
+	{
+		return inputFilter;
+	}
+
+	public void setInputFilter(Yaml_Spec_InputFilter inputFilter)
+	{
+		this.inputFilter = inputFilter;
+	}
+
+	public Map<String, String> getNamespaces()
+	{
+		return namespaces;
+	}
+
+	public void setNamespaces(Map<String, String> namespaces)
+	{
+		this.namespaces = namespaces;
+	}
+
+	public Double getMaxBrokenPercent()
+	{
+		return maxBrokenPercent;
+	}
+
+	public void setMaxBrokenPercent(Double maxBrokenPercent)
+	{
+		this.maxBrokenPercent = maxBrokenPercent;
+	}
+}
+
+class Yaml_Spec_InputFilter
+{
+	private List<String> include;
+	private List<String> exclude;
+	private String modifiedAfter;
+	private Long minSize;
+	private Long maxSize;
+
+	public List<String> getInclude()
+	{
+		return include;
+	}
+
+	public void setInclude(List<String> include)
+	{
+		this.include = include;
+	}
+
+	public List<String> getExclude()
+	{
+		return exclude;
+	}
+
+	public void setExclude(List<String> exclude)
+	{
+		this.exclude = exclude;
+	}
+
+	public String getModifiedAfter()
+	{
+		return modifiedAfter;
+	}
+
+	public void setModifiedAfter(String modifiedAfter)
+	{
+		this.modifiedAfter = modifiedAfter;
+	}
+
+	public Long getMinSize()
+	{
+		return minSize;
+	}
+
+	public void setMinSize(Long minSize)
+	{
+		this.minSize = minSize;
+	}
+
+	public Long getMaxSize()
+	{
+		return maxSize;
+	}
+
+	public void setMaxSize(Long maxSize)
+	{
+		this.maxSize = maxSize;
+	}
 }
 
 
@@ -264,6 +446,8 @@ class Yaml_Spec_OutputTable
 {
 	private String name;
 	private String outputFile;
+	private List<String> dedupeOn;
+	private List<String> sortBy;
 	private List<Yaml_Spec_Column> definition;
 
 	public String getName()
@@ -288,6 +472,26 @@ class Yaml_Spec_OutputTable
 
 
 
+	public List<String> getDedupeOn()
+	{
+		return dedupeOn;
+	}
+
+	public void setDedupeOn(List<String> dedupeOn)
+	{
+		this.dedupeOn = dedupeOn;
+	}
+
+	public List<String> getSortBy()
+	{
+		return sortBy;
+	}
+
+	public void setSortBy(List<String> sortBy)
+	{
+		this.sortBy = sortBy;
+	}
+
 	public List<Yaml_Spec_Column> getDefinition()
 	{
 		return definition;
@@ -305,6 +509,8 @@ class Yaml_Spec_Column
 	private String sourceType;
 	private String sourceDef;
 	private String attributeFilter;
+	private String elementFilter;
+	private String dataType;
 	private Boolean explode;
 	private List<Yaml_Spec_Column> repeatingList;
 	private Integer circuitBreaker;
@@ -378,6 +584,26 @@ class Yaml_Spec_Column
 	{
 		this.attributeFilter = attributeFilter;
 	}
+
+	public String getElementFilter()
+	{
+		return elementFilter;
+	}
+
+	public void setElementFilter(String elementFilter)
+	{
+		this.elementFilter = elementFilter;
+	}
+
+	public String getDataType()
+	{
+		return dataType;
+	}
+
+	public void setDataType(String dataType)
+	{
+		this.dataType = dataType;
+	}
 }
 
 
@@ -0,0 +1,378 @@
+package uk.co.devworx.xmlflattener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.sql.Timestamp;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Continuously flattens the new files that arrive in the input path(s) of the specs - the --watch mode of the
+ * {@link XmlFlattenerRunner}.
+ *
+ * The input directories are watched with a {@link WatchService} (or simply polled, if that is not available - or
+ * XmlFlattener_WatchPolling is set). Each change triggers a re-scan of the input directory with the usual input
+ * filter. A file is only flattened once its size and modified time have stayed the same for at least
+ * XmlFlattener_WatchPollMillis - so the files that are still being written are skipped until they are complete. With
+ * the watch service, the scans are triggered by any change in the tree and can be just milliseconds apart, so it is
+ * the time the file has been quiet for that counts - not the number of scans that have seen it.
+ *
+ * The rows are appended to rolling output files (the output file name, suffixed with the time the file was started),
+ * which are flushed after XmlFlattener_WatchFlushRows rows or XmlFlattener_WatchFlushMillis - and rolled over after
+ * XmlFlattener_WatchRollRows rows or XmlFlattener_WatchRollMillis.
+ *
+ * The dynamic columns are resolved from the files that are present when the watch starts - as the columns of the
+ * output files are then fixed, any new dynamic columns in the later files are not picked up.
+ */
+public class XmlFlattenerWatcher implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(XmlFlattenerWatcher.class);
+    private static final DateTimeFormatter ROLL_SUFFIX_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private final List<WatchedSpec> watchedSpecs;
+    private final WatchService watchService;
+    private final CountDownLatch stopped;
+
+    private volatile boolean closed;
+    private volatile boolean running;
+    private boolean outputsClosed;
+
+    private Timestamp batchTime;
+    private String lastRollSuffix;
+    private long rowsAtLastFlush;
+    private long lastFlushTime;
+    private long rowsAtLastRoll;
+    private long lastRollTime;
+
+    public XmlFlattenerWatcher(Map<String, XmlFlattenerSpec> specs) throws IOException
+    {
+        this(specs, XMLFlattener_PropertyManager.XmlFlattener_WatchPolling);
+    }
+
+    XmlFlattenerWatcher(Map<String, XmlFlattenerSpec> specs, boolean usePolling) throws IOException
+    {
+        this.watchedSpecs = new ArrayList<>();
+        this.stopped = new CountDownLatch(1);
+        this.watchService = usePolling ? null : ___newWatchService();
+
+        final long now = System.currentTimeMillis();
+        batchTime = new Timestamp(now);
+        final String rollSuffix = ___rollSuffix(now);
+
+        for (XmlFlattenerSpec spec : specs.values())
+        {
+            if (spec.getSpecListItems().values().stream().anyMatch(FlattenerListItem::containsDynamicColunns))
+            {
+                logger.info("The spec - " + spec.getName() + " - has dynamic columns. These are resolved from the files already in the input path - any new ones in later files are ignored.");
+            }
+            XmlFlattener.fullyResolveDynamicColumns(batchTime, spec);
+
+            for (FlattenerListItem m : spec.getSpecListItems().values())
+            {
+                m.setUpCSVPrinterAndContainers(spec.getRootPath(), rollSuffix);
+                m.setMatchesExistingTable(false);
+            }
+
+            final WatchedSpec watched = new WatchedSpec(spec);
+            watchedSpecs.add(watched);
+            if (watchService != null) ___register(watched.inputDirectory);
+        }
+
+        lastRollSuffix = rollSuffix;
+        lastFlushTime = now;
+        lastRollTime = now;
+    }
+
+    private static WatchService ___newWatchService()
+    {
+        try
+        {
+            return FileSystems.getDefault().newWatchService();
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            logger.warn("Unable to create a watch service - falling back to polling the input directories : " + e);
+            return null;
+        }
+    }
+
+    private void ___register(Path directory) throws IOException
+    {
+        try (Stream<Path> dirs = Files.walk(directory))
+        {
+            final Iterator<Path> it = dirs.filter(Files::isDirectory).iterator();
+            while (it.hasNext())
+            {
+                it.next().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+    }
+
+    /**
+     * Watches (and flattens) until closed.
+     */
+    public void run() throws IOException
+    {
+        running = true;
+        logger.info("Watching for new files - " + (watchService == null ? "polling" : "with a watch service") + " every " + XMLFlattener_PropertyManager.XmlFlattener_WatchPollMillis + " ms");
+        try
+        {
+            while (closed == false)
+            {
+                poll();
+                ___awaitChange(XMLFlattener_PropertyManager.XmlFlattener_WatchPollMillis);
+            }
+        }
+        finally
+        {
+            ___closeOutputs();
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Scans the input directories once, flattening the files that have stopped changing - and then flushes or rolls
+     * the output files if they are due.
+     * @return the number of files flattened
+     */
+    int poll() throws IOException
+    {
+        return poll(System.currentTimeMillis());
+    }
+
+    int poll(long now) throws IOException
+    {
+        int flattened = 0;
+        for (WatchedSpec watched : watchedSpecs)
+        {
+            flattened += watched.poll(now);
+        }
+        ___flushOrRoll(now);
+        return flattened;
+    }
+
+    private void ___awaitChange(long timeoutMillis) throws IOException
+    {
+        try
+        {
+            if (watchService == null)
+            {
+                Thread.sleep(timeoutMillis);
+                return;
+            }
+            final WatchKey key = watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (key == null) return;
+            final Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents())
+            {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+                {
+                    final Path created = directory.resolve((Path) event.context());
+                    if (Files.isDirectory(created)) ___register(created);
+                }
+            }
+            key.reset();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            closed = true;
+        }
+    }
+
+    private void ___flushOrRoll(long now) throws IOException
+    {
+        final long rows = ___rowsWritten();
+        final long rowsSinceRoll = rows - rowsAtLastRoll;
+        if (rowsSinceRoll >= XMLFlattener_PropertyManager.XmlFlattener_WatchRollRows ||
+            now - lastRollTime >= XMLFlattener_PropertyManager.XmlFlattener_WatchRollMillis)
+        {
+            lastRollTime = now;
+            if (rowsSinceRoll == 0) return; //no point rolling over an empty file
+
+            String rollSuffix = ___rollSuffix(now);
+            if (rollSuffix.equals(lastRollSuffix)) rollSuffix = rollSuffix + "-" + rows;
+            batchTime = new Timestamp(now);
+            for (WatchedSpec watched : watchedSpecs)
+            {
+                for (FlattenerListItem m : watched.items)
+                {
+                    m.rollCSVPrinter(watched.spec.getRootPath(), rollSuffix);
+                }
+            }
+            logger.info("Rolled the output files over to : " + rollSuffix + " - after " + rowsSinceRoll + " rows");
+            lastRollSuffix = rollSuffix;
+            rowsAtLastRoll = rows;
+            rowsAtLastFlush = rows;
+            lastFlushTime = now;
+            return;
+        }
+
+        final long rowsSinceFlush = rows - rowsAtLastFlush;
+        if (rowsSinceFlush >= XMLFlattener_PropertyManager.XmlFlattener_WatchFlushRows ||
+            (rowsSinceFlush > 0 && now - lastFlushTime >= XMLFlattener_PropertyManager.XmlFlattener_WatchFlushMillis))
+        {
+            for (WatchedSpec watched : watchedSpecs)
+            {
+                for (FlattenerListItem m : watched.items)
+                {
+                    m.flushCSVPrinter();
+                }
+            }
+            rowsAtLastFlush = rows;
+            lastFlushTime = now;
+        }
+    }
+
+    private long ___rowsWritten()
+    {
+        long rows = 0;
+        for (WatchedSpec watched : watchedSpecs)
+        {
+            for (FlattenerListItem m : watched.items)
+            {
+                rows += m.getCsvRowsWritten();
+            }
+        }
+        return rows;
+    }
+
+    private static String ___rollSuffix(long time)
+    {
+        return ROLL_SUFFIX_FORMAT.format(new Timestamp(time).toLocalDateTime());
+    }
+
+    private synchronized void ___closeOutputs() throws IOException
+    {
+        if (outputsClosed) return;
+        outputsClosed = true;
+        for (WatchedSpec watched : watchedSpecs)
+        {
+            for (FlattenerListItem m : watched.items)
+            {
+                m.close();
+                logger.info("Output Table - " + m.getMapName() + " - " + m.getCsvRowsWritten() + " CSV Rows - last file : " + m.getOutputCSVFile().toAbsolutePath());
+            }
+            watched.quarantine.close();
+        }
+    }
+
+    /**
+     * Stops the watch - waiting for the file being flattened (if any) to finish, and closing the output files.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        if (watchService != null) watchService.close();
+        if (running == false)
+        {
+            ___closeOutputs();
+            return;
+        }
+        try
+        {
+            stopped.await(XMLFlattener_PropertyManager.XmlFlattener_WatchPollMillis * 10, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The input directory of a spec - along with the files seen so far.
+     */
+    private class WatchedSpec
+    {
+        private final XmlFlattenerSpec spec;
+        private final Collection<FlattenerListItem> items;
+        private final Path inputDirectory;
+        private final Map<Path, PendingFile> pending;
+        private final Set<Path> flattened;
+        private final XmlQuarantine quarantine;
+        private final Optional<XmlStreamingPlan> streamingPlan;
+        private int rows;
+
+        WatchedSpec(XmlFlattenerSpec spec)
+        {
+            this.spec = spec;
+            this.items = spec.getSpecListItems().values();
+            this.inputDirectory = XmlFlattener.getRelativeOrAbsolutePath(spec.getInputPath(), XMLFlattener_PropertyManager.XmlFlattener_LocalRunXMLDirectory);
+            this.pending = new HashMap<>();
+            this.flattened = new HashSet<>();
+            this.quarantine = XmlQuarantine.open(spec, spec.getRootPath());
+            this.streamingPlan = XmlStreamingPlan.compile(items); //the columns stay the same as the outputs roll over
+        }
+
+        int poll(long now) throws IOException
+        {
+            final Map<Path, PendingFile> seen = new HashMap<>();
+            final Set<Path> present = new HashSet<>();
+            final List<XmlInputFile> complete = new ArrayList<>();
+            try (Stream<XmlInputFile> files = XmlInputFileScanner.scan(inputDirectory, spec.getInputFilter()))
+            {
+                final Iterator<XmlInputFile> it = files.iterator();
+                while (it.hasNext())
+                {
+                    final XmlInputFile file = it.next();
+                    present.add(file.getPath());
+                    if (flattened.contains(file.getPath())) continue;
+
+                    final PendingFile previous = pending.get(file.getPath());
+                    if (previous == null || previous.file.getSize() != file.getSize() || previous.file.getLastModifiedTime().equals(file.getLastModifiedTime()) == false)
+                    {
+                        seen.put(file.getPath(), new PendingFile(file, now)); //new or still changing - look again on the next scan
+                    }
+                    else if (now - previous.quietSince >= XMLFlattener_PropertyManager.XmlFlattener_WatchPollMillis)
+                    {
+                        complete.add(file);
+                    }
+                    else
+                    {
+                        seen.put(file.getPath(), previous); //unchanged, but not for long enough yet
+                    }
+                }
+            }
+            pending.clear();
+            pending.putAll(seen);
+            flattened.retainAll(present); //forget the files that have been removed
+
+            complete.sort(Comparator.comparing(XmlInputFile::getLastModifiedTime).thenComparing(XmlInputFile::getPath));
+            for (XmlInputFile file : complete)
+            {
+                rows++;
+                XmlFlattener.flattenInputFile(batchTime, spec, items, file, rows, quarantine, streamingPlan);
+                flattened.add(file.getPath());
+            }
+            if (complete.isEmpty() == false)
+            {
+                logger.info("Flattened " + complete.size() + " new file(s) for the spec : " + spec.getName() + " | " + pending.size() + " file(s) still changing");
+            }
+            return complete.size();
+        }
+    }
+
+    /**
+     * A file that has not been flattened yet - along with the time of the scan from which it has stayed the same.
+     */
+    private static class PendingFile
+    {
+        private final XmlInputFile file;
+        private final long quietSince;
+
+        private PendingFile(XmlInputFile file, long quietSince)
+        {
+            this.file = file;
+            this.quietSince = quietSince;
+        }
+    }
+}
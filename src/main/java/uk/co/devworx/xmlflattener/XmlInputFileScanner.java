@@ -0,0 +1,388 @@
+package uk.co.devworx.xmlflattener;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Scans the input directory for the XML files that need to be flattened.
+ *
+ * The directory tree is walked in parallel on a dedicated fork-join pool and every file that passes the
+ * input filter is handed to the consumer as soon as it is found - the consumer does not have to wait for the
+ * whole tree to be listed, and only a bounded number of paths (beyond the listing of the directories being
+ * scanned) are held in memory at any point in time.
+ *
+ * The order is only fixed per directory - the files of a directory are handed over in the order of their names,
+ * but the files of different directories can interleave differently from one run to the next.
+ */
+public class XmlInputFileScanner
+{
+    private static final Logger logger = Logger.getLogger(XmlInputFileScanner.class);
+
+    private static final XmlInputFile END_OF_SCAN = new XmlInputFile(null, null);
+
+    private final Path rootDirectory;
+    private final XmlInputFileFilter filter;
+    private final BlockingQueue<XmlInputFile> foundFiles;
+    private final AtomicReference<Throwable> failure;
+    private final AtomicLong filesScanned;
+    private final AtomicLong filesAccepted;
+    private final ForkJoinPool scanPool;
+
+    /**
+     * Start scanning the directory - the returned stream is fed while the walk is still in progress. The stream
+     * should be closed once the caller is done with it, so that the scanning threads are released.
+     */
+    public static Stream<XmlInputFile> scan(final Path rootDirectory, final XmlInputFileFilter filter)
+    {
+        logger.info("Finding all the XML files in the " + rootDirectory.toAbsolutePath() + " directory.");
+
+        if(Files.exists(rootDirectory) == false)
+        {
+            throw new RuntimeException("The path you specified " + rootDirectory.toAbsolutePath() + " does not exist.");
+        }
+
+        final XmlInputFileScanner scanner = new XmlInputFileScanner(rootDirectory, filter);
+        scanner.start();
+        final Iterator<XmlInputFile> iterator = scanner.new FoundFilesIterator();
+        final Spliterator<XmlInputFile> spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(scanner::shutdown);
+    }
+
+    private XmlInputFileScanner(final Path rootDirectory, final XmlInputFileFilter filter)
+    {
+        this.rootDirectory = rootDirectory;
+        this.filter = filter;
+        this.foundFiles = new LinkedBlockingQueue<>(XMLFlattener_PropertyManager.XmlFlattener_DirectoryScanQueueSize);
+        this.failure = new AtomicReference<>();
+        this.filesScanned = new AtomicLong();
+        this.filesAccepted = new AtomicLong();
+        this.scanPool = new ForkJoinPool(Math.max(1, XMLFlattener_PropertyManager.XmlFlattener_DirectoryScanParallelism));
+    }
+
+    private void start()
+    {
+        scanPool.execute(() ->
+        {
+            try
+            {
+                final BasicFileAttributes rootAttributes = Files.readAttributes(rootDirectory, BasicFileAttributes.class);
+                if (rootAttributes.isDirectory() == true)
+                {
+                    new DirectoryScanTask(rootDirectory).invoke();
+                }
+                else
+                {
+                    ___offer(rootDirectory, rootAttributes);
+                }
+            }
+            catch (Throwable t)
+            {
+                failure.compareAndSet(null, t);
+            }
+            finally
+            {
+                ___put(END_OF_SCAN);
+            }
+        });
+    }
+
+    private void shutdown()
+    {
+        scanPool.shutdownNow();
+    }
+
+    private void ___offer(final Path file, final BasicFileAttributes attributes)
+    {
+        filesScanned.incrementAndGet();
+        //a single input file is matched on its file name - relative to itself, it would be the empty path
+        final Path relativeFile = file.equals(rootDirectory) == true ? file.getFileName() : rootDirectory.relativize(file);
+        if (filter.accept(relativeFile, attributes) == false)
+        {
+            return;
+        }
+        filesAccepted.incrementAndGet();
+        ___put(new XmlInputFile(file, attributes));
+    }
+
+    private void ___put(final XmlInputFile file)
+    {
+        try
+        {
+            foundFiles.put(file);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while handing over the found XML files - the scan was most likely abandoned.", e);
+        }
+    }
+
+    /**
+     * Lists a single directory - the sub directories are forked off as their own tasks.
+     */
+    private class DirectoryScanTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        private DirectoryScanTask(Path directory)
+        {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute()
+        {
+            final List<DirectoryScanTask> subDirectories = new ArrayList<>();
+            final List<Path> entries = new ArrayList<>();
+            try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory))
+            {
+                listing.forEach(entries::add);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException("Unable to list the directory - " + directory.toAbsolutePath() + " - " + e, e);
+            }
+            //the listing order is up to the file system - sorted, so that the files of a directory come out in the same order each run
+            Collections.sort(entries);
+            try
+            {
+                for (Path entry : entries)
+                {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory() == true)
+                    {
+                        if (filter.acceptDirectory(rootDirectory.relativize(entry)) == true)
+                        {
+                            subDirectories.add(new DirectoryScanTask(entry));
+                        }
+                        continue;
+                    }
+                    if (attributes.isSymbolicLink() == true)
+                    {
+                        //Linked files are still flattened, linked directories are not followed (same as Files.walk)
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                        if (attributes.isDirectory() == true) continue;
+                    }
+                    ___offer(entry, attributes);
+                }
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException("Unable to read the attributes of the files in - " + directory.toAbsolutePath() + " - " + e, e);
+            }
+            invokeAll(subDirectories);
+        }
+    }
+
+    private class FoundFilesIterator implements Iterator<XmlInputFile>
+    {
+        private XmlInputFile next;
+        private boolean finished;
+
+        @Override
+        public boolean hasNext()
+        {
+            if (next != null) return true;
+            if (finished == true) return false;
+            try
+            {
+                next = foundFiles.take();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the directory scan : " + e, e);
+            }
+            if (next == END_OF_SCAN)
+            {
+                next = null;
+                finished = true;
+                shutdown();
+                logger.info("Scanned a total of " + filesScanned.get() + " files - found a total of " + filesAccepted.get() + " to process. ");
+                final Throwable t = failure.get();
+                if (t != null)
+                {
+                    throw new RuntimeException("Unable to scan the directory " + rootDirectory.toAbsolutePath() + " - " + t, t);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public XmlInputFile next()
+        {
+            if (hasNext() == false) throw new NoSuchElementException();
+            final XmlInputFile result = next;
+            next = null;
+            return result;
+        }
+    }
+}
+
+/**
+ * A file found by the scanner, along with the attributes that were read during the directory walk (so that
+ * these do not need to be read again).
+ */
+class XmlInputFile
+{
+    private final Path path;
+    private final BasicFileAttributes attributes;
+
+    XmlInputFile(Path path, BasicFileAttributes attributes)
+    {
+        this.path = path;
+        this.attributes = attributes;
+    }
+
+    public Path getPath()
+    {
+        return path;
+    }
+
+    public BasicFileAttributes getAttributes()
+    {
+        return attributes;
+    }
+
+    public FileTime getLastModifiedTime()
+    {
+        return attributes.lastModifiedTime();
+    }
+
+    public long getSize()
+    {
+        return attributes.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "XmlInputFile{" + "path=" + path + ", size=" + (attributes == null ? -1 : attributes.size()) + '}';
+    }
+}
+
+/**
+ * The criteria used to select the input files - glob include / exclude patterns (relative to the input path)
+ * along with the minimum modified time and size bounds. Without any include patterns, all the files ending
+ * in .xml are selected.
+ */
+class XmlInputFileFilter
+{
+    private static final String DEFAULT_SUFFIX = ".xml";
+
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+    private final Optional<FileTime> modifiedAfter;
+    private final OptionalLong minSize;
+    private final OptionalLong maxSize;
+
+    static XmlInputFileFilter acceptAllXml()
+    {
+        return new XmlInputFileFilter(Collections.emptyList(), Collections.emptyList(), Optional.empty(), OptionalLong.empty(), OptionalLong.empty());
+    }
+
+    static XmlInputFileFilter create(List<String> includeGlobs,
+                                     List<String> excludeGlobs,
+                                     Optional<String> modifiedAfter,
+                                     OptionalLong minSize,
+                                     OptionalLong maxSize)
+    {
+        final FileSystem fs = FileSystems.getDefault();
+        final List<PathMatcher> includes = new ArrayList<>();
+        final List<PathMatcher> excludes = new ArrayList<>();
+        if (includeGlobs != null) includeGlobs.forEach(g -> includes.add(fs.getPathMatcher("glob:" + g)));
+        if (excludeGlobs != null) excludeGlobs.forEach(g -> excludes.add(fs.getPathMatcher("glob:" + g)));
+        return new XmlInputFileFilter(includes, excludes, modifiedAfter.map(XmlInputFileFilter::parseModifiedAfter), minSize, maxSize);
+    }
+
+    private static FileTime parseModifiedAfter(String value)
+    {
+        final String trimmed = value.trim();
+        try
+        {
+            if (trimmed.length() == 10)
+            {
+                return FileTime.from(LocalDate.parse(trimmed).atStartOfDay(ZoneOffset.UTC).toInstant());
+            }
+            return FileTime.from(Instant.parse(trimmed));
+        }
+        catch (RuntimeException e)
+        {
+            throw new RuntimeException("The inputFilter modifiedAfter value - " + value + " - is not an ISO date (2020-01-31) or instant (2020-01-31T10:15:30Z) : " + e, e);
+        }
+    }
+
+    private XmlInputFileFilter(List<PathMatcher> includes,
+                               List<PathMatcher> excludes,
+                               Optional<FileTime> modifiedAfter,
+                               OptionalLong minSize,
+                               OptionalLong maxSize)
+    {
+        this.includes = Collections.unmodifiableList(includes);
+        this.excludes = Collections.unmodifiableList(excludes);
+        this.modifiedAfter = modifiedAfter;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Excluded directories are pruned from the walk altogether.
+     */
+    boolean acceptDirectory(Path relativeDirectory)
+    {
+        return ___isExcluded(relativeDirectory) == false;
+    }
+
+    boolean accept(Path relativeFile, BasicFileAttributes attributes)
+    {
+        if (includes.isEmpty() == true)
+        {
+            final Path fileName = relativeFile.getFileName();
+            if (fileName == null || fileName.toString().endsWith(DEFAULT_SUFFIX) == false) return false;
+        }
+        else if (___isIncluded(relativeFile) == false)
+        {
+            return false;
+        }
+        if (___isExcluded(relativeFile) == true) return false;
+        if (minSize.isPresent() == true && attributes.size() < minSize.getAsLong()) return false;
+        if (maxSize.isPresent() == true && attributes.size() > maxSize.getAsLong()) return false;
+        if (modifiedAfter.isPresent() == true && attributes.lastModifiedTime().compareTo(modifiedAfter.get()) < 0) return false;
+        return true;
+    }
+
+    private boolean ___isIncluded(Path relativeFile)
+    {
+        for (PathMatcher m : includes)
+        {
+            if (m.matches(relativeFile) == true) return true;
+        }
+        return false;
+    }
+
+    private boolean ___isExcluded(Path relativePath)
+    {
+        for (PathMatcher m : excludes)
+        {
+            if (m.matches(relativePath) == true) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,215 @@
+package uk.co.devworx.xmlflattener;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The compiled form of the columns of a {@link LayerRowsContainer} - worked out once, when the container is created,
+ * rather than for every document:
+ *
+ * <ul>
+ *     <li>The simple path columns ({@link XmlTreePath}) that share a context (i.e. the same parent explode item) are
+ *     merged into an {@link XmlTreePathTrie} - so their common prefixes are only walked once per context node.</li>
+ *     <li>The eval columns are folded to their (canonical) value - the constants once, and the batch / current time
+ *     once per batch time. The same String then goes into every row, which also lets the {@link XmlCsvWriter} reuse its
+ *     encoded bytes.</li>
+ *     <li>Everything else is evaluated column by column, as before.</li>
+ * </ul>
+ */
+class XmlLayerPlan
+{
+    private final List<XmlFlattenerSpecColumn> columnByColumn;
+    private final List<PathGroup> pathGroups;
+    private final Map<XmlFlattenerSpecColumn, FoldedValue> foldedValues;
+    private final int pathSteps;
+    private final int sharedPathSteps;
+
+    static XmlLayerPlan compile(List<XmlFlattenerSpecColumn> columns)
+    {
+        return new XmlLayerPlan(columns);
+    }
+
+    private XmlLayerPlan(List<XmlFlattenerSpecColumn> columns)
+    {
+        final List<XmlFlattenerSpecColumn> others = new ArrayList<>();
+        final Map<Optional<XmlFlattenerExplodeItem>, List<XmlFlattenerSpecColumn>> byContext = new LinkedHashMap<>();
+        final Map<XmlFlattenerSpecColumn, FoldedValue> folded = new IdentityHashMap<>();
+        for (XmlFlattenerSpecColumn col : columns)
+        {
+            if (col.getType() == XmlFlattenerSourceType.xpath && col.getTreePath().isPresent() == true)
+            {
+                byContext.computeIfAbsent(col.getParent(), p -> new ArrayList<>()).add(col);
+                continue;
+            }
+            if (col.getType() == XmlFlattenerSourceType.eval)
+            {
+                //still evaluated column by column - the folded value is then looked up rather than converted again
+                final FoldedValue value = FoldedValue.fold(col);
+                if (value != null) folded.put(col, value);
+            }
+            others.add(col);
+        }
+
+        int steps = 0;
+        int sharedSteps = 0;
+        final List<PathGroup> groups = new ArrayList<>();
+        for (Map.Entry<Optional<XmlFlattenerExplodeItem>, List<XmlFlattenerSpecColumn>> e : byContext.entrySet())
+        {
+            final PathGroup group = new PathGroup(e.getKey(), e.getValue());
+            for (XmlFlattenerSpecColumn col : group.columns)
+            {
+                steps += col.getTreePath().get().getElementSteps().size();
+            }
+            sharedSteps += group.trie.getStepCount();
+            groups.add(group);
+        }
+
+        this.columnByColumn = Collections.unmodifiableList(others);
+        this.pathGroups = Collections.unmodifiableList(groups);
+        this.foldedValues = folded;
+        this.pathSteps = steps;
+        this.sharedPathSteps = sharedSteps;
+    }
+
+    /**
+     * @return the columns that are evaluated one by one - i.e. everything other than the path columns
+     */
+    List<XmlFlattenerSpecColumn> getColumnByColumn()
+    {
+        return columnByColumn;
+    }
+
+    List<PathGroup> getPathGroups()
+    {
+        return pathGroups;
+    }
+
+    /**
+     * @return the folded value of the column - or null if it is not a folded column
+     */
+    String getFoldedValue(XmlFlattenerSpecColumn col, ParameterBag paramBag)
+    {
+        final FoldedValue value = foldedValues.get(col);
+        return value == null ? null : value.get(paramBag.getBatchtime());
+    }
+
+    int getFoldedColumnCount()
+    {
+        return foldedValues.size();
+    }
+
+    /**
+     * @return the element steps of the path columns, walked one path at a time
+     */
+    int getPathSteps()
+    {
+        return pathSteps;
+    }
+
+    /**
+     * @return the element steps of the path columns, with the common prefixes walked once
+     */
+    int getSharedPathSteps()
+    {
+        return sharedPathSteps;
+    }
+
+    /**
+     * The path columns with the same context.
+     */
+    static class PathGroup
+    {
+        private final Optional<XmlFlattenerExplodeItem> parent;
+        private final List<XmlFlattenerSpecColumn> columns;
+        private final XmlTreePathTrie trie;
+
+        private PathGroup(Optional<XmlFlattenerExplodeItem> parent, List<XmlFlattenerSpecColumn> columns)
+        {
+            this.parent = parent;
+            this.columns = Collections.unmodifiableList(columns);
+            final List<XmlTreePath> paths = new ArrayList<>(columns.size());
+            for (XmlFlattenerSpecColumn col : columns)
+            {
+                paths.add(col.getTreePath().get());
+            }
+            this.trie = new XmlTreePathTrie(paths);
+        }
+
+        Optional<XmlFlattenerExplodeItem> getParent()
+        {
+            return parent;
+        }
+
+        List<XmlFlattenerSpecColumn> getColumns()
+        {
+            return columns;
+        }
+
+        XmlTreePathTrie getTrie()
+        {
+            return trie;
+        }
+    }
+
+    /**
+     * The canonical value of an eval column. The batch (or current) time is only converted again if it changes - e.g.
+     * as the watch mode rolls over to a new file.
+     */
+    private static class FoldedValue
+    {
+        private final XmlFlattenerSpecColumn col;
+        private final String constant;
+        private volatile TimeValue timeValue;
+
+        /**
+         * @return the folded value - or null if the value is not valid for the data type of the column (so that it is
+         *         reported for each document, as before)
+         */
+        static FoldedValue fold(XmlFlattenerSpecColumn col)
+        {
+            final String source = col.getSource();
+            if (source.equalsIgnoreCase(ParameterBag.BATCH_TIME_COLNAME) == true ||
+                source.equalsIgnoreCase(ParameterBag.CURRENT_TIME_COLNAME) == true)
+            {
+                return new FoldedValue(col, null);
+            }
+            final String constant = col.convertQuietly(source);
+            return constant == null ? null : new FoldedValue(col, constant);
+        }
+
+        private FoldedValue(XmlFlattenerSpecColumn col, String constant)
+        {
+            this.col = col;
+            this.constant = constant;
+        }
+
+        String get(Timestamp batchTime)
+        {
+            if (constant != null) return constant;
+            final TimeValue current = timeValue;
+            if (current != null && current.time.equals(batchTime)) return current.value;
+            final String converted = col.convertQuietly(batchTime.toString());
+            if (converted == null) return col.toCanonicalValue(batchTime.toString()); //reported for each document
+            timeValue = new TimeValue(batchTime, converted);
+            return converted;
+        }
+    }
+
+    private static class TimeValue
+    {
+        private final Timestamp time;
+        private final String value;
+
+        private TimeValue(Timestamp time, String value)
+        {
+            this.time = time;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package uk.co.devworx.xmlflattener;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import java.util.*;
+
+/**
+ * The prefixes a spec binds to namespace URIs - e.g.
+ *
+ * <pre>
+ *     namespaces:
+ *       fpml: http://www.fpml.org/FpML-5/confirmation
+ * </pre>
+ *
+ * A path step with a bound prefix (fpml:trade) then matches the elements named trade in that namespace - whichever
+ * prefix (or default namespace) the document itself happens to use for it. Steps with prefixes that are not bound
+ * keep matching the name exactly as it is written.
+ */
+class XmlNamespaceBindings implements NamespaceContext
+{
+    static final XmlNamespaceBindings NONE = new XmlNamespaceBindings(Collections.emptyMap());
+
+    private final Map<String, String> uris;
+
+    static XmlNamespaceBindings create(Map<String, String> namespaces)
+    {
+        if (namespaces == null || namespaces.isEmpty()) return NONE;
+        for (Map.Entry<String, String> e : namespaces.entrySet())
+        {
+            final String prefix = e.getKey();
+            if (prefix == null || prefix.isEmpty() || prefix.indexOf(':') != -1 || prefix.startsWith("xml"))
+            {
+                throw new IllegalArgumentException("The namespace prefix - " + prefix + " - is not valid. It must be a plain name, not starting with xml.");
+            }
+            if (e.getValue() == null || e.getValue().trim().isEmpty())
+            {
+                throw new IllegalArgumentException("The namespace prefix - " + prefix + " - must be bound to a (non-empty) URI.");
+            }
+        }
+        return new XmlNamespaceBindings(namespaces);
+    }
+
+    private XmlNamespaceBindings(Map<String, String> uris)
+    {
+        this.uris = Collections.unmodifiableMap(new LinkedHashMap<>(uris));
+    }
+
+    boolean isEmpty()
+    {
+        return uris.isEmpty();
+    }
+
+    /**
+     * @return the URI the prefix is bound to - or null if it is not bound.
+     */
+    String getUri(String prefix)
+    {
+        return uris.get(prefix);
+    }
+
+    /**
+     * Compile the (general) XPath expression - with the bound prefixes resolved, if there are any.
+     */
+    XPathExpression compile(String source) throws XPathExpressionException
+    {
+        if (isEmpty() == true)
+        {
+            return XmlFlattenerSpec.xPath.compile(source);
+        }
+        final XPath xPath = XmlFlattenerSpec.xPathFactory.newXPath();
+        xPath.setNamespaceContext(this);
+        return xPath.compile(source);
+    }
+
+    /**
+     * The compiled expressions are not safe to evaluate from more than one thread at a time - so the expression is
+     * compiled (and checked) here, and then again for each thread that evaluates it, rather than the threads queueing
+     * on a shared one.
+     */
+    ThreadLocal<XPathExpression> compilePerThread(String source) throws XPathExpressionException
+    {
+        compile(source);
+        return ThreadLocal.withInitial(() -> ___compileForThread(source));
+    }
+
+    private XPathExpression ___compileForThread(String source)
+    {
+        final XPath xPath;
+        synchronized (XmlFlattenerSpec.xPathFactory)
+        {
+            xPath = XmlFlattenerSpec.xPathFactory.newXPath();
+        }
+        if (isEmpty() == false) xPath.setNamespaceContext(this);
+        try
+        {
+            return xPath.compile(source);
+        }
+        catch (XPathExpressionException e)
+        {
+            throw new IllegalStateException("Unable to compile - " + source + " - which has compiled before : " + e, e);
+        }
+    }
+
+    @Override
+    public String getNamespaceURI(String prefix)
+    {
+        if (XMLConstants.XML_NS_PREFIX.equals(prefix)) return XMLConstants.XML_NS_URI;
+        final String uri = uris.get(prefix);
+        return uri == null ? XMLConstants.NULL_NS_URI : uri;
+    }
+
+    @Override
+    public String getPrefix(String namespaceURI)
+    {
+        for (Map.Entry<String, String> e : uris.entrySet())
+        {
+            if (e.getValue().equals(namespaceURI)) return e.getKey();
+        }
+        return null;
+    }
+
+    @Override
+    public Iterator<String> getPrefixes(String namespaceURI)
+    {
+        final List<String> prefixes = new ArrayList<>();
+        for (Map.Entry<String, String> e : uris.entrySet())
+        {
+            if (e.getValue().equals(namespaceURI)) prefixes.add(e.getKey());
+        }
+        return prefixes.iterator();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "XmlNamespaceBindings" + uris;
+    }
+}
@@ -0,0 +1,321 @@
+package uk.co.devworx.xmlflattener;
+
+import org.xml.sax.SAXParseException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the input files that turn out not to be valid XML - on a thread of its own, so a feed with many broken files
+ * does not hold the flatten up on I/O.
+ *
+ * Each broken file is kept in the XmlFlattener_DumpXMLDirectory, as per XmlFlattener_QuarantineMode:
+ * <ul>
+ *     <li>link - a hard link to the input file (the default) - or a copy, where the file system cannot link it.</li>
+ *     <li>gzip - a compressed copy.</li>
+ *     <li>reference - nothing is written, the error log refers to the input file.</li>
+ * </ul>
+ * The names are made unique (the input file name, the time the quarantine was opened and a sequence) and an existing
+ * file is never replaced - so runs in parallel do not overwrite each other's files. The .broken suffix keeps them out
+ * of the input filter, should the directory be underneath the input path. Each broken file gets a row in the error
+ * log - broken-xml-[time].csv - with the file, the line and column of the error and its message.
+ *
+ * The quarantine also keeps the error budget of the spec - once more than maxBrokenPercent of the files are broken
+ * (out of at least XmlFlattener_ErrorBudgetMinFiles files) the flatten is aborted, with an
+ * {@link XmlErrorBudgetExceededException}.
+ */
+class XmlQuarantine implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(XmlQuarantine.class);
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final String[] ERROR_LOG_HEADER = { "time", "spec", "file", "line", "column", "message", "quarantined_as" };
+
+    enum Mode { link, gzip, reference }
+
+    private final String specName;
+    private final Path directory;
+    private final Mode mode;
+    private final String stamp;
+    private final double maxBrokenPercent;
+    private final AtomicLong files;
+    private final AtomicLong broken;
+    private final AtomicLong sequence;
+    private final ThreadPoolExecutor writer;
+
+    private XmlCsvWriter errorLog;
+    private Path errorLogFile;
+
+    /**
+     * Opens the quarantine of the spec, in the dump directory underneath the root path.
+     */
+    static XmlQuarantine open(XmlFlattenerSpec spec, Path rootPath)
+    {
+        //the streamed specs have no root path - their broken files go to the working directory
+        final Path directory = XmlFlattener.getRelativeOrAbsolutePath(rootPath == null ? Paths.get("") : rootPath, XMLFlattener_PropertyManager.XmlFlattener_DumpXMLDirectory);
+        return new XmlQuarantine(spec, directory, Mode.valueOf(XMLFlattener_PropertyManager.XmlFlattener_QuarantineMode));
+    }
+
+    /**
+     * A quarantine that only reports and counts the broken files (against the error budget) - for the pre-processing
+     * pass, as the files are quarantined by the flatten that follows it.
+     */
+    static XmlQuarantine countOnly(XmlFlattenerSpec spec)
+    {
+        return new XmlQuarantine(spec, null, Mode.reference);
+    }
+
+    private XmlQuarantine(XmlFlattenerSpec spec, Path directory, Mode mode)
+    {
+        this.specName = spec.getName();
+        this.directory = directory;
+        this.mode = mode;
+        this.stamp = NAME_FORMAT.format(new Timestamp(System.currentTimeMillis()).toLocalDateTime());
+        this.maxBrokenPercent = spec.getMaxBrokenPercent().orElse(XMLFlattener_PropertyManager.XmlFlattener_MaxBrokenPercent);
+        this.files = new AtomicLong();
+        this.broken = new AtomicLong();
+        this.sequence = new AtomicLong();
+        if (directory == null)
+        {
+            writer = null;
+            return;
+        }
+        //the flattening threads write for themselves once the writer falls a full queue behind
+        writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(XMLFlattener_PropertyManager.XmlFlattener_QuarantineQueueSize), r ->
+        {
+            final Thread t = new Thread(r, "xml-quarantine-" + specName);
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Counts an input file towards the error budget - whether or not it turns out to be broken.
+     */
+    void addFile()
+    {
+        files.incrementAndGet();
+    }
+
+    /**
+     * Quarantines the broken document.
+     * @throws XmlErrorBudgetExceededException if the spec has now run out of its error budget
+     */
+    void quarantine(XmlDocumentSource source, Exception error)
+    {
+        final Optional<Path> path = source.getPath();
+        final byte[] data = path.isPresent() ? null : source.toByteArray();
+        ___quarantine(path.orElse(null), data, error);
+    }
+
+    /**
+     * Quarantines the broken input file.
+     * @throws XmlErrorBudgetExceededException if the spec has now run out of its error budget
+     */
+    void quarantine(Path file, Exception error)
+    {
+        ___quarantine(file, null, error);
+    }
+
+    private void ___quarantine(Path file, byte[] data, Exception error)
+    {
+        final long brokenSoFar = broken.incrementAndGet();
+        final String line;
+        final String column;
+        if (error instanceof SAXParseException)
+        {
+            line = String.valueOf(((SAXParseException) error).getLineNumber());
+            column = String.valueOf(((SAXParseException) error).getColumnNumber());
+        }
+        else
+        {
+            line = "";
+            column = "";
+        }
+        final String message = error.getMessage() == null ? error.toString() : error.getMessage();
+        logger.warn("Skipping the broken XML file " + (file == null ? "(in memory)" : file) + " for " + specName + " - at line " + line + ", column " + column + " : " + message);
+        if (logger.isDebugEnabled()) logger.debug(error);
+
+        if (writer != null)
+        {
+            final String time = new Timestamp(System.currentTimeMillis()).toInstant().toString();
+            writer.execute(() -> ___write(time, file, data, line, column, message));
+        }
+
+        final long budget = (long) Math.floor(maxBrokenPercent / 100 * Math.max(files.get(), XMLFlattener_PropertyManager.XmlFlattener_ErrorBudgetMinFiles));
+        if (maxBrokenPercent < 100 && brokenSoFar > budget)
+        {
+            throw new XmlErrorBudgetExceededException("The spec - " + specName + " - has run out of its error budget : " + brokenSoFar + " broken file(s) out of " + files.get() +
+                                                      " - the budget is " + maxBrokenPercent + "% (of at least " + XMLFlattener_PropertyManager.XmlFlattener_ErrorBudgetMinFiles + " files). Aborting.");
+        }
+    }
+
+    private synchronized void ___write(String time, Path file, byte[] data, String line, String column, String message)
+    {
+        String quarantinedAs = "";
+        try
+        {
+            if (Files.exists(directory) == false) Files.createDirectories(directory);
+            quarantinedAs = mode == Mode.reference && file != null ? file.toAbsolutePath().toString() : ___store(file, data).toAbsolutePath().toString();
+        }
+        catch (IOException e)
+        {
+            logger.error("Unable to quarantine the broken XML file " + file + " for " + specName + " - " + e, e);
+        }
+        try
+        {
+            if (errorLog == null) ___openErrorLog();
+            errorLog.writeRow(new String[] { time, specName, file == null ? "" : file.toAbsolutePath().toString(), line, column, message, quarantinedAs });
+            errorLog.flush();
+        }
+        catch (IOException e)
+        {
+            logger.error("Unable to write to the broken XML error log " + errorLogFile + " - " + e, e);
+        }
+    }
+
+    /**
+     * @return the file the document was quarantined to - with a name no other file has.
+     */
+    private Path ___store(Path file, byte[] data) throws IOException
+    {
+        final String name = file == null ? "document" : file.getFileName().toString();
+        while (true)
+        {
+            final Path target = directory.resolve(name + "-" + stamp + "-" + sequence.incrementAndGet() + (mode == Mode.gzip ? ".broken.gz" : ".broken"));
+            try
+            {
+                if (mode == Mode.gzip)
+                {
+                    try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)))
+                    {
+                        if (file == null) out.write(data);
+                        else Files.copy(file, out);
+                    }
+                }
+                else if (file == null)
+                {
+                    Files.write(target, data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                }
+                else
+                {
+                    ___linkOrCopy(file, target);
+                }
+                return target;
+            }
+            catch (FileAlreadyExistsException e)
+            {
+                //written by another run - try the next name
+            }
+        }
+    }
+
+    private static void ___linkOrCopy(Path file, Path target) throws IOException
+    {
+        try
+        {
+            Files.createLink(target, file);
+        }
+        catch (FileAlreadyExistsException e)
+        {
+            throw e;
+        }
+        catch (UnsupportedOperationException | FileSystemException e)
+        {
+            //e.g. the dump directory is on another file system
+            Files.copy(file, target);
+        }
+    }
+
+    private void ___openErrorLog() throws IOException
+    {
+        if (Files.exists(directory) == false) Files.createDirectories(directory);
+        for (int n = 0; errorLogFile == null; n++)
+        {
+            final Path candidate = directory.resolve("broken-xml-" + stamp + (n == 0 ? "" : "-" + n) + ".csv");
+            try
+            {
+                Files.createFile(candidate);
+                errorLogFile = candidate;
+            }
+            catch (FileAlreadyExistsException e)
+            {
+                //opened by another run in the same millisecond
+            }
+        }
+        errorLog = XmlCsvWriter.open(errorLogFile);
+        errorLog.writeRow(ERROR_LOG_HEADER);
+    }
+
+    long getFiles()
+    {
+        return files.get();
+    }
+
+    long getBroken()
+    {
+        return broken.get();
+    }
+
+    /**
+     * @return the error log - if any files were quarantined
+     */
+    Optional<Path> getErrorLogFile()
+    {
+        return Optional.ofNullable(errorLogFile);
+    }
+
+    /**
+     * Waits for the broken files to be written out.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (writer == null) return;
+        writer.shutdown();
+        try
+        {
+            if (writer.awaitTermination(1, TimeUnit.HOURS) == false)
+            {
+                logger.warn("Timed out waiting for the broken XML files of " + specName + " to be quarantined");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this)
+        {
+            if (errorLog == null) return;
+            errorLog.close();
+            logger.warn(broken.get() + " of the " + files.get() + " file(s) of " + specName + " were broken - see the error log : " + errorLogFile.toAbsolutePath());
+        }
+    }
+}
+
+/**
+ * Raised when more of the input files of a spec are broken than its error budget allows.
+ */
+class XmlErrorBudgetExceededException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    XmlErrorBudgetExceededException(String message)
+    {
+        super(message);
+    }
+}
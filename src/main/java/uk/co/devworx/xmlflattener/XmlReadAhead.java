@@ -0,0 +1,189 @@
+package uk.co.devworx.xmlflattener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file onto the heap with asynchronous reads - a few chunks ahead of the parser - so that the document is
+ * parsed while the rest of it is still being read, rather than after the whole file has been read. The time to parse
+ * a large file then comes close to the larger of the time to read it and the time to parse it, rather than the sum.
+ *
+ * The chunks (XmlFlattener_ReadAheadChunkBytes each) are read with an {@link AsynchronousFileChannel}, with at most
+ * XmlFlattener_ReadAheadChunks of them in flight. They may complete in any order - the parser only ever sees the bytes
+ * up to the first chunk that is still being read, through {@link #awaitRead(int)}.
+ */
+class XmlReadAhead
+{
+    private static final Logger logger = Logger.getLogger(XmlReadAhead.class);
+
+    private final Path file;
+    private final AsynchronousFileChannel channel;
+    private final byte[] data;
+    private final int chunkBytes;
+    private final boolean[] chunksDone;
+    private int nextChunk;
+    private int chunksRead;
+    private int inFlight;
+    private volatile int read;
+    private IOException failure;
+
+    /**
+     * Starts reading the file - the first chunks are read in the background by the time this returns.
+     */
+    static XmlReadAhead start(Path file, int size) throws IOException
+    {
+        final XmlReadAhead readAhead = new XmlReadAhead(file, size);
+        readAhead.___readMore();
+        return readAhead;
+    }
+
+    private XmlReadAhead(Path file, int size) throws IOException
+    {
+        this.file = file;
+        this.channel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+        this.data = new byte[size];
+        this.chunkBytes = Math.max(1, XMLFlattener_PropertyManager.XmlFlattener_ReadAheadChunkBytes);
+        this.chunksDone = new boolean[(int) ((size + (long) chunkBytes - 1) / chunkBytes)];
+    }
+
+    /**
+     * @return the whole of the file - the bytes past {@link #awaitRead(int)} may not have been read yet.
+     */
+    ByteBuffer getBuffer()
+    {
+        return ByteBuffer.wrap(data);
+    }
+
+    int length()
+    {
+        return data.length;
+    }
+
+    /**
+     * Waits until at least the given number of bytes (from the start of the file) have been read.
+     * @return the number of bytes read so far - less than asked for only once the read has ended (or failed) short of
+     *         them, or the thread has been interrupted
+     */
+    int awaitRead(int bytes)
+    {
+        final int readSoFar = read;
+        if (readSoFar >= bytes || readSoFar == data.length) return readSoFar;
+        synchronized (this)
+        {
+            try
+            {
+                while (read < bytes && read < data.length && failure == null) wait();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Waits until the whole file has been read.
+     * @throws IOException if the read failed
+     */
+    void awaitAll() throws IOException
+    {
+        if (read == data.length) return;
+        synchronized (this)
+        {
+            try
+            {
+                while (read < data.length && failure == null) wait();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading " + file);
+            }
+            if (failure != null) throw new IOException("Unable to read the file " + file.toAbsolutePath() + " - " + failure, failure);
+        }
+    }
+
+    /**
+     * Issues the reads for the next chunks - up to the read ahead.
+     */
+    private synchronized void ___readMore()
+    {
+        while (failure == null && nextChunk < chunksDone.length && inFlight < Math.max(1, XMLFlattener_PropertyManager.XmlFlattener_ReadAheadChunks))
+        {
+            final int chunk = nextChunk++;
+            final int start = chunk * chunkBytes;
+            final ByteBuffer target = ByteBuffer.wrap(data, start, Math.min(chunkBytes, data.length - start));
+            inFlight++;
+            ___read(chunk, target);
+        }
+        if (inFlight == 0) ___close();
+    }
+
+    private void ___read(int chunk, ByteBuffer target)
+    {
+        channel.read(target, target.position(), chunk, new CompletionHandler<Integer, Integer>()
+        {
+            @Override
+            public void completed(Integer result, Integer attachment)
+            {
+                if (result == -1)
+                {
+                    failed(new IOException("The file ended at " + target.position() + " bytes - it was " + data.length + " bytes when the read started"), attachment);
+                    return;
+                }
+                if (target.hasRemaining() == true)
+                {
+                    ___read(chunk, target);
+                    return;
+                }
+                ___chunkRead(chunk);
+            }
+
+            @Override
+            public void failed(Throwable e, Integer attachment)
+            {
+                ___chunkFailed(e);
+            }
+        });
+    }
+
+    private synchronized void ___chunkRead(int chunk)
+    {
+        inFlight--;
+        chunksDone[chunk] = true;
+        while (chunksRead < chunksDone.length && chunksDone[chunksRead] == true) chunksRead++;
+        read = (int) Math.min(data.length, (long) chunksRead * chunkBytes);
+        notifyAll();
+        ___readMore();
+    }
+
+    private synchronized void ___chunkFailed(Throwable e)
+    {
+        inFlight--;
+        if (failure == null)
+        {
+            failure = e instanceof IOException ? (IOException) e : new IOException(e.toString(), e);
+            logger.warn("Unable to read the file " + file.toAbsolutePath() + " - " + e);
+        }
+        notifyAll();
+        if (inFlight == 0) ___close();
+    }
+
+    private void ___close()
+    {
+        try
+        {
+            if (channel.isOpen() == true) channel.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Unable to close the file " + file.toAbsolutePath() + " - " + e);
+        }
+    }
+}
@@ -0,0 +1,549 @@
+package uk.co.devworx.xmlflattener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a (huge) XML file into small documents at the boundaries of its records - the elements at the end of a
+ * simple path of element names from the root, e.g. iati-activities/iati-activity.
+ *
+ * The file is streamed through once, with just enough of a scan of the markup (tags, comments, CDATA sections,
+ * processing instructions and quoted attribute values) to keep track of the element depth. Each chunk is a copy of
+ * the start tags of the record's ancestors (so with their attributes and namespace declarations), followed by the
+ * next records - up to roughly the chunk size - and the matching end tags. A chunk never spans two different parents
+ * of the records. The content ahead of the first record is returned as the separate header document.
+ *
+ * Only UTF-8 (or ASCII) files without a DOCTYPE can be split - an {@link UnsupportedXmlException} is thrown for
+ * anything else, ahead of the first chunk. The well-formedness of the records themselves is left to the parser of
+ * each chunk.
+ */
+class XmlRecordSplitter implements Closeable
+{
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']*)[\"']");
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private static final int START = 0;
+    private static final int END = 1;
+    private static final int OTHER = 2;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[][] stepNames;
+    private final boolean[] matchLocalNames;
+    private final int recordDepth;
+    private final int chunkBytes;
+
+    private final ByteSink header = new ByteSink();
+    private final ByteSink between = new ByteSink();
+    private final ByteSink discard = new ByteSink();
+    private final ByteSink tag = new ByteSink();
+    private ByteSink chunk;
+    private byte[] readyChunk;
+
+    //the start and end tags of the (open) ancestors of the records
+    private final List<byte[]> ancestorStartTags = new ArrayList<>();
+    private final List<byte[]> ancestorEndTags = new ArrayList<>();
+    private byte[] headerDocument;
+
+    private long offset;
+    private int depth;
+    private boolean rootSeen;
+    private boolean inRecord;
+    private boolean finished;
+    private long records;
+    private long chunks;
+    private boolean contentBetweenRecords;
+
+    private int tagKind;
+    private int tagNameStart;
+    private int tagNameEnd;
+    private boolean tagSelfClosing;
+
+    /**
+     * @param recordPath the path of the records - the element names from the root, e.g. iati-activities/iati-activity
+     */
+    static XmlRecordSplitter open(Path file, String recordPath, int chunkBytes) throws IOException
+    {
+        final String[] steps = recordPath.startsWith("/") ? recordPath.substring(1).split("/") : recordPath.split("/");
+        if (steps.length < 2)
+        {
+            throw new IllegalArgumentException("The record path must be of the form root/record - you have specified : " + recordPath);
+        }
+        return new XmlRecordSplitter(FileChannel.open(file, StandardOpenOption.READ), steps, chunkBytes);
+    }
+
+    private XmlRecordSplitter(FileChannel channel, String[] steps, int chunkBytes)
+    {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        ((java.nio.Buffer) buffer).flip();
+        this.stepNames = new byte[steps.length][];
+        this.matchLocalNames = new boolean[steps.length];
+        for (int i = 0; i < steps.length; i++)
+        {
+            stepNames[i] = steps[i].getBytes(StandardCharsets.UTF_8);
+            matchLocalNames[i] = steps[i].indexOf(':') == -1;
+        }
+        this.recordDepth = steps.length - 1;
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * @return the next chunk - a document holding the next records - or null once all the records have been returned
+     */
+    byte[] nextChunk() throws IOException
+    {
+        while (readyChunk == null && finished == false)
+        {
+            ___advance();
+        }
+        final byte[] result = readyChunk;
+        readyChunk = null;
+        return result;
+    }
+
+    /**
+     * @return the document with all of the content ahead of the first record - available once the first chunk has
+     *         been returned (or the whole file scanned, if there are no records).
+     */
+    byte[] getHeaderDocument()
+    {
+        if (headerDocument == null)
+        {
+            throw new IllegalStateException("The header document is not complete until the first chunk has been read.");
+        }
+        return headerDocument;
+    }
+
+    long getRecords()
+    {
+        return records;
+    }
+
+    long getChunks()
+    {
+        return chunks;
+    }
+
+    /**
+     * @return true if there was (non whitespace) content after the first record, other than the records and their
+     *         ancestors - which is not part of either the header or the chunks.
+     */
+    boolean hasContentBetweenRecords()
+    {
+        return contentBetweenRecords;
+    }
+
+    private void ___advance() throws IOException
+    {
+        int b = ___next();
+        if (b == -1)
+        {
+            ___finish();
+            return;
+        }
+        if (b != '<')
+        {
+            final ByteSink sink = ___sink();
+            sink.add((byte) b);
+            ___copyText(sink);
+            return;
+        }
+
+        ___readMarkup();
+        if (tagKind == START)
+        {
+            ___startElement();
+        }
+        else if (tagKind == END)
+        {
+            ___endElement();
+        }
+        else
+        {
+            ___sink().add(tag);
+        }
+    }
+
+    private void ___startElement()
+    {
+        if (depth == 0)
+        {
+            if (rootSeen)
+            {
+                throw new UnsupportedXmlException("There is more than one root element - at byte " + offset);
+            }
+            rootSeen = true;
+            if (tagSelfClosing || ___nameEquals(0) == false)
+            {
+                //none of the records can match - so there is nothing to split (or flatten)
+                header.add(tag);
+                if (tagSelfClosing == false) header.add(___endTag());
+                headerDocument = header.toArray();
+                finished = true;
+                return;
+            }
+        }
+
+        if (inRecord == false && depth < recordDepth && depth == ancestorStartTags.size() && tagSelfClosing == false && ___nameEquals(depth))
+        {
+            //a new ancestor of the records - the records of the previous one (if any) are finished with
+            if (chunk != null) readyChunk = ___closeChunk();
+            (records == 0 ? header : ___discard()).add(tag);
+            ancestorStartTags.add(Arrays.copyOf(tag.data, tag.length));
+            ancestorEndTags.add(___endTag());
+            depth++;
+            return;
+        }
+
+        if (inRecord == false && depth == recordDepth && ancestorStartTags.size() == recordDepth && ___nameEquals(depth))
+        {
+            ___startRecord();
+            return;
+        }
+
+        ___sink().add(tag);
+        if (tagSelfClosing == false) depth++;
+    }
+
+    private void ___startRecord()
+    {
+        if (records == 0)
+        {
+            for (int i = ancestorEndTags.size() - 1; i >= 0; i--) header.add(ancestorEndTags.get(i));
+            headerDocument = header.toArray();
+        }
+        else if (___isWhitespace(between) == false)
+        {
+            contentBetweenRecords = true;
+        }
+        between.reset();
+
+        if (chunk == null)
+        {
+            chunk = new ByteSink();
+            for (byte[] startTag : ancestorStartTags) chunk.add(startTag);
+        }
+        chunk.add(tag);
+        if (tagSelfClosing)
+        {
+            ___endRecord();
+        }
+        else
+        {
+            inRecord = true;
+            depth++;
+        }
+    }
+
+    private void ___endElement()
+    {
+        if (depth == 0)
+        {
+            throw new UnsupportedXmlException("An end tag with no matching start tag - at byte " + offset);
+        }
+        if (inRecord == false && depth == ancestorStartTags.size())
+        {
+            //the end of an ancestor of the records
+            if (records > 0 && ___isWhitespace(between) == false) contentBetweenRecords = true;
+            between.reset();
+            if (chunk != null) readyChunk = ___closeChunk();
+            (records == 0 ? header : ___discard()).add(tag);
+            ancestorStartTags.remove(ancestorStartTags.size() - 1);
+            ancestorEndTags.remove(ancestorEndTags.size() - 1);
+            depth--;
+            if (depth == 0)
+            {
+                if (records == 0) headerDocument = header.toArray();
+                finished = true;
+            }
+            return;
+        }
+        ___sink().add(tag);
+        depth--;
+        if (inRecord && depth == recordDepth)
+        {
+            ___endRecord();
+        }
+    }
+
+    private void ___endRecord()
+    {
+        inRecord = false;
+        records++;
+        if (chunk.length >= chunkBytes)
+        {
+            readyChunk = ___closeChunk();
+        }
+    }
+
+    private byte[] ___closeChunk()
+    {
+        for (int i = ancestorEndTags.size() - 1; i >= 0; i--) chunk.add(ancestorEndTags.get(i));
+        final byte[] result = chunk.toArray();
+        chunk = null;
+        chunks++;
+        return result;
+    }
+
+    private void ___finish()
+    {
+        if (rootSeen == false || depth != 0)
+        {
+            throw new UnsupportedXmlException("The file ended before the end of the root element - at byte " + offset);
+        }
+        finished = true;
+    }
+
+    private ByteSink ___sink()
+    {
+        if (inRecord) return chunk;
+        if (depth == 0) return rootSeen ? ___discard() : header;
+        return records == 0 ? header : between;
+    }
+
+    private ByteSink ___discard()
+    {
+        discard.reset();
+        return discard;
+    }
+
+    private byte[] ___endTag()
+    {
+        return ("</" + new String(tag.data, tagNameStart, tagNameEnd - tagNameStart, StandardCharsets.UTF_8) + ">").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private boolean ___nameEquals(int step)
+    {
+        final byte[] name = stepNames[step];
+        int start = tagNameStart;
+        if (matchLocalNames[step])
+        {
+            for (int i = tagNameStart; i < tagNameEnd; i++)
+            {
+                if (tag.data[i] == ':') start = i + 1;
+            }
+        }
+        if (tagNameEnd - start != name.length) return false;
+        for (int i = 0; i < name.length; i++)
+        {
+            if (tag.data[start + i] != name[i]) return false;
+        }
+        return true;
+    }
+
+    private void ___readMarkup() throws IOException
+    {
+        tag.reset();
+        tag.add((byte) '<');
+        final int b = ___required();
+        tag.add((byte) b);
+        tagSelfClosing = false;
+
+        if (b == '?')
+        {
+            ___readUntil(4, '?', '>');
+            tagKind = OTHER;
+            if (rootSeen == false) ___checkDeclaration();
+            return;
+        }
+        if (b == '!')
+        {
+            tagKind = OTHER;
+            final int c = ___required();
+            tag.add((byte) c);
+            if (c == '-')
+            {
+                tag.add((byte) ___required());
+                ___readUntil(7, '-', '-', '>');
+            }
+            else if (c == '[')
+            {
+                ___readUntil(12, ']', ']', '>');
+            }
+            else
+            {
+                throw new UnsupportedXmlException("DOCTYPE (and other) declarations are not supported for splitting - at byte " + offset);
+            }
+            return;
+        }
+
+        int c = b;
+        if (b == '/')
+        {
+            tagKind = END;
+            c = ___required();
+            tag.add((byte) c);
+        }
+        else
+        {
+            tagKind = START;
+        }
+        tagNameStart = tag.length - 1;
+        while (c != '>' && c != '/' && c > ' ')
+        {
+            c = ___required();
+            tag.add((byte) c);
+        }
+        tagNameEnd = tag.length - 1;
+
+        int quote = 0;
+        int last = 0;
+        while (c != '>' || quote != 0)
+        {
+            if (quote == 0 && (c == '"' || c == '\'')) quote = c;
+            else if (quote == c) quote = 0;
+            if (c > ' ') last = c;
+            c = ___required();
+            tag.add((byte) c);
+        }
+        tagSelfClosing = tagKind == START && last == '/';
+    }
+
+    private void ___readUntil(int minLength, int... terminator) throws IOException
+    {
+        while (tag.length < minLength || ___endsWith(terminator) == false)
+        {
+            tag.add((byte) ___required());
+        }
+    }
+
+    private boolean ___endsWith(int[] terminator)
+    {
+        for (int i = 0; i < terminator.length; i++)
+        {
+            if (tag.data[tag.length - terminator.length + i] != terminator[i]) return false;
+        }
+        return true;
+    }
+
+    private void ___checkDeclaration()
+    {
+        final String declaration = new String(tag.data, 0, tag.length, StandardCharsets.UTF_8);
+        if (declaration.startsWith("<?xml") == false) return;
+        final Matcher m = ENCODING.matcher(declaration);
+        if (m.find() == false) return;
+        final String encoding = m.group(1).toUpperCase(Locale.ROOT);
+        if (encoding.equals("UTF-8") == false && encoding.equals("UTF8") == false && encoding.equals("US-ASCII") == false && encoding.equals("ASCII") == false)
+        {
+            throw new UnsupportedXmlException("Only UTF-8 files can be split - this one is : " + encoding);
+        }
+    }
+
+    private void ___copyText(ByteSink sink) throws IOException
+    {
+        while (true)
+        {
+            if (buffer.hasRemaining() == false && ___fill() == false) return;
+            final int start = buffer.position();
+            final int limit = buffer.limit();
+            int i = start;
+            final byte[] array = buffer.array();
+            while (i < limit && array[i] != '<') i++;
+            sink.add(array, start, i - start);
+            offset += i - start;
+            ((java.nio.Buffer) buffer).position(i);
+            if (i < limit) return;
+        }
+    }
+
+    private int ___required() throws IOException
+    {
+        final int b = ___next();
+        if (b == -1)
+        {
+            throw new UnsupportedXmlException("The file ended in the middle of a tag - at byte " + offset);
+        }
+        return b;
+    }
+
+    private int ___next() throws IOException
+    {
+        if (buffer.hasRemaining() == false && ___fill() == false) return -1;
+        offset++;
+        final int b = buffer.get() & 0xff;
+        if (offset == 1 && (b == 0xfe || b == 0xff || b == 0))
+        {
+            throw new UnsupportedXmlException("Only UTF-8 files can be split - this one looks to be UTF-16 or UTF-32");
+        }
+        return b;
+    }
+
+    private boolean ___fill() throws IOException
+    {
+        buffer.clear();
+        int read = 0;
+        while (read == 0) read = channel.read(buffer);
+        ((java.nio.Buffer) buffer).flip();
+        return read > 0;
+    }
+
+    private static boolean ___isWhitespace(ByteSink sink)
+    {
+        for (int i = 0; i < sink.length; i++)
+        {
+            final byte b = sink.data[i];
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * A simple growable byte array.
+     */
+    private static class ByteSink
+    {
+        private byte[] data = new byte[256];
+        private int length;
+
+        void add(byte b)
+        {
+            if (length == data.length) data = Arrays.copyOf(data, data.length * 2);
+            data[length++] = b;
+        }
+
+        void add(byte[] bytes)
+        {
+            add(bytes, 0, bytes.length);
+        }
+
+        void add(ByteSink other)
+        {
+            add(other.data, 0, other.length);
+        }
+
+        void add(byte[] bytes, int start, int count)
+        {
+            if (length + count > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + count));
+            System.arraycopy(bytes, start, data, length, count);
+            length += count;
+        }
+
+        void reset()
+        {
+            length = 0;
+        }
+
+        byte[] toArray()
+        {
+            return Arrays.copyOf(data, length);
+        }
+    }
+}
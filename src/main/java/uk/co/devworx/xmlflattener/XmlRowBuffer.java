@@ -0,0 +1,264 @@
+package uk.co.devworx.xmlflattener;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flattened rows, encoded into (reusable) off-heap buffers - so the rows that are handed over from the flattening
+ * workers to the writer (e.g. by the {@link XmlSplitFlattener}) do not load the heap while they wait to be written.
+ *
+ * Each row is laid out as the number of its values, its column ordinal table (the ordinal of the column of each value,
+ * in the column order of the table) and the byte length of each value - followed by the values themselves as UTF-8.
+ * The columns a row has no value for are left out, and read back as empty values.
+ *
+ * The buffer is filled by one thread and then handed over (along with its ownership) to the thread that reads it -
+ * which {@link #release()}s it once done, returning its segments to a shared pool of up to
+ * XmlFlattener_RowBufferPoolBytes.
+ */
+class XmlRowBuffer
+{
+    static final int SEGMENT_BYTES = 1024 * 1024;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    private final int columnCount;
+    private final List<ByteBuffer> segments;
+    private ByteBuffer current;
+    private int rows;
+    private boolean released;
+
+    //the row being added
+    private int rowStart;
+    private int rowValues;
+    private int rowValueCount;
+
+    XmlRowBuffer(int columnCount)
+    {
+        this.columnCount = columnCount;
+        this.segments = new ArrayList<>();
+    }
+
+    int getColumnCount()
+    {
+        return columnCount;
+    }
+
+    int getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * Starts a new row - with the given number of values, to be added with {@link #addValue(int, String)}.
+     * @param maxChars the total length of the values - to make sure the row fits in the current segment
+     */
+    void startRow(int valueCount, long maxChars)
+    {
+        ___checkNotReleased();
+        final long maxBytes = 4 + valueCount * 8L + maxChars * 3;
+        if (current == null || current.remaining() < maxBytes)
+        {
+            current = ___acquire(maxBytes);
+            segments.add(current);
+        }
+        rowStart = current.position();
+        rowValues = 0;
+        rowValueCount = valueCount;
+        current.putInt(valueCount);
+        ((java.nio.Buffer) current).position(rowStart + 4 + valueCount * 8);
+        if (valueCount == 0) rows++;
+    }
+
+    void addValue(int ordinal, String value)
+    {
+        if (rowValues == rowValueCount)
+        {
+            throw new IllegalStateException("The row was started with " + rowValueCount + " values - you cannot add any more");
+        }
+        final int start = current.position();
+        ___encode(value, current);
+        current.putInt(rowStart + 4 + rowValues * 4, ordinal);
+        current.putInt(rowStart + 4 + (rowValueCount + rowValues) * 4, current.position() - start);
+        rowValues++;
+        if (rowValues == rowValueCount) rows++;
+    }
+
+    /**
+     * @return a cursor over the rows - which must only be used by the thread that owns the buffer.
+     */
+    Cursor cursor()
+    {
+        ___checkNotReleased();
+        return new Cursor();
+    }
+
+    /**
+     * Returns the segments to the pool - the buffer must not be used after this.
+     */
+    void release()
+    {
+        if (released) return;
+        released = true;
+        for (ByteBuffer segment : segments)
+        {
+            if (segment.capacity() == SEGMENT_BYTES && pooledBytes.get() < XMLFlattener_PropertyManager.XmlFlattener_RowBufferPoolBytes)
+            {
+                ((java.nio.Buffer) segment).clear();
+                pool.add(segment);
+                pooledBytes.addAndGet(SEGMENT_BYTES);
+            }
+        }
+        segments.clear();
+        current = null;
+    }
+
+    private void ___checkNotReleased()
+    {
+        if (released) throw new IllegalStateException("The row buffer has already been released");
+    }
+
+    private static ByteBuffer ___acquire(long minBytes)
+    {
+        if (minBytes > SEGMENT_BYTES)
+        {
+            //an exceptionally large row - it gets a segment of its own, which is not pooled
+            if (minBytes > Integer.MAX_VALUE) throw new IllegalArgumentException("The row is too large to be buffered : " + minBytes + " bytes");
+            return ByteBuffer.allocateDirect((int) minBytes).order(ByteOrder.nativeOrder());
+        }
+        final ByteBuffer pooled = pool.poll();
+        if (pooled != null)
+        {
+            pooledBytes.addAndGet(-SEGMENT_BYTES);
+            return pooled;
+        }
+        return ByteBuffer.allocateDirect(SEGMENT_BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    private static void ___encode(String value, ByteBuffer buffer)
+    {
+        final int length = value.length();
+        for (int i = 0; i < length; i++)
+        {
+            final char c = value.charAt(i);
+            if (c < 0x80)
+            {
+                buffer.put((byte) c);
+            }
+            else if (c < 0x800)
+            {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                final int cp = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xf0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (cp & 0x3f)));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                buffer.put((byte) '?'); //an unpaired surrogate - as String.getBytes(UTF_8) does
+            }
+            else
+            {
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * Reads the rows back - one at a time, with the values of the current row looked up by the ordinal of their column.
+     * Nothing is allocated per row, other than the Strings asked for.
+     */
+    class Cursor
+    {
+        private final int[] offsets = new int[columnCount];
+        private final int[] lengths = new int[columnCount];
+        private int segment;
+        private int position;
+        private int row;
+        private ByteBuffer rowSegment;
+        private byte[] scratch = new byte[256];
+
+        boolean next()
+        {
+            if (row == rows) return false;
+            while (segment < segments.size() && position >= segments.get(segment).position())
+            {
+                segment++;
+                position = 0;
+            }
+            rowSegment = segments.get(segment);
+            Arrays.fill(offsets, -1);
+
+            final int valueCount = rowSegment.getInt(position);
+            int offset = position + 4 + valueCount * 8;
+            for (int i = 0; i < valueCount; i++)
+            {
+                final int ordinal = rowSegment.getInt(position + 4 + i * 4);
+                final int length = rowSegment.getInt(position + 4 + (valueCount + i) * 4);
+                if (offsets[ordinal] == -1)
+                {
+                    //the first value wins - as with LayerRow.getValues
+                    offsets[ordinal] = offset;
+                    lengths[ordinal] = length;
+                }
+                offset += length;
+            }
+            position = offset;
+            row++;
+            return true;
+        }
+
+        boolean hasValue(int ordinal)
+        {
+            return offsets[ordinal] != -1;
+        }
+
+        /**
+         * @return the length of the UTF-8 value of the column - 0 if the row has no value for it
+         */
+        int getByteLength(int ordinal)
+        {
+            return offsets[ordinal] == -1 ? 0 : lengths[ordinal];
+        }
+
+        /**
+         * Copies the UTF-8 bytes of the value of the column into the array - e.g. for a sink that writes bytes.
+         */
+        void copyBytes(int ordinal, byte[] destination, int destinationOffset)
+        {
+            final int offset = offsets[ordinal];
+            if (offset == -1) return;
+            final int length = lengths[ordinal];
+            for (int i = 0; i < length; i++)
+            {
+                destination[destinationOffset + i] = rowSegment.get(offset + i);
+            }
+        }
+
+        /**
+         * @return the value of the column - empty if the row has no value for it
+         */
+        String getString(int ordinal)
+        {
+            if (offsets[ordinal] == -1) return "";
+            final int length = lengths[ordinal];
+            if (length == 0) return "";
+            if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+            copyBytes(ordinal, scratch, 0);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
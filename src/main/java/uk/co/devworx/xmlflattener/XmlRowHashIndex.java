@@ -0,0 +1,393 @@
+package uk.co.devworx.xmlflattener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A set of 128-bit row hashes - the index behind the dedupeOn option of an output table.
+ *
+ * The hashes are held in an open addressing (linear probing) table of 16 byte slots, which doubles in size when it is
+ * half full. While the table is small it is a plain long[] on the heap. Once it outgrows XmlFlattener_DedupeHeapBytes
+ * it moves to direct (off-heap) buffers, and once it outgrows XmlFlattener_DedupeOffHeapBytes it is spilled to a
+ * memory mapped file in XmlFlattener_DedupeSpillDirectory - so a large index neither fills the heap nor fails.
+ *
+ * The all zero hash marks an empty slot - a row that hashes to it is stored as 1 instead. With 128 bits, the chance
+ * of two different rows colliding (and one being dropped as a duplicate) is negligible.
+ */
+class XmlRowHashIndex implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(XmlRowHashIndex.class);
+
+    private static final int INITIAL_SLOTS = 1 << 12;
+    private static final int SLOT_BYTES = 16;
+    private static final int SEGMENT_SLOTS = 1 << 26; //1GB per buffer segment
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final String name;
+    private Slots slots;
+    private long size;
+
+    //the state of the hash of the current row - MurmurHash3 (x64, 128-bit) fed a byte at a time
+    private long h1;
+    private long h2;
+    private long k1;
+    private long k2;
+    private int blockBytes;
+    private long hashedBytes;
+
+    XmlRowHashIndex(String name)
+    {
+        this.name = name;
+        this.slots = new HeapSlots(INITIAL_SLOTS);
+    }
+
+    /**
+     * Adds the hash of the values at the given indexes of the row.
+     * @return true if it was added - false if the same values have been added before
+     */
+    synchronized boolean add(List<String> row, int[] indexes) throws IOException
+    {
+        h1 = h2 = k1 = k2 = 0;
+        blockBytes = 0;
+        hashedBytes = 0;
+        for (int index : indexes)
+        {
+            final String value = row.get(index);
+            if (value == null)
+            {
+                ___putInt(-1);
+                continue;
+            }
+            final int length = value.length();
+            ___putInt(length);
+            for (int i = 0; i < length; i++)
+            {
+                final char c = value.charAt(i);
+                ___putByte(c);
+                ___putByte(c >>> 8);
+            }
+        }
+        ___finishHash();
+        return ___add(h1, (h1 | h2) == 0 ? 1 : h2);
+    }
+
+    synchronized long size()
+    {
+        return size;
+    }
+
+    /**
+     * @return the tier the index is currently held in - heap, off-heap or disk
+     */
+    synchronized String getTier()
+    {
+        return slots.tier();
+    }
+
+    private boolean ___add(long hi, long lo) throws IOException
+    {
+        final long mask = slots.capacity() - 1;
+        long slot = (hi ^ lo) & mask;
+        while (true)
+        {
+            final long storedHi = slots.hi(slot);
+            final long storedLo = slots.lo(slot);
+            if ((storedHi | storedLo) == 0)
+            {
+                slots.put(slot, hi, lo);
+                size++;
+                if (size * 2 > slots.capacity()) ___grow();
+                return true;
+            }
+            if (storedHi == hi && storedLo == lo)
+            {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void ___grow() throws IOException
+    {
+        final Slots previous = slots;
+        final long capacity = previous.capacity() * 2;
+        final long bytes = capacity * SLOT_BYTES;
+        if (bytes <= XMLFlattener_PropertyManager.XmlFlattener_DedupeHeapBytes && capacity * 2 <= Integer.MAX_VALUE - 8)
+        {
+            slots = new HeapSlots((int) capacity);
+        }
+        else if (bytes <= XMLFlattener_PropertyManager.XmlFlattener_DedupeOffHeapBytes)
+        {
+            slots = BufferSlots.direct(capacity);
+        }
+        else
+        {
+            slots = BufferSlots.mapped(capacity, Paths.get(XMLFlattener_PropertyManager.XmlFlattener_DedupeSpillDirectory));
+        }
+        if (slots.tier().equals(previous.tier()) == false)
+        {
+            logger.info(name + " - the dedupe index of " + size + " rows has grown to " + bytes + " bytes - moving it from " + previous.tier() + " to " + slots.tier());
+        }
+
+        final long mask = capacity - 1;
+        for (long i = 0; i < previous.capacity(); i++)
+        {
+            final long hi = previous.hi(i);
+            final long lo = previous.lo(i);
+            if ((hi | lo) == 0) continue;
+            long slot = (hi ^ lo) & mask;
+            while ((slots.hi(slot) | slots.lo(slot)) != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            slots.put(slot, hi, lo);
+        }
+        previous.close();
+    }
+
+    private void ___putInt(int value)
+    {
+        ___putByte(value);
+        ___putByte(value >>> 8);
+        ___putByte(value >>> 16);
+        ___putByte(value >>> 24);
+    }
+
+    private void ___putByte(int b)
+    {
+        final long v = b & 0xffL;
+        if (blockBytes < 8) k1 |= v << (blockBytes * 8);
+        else k2 |= v << ((blockBytes - 8) * 8);
+        blockBytes++;
+        hashedBytes++;
+        if (blockBytes == 16)
+        {
+            h1 ^= ___mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= ___mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+
+            k1 = k2 = 0;
+            blockBytes = 0;
+        }
+    }
+
+    private void ___finishHash()
+    {
+        if (blockBytes > 8) h2 ^= ___mixK2(k2);
+        if (blockBytes > 0) h1 ^= ___mixK1(k1);
+
+        h1 ^= hashedBytes;
+        h2 ^= hashedBytes;
+        h1 += h2;
+        h2 += h1;
+        h1 = ___fmix64(h1);
+        h2 = ___fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+    }
+
+    private static long ___mixK1(long k)
+    {
+        return Long.rotateLeft(k * C1, 31) * C2;
+    }
+
+    private static long ___mixK2(long k)
+    {
+        return Long.rotateLeft(k * C2, 33) * C1;
+    }
+
+    private static long ___fmix64(long k)
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        slots.close();
+        slots = new HeapSlots(INITIAL_SLOTS);
+        size = 0;
+    }
+
+    /**
+     * The storage of the slots - two longs per slot.
+     */
+    private interface Slots extends Closeable
+    {
+        long capacity();
+
+        long hi(long slot);
+
+        long lo(long slot);
+
+        void put(long slot, long hi, long lo);
+
+        String tier();
+    }
+
+    private static class HeapSlots implements Slots
+    {
+        private final long[] values;
+
+        HeapSlots(int capacity)
+        {
+            values = new long[capacity * 2];
+        }
+
+        @Override
+        public long capacity()
+        {
+            return values.length / 2;
+        }
+
+        @Override
+        public long hi(long slot)
+        {
+            return values[(int) slot * 2];
+        }
+
+        @Override
+        public long lo(long slot)
+        {
+            return values[(int) slot * 2 + 1];
+        }
+
+        @Override
+        public void put(long slot, long hi, long lo)
+        {
+            values[(int) slot * 2] = hi;
+            values[(int) slot * 2 + 1] = lo;
+        }
+
+        @Override
+        public String tier()
+        {
+            return "heap";
+        }
+
+        @Override
+        public void close()
+        {
+
+        }
+    }
+
+    /**
+     * Slots in segments of direct or memory mapped buffers - each up to 1GB, as a buffer is indexed by an int.
+     */
+    private static class BufferSlots implements Slots
+    {
+        private final ByteBuffer[] segments;
+        private final int segmentSlots;
+        private final long capacity;
+        private final FileChannel channel;
+        private final Path file;
+
+        private BufferSlots(ByteBuffer[] segments, int segmentSlots, long capacity, FileChannel channel, Path file)
+        {
+            this.segments = segments;
+            this.segmentSlots = segmentSlots;
+            this.capacity = capacity;
+            this.channel = channel;
+            this.file = file;
+        }
+
+        static BufferSlots direct(long capacity)
+        {
+            final int segmentSlots = (int) Math.min(capacity, SEGMENT_SLOTS);
+            final ByteBuffer[] segments = new ByteBuffer[(int) (capacity / segmentSlots)];
+            for (int i = 0; i < segments.length; i++)
+            {
+                segments[i] = ByteBuffer.allocateDirect(segmentSlots * SLOT_BYTES).order(ByteOrder.nativeOrder());
+            }
+            return new BufferSlots(segments, segmentSlots, capacity, null, null);
+        }
+
+        static BufferSlots mapped(long capacity, Path directory) throws IOException
+        {
+            Files.createDirectories(directory);
+            final Path file = Files.createTempFile(directory, "xml-flattener-dedupe-", ".idx");
+            final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final int segmentSlots = (int) Math.min(capacity, SEGMENT_SLOTS);
+            final ByteBuffer[] segments = new ByteBuffer[(int) (capacity / segmentSlots)];
+            final long segmentBytes = (long) segmentSlots * SLOT_BYTES;
+            for (int i = 0; i < segments.length; i++)
+            {
+                //a new file reads as zeros - i.e. all slots empty
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * segmentBytes, segmentBytes).order(ByteOrder.nativeOrder());
+            }
+            return new BufferSlots(segments, segmentSlots, capacity, channel, file);
+        }
+
+        @Override
+        public long capacity()
+        {
+            return capacity;
+        }
+
+        @Override
+        public long hi(long slot)
+        {
+            return segments[(int) (slot / segmentSlots)].getLong((int) (slot % segmentSlots) * SLOT_BYTES);
+        }
+
+        @Override
+        public long lo(long slot)
+        {
+            return segments[(int) (slot / segmentSlots)].getLong((int) (slot % segmentSlots) * SLOT_BYTES + 8);
+        }
+
+        @Override
+        public void put(long slot, long hi, long lo)
+        {
+            final ByteBuffer segment = segments[(int) (slot / segmentSlots)];
+            final int offset = (int) (slot % segmentSlots) * SLOT_BYTES;
+            segment.putLong(offset, hi);
+            segment.putLong(offset + 8, lo);
+        }
+
+        @Override
+        public String tier()
+        {
+            return channel == null ? "off-heap" : "disk";
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            //the buffers themselves are released once they are garbage collected
+            if (channel == null) return;
+            channel.close();
+            try
+            {
+                Files.deleteIfExists(file);
+            }
+            catch (IOException e)
+            {
+                //e.g. on Windows, while the file is still mapped
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+}
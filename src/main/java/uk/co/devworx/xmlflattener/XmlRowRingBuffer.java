@@ -0,0 +1,236 @@
+package uk.co.devworx.xmlflattener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the rows of an output table over from the threads that flatten the documents to a writer thread of its own -
+ * so that the XPath evaluation is never held up by the disk, and the output file is only ever written by the one thread.
+ *
+ * The rows go through a ring of pre-allocated slots (XmlFlattener_WriterRingSlots of them) - each an array of the
+ * values of a row. A flattening thread claims the next sequence number (with a single atomic increment - no locks),
+ * copies the values into its slot and publishes it by setting the sequence of the slot. The writer thread takes all of
+ * the slots published since it last looked in one go, and passes them to the sink under the write lock. A flattening
+ * thread that gets a full lap ahead of the writer waits for it to catch up.
+ *
+ * A failure of the writer is rethrown by the next {@link #publish(List)}, {@link #drain()} or {@link #close()} - the
+ * rows published after it are discarded.
+ */
+class XmlRowRingBuffer implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(XmlRowRingBuffer.class);
+    private static final int SPINS = 100;
+    private static final long BACK_OFF_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Where the rows go - called on the writer thread, under the write lock.
+     */
+    interface RowSink
+    {
+        void write(List<String> row) throws IOException;
+    }
+
+    private final String name;
+    private final int mask;
+    private final String[][] slots;
+    private final List<String>[] slotRows;
+    private final AtomicLongArray publishedSequences;
+    private final AtomicLong nextSequence;
+    private final Object writeLock;
+    private final RowSink sink;
+    private final Thread writerThread;
+
+    private volatile long writtenSequence; //all of the sequences below this have been written (or discarded)
+    private volatile boolean writerWaiting;
+    private volatile boolean closing;
+    private volatile Throwable failure;
+
+    /**
+     * Starts the writer thread.
+     * @param slotCount the size of the ring - rounded up to a power of 2
+     * @param writeLock held while the rows are passed to the sink - so the owner can safely use the sink itself (once
+     *                  it has {@link #drain()}ed the ring)
+     */
+    XmlRowRingBuffer(String name, int slotCount, int columnCount, Object writeLock, RowSink sink)
+    {
+        final int size = Integer.highestOneBit(Math.max(2, slotCount - 1) << 1);
+        this.name = name;
+        this.mask = size - 1;
+        this.slots = new String[size][columnCount];
+        this.slotRows = ___newRowArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            slotRows[i] = Arrays.asList(slots[i]);
+        }
+        this.publishedSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            publishedSequences.set(i, -1);
+        }
+        this.nextSequence = new AtomicLong();
+        this.writeLock = writeLock;
+        this.sink = sink;
+
+        writerThread = new Thread(this::___writeLoop, "xml-flattener-writer-" + name);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String>[] ___newRowArray(int size)
+    {
+        return (List<String>[]) new List<?>[size];
+    }
+
+    /**
+     * Copies the values of the row into the next slot of the ring - waiting for the writer if the ring is full.
+     */
+    void publish(List<String> row) throws IOException
+    {
+        ___checkFailure();
+        if (closing) throw new IllegalStateException("The writer of " + name + " has already been closed");
+
+        final long sequence = nextSequence.getAndIncrement();
+        int spins = 0;
+        while (sequence - slots.length >= writtenSequence)
+        {
+            spins = ___backOff(spins);
+        }
+
+        final int index = (int) sequence & mask;
+        final String[] slot = slots[index];
+        final int size = Math.min(slot.length, row.size());
+        for (int i = 0; i < size; i++)
+        {
+            slot[i] = row.get(i);
+        }
+        for (int i = size; i < slot.length; i++)
+        {
+            slot[i] = "";
+        }
+        publishedSequences.set(index, sequence);
+        if (writerWaiting) LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * Waits for all of the rows published so far to be written.
+     */
+    void drain() throws IOException
+    {
+        final long target = nextSequence.get();
+        int spins = 0;
+        while (writtenSequence < target && failure == null)
+        {
+            LockSupport.unpark(writerThread);
+            spins = ___backOff(spins);
+        }
+        ___checkFailure();
+    }
+
+    /**
+     * Writes out the rows published so far and stops the writer thread.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closing == false)
+        {
+            try
+            {
+                drain();
+            }
+            finally
+            {
+                closing = true;
+                LockSupport.unpark(writerThread);
+                try
+                {
+                    writerThread.join();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the writer of " + name + " to finish", e);
+                }
+            }
+        }
+        ___checkFailure();
+    }
+
+    private void ___writeLoop()
+    {
+        long next = 0;
+        while (true)
+        {
+            long available = next;
+            while (available - next < slots.length && publishedSequences.get((int) available & mask) == available)
+            {
+                available++;
+            }
+
+            if (available == next)
+            {
+                if (closing) return;
+                ___waitForRows(next);
+                continue;
+            }
+
+            if (failure == null)
+            {
+                try
+                {
+                    synchronized (writeLock)
+                    {
+                        for (long sequence = next; sequence < available; sequence++)
+                        {
+                            sink.write(slotRows[(int) sequence & mask]);
+                        }
+                    }
+                }
+                catch (Throwable e)
+                {
+                    logger.error("Unable to write the rows of " + name + " - " + e, e);
+                    failure = e;
+                }
+            }
+            next = available;
+            writtenSequence = next;
+        }
+    }
+
+    private void ___waitForRows(long next)
+    {
+        writerWaiting = true;
+        if (publishedSequences.get((int) next & mask) != next && closing == false)
+        {
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS); //woken up by the next publish
+        }
+        writerWaiting = false;
+    }
+
+    /**
+     * Spins for a while, then yields and then parks (briefly) - as the waits are usually short.
+     */
+    private static int ___backOff(int spins)
+    {
+        if (spins < SPINS) return spins + 1;
+        if (spins < SPINS * 2) Thread.yield();
+        else LockSupport.parkNanos(BACK_OFF_PARK_NANOS);
+        return spins + 1;
+    }
+
+    private void ___checkFailure() throws IOException
+    {
+        final Throwable e = failure;
+        if (e == null) return;
+        if (e instanceof Error) throw (Error) e;
+        throw new IOException("Unable to write the rows of " + name + " - " + e, e);
+    }
+}
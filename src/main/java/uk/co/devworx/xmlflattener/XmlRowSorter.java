@@ -0,0 +1,298 @@
+package uk.co.devworx.xmlflattener;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Sorts the rows of an output table on its sortBy columns - with an external merge sort, so that the table does not
+ * need to fit in memory.
+ *
+ * The rows are buffered in runs of up to XmlFlattener_SortRunBytes (roughly - the size of the values in memory). A full
+ * run is sorted (in parallel) and spilled to a temporary file in XmlFlattener_SortSpillDirectory, in a compact binary
+ * form - each row is the number of values, then each value as its length and UTF-8 bytes, all lengths as varints.
+ * Once all the rows are in, the runs are k-way merged into the output, at most XmlFlattener_SortMergeFanIn runs at a
+ * time - so the runs of a very large table are first merged into longer runs. If the rows all fit in a single run,
+ * they are just sorted in memory.
+ *
+ * The sort is stable - the rows with the same sortBy values are written in the order they were added.
+ */
+class XmlRowSorter implements Closeable
+{
+    private static final Logger logger = Logger.getLogger(XmlRowSorter.class);
+    private static final int ROW_OVERHEAD_BYTES = 32;
+    private static final int VALUE_OVERHEAD_BYTES = 48;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Where the sorted rows go.
+     */
+    interface RowWriter
+    {
+        void write(String[] row) throws IOException;
+    }
+
+    private final String name;
+    private final Comparator<String[]> comparator;
+    private final List<Path> runs;
+
+    private List<String[]> buffer;
+    private long bufferBytes;
+    private long rows;
+
+    XmlRowSorter(String name, int[] sortColumns, XmlFlattenerDataType[] dataTypes)
+    {
+        this.name = name;
+        this.comparator = ___comparator(sortColumns, dataTypes);
+        this.runs = new ArrayList<>();
+        this.buffer = new ArrayList<>();
+    }
+
+    private static Comparator<String[]> ___comparator(int[] sortColumns, XmlFlattenerDataType[] dataTypes)
+    {
+        return (left, right) ->
+        {
+            for (int i = 0; i < sortColumns.length; i++)
+            {
+                final int c = dataTypes[i].compareValues(left[sortColumns[i]], right[sortColumns[i]]);
+                if (c != 0) return c;
+            }
+            return 0;
+        };
+    }
+
+    synchronized void add(List<String> row) throws IOException
+    {
+        final String[] values = row.toArray(new String[0]);
+        long bytes = ROW_OVERHEAD_BYTES;
+        for (String value : values)
+        {
+            bytes += VALUE_OVERHEAD_BYTES + value.length() * 2L;
+        }
+        buffer.add(values);
+        bufferBytes += bytes;
+        rows++;
+        if (bufferBytes >= XMLFlattener_PropertyManager.XmlFlattener_SortRunBytes)
+        {
+            ___spill();
+        }
+    }
+
+    synchronized long getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * Writes all the rows added so far in sorted order - and starts again, empty.
+     */
+    synchronized void writeTo(RowWriter writer) throws IOException
+    {
+        try
+        {
+            if (runs.isEmpty())
+            {
+                for (String[] row : ___sortedBuffer()) writer.write(row);
+                return;
+            }
+            if (buffer.isEmpty() == false) ___spill();
+            logger.info(name + " - merging " + runs.size() + " sorted run(s) of " + rows + " rows in total");
+            while (runs.size() > XMLFlattener_PropertyManager.XmlFlattener_SortMergeFanIn)
+            {
+                final List<Path> merging = new ArrayList<>(runs.subList(0, XMLFlattener_PropertyManager.XmlFlattener_SortMergeFanIn));
+                final Path merged = ___newRunFile();
+                try (DataOutputStream out = ___openRunOutput(merged))
+                {
+                    ___merge(merging, row -> ___writeRow(out, row));
+                }
+                //the merged run takes the place of its runs - keeping the runs in the order the rows were added
+                runs.subList(0, merging.size()).clear();
+                runs.add(0, merged);
+                ___delete(merging);
+            }
+            ___merge(runs, writer);
+        }
+        finally
+        {
+            ___delete(runs);
+            runs.clear();
+            buffer = new ArrayList<>();
+            bufferBytes = 0;
+            rows = 0;
+        }
+    }
+
+    private List<String[]> ___sortedBuffer()
+    {
+        final String[][] sorted = buffer.toArray(new String[0][]);
+        Arrays.parallelSort(sorted, comparator); //stable, as it is a merge sort
+        return Arrays.asList(sorted);
+    }
+
+    private void ___spill() throws IOException
+    {
+        final Path run = ___newRunFile();
+        try (DataOutputStream out = ___openRunOutput(run))
+        {
+            for (String[] row : ___sortedBuffer()) ___writeRow(out, row);
+        }
+        runs.add(run);
+        logger.debug(name + " - spilled a sorted run of " + buffer.size() + " rows to " + run);
+        buffer = new ArrayList<>();
+        bufferBytes = 0;
+    }
+
+    /**
+     * Merges the runs - in order, so that the rows that compare equal are written in the order of their runs.
+     */
+    private void ___merge(List<Path> runFiles, RowWriter writer) throws IOException
+    {
+        final List<RunReader> readers = new ArrayList<>();
+        final PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runFiles.size()), (left, right) ->
+        {
+            final int c = comparator.compare(left.current, right.current);
+            return c != 0 ? c : Integer.compare(left.index, right.index);
+        });
+        try
+        {
+            for (Path run : runFiles)
+            {
+                final RunReader reader = new RunReader(readers.size(), run);
+                readers.add(reader);
+                if (reader.next()) queue.add(reader);
+            }
+            while (queue.isEmpty() == false)
+            {
+                final RunReader reader = queue.poll();
+                writer.write(reader.current);
+                if (reader.next()) queue.add(reader);
+            }
+        }
+        finally
+        {
+            for (RunReader reader : readers) reader.close();
+        }
+    }
+
+    private Path ___newRunFile() throws IOException
+    {
+        final Path directory = Paths.get(XMLFlattener_PropertyManager.XmlFlattener_SortSpillDirectory);
+        Files.createDirectories(directory);
+        return Files.createTempFile(directory, "xml-flattener-sort-", ".run");
+    }
+
+    private static DataOutputStream ___openRunOutput(Path run) throws IOException
+    {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE));
+    }
+
+    private static void ___writeRow(DataOutputStream out, String[] row) throws IOException
+    {
+        ___writeVarInt(out, row.length);
+        for (String value : row)
+        {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ___writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void ___writeVarInt(DataOutputStream out, int value) throws IOException
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int ___readVarInt(DataInputStream in) throws IOException
+    {
+        int value = 0;
+        int shift = 0;
+        while (true)
+        {
+            final int b = in.read();
+            if (b == -1)
+            {
+                if (shift == 0) return -1;
+                throw new EOFException("The sorted run ended in the middle of a value");
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+        }
+    }
+
+    private static void ___delete(List<Path> files)
+    {
+        for (Path file : files)
+        {
+            try
+            {
+                Files.deleteIfExists(file);
+            }
+            catch (IOException e)
+            {
+                logger.warn("Unable to delete the sorted run : " + file + " - " + e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        ___delete(runs);
+        runs.clear();
+        buffer = new ArrayList<>();
+        bufferBytes = 0;
+        rows = 0;
+    }
+
+    /**
+     * Reads the rows of a run back in - one at a time.
+     */
+    private static class RunReader implements Closeable
+    {
+        private final int index;
+        private final DataInputStream in;
+        private String[] current;
+        private byte[] bytes = new byte[256];
+
+        RunReader(int index, Path run) throws IOException
+        {
+            this.index = index;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException
+        {
+            final int length = ___readVarInt(in);
+            if (length == -1)
+            {
+                current = null;
+                return false;
+            }
+            final String[] row = new String[length];
+            for (int i = 0; i < length; i++)
+            {
+                final int byteLength = ___readVarInt(in);
+                if (byteLength > bytes.length) bytes = new byte[Math.max(byteLength, bytes.length * 2)];
+                in.readFully(bytes, 0, byteLength);
+                row[i] = new String(bytes, 0, byteLength, StandardCharsets.UTF_8);
+            }
+            current = row;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+}
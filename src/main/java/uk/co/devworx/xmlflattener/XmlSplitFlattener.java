@@ -0,0 +1,340 @@
+package uk.co.devworx.xmlflattener;
+
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Flattens a single huge XML file on all the cores - by splitting it (with the {@link XmlRecordSplitter}) at the
+ * boundaries of the records of its top level explode item, and flattening the chunks in parallel.
+ *
+ * The root level columns are flattened just the once, from the header of the file (the content of the root ahead of
+ * the first record), and shared by all of the chunks. The rows are written out in the order of the chunks - so the
+ * output is the same as flattening the file in one go. That includes a file with a broken record: the rows of the
+ * chunks are held (off-heap) until the whole file has been flattened, and are dropped if any of them fails - so
+ * nothing of a quarantined file is written, split or not (nor are the dynamic columns of its records added). The memory this takes is that of the rows of the file.
+ *
+ * As the explode levels of a document are merged as a cross product, a spec can only be split if the records are its
+ * only explode level, i.e. a single explode item (a simple path of element names) with no nested explode items. The other
+ * specs - and the files that are not UTF-8 or have a DOCTYPE - are flattened in one go as before.
+ */
+class XmlSplitFlattener
+{
+    private static final Logger logger = Logger.getLogger(XmlSplitFlattener.class);
+    private static final Pattern RECORD_PATH = Pattern.compile("/?[^/\\[\\]()@*.|:]+(:[^/\\[\\]()@*.|:]+)?(/[^/\\[\\]()@*.|:]+(:[^/\\[\\]()@*.|:]+)?)+");
+
+    private static volatile ExecutorService workers;
+
+    private XmlSplitFlattener()
+    {
+
+    }
+
+    /**
+     * @return true if the file is large enough to be worth splitting - and the spec can be split.
+     */
+    static boolean shouldSplit(XmlFlattenerSpec spec, XmlInputFile xmlFile)
+    {
+        return xmlFile.getSize() >= XMLFlattener_PropertyManager.XmlFlattener_SplitThresholdBytes && getRecordPath(spec).isPresent();
+    }
+
+    /**
+     * @return the root/record path the items of the spec can be split on - if they can be.
+     */
+    static Optional<String> getRecordPath(XmlFlattenerSpec spec)
+    {
+        String recordPath = null;
+        for (FlattenerListItem item : spec.getSpecListItems().values())
+        {
+            final Optional<String> itemPath = ___getRecordPath(item);
+            if (itemPath.isPresent() == false) return Optional.empty();
+            if (recordPath != null && recordPath.equals(itemPath.get()) == false) return Optional.empty();
+            recordPath = itemPath.get();
+        }
+        return Optional.ofNullable(recordPath);
+    }
+
+    private static Optional<String> ___getRecordPath(FlattenerListItem item)
+    {
+        if (item.getExplodeItems().size() != 1) return Optional.empty();
+        final XmlFlattenerExplodeItem records = item.getExplodeItems().get(0);
+        final String recordPath = records.getSource().trim();
+        if (records.getAllExplodeItems().isEmpty() == false || records.getCircuitBreaker().isPresent() || RECORD_PATH.matcher(recordPath).matches() == false)
+        {
+            return Optional.empty();
+        }
+        if (records.getNamespaces().isEmpty() == false && recordPath.indexOf(':') != -1)
+        {
+            //the splitter matches the prefixes as they are written - not the namespaces they are bound to
+            return Optional.empty();
+        }
+
+        final String relativePath = recordPath.startsWith("/") ? recordPath.substring(1) : recordPath;
+        for (XmlFlattenerSpecColumn col : item.getColumns())
+        {
+            //the root level columns only see the header - so they must not look into the records
+            final String source = col.getSource().trim();
+            if (col.getType() != XmlFlattenerSourceType.eval && (source.contains("//") || (source.startsWith("/") ? source.substring(1) : source).startsWith(relativePath)))
+            {
+                return Optional.empty();
+            }
+        }
+        for (XmlFlattenerSpecColumn col : records.getAllColumns())
+        {
+            //each record must be flattened on its own - without the single eval value, or looking outside of the record
+            final String source = col.getSource().trim();
+            if (col.getType() == XmlFlattenerSourceType.eval || source.startsWith("/") || source.contains(".."))
+            {
+                return Optional.empty();
+            }
+        }
+        return Optional.of(recordPath);
+    }
+
+    /**
+     * Flattens the file to (the already set up) CSV printers of the items - only once all of its records have been
+     * flattened, so nothing is written if the file turns out to be broken.
+     * @return false if the file cannot be split after all (nothing has been written) - so must be flattened in one go
+     */
+    static boolean flatten(final Timestamp batchTime,
+                           final XmlFlattenerSpec spec,
+                           final Collection<FlattenerListItem> flattenerListItems,
+                           final XmlInputFile xmlFile,
+                           final XmlQuarantine quarantine) throws IOException
+    {
+        final Map<String, String> sqlValues = ___sqlValues(batchTime, xmlFile);
+        final int inFlightLimit = XMLFlattener_PropertyManager.XmlFlattener_SplitParallelism * 2;
+        final Deque<Future<List<XmlRowBuffer>>> inFlight = new ArrayDeque<>();
+        final Deque<List<XmlRowBuffer>> flattened = new ArrayDeque<>();
+
+        try (XmlRecordSplitter splitter = XmlRecordSplitter.open(xmlFile.getPath(), getRecordPath(spec).get(), XMLFlattener_PropertyManager.XmlFlattener_SplitChunkBytes))
+        {
+            byte[] chunk = ___firstChunk(splitter, xmlFile, spec);
+            if (chunk == null) return false;
+            final ParameterBag header = ParameterBag.create(XmlDocumentSource.of(splitter.getHeaderDocument()), batchTime, sqlValues);
+
+            final List<SplitItem> items = new ArrayList<>();
+            for (FlattenerListItem item : flattenerListItems)
+            {
+                items.add(new SplitItem(item, header));
+            }
+
+            while (chunk != null)
+            {
+                final byte[] document = chunk;
+                inFlight.addLast(___workers().submit(() -> ___flattenChunk(document, batchTime, sqlValues, items)));
+                if (inFlight.size() >= inFlightLimit)
+                {
+                    flattened.addLast(___await(inFlight.removeFirst()));
+                }
+                chunk = splitter.nextChunk();
+            }
+            while (inFlight.isEmpty() == false)
+            {
+                flattened.addLast(___await(inFlight.removeFirst()));
+            }
+            while (flattened.isEmpty() == false)
+            {
+                ___write(flattened.removeFirst(), items);
+            }
+
+            spec.addToBytesProcessed(xmlFile.getSize());
+            spec.addXmlsProcessed();
+            for (SplitItem item : items) item.item.addXmlsProcessed();
+            ___report(spec, xmlFile, splitter);
+            return true;
+        }
+        catch (SAXException | UnsupportedXmlException e)
+        {
+            quarantine.quarantine(xmlFile.getPath(), e);
+        }
+        finally
+        {
+            inFlight.forEach(f -> f.cancel(true));
+            flattened.forEach(results -> results.forEach(XmlRowBuffer::release));
+        }
+        return true;
+    }
+
+    /**
+     * Resolves the dynamic columns of the items from the file - chunk by chunk.
+     * @return false if the file cannot be split after all - so must be pre-processed in one go
+     */
+    static boolean preProcess(final Timestamp batchTime,
+                              final XmlFlattenerSpec spec,
+                              final Collection<FlattenerListItem> flattenerListItems,
+                              final XmlInputFile xmlFile,
+                              final XmlQuarantine quarantine) throws IOException
+    {
+        final Map<String, String> sqlValues = ___sqlValues(batchTime, xmlFile);
+        final Map<FlattenerListItem, Map<XmlFlattenerSpecColumn, Set<String>>> resolvedBefore = new HashMap<>();
+        flattenerListItems.forEach(m -> resolvedBefore.put(m, m.getResolvedColumnNames()));
+        try (XmlRecordSplitter splitter = XmlRecordSplitter.open(xmlFile.getPath(), getRecordPath(spec).get(), XMLFlattener_PropertyManager.XmlFlattener_SplitChunkBytes))
+        {
+            byte[] chunk = ___firstChunk(splitter, xmlFile, spec);
+            if (chunk == null) return false;
+            final ParameterBag header = ParameterBag.create(XmlDocumentSource.of(splitter.getHeaderDocument()), batchTime, sqlValues);
+            flattenerListItems.forEach(m -> m.preProcessRow(header));
+            while (chunk != null)
+            {
+                final ParameterBag paramBag = ParameterBag.create(XmlDocumentSource.of(chunk), batchTime, sqlValues);
+                flattenerListItems.forEach(m -> m.preProcessRow(paramBag));
+                chunk = splitter.nextChunk();
+            }
+            spec.addToBytesProcessed(xmlFile.getSize());
+            spec.addXmlsProcessed();
+        }
+        catch (SAXException | UnsupportedXmlException e)
+        {
+            //as with a file pre-processed in one go, a broken file adds no dynamic columns
+            resolvedBefore.forEach(FlattenerListItem::retainResolvedColumns);
+            quarantine.quarantine(xmlFile.getPath(), e);
+        }
+        return true;
+    }
+
+    /**
+     * @return the first chunk - or null if there are no records, or the file cannot be split (e.g. it is not UTF-8).
+     */
+    private static byte[] ___firstChunk(XmlRecordSplitter splitter, XmlInputFile xmlFile, XmlFlattenerSpec spec) throws IOException
+    {
+        try
+        {
+            return splitter.nextChunk();
+        }
+        catch (UnsupportedXmlException e)
+        {
+            logger.info("The file " + xmlFile.getPath() + " cannot be split for " + spec.getName() + " - flattening it in one go : " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Map<String, String> ___sqlValues(Timestamp batchTime, XmlInputFile xmlFile)
+    {
+        final Map<String, String> sqlValues = new HashMap<>();
+        sqlValues.put("source_xml_date", xmlFile.getLastModifiedTime().toInstant().toString());
+        sqlValues.put("input_file_name", xmlFile.getPath().getFileName().toString());
+        sqlValues.put("currenttime", batchTime.toString());
+        return sqlValues;
+    }
+
+    private static List<XmlRowBuffer> ___flattenChunk(byte[] chunk, Timestamp batchTime, Map<String, String> sqlValues, List<SplitItem> items) throws SAXException, IOException
+    {
+        final ParameterBag paramBag = ParameterBag.create(XmlDocumentSource.of(chunk), batchTime, sqlValues);
+        final List<XmlRowBuffer> results = new ArrayList<>(items.size());
+        for (SplitItem item : items)
+        {
+            final List<LayerRowsContainer> containers = XmlFlattener.createLevelRowContainers(item.item, true);
+            for (int i = 1; i < containers.size(); i++)
+            {
+                containers.get(i).processDocument(paramBag);
+            }
+            containers.set(0, item.rootContainer);
+
+            //the rows wait off-heap until they are written - handed over to the writer along with the buffer
+            final XmlRowBuffer buffer = new XmlRowBuffer(item.allColumns.size());
+            for (LayerRow row : LayerRowsContainer.mergeLayerRows(containers))
+            {
+                row.writeTo(buffer, item.columnOrdinals);
+            }
+            results.add(buffer);
+        }
+        return results;
+    }
+
+    private static List<XmlRowBuffer> ___await(Future<List<XmlRowBuffer>> chunk) throws IOException, SAXException
+    {
+        try
+        {
+            return chunk.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the chunk to be flattened", e);
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SAXException) throw (SAXException) cause;
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException("Unable to flatten the chunk - " + cause, cause);
+        }
+    }
+
+    private static void ___write(List<XmlRowBuffer> results, List<SplitItem> items) throws IOException
+    {
+        try
+        {
+            for (int i = 0; i < items.size(); i++)
+            {
+                items.get(i).item.writeRows(results.get(i));
+            }
+        }
+        finally
+        {
+            results.forEach(XmlRowBuffer::release);
+        }
+    }
+
+    private static void ___report(XmlFlattenerSpec spec, XmlInputFile xmlFile, XmlRecordSplitter splitter)
+    {
+        logger.info("Split the file " + xmlFile.getPath().getFileName() + " (" + xmlFile.getSize() + " bytes) into " + splitter.getChunks() + " chunks of " + splitter.getRecords() + " records in total, for " + spec.getName());
+        if (splitter.hasContentBetweenRecords())
+        {
+            logger.warn("The file " + xmlFile.getPath() + " has content in between / after its records - this is not seen by the root level columns of " + spec.getName() + ", which are taken from the content ahead of the first record.");
+        }
+    }
+
+    private static ExecutorService ___workers()
+    {
+        if (workers == null)
+        {
+            synchronized (XmlSplitFlattener.class)
+            {
+                if (workers == null)
+                {
+                    final AtomicInteger counter = new AtomicInteger();
+                    workers = Executors.newFixedThreadPool(XMLFlattener_PropertyManager.XmlFlattener_SplitParallelism, r ->
+                    {
+                        final Thread t = new Thread(r, "xml-flattener-split-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return workers;
+    }
+
+    /**
+     * An item along with its root level container - flattened once from the header and shared by all the chunks.
+     */
+    private static class SplitItem
+    {
+        private final FlattenerListItem item;
+        private final LayerRowsContainer rootContainer;
+        private final List<XmlFlattenerSpecColumn> allColumns;
+        private final Map<XmlFlattenerSpecColumn, Integer> columnOrdinals;
+
+        SplitItem(FlattenerListItem item, ParameterBag header)
+        {
+            final List<LayerRowsContainer> containers = XmlFlattener.createLevelRowContainers(item, true);
+            this.item = item;
+            this.rootContainer = containers.get(0);
+            this.rootContainer.processDocument(header);
+            this.allColumns = LayerRowsContainer.getColumns(containers);
+            this.columnOrdinals = new HashMap<>();
+            for (int i = allColumns.size() - 1; i >= 0; i--)
+            {
+                columnOrdinals.put(allColumns.get(i), i); //the first of any equal columns wins - as with indexOf
+            }
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package uk.co.devworx.xmlflattener;
+
+import org.xml.sax.SAXParseException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * All the path columns of a spec - across its output tables and levels - compiled into the one automaton, which is run
+ * over the events of the {@link XmlByteScanner} once per document. The values are picked up as the document goes past,
+ * rather than from a {@link XmlDocumentTree} built first and then walked once per table, level and context node.
+ *
+ * The automaton is a trie of element steps - as per the {@link XmlTreePathTrie}, only for every context at once:
+ * <ul>
+ *     <li>Each explode item is a chain of steps underneath the context of its parent item (or the document root).
+ *     Reaching its last step opens the next instance of the item's context - i.e. the next of the nodes the item
+ *     explodes into, in document order. The circuit breaker counts the matches of each step under each element, just
+ *     as the tree does.</li>
+ *     <li>The column paths of each context share their common leading steps, and end in a terminal - the attribute
+ *     (read at the start tag), the first text or the string-value (collected up to the end tag) of the element.</li>
+ * </ul>
+ * The active states are kept on a stack of the open elements, so each event only looks at the steps that can follow
+ * from its parent. As per XPath's string() conversion, the first value in document order is taken for each column and
+ * context instance.
+ *
+ * A spec is only streamed if the tree is not needed at all - i.e. every column of its tables is either a simple path
+ * ({@link XmlTreePath}) without namespace bindings or an eval, and every explode item in their lineages is a simple path
+ * of at least one element step. The documents the byte scanner does not support (or rejects) are parsed to the tree,
+ * as before.
+ */
+class XmlStreamingPlan
+{
+    private static final Logger logger = Logger.getLogger(XmlStreamingPlan.class);
+
+    private static final int TERMINAL_ELEMENT = 0;
+    private static final int TERMINAL_ATTRIBUTE = 1;
+    private static final int TERMINAL_TEXT = 2;
+
+    private final List<String> names;
+    private final Node root;
+    private final List<XmlFlattenerSpecColumn> columns;
+    private final int[][] contextColumns;
+
+    /**
+     * @return the plan for the (set up) tables - or empty if any of their columns cannot be streamed
+     */
+    static Optional<XmlStreamingPlan> compile(Collection<FlattenerListItem> items)
+    {
+        if (XMLFlattener_PropertyManager.XmlFlattener_StreamingColumns == false) return Optional.empty();
+
+        final List<XmlLayerPlan.PathGroup> groups = new ArrayList<>();
+        for (FlattenerListItem item : items)
+        {
+            final List<LayerRowsContainer> containers = item.getContainers();
+            if (containers == null) return Optional.empty();
+            for (LayerRowsContainer container : containers)
+            {
+                for (XmlFlattenerSpecColumn col : container.getPlan().getColumnByColumn())
+                {
+                    if (col.getType() != XmlFlattenerSourceType.eval) return ___notStreamed(item, "the column " + col.getColumnName() + " is not a simple path");
+                }
+                for (XmlLayerPlan.PathGroup group : container.getPlan().getPathGroups())
+                {
+                    for (XmlFlattenerSpecColumn col : group.getColumns())
+                    {
+                        if (col.getTreePath().get().isNamespaced() == true) return ___notStreamed(item, "the column " + col.getColumnName() + " binds a namespace");
+                    }
+                    if (___isStreamable(group.getParent()) == false) return ___notStreamed(item, "the explode item " + group.getParent().get().getName() + " (or one of its parents) is not a simple path");
+                    groups.add(group);
+                }
+            }
+        }
+        if (groups.isEmpty() == true) return Optional.empty();
+        return Optional.of(new XmlStreamingPlan(groups));
+    }
+
+    private static Optional<XmlStreamingPlan> ___notStreamed(FlattenerListItem item, String reason)
+    {
+        if (logger.isDebugEnabled()) logger.debug("Evaluating the columns against the document tree - " + reason + " (" + item.getMapName() + ")");
+        return Optional.empty();
+    }
+
+    private static boolean ___isStreamable(Optional<XmlFlattenerExplodeItem> item)
+    {
+        for (Optional<XmlFlattenerExplodeItem> i = item; i.isPresent(); i = i.get().getParent())
+        {
+            final Optional<XmlTreePath> path = i.get().getTreePath();
+            if (path.isPresent() == false || path.get().isNamespaced() == true || path.get().getElementSteps().isEmpty() == true) return false;
+        }
+        return true;
+    }
+
+    private XmlStreamingPlan(List<XmlLayerPlan.PathGroup> groups)
+    {
+        final Builder builder = new Builder();
+        for (XmlLayerPlan.PathGroup group : groups)
+        {
+            final Node context = builder.context(group.getParent());
+            for (XmlFlattenerSpecColumn col : group.getColumns())
+            {
+                builder.addColumn(context, col);
+            }
+        }
+        this.names = builder.names;
+        this.root = builder.root;
+        this.columns = builder.columns;
+        this.contextColumns = new int[builder.contextCount][];
+        for (int ctx = 0; ctx < contextColumns.length; ctx++)
+        {
+            final IntArrayBuilder cols = new IntArrayBuilder();
+            for (int c = 0; c < builder.columnContexts.size(); c++)
+            {
+                if (builder.columnContexts.get(c) == ctx) cols.add(c);
+            }
+            contextColumns[ctx] = cols.toArray();
+        }
+        for (Node node : builder.nodes)
+        {
+            node.children = node.childList.toArray(new Node[0]);
+        }
+        if (logger.isDebugEnabled()) logger.debug("Streaming " + columns.size() + " path column(s) through " + (builder.nodes.size() - 1) + " steps and " + contextColumns.length + " context(s)");
+    }
+
+    int getColumnCount()
+    {
+        return columns.size();
+    }
+
+    /**
+     * Runs the document through the automaton.
+     * @return the values of each of the columns - one for each instance of its context, in document order
+     * @throws UnsupportedXmlException if the byte scanner does not support the document
+     * @throws SAXParseException if the byte scanner rejects the document
+     */
+    Map<XmlFlattenerSpecColumn, List<String>> evaluate(XmlDocumentSource source) throws SAXParseException
+    {
+        //the names of the plan are interned first (and in the same order) so they have the same symbols in every document
+        final XmlSymbolTable symbols = new XmlSymbolTable();
+        for (String name : names)
+        {
+            symbols.intern(name);
+        }
+        final ByteBuffer buffer = source.getBufferAhead();
+        final Run run = new Run(symbols, buffer);
+        new XmlByteScanner(source, buffer, symbols, run).scan();
+        return run.finish();
+    }
+
+    /**
+     * A step of the automaton.
+     */
+    private static class Node
+    {
+        private final int nameId;
+        private final boolean qualified;
+        private final Map<String, Node> columnSteps = new LinkedHashMap<>();
+        private final List<Node> childList = new ArrayList<>();
+        private Node[] children;
+        private Terminal[] terminals = new Terminal[0];
+        private int context = XmlDocumentTree.NONE;
+        private int circuitBreaker = -1;
+        private XmlFlattenerExplodeItem explodeItem;
+
+        private Node(int nameId, boolean qualified)
+        {
+            this.nameId = nameId;
+            this.qualified = qualified;
+        }
+    }
+
+    private static class Terminal
+    {
+        private final int column;
+        private final int kind;
+        private final int attributeId;
+        private final boolean attributeQualified;
+
+        private Terminal(int column, int kind, int attributeId, boolean attributeQualified)
+        {
+            this.column = column;
+            this.kind = kind;
+            this.attributeId = attributeId;
+            this.attributeQualified = attributeQualified;
+        }
+    }
+
+    private static class Builder
+    {
+        private final XmlSymbolTable symbols = new XmlSymbolTable();
+        private final List<String> names = new ArrayList<>();
+        private final List<Node> nodes = new ArrayList<>();
+        private final Node root;
+        private final Map<XmlFlattenerExplodeItem, Node> contexts = new IdentityHashMap<>();
+        private final List<XmlFlattenerSpecColumn> columns = new ArrayList<>();
+        private final List<Integer> columnContexts = new ArrayList<>();
+        private int contextCount;
+
+        private Builder()
+        {
+            root = ___node(XmlDocumentTree.NONE, false);
+            root.context = contextCount++;
+        }
+
+        private Node ___node(int nameId, boolean qualified)
+        {
+            final Node node = new Node(nameId, qualified);
+            nodes.add(node);
+            return node;
+        }
+
+        private int ___intern(String name)
+        {
+            if (symbols.lookup(name) == XmlDocumentTree.NONE) names.add(name);
+            return symbols.intern(name);
+        }
+
+        /**
+         * @return the node the context of the explode item is opened at - each explode item has a chain of its own,
+         *         as it has a circuit breaker of its own
+         */
+        private Node context(Optional<XmlFlattenerExplodeItem> item)
+        {
+            if (item.isPresent() == false) return root;
+            final Node existing = contexts.get(item.get());
+            if (existing != null) return existing;
+
+            Node node = context(item.get().getParent());
+            final XmlTreePath path = item.get().getTreePath().get();
+            for (int s = 0; s < path.getElementSteps().size(); s++)
+            {
+                final Node step = ___node(___intern(path.getElementSteps().get(s)), path.isElementStepQualified(s));
+                step.circuitBreaker = item.get().getCircuitBreaker().orElse(-1);
+                step.explodeItem = item.get();
+                node.childList.add(step);
+                node = step;
+            }
+            node.context = contextCount++;
+            contexts.put(item.get(), node);
+            return node;
+        }
+
+        private void addColumn(Node context, XmlFlattenerSpecColumn col)
+        {
+            final XmlTreePath path = col.getTreePath().get();
+            Node node = context;
+            for (int s = 0; s < path.getElementSteps().size(); s++)
+            {
+                final String name = path.getElementSteps().get(s);
+                Node step = node.columnSteps.get(name);
+                if (step == null)
+                {
+                    step = ___node(___intern(name), path.isElementStepQualified(s));
+                    node.columnSteps.put(name, step);
+                    node.childList.add(step);
+                }
+                node = step;
+            }
+            final int kind = path.endsInAttribute() ? TERMINAL_ATTRIBUTE : path.endsInText() ? TERMINAL_TEXT : TERMINAL_ELEMENT;
+            final int attributeId = kind == TERMINAL_ATTRIBUTE ? ___intern(path.getAttributeName()) : XmlDocumentTree.NONE;
+            node.terminals = Arrays.copyOf(node.terminals, node.terminals.length + 1);
+            node.terminals[node.terminals.length - 1] = new Terminal(columns.size(), kind, attributeId, path.isAttributeQualified());
+            columns.add(col);
+            columnContexts.add(context.context);
+        }
+    }
+
+    /**
+     * The states of the automaton at one of the open elements - along with the values being collected there.
+     */
+    private static class Frame
+    {
+        private Node[] nodes = new Node[4];
+        private int[] instances = new int[4];
+        private int[][] counts = new int[4][];
+        private int size;
+        private int[] texts = new int[4];
+        private int textSize;
+        private int[] values = new int[6];
+        private int valueSize;
+
+        private void clear()
+        {
+            Arrays.fill(counts, 0, size, null);
+            size = 0;
+            textSize = 0;
+            valueSize = 0;
+        }
+
+        private void add(Node node, int instance)
+        {
+            if (size == nodes.length)
+            {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                instances = Arrays.copyOf(instances, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            nodes[size] = node;
+            instances[size++] = instance;
+        }
+
+        private void addText(int column, int instance)
+        {
+            if (textSize + 2 > texts.length) texts = Arrays.copyOf(texts, texts.length * 2);
+            texts[textSize++] = column;
+            texts[textSize++] = instance;
+        }
+
+        private void addValue(int column, int instance, int start)
+        {
+            if (valueSize + 3 > values.length) values = Arrays.copyOf(values, values.length * 2);
+            values[valueSize++] = column;
+            values[valueSize++] = instance;
+            values[valueSize++] = start;
+        }
+    }
+
+    /**
+     * The run of the automaton over one document.
+     */
+    private class Run implements XmlByteScanHandler
+    {
+        private final XmlSymbolTable symbols;
+        private final ByteBuffer buffer;
+        private final List<List<String>> values;
+        private final int[] instanceCounts;
+        private final StringBuilder collected;
+        private Frame[] frames;
+        private int depth;
+        private int openValues;
+
+        private Run(XmlSymbolTable symbols, ByteBuffer buffer)
+        {
+            this.symbols = symbols;
+            this.buffer = buffer;
+            this.values = new ArrayList<>(columns.size());
+            for (int c = 0; c < columns.size(); c++)
+            {
+                values.add(new ArrayList<>());
+            }
+            this.instanceCounts = new int[contextColumns.length];
+            this.collected = new StringBuilder();
+            this.frames = new Frame[16];
+            for (int i = 0; i < frames.length; i++)
+            {
+                frames[i] = new Frame();
+            }
+
+            //the document node - only the string-value of the document (i.e. a "." column at the root) has a value there
+            final int instance = ___open(root.context);
+            frames[0].add(root, instance);
+            for (Terminal terminal : root.terminals)
+            {
+                if (terminal.kind == TERMINAL_ELEMENT) ___collect(frames[0], terminal, instance);
+            }
+        }
+
+        @Override
+        public void startElement(XmlByteScanner scanner, int nameId)
+        {
+            final Frame parent = frames[depth];
+            if (++depth == frames.length)
+            {
+                frames = Arrays.copyOf(frames, depth * 2);
+                for (int i = depth; i < frames.length; i++)
+                {
+                    frames[i] = new Frame();
+                }
+            }
+            final Frame frame = frames[depth];
+            frame.clear();
+            if (parent.size == 0) return;
+
+            final int localNameId = symbols.getLocalNameId(nameId);
+            for (int a = 0; a < parent.size; a++)
+            {
+                final Node[] children = parent.nodes[a].children;
+                for (int c = 0; c < children.length; c++)
+                {
+                    final Node child = children[c];
+                    if ((child.qualified ? nameId : localNameId) != child.nameId) continue;
+                    if (child.circuitBreaker != -1 && ___breaks(parent, a, c, child) == true) continue;
+
+                    final int instance = child.context == XmlDocumentTree.NONE ? parent.instances[a] : ___open(child.context);
+                    frame.add(child, instance);
+                    for (Terminal terminal : child.terminals)
+                    {
+                        ___startTerminal(scanner, frame, terminal, instance);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void endElement(int nameId)
+        {
+            ___close(frames[depth--]);
+        }
+
+        @Override
+        public void text(int start, int end, boolean encoded)
+        {
+            final Frame frame = frames[depth];
+            if (frame.textSize == 0 && openValues == 0) return;
+            final String text = XmlByteScanner.decodeText(buffer, start, end, encoded);
+            for (int i = 0; i < frame.textSize; i += 2)
+            {
+                final List<String> list = values.get(frame.texts[i]);
+                if (list.get(frame.texts[i + 1]) == null) list.set(frame.texts[i + 1], text);
+            }
+            frame.textSize = 0; //only the first text node
+            if (openValues > 0) collected.append(text);
+        }
+
+        /**
+         * Counts the match of the step of the explode item under the element - as per {@link XmlTreePath#selectElements}.
+         * @return true if the circuit breaker stops the match
+         */
+        private boolean ___breaks(Frame parent, int active, int childIndex, Node child)
+        {
+            int[] counts = parent.counts[active];
+            if (counts == null)
+            {
+                counts = new int[parent.nodes[active].children.length];
+                parent.counts[active] = counts;
+            }
+            final int count = counts[childIndex]++;
+            if (count < child.circuitBreaker) return false;
+            if (count == child.circuitBreaker) child.explodeItem.getTreePath().get().warnCircuitBreaker(child.explodeItem.getName(), count);
+            return true;
+        }
+
+        /**
+         * Opens the next instance of the context - with no value (yet) for any of its columns.
+         */
+        private int ___open(int context)
+        {
+            for (int c : contextColumns[context])
+            {
+                values.get(c).add(null);
+            }
+            return instanceCounts[context]++;
+        }
+
+        private void ___startTerminal(XmlByteScanner scanner, Frame frame, Terminal terminal, int instance)
+        {
+            final List<String> list = values.get(terminal.column);
+            if (list.get(instance) != null) return;
+            switch (terminal.kind)
+            {
+                case TERMINAL_ATTRIBUTE:
+                    for (int i = 0; i < scanner.getAttributeCount(); i++)
+                    {
+                        final int attributeNameId = terminal.attributeQualified ? scanner.getAttributeNameId(i) : symbols.getLocalNameId(scanner.getAttributeNameId(i));
+                        if (attributeNameId == terminal.attributeId)
+                        {
+                            list.set(instance, scanner.getAttributeValue(i));
+                            return;
+                        }
+                    }
+                    return;
+                case TERMINAL_TEXT:
+                    frame.addText(terminal.column, instance);
+                    return;
+                default:
+                    ___collect(frame, terminal, instance);
+            }
+        }
+
+        private void ___collect(Frame frame, Terminal terminal, int instance)
+        {
+            frame.addValue(terminal.column, instance, collected.length());
+            openValues++;
+        }
+
+        private void ___close(Frame frame)
+        {
+            for (int i = 0; i < frame.valueSize; i += 3)
+            {
+                final List<String> list = values.get(frame.values[i]);
+                if (list.get(frame.values[i + 1]) == null) list.set(frame.values[i + 1], collected.substring(frame.values[i + 2]));
+                openValues--;
+            }
+            frame.valueSize = 0;
+            if (openValues == 0) collected.setLength(0);
+        }
+
+        private Map<XmlFlattenerSpecColumn, List<String>> finish()
+        {
+            ___close(frames[0]);
+            final Map<XmlFlattenerSpecColumn, List<String>> result = new IdentityHashMap<>();
+            for (int c = 0; c < columns.size(); c++)
+            {
+                final List<String> list = values.get(c);
+                list.replaceAll(v -> v == null ? "" : v);
+                result.put(columns.get(c), list);
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "XmlStreamingPlan{" + "columns=" + columns.size() + ", contexts=" + contextColumns.length + ", names=" + names + '}';
+    }
+}
@@ -0,0 +1,428 @@
+package uk.co.devworx.xmlflattener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+
+/**
+ * A compiled form of the simple XPath expressions that make up the bulk of the flattening specs - i.e. a
+ * sequence of child element steps, optionally ending in an attribute (@name) or text() step. For example:
+ *
+ * <pre>
+ *     iati-activities/iati-activity
+ *     transaction-type/@code
+ *     value/text()
+ *     .
+ * </pre>
+ *
+ * These are evaluated directly against the {@link XmlDocumentTree} - anything more involved (predicates, axes,
+ * functions, wildcards etc.) is not supported here and continues to be evaluated through javax.xml.xpath.
+ *
+ * Unprefixed names match on the local part of the element / attribute name (which is how the XPath engine
+ * treats the non namespace aware documents). Names with a prefix bound by the spec ({@link XmlNamespaceBindings})
+ * match on the local name and the namespace - both as int compares - whichever prefix the document uses. Any other
+ * prefixed names must match the name exactly.
+ */
+class XmlTreePath
+{
+    private static final Logger logger = Logger.getLogger(XmlTreePath.class);
+
+    private static final int TERMINAL_ELEMENT = 0;
+    private static final int TERMINAL_ATTRIBUTE = 1;
+    private static final int TERMINAL_TEXT = 2;
+    private static final int[] NO_NAMESPACES = new int[0];
+
+    private final String source;
+    private final String[] elementSteps;
+    private final String[] elementStepNames;
+    private final String[] elementStepNamespaces;
+    private final boolean[] elementStepQualified;
+    private final boolean namespaced;
+    private final int terminal;
+    private final String attributeName;
+    private final String attributeNamespace;
+    private final boolean attributeQualified;
+
+    /**
+     * @return the compiled path - or empty if the expression is beyond what can be evaluated against the tree.
+     */
+    static Optional<XmlTreePath> compile(String source)
+    {
+        return compile(source, XmlNamespaceBindings.NONE);
+    }
+
+    /**
+     * @return the compiled path, with the prefixes bound by the spec resolved to their namespaces - or empty if the
+     *         expression is beyond what can be evaluated against the tree.
+     */
+    static Optional<XmlTreePath> compile(String source, XmlNamespaceBindings namespaces)
+    {
+        if (source == null) return Optional.empty();
+        final String trimmed = source.trim();
+        if (trimmed.startsWith("/") || trimmed.endsWith("/") || trimmed.contains("//")) return Optional.empty();
+
+        final List<String> steps = new ArrayList<>();
+        int terminal = TERMINAL_ELEMENT;
+        String attributeName = null;
+
+        final String[] parts = trimmed.isEmpty() ? new String[0] : trimmed.split("/");
+        for (int i = 0; i < parts.length; i++)
+        {
+            final String step = parts[i].trim();
+            final boolean last = i == parts.length - 1;
+            if (step.equals(".")) continue;
+            if (last && step.equals("text()"))
+            {
+                terminal = TERMINAL_TEXT;
+                continue;
+            }
+            if (last && step.startsWith("@") && isName(step.substring(1)))
+            {
+                terminal = TERMINAL_ATTRIBUTE;
+                attributeName = step.substring(1);
+                continue;
+            }
+            if (isName(step) == false) return Optional.empty();
+            steps.add(step);
+        }
+        return Optional.of(new XmlTreePath(source, steps, terminal, attributeName, namespaces));
+    }
+
+    private static boolean isName(String step)
+    {
+        if (step.isEmpty()) return false;
+        final char first = step.charAt(0);
+        if (Character.isLetter(first) == false && first != '_') return false;
+        for (int i = 1; i < step.length(); i++)
+        {
+            final char c = step.charAt(i);
+            if (Character.isLetterOrDigit(c) == false && c != '-' && c != '_' && c != '.' && c != ':') return false;
+        }
+        return step.startsWith(":") == false && step.endsWith(":") == false;
+    }
+
+    private XmlTreePath(String source, List<String> steps, int terminal, String attributeName, XmlNamespaceBindings namespaces)
+    {
+        this.source = source;
+        this.elementSteps = steps.toArray(new String[0]);
+        this.elementStepNames = new String[elementSteps.length];
+        this.elementStepNamespaces = new String[elementSteps.length];
+        this.elementStepQualified = new boolean[elementSteps.length];
+        boolean anyNamespaced = false;
+        for (int i = 0; i < elementSteps.length; i++)
+        {
+            elementStepNamespaces[i] = ___boundNamespace(elementSteps[i], namespaces);
+            elementStepNames[i] = elementStepNamespaces[i] == null ? elementSteps[i] : ___localPart(elementSteps[i]);
+            elementStepQualified[i] = elementStepNamespaces[i] == null && elementSteps[i].indexOf(':') != -1;
+            anyNamespaced = anyNamespaced || elementStepNamespaces[i] != null;
+        }
+        this.namespaced = anyNamespaced;
+        this.terminal = terminal;
+        this.attributeNamespace = attributeName == null ? null : ___boundNamespace(attributeName, namespaces);
+        this.attributeName = attributeNamespace == null ? attributeName : ___localPart(attributeName);
+        this.attributeQualified = attributeNamespace == null && attributeName != null && attributeName.indexOf(':') != -1;
+    }
+
+    /**
+     * @return the namespace the prefix of the name is bound to by the spec - or null if it has no bound prefix
+     */
+    private static String ___boundNamespace(String name, XmlNamespaceBindings namespaces)
+    {
+        final int colon = name.indexOf(':');
+        return colon == -1 ? null : namespaces.getUri(name.substring(0, colon));
+    }
+
+    private static String ___localPart(String name)
+    {
+        return name.substring(name.indexOf(':') + 1);
+    }
+
+    String getSource()
+    {
+        return source;
+    }
+
+    /**
+     * @return true if the path selects elements (rather than attributes or text)
+     */
+    boolean selectsElements()
+    {
+        return terminal == TERMINAL_ELEMENT;
+    }
+
+    /**
+     * Evaluates the path as per XPath's string() conversion - i.e. the string-value of the first node selected
+     * in document order, or an empty string if nothing is selected.
+     */
+    String evaluateString(XmlDocumentTree tree, int context)
+    {
+        final int[] stepIds = ___resolveStepIds(tree);
+        if (stepIds == null) return "";
+        final int[] namespaceIds = ___resolveNamespaceIds(tree);
+        if (namespaceIds == null) return "";
+        final int attributeId = resolveAttributeId(tree);
+        if (terminal == TERMINAL_ATTRIBUTE && attributeId == XmlDocumentTree.NONE) return "";
+        final String value = ___first(tree, context, 0, stepIds, namespaceIds, attributeId, resolveAttributeNamespaceId(tree));
+        return value == null ? "" : value;
+    }
+
+    /**
+     * @return the symbol of the attribute the path ends in - NONE if the path does not end in an attribute, or the
+     *         attribute (or its namespace) is not in the document.
+     */
+    int resolveAttributeId(XmlDocumentTree tree)
+    {
+        if (terminal != TERMINAL_ATTRIBUTE) return XmlDocumentTree.NONE;
+        if (attributeNamespace != null && tree.getSymbols().lookupNamespace(attributeNamespace) == XmlDocumentTree.NONE) return XmlDocumentTree.NONE;
+        return tree.getSymbols().lookup(attributeName);
+    }
+
+    /**
+     * @return the namespace of the attribute the path ends in - NONE if its name has no bound prefix.
+     */
+    int resolveAttributeNamespaceId(XmlDocumentTree tree)
+    {
+        return attributeNamespace == null ? XmlDocumentTree.NONE : tree.getSymbols().lookupNamespace(attributeNamespace);
+    }
+
+    boolean endsInAttribute()
+    {
+        return terminal == TERMINAL_ATTRIBUTE;
+    }
+
+    boolean endsInText()
+    {
+        return terminal == TERMINAL_TEXT;
+    }
+
+    /**
+     * @return the name of the attribute the path ends in (the local part, if it has a bound prefix) - or null
+     */
+    String getAttributeName()
+    {
+        return attributeName;
+    }
+
+    /**
+     * @return true if the attribute has a prefix that is not bound - so must match the name exactly
+     */
+    boolean isAttributeQualified()
+    {
+        return attributeQualified;
+    }
+
+    /**
+     * @return true if any of the names of the path have a prefix bound by the spec
+     */
+    boolean isNamespaced()
+    {
+        return namespaced == true || attributeNamespace != null;
+    }
+
+    /**
+     * Evaluates the last step of the path (the attribute, text or string-value) against the node the element steps
+     * led to - null if there is no value there, in which case the next node matching the element steps is tried.
+     */
+    String evaluateTerminal(XmlDocumentTree tree, int node, int attributeId, int attributeNamespaceId)
+    {
+        switch (terminal)
+        {
+            case TERMINAL_ATTRIBUTE:
+                if (tree.isElement(node) == false) return null;
+                if (attributeNamespace != null) return tree.getAttributeValueByNamespace(node, attributeId, attributeNamespaceId);
+                return tree.getAttributeValueById(node, attributeId, attributeQualified == false);
+            case TERMINAL_TEXT: return tree.getFirstText(node);
+            default: return tree.getStringValue(node);
+        }
+    }
+
+    /**
+     * @return the element steps of the path - e.g. [transaction, value] for transaction/value/@currency
+     */
+    List<String> getElementSteps()
+    {
+        return Collections.unmodifiableList(Arrays.asList(elementSteps));
+    }
+
+    /**
+     * @return the name the step is looked up by - the local part, if the step has a bound prefix
+     */
+    String getElementStepName(int stepIndex)
+    {
+        return elementStepNames[stepIndex];
+    }
+
+    /**
+     * @return the namespace the prefix of the step is bound to - or null if it has no bound prefix
+     */
+    String getElementStepNamespace(int stepIndex)
+    {
+        return elementStepNamespaces[stepIndex];
+    }
+
+    /**
+     * @return true if the step has a prefix that is not bound - so must match the name exactly
+     */
+    boolean isElementStepQualified(int stepIndex)
+    {
+        return elementStepQualified[stepIndex];
+    }
+
+    private String ___first(XmlDocumentTree tree, int node, int stepIndex, int[] stepIds, int[] namespaceIds, int attributeId, int attributeNamespaceId)
+    {
+        if (stepIndex == stepIds.length)
+        {
+            return evaluateTerminal(tree, node, attributeId, attributeNamespaceId);
+        }
+        final int localNameId = ___localNameId(tree, stepIndex, stepIds);
+        final int end = tree.getChildIndexEnd(node, localNameId);
+        for (int i = tree.getChildIndexStart(node, localNameId); i < end; i++)
+        {
+            final int c = tree.getChildIndexElement(i);
+            if (___matches(tree, c, stepIndex, stepIds, namespaceIds) == false) continue;
+            final String value = ___first(tree, c, stepIndex + 1, stepIds, namespaceIds, attributeId, attributeNamespaceId);
+            if (value != null) return value;
+        }
+        return null;
+    }
+
+    /**
+     * Selects all the elements, in document order. The circuit breaker (if set) limits how many elements are
+     * taken from under each parent.
+     */
+    int[] selectElements(XmlDocumentTree tree, int context, OptionalInt circuitBreaker, String explodeItemName)
+    {
+        if (terminal != TERMINAL_ELEMENT)
+        {
+            throw new IllegalStateException("The path - " + source + " - does not select elements");
+        }
+        final int[] stepIds = ___resolveStepIds(tree);
+        if (stepIds == null) return new int[0];
+        if (stepIds.length == 0) return new int[] { context };
+        final int[] namespaceIds = ___resolveNamespaceIds(tree);
+        if (namespaceIds == null) return new int[0];
+
+        final IntArrayBuilder result = new IntArrayBuilder();
+        ___collect(tree, context, 0, stepIds, namespaceIds, circuitBreaker, explodeItemName, result);
+        return result.toArray();
+    }
+
+    private void ___collect(XmlDocumentTree tree,
+                            int node,
+                            int stepIndex,
+                            int[] stepIds,
+                            int[] namespaceIds,
+                            OptionalInt circuitBreaker,
+                            String explodeItemName,
+                            IntArrayBuilder result)
+    {
+        int count = 0;
+        final int localNameId = ___localNameId(tree, stepIndex, stepIds);
+        final int end = tree.getChildIndexEnd(node, localNameId);
+        for (int i = tree.getChildIndexStart(node, localNameId); i < end; i++)
+        {
+            final int c = tree.getChildIndexElement(i);
+            if (___matches(tree, c, stepIndex, stepIds, namespaceIds) == false) continue;
+            if (circuitBreaker.isPresent() == true && count >= circuitBreaker.getAsInt())
+            {
+                warnCircuitBreaker(explodeItemName, count);
+                break;
+            }
+            count++;
+            if (stepIndex == stepIds.length - 1) result.add(c);
+            else ___collect(tree, c, stepIndex + 1, stepIds, namespaceIds, circuitBreaker, explodeItemName, result);
+        }
+    }
+
+    void warnCircuitBreaker(String explodeItemName, int count)
+    {
+        logger.warn("Invoking the Circuit Breaker for " + explodeItemName + " - Total Item Count : " + count + ".  You may need to review your Exploded Items and the Expression : " + source + ". Try flattening the levels it goes through instead.");
+    }
+
+    /**
+     * The children are indexed by local name - a prefixed step then also needs to match the full name, and a step
+     * with a bound prefix the namespace.
+     */
+    private int ___localNameId(XmlDocumentTree tree, int stepIndex, int[] stepIds)
+    {
+        return elementStepQualified[stepIndex] == true ? tree.getSymbols().getLocalNameId(stepIds[stepIndex]) : stepIds[stepIndex];
+    }
+
+    private boolean ___matches(XmlDocumentTree tree, int element, int stepIndex, int[] stepIds, int[] namespaceIds)
+    {
+        if (elementStepQualified[stepIndex] == true) return tree.getNameId(element) == stepIds[stepIndex];
+        return elementStepNamespaces[stepIndex] == null || tree.getNamespaceId(element) == namespaceIds[stepIndex];
+    }
+
+    /**
+     * @return the symbols for each of the element steps - or null if any of the names are not in the document.
+     */
+    private int[] ___resolveStepIds(XmlDocumentTree tree)
+    {
+        final int[] ids = new int[elementSteps.length];
+        for (int i = 0; i < elementSteps.length; i++)
+        {
+            ids[i] = tree.getSymbols().lookup(elementStepNames[i]);
+            if (ids[i] == XmlDocumentTree.NONE) return null;
+        }
+        return ids;
+    }
+
+    /**
+     * @return the namespace ids for each of the element steps with a bound prefix - or null if any of the namespaces
+     *         are not declared in the document.
+     */
+    private int[] ___resolveNamespaceIds(XmlDocumentTree tree)
+    {
+        if (namespaced == false) return NO_NAMESPACES;
+        final int[] ids = new int[elementSteps.length];
+        for (int i = 0; i < elementSteps.length; i++)
+        {
+            if (elementStepNamespaces[i] == null) continue;
+            ids[i] = tree.getSymbols().lookupNamespace(elementStepNamespaces[i]);
+            if (ids[i] == XmlDocumentTree.NONE) return null;
+        }
+        return ids;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "XmlTreePath{" + "source='" + source + '\'' + ", elementSteps=" + Arrays.toString(elementSteps) + ", terminal=" + terminal + ", attributeName='" + attributeName + '\'' + '}';
+    }
+}
+
+/**
+ * A minimal growable int array - avoids boxing when collecting node ids.
+ */
+class IntArrayBuilder
+{
+    private int[] values = new int[16];
+    private int size;
+
+    void add(int value)
+    {
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    void addAll(int[] toAdd)
+    {
+        if (size + toAdd.length > values.length) values = Arrays.copyOf(values, Math.max(values.length * 2, size + toAdd.length));
+        System.arraycopy(toAdd, 0, values, size, toAdd.length);
+        size += toAdd.length;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    int[] toArray()
+    {
+        return Arrays.copyOf(values, size);
+    }
+}
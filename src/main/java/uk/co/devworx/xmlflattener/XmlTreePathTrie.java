@@ -0,0 +1,204 @@
+package uk.co.devworx.xmlflattener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of {@link XmlTreePath}s evaluated against the same context node - merged on their common leading element
+ * steps, so that each shared prefix is only walked the once. For example, contact-info/email and contact-info/phone
+ * walk contact-info once, and then look for both email and phone underneath it.
+ *
+ * The values are exactly those of evaluating each path on its own - i.e. the first value in document order. Where a
+ * path finds no value under the first element of a shared prefix, the walk carries on to the next one for the paths
+ * that are still unresolved, and stops as soon as all of the paths underneath the prefix have their value.
+ */
+class XmlTreePathTrie
+{
+    private final XmlTreePath[] paths;
+    private final Node root;
+    private final int nodeCount;
+
+    XmlTreePathTrie(List<XmlTreePath> paths)
+    {
+        this.paths = paths.toArray(new XmlTreePath[0]);
+        final List<Node> nodes = new ArrayList<>();
+        root = new Node(nodes.size(), null, null, null, false);
+        nodes.add(root);
+        for (int p = 0; p < this.paths.length; p++)
+        {
+            Node node = root;
+            final List<String> steps = this.paths[p].getElementSteps();
+            for (int s = 0; s < steps.size(); s++)
+            {
+                final String step = steps.get(s);
+                Node child = node.children.get(step);
+                if (child == null)
+                {
+                    child = new Node(nodes.size(), step, this.paths[p].getElementStepName(s), this.paths[p].getElementStepNamespace(s), this.paths[p].isElementStepQualified(s));
+                    nodes.add(child);
+                    node.children.put(step, child);
+                }
+                node = child;
+            }
+            node.terminalPaths = Arrays.copyOf(node.terminalPaths, node.terminalPaths.length + 1);
+            node.terminalPaths[node.terminalPaths.length - 1] = p;
+        }
+        nodeCount = nodes.size();
+        for (Node node : nodes)
+        {
+            node.childArray = node.children.values().toArray(new Node[0]);
+        }
+    }
+
+    int getPathCount()
+    {
+        return paths.length;
+    }
+
+    /**
+     * @return the number of element steps walked for each context node - one per distinct prefix
+     */
+    int getStepCount()
+    {
+        return nodeCount - 1;
+    }
+
+    /**
+     * Resolves the names of the paths against the symbols of the document - once for all of the context nodes of
+     * the document. The returned evaluation is only to be used by the one thread.
+     */
+    Evaluation evaluate(XmlDocumentTree tree)
+    {
+        return new Evaluation(tree);
+    }
+
+    private static class Node
+    {
+        private final int id;
+        private final String step;
+        private final String name;
+        private final String namespace;
+        private final boolean qualified;
+        private final Map<String, Node> children = new LinkedHashMap<>();
+        private Node[] childArray;
+        private int[] terminalPaths = new int[0];
+
+        private Node(int id, String step, String name, String namespace, boolean qualified)
+        {
+            this.id = id;
+            this.step = step;
+            this.name = name;
+            this.namespace = namespace;
+            this.qualified = qualified;
+        }
+    }
+
+    class Evaluation
+    {
+        private final XmlDocumentTree tree;
+        private final int[] stepIds;
+        private final int[] namespaceIds;
+        private final int[] attributeIds;
+        private final int[] attributeNamespaceIds;
+        private final boolean[] missing;
+        private final int[] resolvablePaths;
+        private final int[] remaining;
+        private String[] values;
+
+        private Evaluation(XmlDocumentTree tree)
+        {
+            this.tree = tree;
+            this.stepIds = new int[nodeCount];
+            this.namespaceIds = new int[nodeCount];
+            this.attributeIds = new int[paths.length];
+            this.attributeNamespaceIds = new int[paths.length];
+            this.missing = new boolean[paths.length];
+            this.resolvablePaths = new int[nodeCount];
+            this.remaining = new int[nodeCount];
+            ___resolve(root, false);
+        }
+
+        /**
+         * Works out which of the paths cannot match anything in the document (as one of their names is not in it) -
+         * those are left empty without being walked.
+         */
+        private int ___resolve(Node node, boolean missingStep)
+        {
+            if (node.step != null)
+            {
+                stepIds[node.id] = tree.getSymbols().lookup(node.name);
+                namespaceIds[node.id] = node.namespace == null ? XmlDocumentTree.NONE : tree.getSymbols().lookupNamespace(node.namespace);
+                missingStep = missingStep || stepIds[node.id] == XmlDocumentTree.NONE || (node.namespace != null && namespaceIds[node.id] == XmlDocumentTree.NONE);
+            }
+            int resolvable = 0;
+            for (int p : node.terminalPaths)
+            {
+                attributeIds[p] = paths[p].resolveAttributeId(tree);
+                attributeNamespaceIds[p] = paths[p].resolveAttributeNamespaceId(tree);
+                missing[p] = missingStep || (paths[p].endsInAttribute() && attributeIds[p] == XmlDocumentTree.NONE);
+                if (missing[p] == false) resolvable++;
+            }
+            for (Node child : node.childArray)
+            {
+                resolvable += ___resolve(child, missingStep);
+            }
+            resolvablePaths[node.id] = resolvable;
+            return resolvable;
+        }
+
+        /**
+         * Evaluates all of the paths against the context node - the values are as per
+         * {@link XmlTreePath#evaluateString(XmlDocumentTree, int)}, in the order the paths were given.
+         */
+        void evaluateStrings(int context, String[] result)
+        {
+            values = result;
+            Arrays.fill(values, null);
+            System.arraycopy(resolvablePaths, 0, remaining, 0, nodeCount);
+            if (remaining[root.id] > 0) ___evaluate(context, root);
+            for (int p = 0; p < values.length; p++)
+            {
+                if (values[p] == null) values[p] = "";
+            }
+        }
+
+        /**
+         * @return the number of paths that were resolved underneath the element
+         */
+        private int ___evaluate(int element, Node node)
+        {
+            int resolved = 0;
+            for (int p : node.terminalPaths)
+            {
+                if (missing[p] == true || values[p] != null) continue;
+                final String value = paths[p].evaluateTerminal(tree, element, attributeIds[p], attributeNamespaceIds[p]);
+                if (value == null) continue;
+                values[p] = value;
+                resolved++;
+            }
+            for (Node child : node.childArray)
+            {
+                if (remaining[child.id] == 0) continue;
+                final int stepId = stepIds[child.id];
+                //the children are indexed by local name - a prefixed step then also needs to match the full name, and a
+                //step with a bound prefix the namespace
+                final int localNameId = child.qualified == true ? tree.getSymbols().getLocalNameId(stepId) : stepId;
+                final int end = tree.getChildIndexEnd(element, localNameId);
+                for (int i = tree.getChildIndexStart(element, localNameId); i < end; i++)
+                {
+                    final int c = tree.getChildIndexElement(i);
+                    if (child.qualified == true && tree.getNameId(c) != stepId) continue;
+                    if (child.namespace != null && tree.getNamespaceId(c) != namespaceIds[child.id]) continue;
+                    final int r = ___evaluate(c, child);
+                    remaining[child.id] -= r;
+                    resolved += r;
+                    if (remaining[child.id] == 0) break;
+                }
+            }
+            return resolved;
+        }
+    }
+}
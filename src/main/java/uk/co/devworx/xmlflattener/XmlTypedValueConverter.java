@@ -0,0 +1,169 @@
+package uk.co.devworx.xmlflattener;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+/**
+ * Validates the values of a typed column and converts them to the canonical form of its {@link XmlFlattenerDataType}.
+ *
+ * The numbers and booleans are checked by scanning the characters directly (no exceptions, and no allocation when
+ * the value is already in its canonical form - which is the common case). The dates and timestamps go through the
+ * column's own {@link TimeFormatResolver}, so the format is learnt from the first value.
+ */
+class XmlTypedValueConverter
+{
+    private static final String TRUE = "true";
+    private static final String FALSE = "false";
+
+    /**
+     * The largest number of digits a decimal exponent may add to (or move past the point of) its plain form.
+     */
+    static final int MAX_DECIMAL_SCALE = 1000;
+
+    private final XmlFlattenerDataType dataType;
+    private final TimeFormatResolver timeFormats;
+
+    XmlTypedValueConverter(XmlFlattenerDataType dataType)
+    {
+        this.dataType = dataType;
+        this.timeFormats = dataType == XmlFlattenerDataType.DATE || dataType == XmlFlattenerDataType.TIMESTAMP ? TimeFormatResolver.create() : null;
+    }
+
+    XmlFlattenerDataType getDataType()
+    {
+        return dataType;
+    }
+
+    /**
+     * @return the canonical value (an empty value stays empty) - or null if the value is not valid for the data type.
+     */
+    String convert(String value)
+    {
+        if (dataType == XmlFlattenerDataType.STRING) return value;
+
+        int start = 0;
+        int end = value.length();
+        while (start < end && Character.isWhitespace(value.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(value.charAt(end - 1))) end--;
+        if (start == end) return "";
+
+        switch (dataType)
+        {
+            case INT: return ___convertInteger(value, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            case LONG: return ___convertInteger(value, start, end, Long.MIN_VALUE, Long.MAX_VALUE);
+            case DECIMAL: return ___convertDecimal(value, start, end);
+            case BOOLEAN: return ___convertBoolean(value, start, end);
+            case DATE:
+            {
+                final Optional<LocalDateTime> parsed = timeFormats.parse(___trimmed(value, start, end));
+                return parsed.isPresent() ? parsed.get().toLocalDate().toString() : null;
+            }
+            case TIMESTAMP:
+            {
+                final Optional<LocalDateTime> parsed = timeFormats.parse(___trimmed(value, start, end));
+                return parsed.isPresent() ? Timestamp.valueOf(parsed.get()).toString() : null;
+            }
+            default: throw new IllegalArgumentException("No idea how to convert the " + dataType + " type.  Check if you've added code for that new enum type.");
+        }
+    }
+
+    private static String ___trimmed(String value, int start, int end)
+    {
+        return start == 0 && end == value.length() ? value : value.substring(start, end);
+    }
+
+    private static String ___convertInteger(String value, int start, int end, long min, long max)
+    {
+        int i = start;
+        final char sign = value.charAt(i);
+        final boolean negative = sign == '-';
+        if (sign == '-' || sign == '+') i++;
+        if (i == end) return null;
+
+        final boolean leadingZero = value.charAt(i) == '0' && end - i > 1;
+        //accumulate negatively, so that the minimum value does not overflow
+        final long limit = negative ? min : -max;
+        long result = 0;
+        for (; i < end; i++)
+        {
+            final int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return null;
+            if (result < (limit + digit) / 10) return null;
+            result = result * 10 - digit;
+            if (result < limit) return null;
+        }
+        if (result == 0 && negative) return "0";
+        if (sign != '+' && leadingZero == false) return ___trimmed(value, start, end);
+        return Long.toString(negative ? result : -result);
+    }
+
+    private static String ___convertDecimal(String value, int start, int end)
+    {
+        int i = start;
+        final char sign = value.charAt(i);
+        if (sign == '-' || sign == '+') i++;
+
+        final int integerStart = i;
+        while (i < end && ___isDigit(value.charAt(i))) i++;
+        final int integerDigits = i - integerStart;
+        int fractionDigits = 0;
+        final boolean hasPoint = i < end && value.charAt(i) == '.';
+        if (hasPoint)
+        {
+            i++;
+            final int fractionStart = i;
+            while (i < end && ___isDigit(value.charAt(i))) i++;
+            fractionDigits = i - fractionStart;
+        }
+        if (integerDigits + fractionDigits == 0) return null;
+
+        boolean hasExponent = false;
+        if (i < end && (value.charAt(i) == 'e' || value.charAt(i) == 'E'))
+        {
+            hasExponent = true;
+            i++;
+            if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) i++;
+            final int exponentStart = i;
+            while (i < end && ___isDigit(value.charAt(i))) i++;
+            if (i == exponentStart) return null;
+        }
+        if (i != end) return null;
+
+        final boolean leadingZero = integerDigits > 1 && value.charAt(integerStart) == '0';
+        final boolean canonical = sign != '+' && hasExponent == false && leadingZero == false && integerDigits > 0 && (hasPoint == false || fractionDigits > 0);
+        if (canonical) return ___trimmed(value, start, end);
+
+        final BigDecimal decimal;
+        try
+        {
+            decimal = new BigDecimal(value.substring(start, end));
+        }
+        catch (NumberFormatException e)
+        {
+            return null; //the exponent does not fit in an int
+        }
+        //the plain form of a large exponent is as many digits long - so such values are reported rather than expanded
+        if (Math.abs((long) decimal.scale()) > MAX_DECIMAL_SCALE) return decimal.signum() == 0 ? "0" : null;
+        return decimal.toPlainString();
+    }
+
+    private static boolean ___isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static String ___convertBoolean(String value, int start, int end)
+    {
+        final int length = end - start;
+        if (___matches(value, start, length, TRUE) || ___matches(value, start, length, "yes") || ___matches(value, start, length, "y") || ___matches(value, start, length, "1")) return TRUE;
+        if (___matches(value, start, length, FALSE) || ___matches(value, start, length, "no") || ___matches(value, start, length, "n") || ___matches(value, start, length, "0")) return FALSE;
+        return null;
+    }
+
+    private static boolean ___matches(String value, int start, int length, String candidate)
+    {
+        return length == candidate.length() && value.regionMatches(true, start, candidate, 0, length);
+    }
+}
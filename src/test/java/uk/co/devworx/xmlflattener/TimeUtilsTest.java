@@ -4,6 +4,9 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
 
 public class TimeUtilsTest
 {
@@ -15,5 +18,37 @@ public class TimeUtilsTest
 		Assertions.assertNotNull(tst);
 	}
 
+	@Test
+	public void testParseWithoutExceptions()
+	{
+		Assertions.assertEquals(Timestamp.valueOf("2019-09-01 15:01:00"), TimeUtils.parseSQLTimestamp("2019/9/1 15:01:00").get());
+		Assertions.assertEquals(Timestamp.valueOf("2019-09-01 00:00:00"), TimeUtils.parseSQLTimestamp("01/09/2019").get());
+		Assertions.assertEquals(Timestamp.valueOf("2019-09-01 15:01:30.5"), TimeUtils.parseSQLTimestamp("2019-09-01T15:01:30.5").get());
+		Assertions.assertFalse(TimeUtils.parseSQLTimestamp("not a date").isPresent());
+		Assertions.assertFalse(TimeUtils.parseSQLTimestamp("31/02/2019").isPresent());
+		Assertions.assertFalse(TimeUtils.parseSQLTimestamp(null).isPresent());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> TimeUtils.convertToSQLTimestamp("not a date"));
+	}
+
+	@Test
+	public void testFormatShapes()
+	{
+		final TimeFormatResolver.FormatShape shape = TimeFormatResolver.FormatShape.create("yyyy/M/d HH:mm:ss");
+		Assertions.assertTrue(shape.accepts("2019/9/1 15:01:00"));
+		Assertions.assertTrue(shape.accepts("2019/09/10 15:01:00"));
+		Assertions.assertFalse(shape.accepts("2019-09-10 15:01:00"));
+		Assertions.assertFalse(shape.accepts("2019/09/10"));
+		Assertions.assertNull(TimeFormatResolver.FormatShape.create("dd MMM yyyy"));
+
+		//every candidate accepts the values it formats
+		final LocalDateTime sample = LocalDateTime.of(2019, 9, 1, 5, 1, 0);
+		for (DateTimeFormatter candidate : TimeUtils.DateTimeParseCandidates)
+		{
+			final Optional<String> pattern = TimeUtils.getCandidatePattern(candidate);
+			if (pattern.isPresent() == false) continue;
+			Assertions.assertTrue(TimeFormatResolver.FormatShape.create(pattern.get()).accepts(candidate.format(sample)), pattern.get());
+		}
+	}
+
 
 }
@@ -0,0 +1,68 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+public class XmlCorpusProfilerTest
+{
+	private static final Path ODA = Paths.get("examples/ODA-International-Subscriptions");
+
+	@TempDir
+	Path rootDirectory;
+
+	@Test
+	public void testProfileAndSuggestedCircuitBreakers() throws Exception
+	{
+		Files.createDirectories(rootDirectory.resolve("xml"));
+		Files.copy(ODA.resolve("oda-flattening-transactions.yml"), rootDirectory.resolve("oda-flattening-transactions.yml"));
+		for (int i = 0; i < 3; i++)
+		{
+			Files.copy(ODA.resolve("xml/international-subscriptions-oda-data.xml"), rootDirectory.resolve("xml/oda-" + i + ".xml"));
+		}
+		//a DOCTYPE sends the document to the JDK parser - which must profile it the same way
+		final String oda = new String(Files.readAllBytes(ODA.resolve("xml/international-subscriptions-oda-data.xml")), StandardCharsets.UTF_8);
+		Files.write(rootDirectory.resolve("xml/oda-dtd.xml"), oda.replaceFirst("<iati-activities", "<!DOCTYPE iati-activities>\n<iati-activities").getBytes(StandardCharsets.UTF_8));
+		Files.write(rootDirectory.resolve("xml/oda-broken.xml"), "<iati-activities><iati-activity>".getBytes(StandardCharsets.UTF_8));
+
+		final XmlFlattenerSpec spec = XmlFlattenerSpecFactory.parse(rootDirectory.resolve("oda-flattening-transactions.yml")).values().iterator().next();
+		final XmlCorpusProfiler profiler = XmlCorpusProfiler.profile(spec, spec.getInputPath());
+		Assertions.assertEquals(4, profiler.getDocuments());
+		Assertions.assertEquals(1, profiler.getBrokenFiles());
+
+		final XmlCorpusProfiler.PathNode activity = profiler.getPath("iati-activities/iati-activity");
+		Assertions.assertEquals(4 * 9, activity.getOccurrences());
+		Assertions.assertEquals(4, activity.getDocuments());
+		Assertions.assertEquals(9, activity.getMaxFanOut());
+		Assertions.assertTrue(activity.getAttributes().containsKey("default-currency"), activity.getAttributes().toString());
+
+		final XmlCorpusProfiler.PathNode transaction = profiler.getPath("iati-activities/iati-activity/transaction");
+		Assertions.assertEquals(4 * 136, transaction.getOccurrences());
+		Assertions.assertTrue(transaction.getMaxFanOut() > 136 / 9, String.valueOf(transaction.getMaxFanOut()));
+		Assertions.assertTrue(transaction.getFanOutPercentile(50) <= transaction.getMaxFanOut());
+
+		final XmlCorpusProfiler.PathNode identifier = profiler.getPath("iati-activities/iati-activity/iati-identifier");
+		Assertions.assertTrue(identifier.getMaxTextBytes() >= "GB-GOV-3-PHR-MUL-051801".length(), String.valueOf(identifier.getMaxTextBytes()));
+		Assertions.assertTrue(identifier.getAverageTextBytes() > 0);
+
+		final List<XmlCorpusProfiler.Suggestion> suggestions = profiler.getSuggestions();
+		Assertions.assertEquals(2, suggestions.size());
+		Assertions.assertEquals("iati-activities/iati-activity", suggestions.get(0).getPath());
+		Assertions.assertEquals(18, suggestions.get(0).getSuggestedCircuitBreaker().getAsInt());
+		Assertions.assertEquals("iati-activities/iati-activity/transaction", suggestions.get(1).getPath());
+		Assertions.assertEquals(transaction.getMaxFanOut() * 2, suggestions.get(1).getSuggestedCircuitBreaker().getAsInt());
+		Assertions.assertTrue(profiler.toString().contains("Suggested Circuit Breaker"), profiler.toString());
+	}
+
+	@Test
+	public void testProfileFromTheRunner() throws Exception
+	{
+		XmlFlattenerRunner.main("examples/Hello-World/hello-world.yml", "--profile");
+	}
+}
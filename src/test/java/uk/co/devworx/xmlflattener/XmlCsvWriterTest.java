@@ -0,0 +1,97 @@
+package uk.co.devworx.xmlflattener;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class XmlCsvWriterTest
+{
+	private static final String CHARACTERS = "abcXYZ019 ,\"\r\n\t#!'-_.é€😀";
+
+	@TempDir
+	Path rootDirectory;
+
+	@Test
+	public void testSameOutputAsExcelCSVPrinter() throws Exception
+	{
+		final Random random = new Random(7);
+		final List<List<String>> rows = new ArrayList<>();
+		rows.add(Arrays.asList("", "", ""));
+		rows.add(Arrays.asList("#1", " lead", "trail ", "\"quoted\"", "a,b", "line\nbreak"));
+		for (int i = 0; i < 5000; i++)
+		{
+			final List<String> row = new ArrayList<>();
+			final int columns = 1 + random.nextInt(6);
+			for (int c = 0; c < columns; c++)
+			{
+				final StringBuilder value = new StringBuilder();
+				final int length = random.nextInt(4) == 0 ? 300 + random.nextInt(50) : random.nextInt(8);
+				while (value.length() < length)
+				{
+					value.appendCodePoint(CHARACTERS.codePointAt(CHARACTERS.offsetByCodePoints(0, random.nextInt(CHARACTERS.codePointCount(0, CHARACTERS.length())))));
+				}
+				row.add(random.nextInt(3) == 0 && rows.isEmpty() == false ? rows.get(rows.size() - 1).get(Math.min(c, rows.get(rows.size() - 1).size() - 1)) : value.toString());
+			}
+			rows.add(row);
+		}
+
+		final StringWriter expected = new StringWriter();
+		try (CSVPrinter printer = new CSVPrinter(expected, CSVFormat.EXCEL))
+		{
+			for (List<String> row : rows) printer.printRecord(row);
+		}
+
+		final int bufferBytes = XMLFlattener_PropertyManager.XmlFlattener_CsvBufferBytes;
+		final Path file = rootDirectory.resolve("out.csv");
+		try
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_CsvBufferBytes = 0; //the smallest buffer - so it is flushed many times
+			try (XmlCsvWriter writer = XmlCsvWriter.open(file))
+			{
+				for (List<String> row : rows) writer.writeRow(row);
+			}
+		}
+		finally
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_CsvBufferBytes = bufferBytes;
+		}
+		Assertions.assertEquals(expected.toString(), new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+		//and straight from the bytes of a row buffer
+		final XmlRowBuffer buffer = new XmlRowBuffer(6);
+		for (List<String> row : rows)
+		{
+			final List<String> padded = new ArrayList<>(row);
+			while (padded.size() < 6) padded.add("");
+			buffer.startRow(6, padded.stream().mapToLong(String::length).sum());
+			for (int c = 0; c < 6; c++) buffer.addValue(c, padded.get(c));
+		}
+		final StringWriter expectedPadded = new StringWriter();
+		try (CSVPrinter printer = new CSVPrinter(expectedPadded, CSVFormat.EXCEL);
+			 XmlCsvWriter writer = XmlCsvWriter.open(file))
+		{
+			final XmlRowBuffer.Cursor cursor = buffer.cursor();
+			for (List<String> row : rows)
+			{
+				final List<String> padded = new ArrayList<>(row);
+				while (padded.size() < 6) padded.add("");
+				printer.printRecord(padded);
+				Assertions.assertTrue(cursor.next());
+				writer.writeRow(cursor, 6);
+			}
+		}
+		buffer.release();
+		Assertions.assertEquals(expectedPadded.toString(), new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+	}
+}
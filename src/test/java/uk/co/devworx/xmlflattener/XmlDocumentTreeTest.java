@@ -0,0 +1,416 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks the document tree evaluates the simple paths exactly as the XPath engine does against the DOM
+ */
+public class XmlDocumentTreeTest
+{
+	private static final String SAMPLE_1 = "src/test/resources/test-data/sample-data-1-document-type-1.xml";
+	private static final String SAMPLE_ODA = "examples/ODA-International-Subscriptions/xml/international-subscriptions-oda-data.xml";
+
+	@Test
+	public void testStringValuesMatchXPath() throws Exception
+	{
+		assertSameStrings(SAMPLE_1, "root/element-0/@key-1", "root/element-1/element-1-item/@key-1", "root/element-4", "root/element-1",
+						  "root/element-1/element-1-item/arguments/argument/value/text()", "root/element-3/element-3-sub", "root/missing", "root/@missing", ".", "root/text()");
+		assertSameStrings(SAMPLE_ODA, "iati-activities/@generated-datetime", "iati-activities/iati-activity/iati-identifier",
+						  "iati-activities/iati-activity/reporting-org/narrative", "iati-activities/iati-activity/transaction/value/text()");
+	}
+
+	@Test
+	public void testSelectElementsMatchXPath() throws Exception
+	{
+		final ParameterBag bag = ParameterBag.create(Files.readAllBytes(Paths.get(SAMPLE_ODA)), new Timestamp(0), Collections.emptyMap());
+		final XmlDocumentTree tree = bag.getDocumentTree();
+		final int[] activities = XmlTreePath.compile("iati-activities/iati-activity").get().selectElements(tree, XmlDocumentTree.DOCUMENT_NODE, OptionalInt.empty(), "test");
+		Assertions.assertEquals(9, activities.length);
+
+		//The general XPath fallback maps the DOM nodes back to the same tree nodes
+		final XPathExpression xpath = XmlFlattenerSpec.xPath.compile("iati-activities/iati-activity[transaction]");
+		final int[] viaXPath = bag.evaluateElements(xpath, XmlDocumentTree.DOCUMENT_NODE);
+		Assertions.assertTrue(viaXPath.length > 0);
+		Assertions.assertTrue(Arrays.stream(viaXPath).allMatch(n -> Arrays.stream(activities).anyMatch(a -> a == n)));
+
+		//any text or attribute nodes selected alongside the elements are skipped
+		final int[] mixed = bag.evaluateElements(XmlFlattenerSpec.xPath.compile("iati-activities/iati-activity | iati-activities/@* | iati-activities/text()"), XmlDocumentTree.DOCUMENT_NODE);
+		Assertions.assertArrayEquals(activities, mixed);
+
+		final int[] limited = XmlTreePath.compile("iati-activities/iati-activity").get().selectElements(tree, XmlDocumentTree.DOCUMENT_NODE, OptionalInt.of(2), "test");
+		Assertions.assertEquals(2, limited.length);
+	}
+
+	@Test
+	public void testDomFallbackEvaluatesConcurrently() throws Exception
+	{
+		final ParameterBag bag = ParameterBag.create(Files.readAllBytes(Paths.get(SAMPLE_ODA)), new Timestamp(0), Collections.emptyMap());
+		final ThreadLocal<XPathExpression> activities = XmlNamespaceBindings.NONE.compilePerThread("iati-activities/iati-activity[transaction]");
+		final List<ThreadLocal<XPathExpression>> strings = new ArrayList<>();
+		for (String expr : Arrays.asList("concat(iati-identifier, '|', count(transaction))", "string(@*[1])", "sum(transaction/value)", "normalize-space(reporting-org/narrative)"))
+		{
+			strings.add(XmlNamespaceBindings.NONE.compilePerThread(expr));
+		}
+		final Callable<List<String>> evaluation = () ->
+		{
+			final List<String> values = new ArrayList<>();
+			for (int activity : bag.evaluateElements(activities.get(), XmlDocumentTree.DOCUMENT_NODE))
+			{
+				for (ThreadLocal<XPathExpression> expr : strings) values.add(bag.evaluateString(expr.get(), activity));
+			}
+			return values;
+		};
+		final List<String> expected = evaluation.call();
+		Assertions.assertFalse(expected.isEmpty());
+
+		final ExecutorService workers = Executors.newFixedThreadPool(8);
+		try
+		{
+			final List<Future<List<String>>> results = new ArrayList<>();
+			for (int i = 0; i < 200; i++) results.add(workers.submit(evaluation));
+			for (Future<List<String>> result : results) Assertions.assertEquals(expected, result.get());
+		}
+		finally
+		{
+			workers.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testExplodeLineageIsResolvedOncePerDocument() throws Exception
+	{
+		final ParameterBag bag = ParameterBag.create(Files.readAllBytes(Paths.get(SAMPLE_ODA)), new Timestamp(0), Collections.emptyMap());
+		final XmlFlattenerExplodeItem activity = XmlFlattenerExplodeItem.create(1, Optional.empty(), "activity", "iati-activities/iati-activity", OptionalInt.empty());
+		final XmlFlattenerExplodeItem transaction = XmlFlattenerExplodeItem.create(2, Optional.of(activity), "transaction", "transaction", OptionalInt.empty());
+
+		final List<int[]> transactions = transaction.resolveLineageNodeLists(bag);
+		Assertions.assertEquals(9, transactions.size());
+		Assertions.assertEquals(136, transactions.stream().mapToInt(l -> l.length).sum());
+		Assertions.assertSame(transactions, transaction.resolveLineageNodeLists(bag));
+		Assertions.assertSame(activity.resolveLineageNodeLists(bag), activity.resolveLineageNodeLists(bag));
+	}
+
+	@Test
+	public void testChildIndexKeepsDocumentOrder() throws Exception
+	{
+		final byte[] data = "<r><a:x>1</a:x><y>y</y><x>2</x><z/><b:x>3</b:x><y>y2</y></r>".getBytes(StandardCharsets.UTF_8);
+		for (XmlDocumentTree tree : Arrays.asList(XmlDocumentTree.parseStrings(XmlDocumentSource.of(data)), XmlDocumentTree.parseCompact(XmlDocumentSource.of(data))))
+		{
+			final int[] xs = XmlTreePath.compile("r/x").get().selectElements(tree, XmlDocumentTree.DOCUMENT_NODE, OptionalInt.empty(), "test");
+			Assertions.assertEquals(Arrays.asList("1", "2", "3"), Arrays.asList(tree.getStringValue(xs[0]), tree.getStringValue(xs[1]), tree.getStringValue(xs[2])));
+			Assertions.assertTrue(xs[0] < xs[1] && xs[1] < xs[2]);
+			Assertions.assertEquals("3", XmlTreePath.compile("r/b:x").get().evaluateString(tree, XmlDocumentTree.DOCUMENT_NODE));
+			Assertions.assertEquals("y", XmlTreePath.compile("r/y").get().evaluateString(tree, XmlDocumentTree.DOCUMENT_NODE));
+			Assertions.assertEquals(0, XmlTreePath.compile("r/c:x").get().selectElements(tree, XmlDocumentTree.DOCUMENT_NODE, OptionalInt.empty(), "test").length);
+		}
+	}
+
+	@Test
+	public void testPathTrieMatchesPathsOneByOne() throws Exception
+	{
+		final byte[] data = ("<r><c><e/><p>1</p></c><c><e>a@b</e><p>2</p><q k='v'/></c><c k='3'><e>x@y</e></c><d>d</d></r>").getBytes(StandardCharsets.UTF_8);
+		final List<String> expressions = Arrays.asList("r/c/e", "r/c/p", "r/c/q/@k", "r/c/@k", "r/c/e/text()", "r/d", "r/missing/x", "r/c/e", "r/c");
+		final List<XmlTreePath> paths = new ArrayList<>();
+		for (String expr : expressions)
+		{
+			paths.add(XmlTreePath.compile(expr).get());
+		}
+		final XmlTreePathTrie trie = new XmlTreePathTrie(paths);
+		Assertions.assertEquals(8, trie.getStepCount()); //r, c, e, p, q, d, missing and x - rather than 24 steps one by one
+		for (XmlDocumentTree tree : Arrays.asList(XmlDocumentTree.parseStrings(XmlDocumentSource.of(data)), XmlDocumentTree.parseCompact(XmlDocumentSource.of(data))))
+		{
+			final String[] values = new String[paths.size()];
+			trie.evaluate(tree).evaluateStrings(XmlDocumentTree.DOCUMENT_NODE, values);
+			for (int p = 0; p < paths.size(); p++)
+			{
+				Assertions.assertEquals(paths.get(p).evaluateString(tree, XmlDocumentTree.DOCUMENT_NODE), values[p], expressions.get(p));
+			}
+			Assertions.assertEquals(Arrays.asList("", "1", "v", "3", "a@b", "d", "", "", "1"), Arrays.asList(values));
+		}
+	}
+
+	@Test
+	public void testBoundPrefixesMatchNamespaces() throws Exception
+	{
+		//the same namespace as the default, under a different prefix, and redeclared as the default further down
+		final byte[] data = ("<doc xmlns='urn:t' xmlns:o='urn:other'><trade id='1'><t2:party xmlns:t2='urn:t' t2:ref='p1'>A</t2:party><o:party>B</o:party></trade>" +
+							 "<trade id='2'><o:x><party xmlns='urn:t'>C</party><party xmlns=''>D</party></o:x></trade></doc>").getBytes(StandardCharsets.UTF_8);
+		final XmlNamespaceBindings namespaces = XmlNamespaceBindings.create(Collections.singletonMap("fpml", "urn:t"));
+		final ParameterBag bag = ParameterBag.create(data, new Timestamp(0), Collections.emptyMap());
+		for (XmlDocumentTree tree : Arrays.asList(bag.getDocumentTree(), XmlDocumentTree.parseCompact(XmlDocumentSource.of(data))))
+		{
+			Assertions.assertEquals("urn:t", tree.getNamespace(tree.getFirstChildElement(XmlDocumentTree.DOCUMENT_NODE)));
+			Assertions.assertEquals(2, XmlTreePath.compile("fpml:doc/fpml:trade", namespaces).get().selectElements(tree, XmlDocumentTree.DOCUMENT_NODE, OptionalInt.empty(), "test").length);
+			Assertions.assertEquals("A", XmlTreePath.compile("fpml:doc/fpml:trade/fpml:party", namespaces).get().evaluateString(tree, XmlDocumentTree.DOCUMENT_NODE));
+			Assertions.assertEquals("p1", XmlTreePath.compile("fpml:doc/fpml:trade/fpml:party/@fpml:ref", namespaces).get().evaluateString(tree, XmlDocumentTree.DOCUMENT_NODE));
+			Assertions.assertEquals("C", XmlTreePath.compile("fpml:doc/fpml:trade/o:x/fpml:party", namespaces).get().evaluateString(tree, XmlDocumentTree.DOCUMENT_NODE));
+			Assertions.assertEquals("", XmlTreePath.compile("fpml:doc/fpml:trade/fpml:missing", namespaces).get().evaluateString(tree, XmlDocumentTree.DOCUMENT_NODE));
+			Assertions.assertEquals("", XmlTreePath.compile("other:doc", XmlNamespaceBindings.create(Collections.singletonMap("other", "urn:none"))).get().evaluateString(tree, XmlDocumentTree.DOCUMENT_NODE));
+
+			//unbound prefixes still match the name as it is written - and unprefixed steps the local name
+			Assertions.assertEquals("A", XmlTreePath.compile("doc/trade/t2:party").get().evaluateString(tree, XmlDocumentTree.DOCUMENT_NODE));
+			Assertions.assertEquals("CD", XmlTreePath.compile("doc/trade/o:x").get().evaluateString(tree, XmlDocumentTree.DOCUMENT_NODE));
+
+			final List<XmlTreePath> paths = Arrays.asList(XmlTreePath.compile("fpml:trade/fpml:party", namespaces).get(), XmlTreePath.compile("fpml:trade/o:party", namespaces).get(),
+														  XmlTreePath.compile("fpml:trade/o:x/fpml:party", namespaces).get(), XmlTreePath.compile("fpml:trade/@id", namespaces).get());
+			final String[] values = new String[paths.size()];
+			new XmlTreePathTrie(paths).evaluate(tree).evaluateStrings(tree.getFirstChildElement(XmlDocumentTree.DOCUMENT_NODE), values);
+			Assertions.assertEquals(Arrays.asList("A", "B", "C", "1"), Arrays.asList(values));
+		}
+
+		//the general XPath fallback evaluates the bound prefixes against the namespace aware DOM
+		final int[] viaXPath = bag.evaluateElements(namespaces.compile("fpml:doc/fpml:trade[fpml:party]"), XmlDocumentTree.DOCUMENT_NODE, true);
+		Assertions.assertEquals(1, viaXPath.length);
+		Assertions.assertEquals("1", bag.getDocumentTree().getAttributeValue(viaXPath[0], 0));
+		Assertions.assertEquals("D", bag.evaluateString(namespaces.compile("//fpml:trade//party[not(@*)]"), XmlDocumentTree.DOCUMENT_NODE, true));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> XmlNamespaceBindings.create(Collections.singletonMap("xmlns", "urn:t")));
+	}
+
+	@Test
+	public void testUnsupportedPathsAreNotCompiled()
+	{
+		for (String unsupported : Arrays.asList("/root", "root//a", "root/a[1]", "count(a)", "root/*", "../a", "a/text()/b"))
+		{
+			Assertions.assertEquals(Optional.empty(), XmlTreePath.compile(unsupported), unsupported);
+		}
+	}
+
+	@Test
+	public void testCompactTreeMatchesStringTree() throws Exception
+	{
+		for (String file : Arrays.asList(SAMPLE_1, SAMPLE_ODA))
+		{
+			assertSameTrees(XmlDocumentSource.read(Paths.get(file)));
+		}
+
+		final String tricky = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n<!-- leading -->\r\n<a:root xmlns:a=\"urn:a\" k='1 &amp;\t2&#10;3'>" +
+							  "caf\u00e9 &lt;&#x20AC;&gt;\r\nline<![CDATA[ <raw> \r\n]]>after<!--c-->split<?pi x?>" +
+							  "<a:item id=\"x\"/><item empty=''>\u4e2d\u6587</item>\r\n</a:root>\n";
+		final XmlDocumentTree compact = assertSameTrees(XmlDocumentSource.of(tricky.getBytes(StandardCharsets.UTF_8)));
+		Assertions.assertEquals("1 & 2\n3", XmlTreePath.compile("root/@k").get().evaluateString(compact, XmlDocumentTree.DOCUMENT_NODE));
+		Assertions.assertEquals("\u4e2d\u6587", XmlTreePath.compile("root/item/text()").get().evaluateString(compact, XmlDocumentTree.DOCUMENT_NODE));
+	}
+
+	@Test
+	public void testReadAheadMatchesReadInFull(@TempDir Path directory) throws Exception
+	{
+		final long threshold = XMLFlattener_PropertyManager.XmlFlattener_ReadAheadThresholdBytes;
+		final int chunkBytes = XMLFlattener_PropertyManager.XmlFlattener_ReadAheadChunkBytes;
+		try
+		{
+			//small chunks, so that the reads end in the middle of the tags, references and UTF-8 sequences
+			XMLFlattener_PropertyManager.XmlFlattener_ReadAheadThresholdBytes = 1;
+			XMLFlattener_PropertyManager.XmlFlattener_ReadAheadChunkBytes = 7;
+			final String text = "<r k='a &amp; b'><v>caf\u00e9 \u4e2d\u6587 &#x20AC;</v><![CDATA[ <raw> ]]><!-- c --><v/></r>";
+			Files.write(directory.resolve("text.xml"), text.getBytes(StandardCharsets.UTF_8));
+			for (Path file : Arrays.asList(Paths.get(SAMPLE_1), Paths.get(SAMPLE_ODA), directory.resolve("text.xml")))
+			{
+				final XmlDocumentSource inFull = XmlDocumentSource.of(Files.readAllBytes(file));
+				final XmlDocumentTree compact = XmlDocumentTree.parseCompact(XmlDocumentSource.read(file));
+				final XmlDocumentTree strings = XmlDocumentTree.parseStrings(XmlDocumentSource.read(file));
+				Assertions.assertEquals(XmlDocumentTree.parseStrings(inFull).size(), compact.size(), file.toString());
+				Assertions.assertEquals(XmlDocumentTree.parseStrings(inFull).size(), strings.size(), file.toString());
+				Assertions.assertEquals(XmlDocumentTree.parseStrings(inFull).getStringValue(XmlDocumentTree.DOCUMENT_NODE), compact.getStringValue(XmlDocumentTree.DOCUMENT_NODE));
+				Assertions.assertArrayEquals(Files.readAllBytes(file), XmlDocumentSource.read(file).toByteArray());
+			}
+
+			//a file that turns out shorter than its size is an I/O error, not a broken document
+			Assertions.assertThrows(IOException.class, () -> XmlDocumentTree.parseStrings(XmlDocumentSource.read(directory.resolve("text.xml"), text.length() * 2)));
+		}
+		finally
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_ReadAheadThresholdBytes = threshold;
+			XMLFlattener_PropertyManager.XmlFlattener_ReadAheadChunkBytes = chunkBytes;
+		}
+	}
+
+	@Test
+	public void testMemoryMappedMatchesReadInFull(@TempDir Path directory) throws Exception
+	{
+		final long readAheadThreshold = XMLFlattener_PropertyManager.XmlFlattener_ReadAheadThresholdBytes;
+		final long memoryMapThreshold = XMLFlattener_PropertyManager.XmlFlattener_MemoryMapThresholdBytes;
+		try
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_ReadAheadThresholdBytes = 1;
+			XMLFlattener_PropertyManager.XmlFlattener_MemoryMapThresholdBytes = 1;
+			for (Path file : Arrays.asList(Paths.get(SAMPLE_1), Paths.get(SAMPLE_ODA)))
+			{
+				final byte[] inFull = Files.readAllBytes(file);
+				final XmlDocumentSource mapped = XmlDocumentSource.read(file);
+				Assertions.assertTrue(mapped.isMemoryMapped(), file.toString());
+				Assertions.assertEquals(inFull.length, mapped.length());
+				Assertions.assertArrayEquals(inFull, mapped.toByteArray());
+
+				final Path copy = directory.resolve(file.getFileName());
+				mapped.writeTo(copy);
+				Assertions.assertArrayEquals(inFull, Files.readAllBytes(copy));
+
+				try (InputStream in = mapped.newInputStream())
+				{
+					Assertions.assertEquals(inFull.length, in.available());
+					Assertions.assertEquals(inFull[0] & 0xFF, in.read());
+					Assertions.assertEquals(9, in.skip(9));
+					final byte[] rest = new byte[inFull.length];
+					int read = 0;
+					int n;
+					while ((n = in.read(rest, read, rest.length - read)) > 0)
+					{
+						read += n;
+					}
+					Assertions.assertArrayEquals(Arrays.copyOfRange(inFull, 10, inFull.length), Arrays.copyOf(rest, read));
+					Assertions.assertEquals(-1, in.read());
+				}
+
+				//and the tree (from the buffer) and the DOM fallback (from the stream) both read the mapped bytes
+				final ParameterBag bag = ParameterBag.create(mapped, new Timestamp(0), Collections.emptyMap());
+				Assertions.assertEquals(XmlDocumentTree.parseStrings(XmlDocumentSource.of(inFull)).size(), bag.getDocumentTree().size());
+				Assertions.assertEquals(bag.getDocumentTree().getStringValue(XmlDocumentTree.DOCUMENT_NODE),
+										bag.evaluateString(XmlFlattenerSpec.xPath.compile("string(.)"), XmlDocumentTree.DOCUMENT_NODE));
+			}
+
+			//the size the file had when it was found is what is mapped - a file that has grown since is cut off, one that has shrunk fails
+			final Path growing = directory.resolve("growing.xml");
+			Files.write(growing, "<r>1</r><!-- appended -->".getBytes(StandardCharsets.UTF_8));
+			final XmlDocumentSource cutOff = XmlDocumentSource.read(growing, 8);
+			Assertions.assertTrue(cutOff.isMemoryMapped());
+			Assertions.assertArrayEquals("<r>1</r>".getBytes(StandardCharsets.UTF_8), cutOff.toByteArray());
+			Assertions.assertThrows(IOException.class, () -> XmlDocumentSource.read(growing, 100));
+
+			//and the same for the files read onto the heap
+			XMLFlattener_PropertyManager.XmlFlattener_ReadAheadThresholdBytes = 1024;
+			XMLFlattener_PropertyManager.XmlFlattener_MemoryMapThresholdBytes = 1024;
+			final XmlDocumentSource onHeap = XmlDocumentSource.read(growing, 8);
+			Assertions.assertFalse(onHeap.isMemoryMapped());
+			Assertions.assertArrayEquals("<r>1</r>".getBytes(StandardCharsets.UTF_8), onHeap.toByteArray());
+			Assertions.assertThrows(IOException.class, () -> XmlDocumentSource.read(growing, 100));
+		}
+		finally
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_ReadAheadThresholdBytes = readAheadThreshold;
+			XMLFlattener_PropertyManager.XmlFlattener_MemoryMapThresholdBytes = memoryMapThreshold;
+		}
+	}
+
+	@Test
+	public void testCompactTreeFallsBackAndReportsErrors() throws Exception
+	{
+		final byte[] latin1 = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><r>caf\u00e9</r>".getBytes(StandardCharsets.ISO_8859_1);
+		Assertions.assertThrows(UnsupportedXmlException.class, () -> XmlDocumentTree.parseCompact(XmlDocumentSource.of(latin1)));
+		Assertions.assertThrows(UnsupportedXmlException.class, () -> XmlDocumentTree.parseCompact(XmlDocumentSource.of("<!DOCTYPE r><r/>".getBytes(StandardCharsets.UTF_8))));
+
+		for (String broken : Arrays.asList("<r><a></r>", "<r>&nbsp;</r>", "<r a='1' a='2'/>", "<r/><r/>", "<r>", "text<r/>", "<r a=1/>"))
+		{
+			final SAXParseException e = Assertions.assertThrows(SAXParseException.class, () -> XmlDocumentTree.parseCompact(XmlDocumentSource.of(broken.getBytes(StandardCharsets.UTF_8))), broken);
+			Assertions.assertEquals(1, e.getLineNumber(), broken);
+			Assertions.assertThrows(SAXException.class, () -> XmlDocumentTree.parseStrings(XmlDocumentSource.of(broken.getBytes(StandardCharsets.UTF_8))), broken);
+		}
+	}
+
+	@Test
+	public void testScannerRejectsWhatTheJdkRejects() throws Exception
+	{
+		final List<byte[]> broken = new ArrayList<>();
+		for (String xml : Arrays.asList("<a>\u0001</a>", "<a>\uFFFE</a>", "<a>]]></a>", "<a><!-- x -- y --></a>", "<!-- x -- y --><a/>", "<a><!-- x ---></a>",
+										"<a>&#0;</a>", "<a b='&#1;'/>", "<a>&#xD800;</a>", "<a b='\u0001'/>", "<a><![CDATA[\u0001]]></a>", "<a><?pi \u0001?></a>",
+										" <?xml version='1.0'?><a/>", "<a/><?xml version='1.0'?>", "<a><?xml version='1.0'?></a>", "<a><?XmL x?></a>"))
+		{
+			broken.add(xml.getBytes(StandardCharsets.UTF_8));
+		}
+		//a surrogate and an overlong encoding of '/'
+		broken.add(new byte[] { '<', 'a', '>', (byte) 0xED, (byte) 0xA0, (byte) 0x80, '<', '/', 'a', '>' });
+		broken.add(new byte[] { '<', 'a', '>', (byte) 0xE0, (byte) 0x80, (byte) 0xAF, '<', '/', 'a', '>' });
+		for (byte[] xml : broken)
+		{
+			final String message = new String(xml, StandardCharsets.UTF_8);
+			Assertions.assertThrows(SAXException.class, () -> XmlDocumentTree.parseStrings(XmlDocumentSource.of(xml)), message);
+			Assertions.assertThrows(SAXParseException.class, () -> XmlDocumentTree.parseCompact(XmlDocumentSource.of(xml)), message);
+		}
+
+		//and still accepts the well-formed documents that come close
+		for (String xml : Arrays.asList("<a>&#9;&#x10FFFF;\uFFFD\t\r\n</a>", "<?xml version='1.0'?><?xml-stylesheet href='s'?><a b='&#xA;]]>'/>", "<a>] ]> ]]</a>",
+										"<a><!-- x - y --><!----><!---> --></a>", "<a><![CDATA[]]]]></a>", "<a><?xmlish x?></a>"))
+		{
+			assertSameTrees(XmlDocumentSource.of(xml.getBytes(StandardCharsets.UTF_8)));
+		}
+	}
+
+	private XmlDocumentTree assertSameTrees(XmlDocumentSource source) throws Exception
+	{
+		final XmlDocumentTree expected = XmlDocumentTree.parseStrings(source);
+		final XmlDocumentTree actual = XmlDocumentTree.parseCompact(source);
+		Assertions.assertTrue(actual.isCompact());
+		Assertions.assertEquals(expected.size(), actual.size());
+		for (int node = 0; node < expected.size(); node++)
+		{
+			Assertions.assertEquals(expected.isElement(node), actual.isElement(node), "node " + node);
+			Assertions.assertEquals(expected.getParent(node), actual.getParent(node), "node " + node);
+			Assertions.assertEquals(expected.getNextSibling(node), actual.getNextSibling(node), "node " + node);
+			Assertions.assertEquals(expected.getStringValue(node), actual.getStringValue(node), "node " + node);
+			if (expected.isElement(node))
+			{
+				Assertions.assertEquals(expected.getName(node), actual.getName(node));
+				Assertions.assertEquals(expected.getAttributeCount(node), actual.getAttributeCount(node));
+				for (int a = 0; a < expected.getAttributeCount(node); a++)
+				{
+					Assertions.assertEquals(expected.getAttributeName(node, a), actual.getAttributeName(node, a));
+					Assertions.assertEquals(expected.getAttributeValue(node, a), actual.getAttributeValue(node, a));
+				}
+			}
+		}
+		return actual;
+	}
+
+	private void assertSameStrings(String file, String... expressions) throws Exception
+	{
+		final byte[] data = Files.readAllBytes(Paths.get(file));
+		final ParameterBag bag = ParameterBag.create(data, new Timestamp(0), Collections.emptyMap());
+		final Document doc = ParameterBag.builder.get().parse(file);
+		final List<String> exprs = Arrays.asList(expressions);
+		for (String expr : exprs)
+		{
+			final String expected = (String) XmlFlattenerSpec.xPath.compile(expr).evaluate(doc, XPathConstants.STRING);
+			final String actual = XmlTreePath.compile(expr).get().evaluateString(bag.getDocumentTree(), XmlDocumentTree.DOCUMENT_NODE);
+			Assertions.assertEquals(expected, actual, expr);
+		}
+
+		//and relative to each of the exploded elements
+		final NodeList items = (NodeList) XmlFlattenerSpec.xPath.compile("*/*").evaluate(doc, XPathConstants.NODESET);
+		final int[] treeItems = bag.evaluateElements(XmlFlattenerSpec.xPath.compile("*/*"), XmlDocumentTree.DOCUMENT_NODE);
+		Assertions.assertEquals(items.getLength(), treeItems.length);
+		for (int i = 0; i < treeItems.length; i++)
+		{
+			for (String relative : Arrays.asList(".", "text()", "@key-1", "element-1-item/@key-2", "narrative", "value/text()"))
+			{
+				final String expected = (String) XmlFlattenerSpec.xPath.compile(relative).evaluate(items.item(i), XPathConstants.STRING);
+				final String actual = XmlTreePath.compile(relative).get().evaluateString(bag.getDocumentTree(), treeItems[i]);
+				Assertions.assertEquals(expected, actual, relative + " @ " + i);
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class XmlFlattenerExplainerTest
+{
+	private static final Path ODA = Paths.get("examples/ODA-International-Subscriptions");
+
+	@TempDir
+	Path rootDirectory;
+
+	@Test
+	public void testExplainMatchesFlattenedRows() throws Exception
+	{
+		Files.createDirectories(rootDirectory.resolve("xml"));
+		Files.copy(ODA.resolve("oda-flattening-transactions.yml"), rootDirectory.resolve("oda-flattening-transactions.yml"));
+		for (int i = 0; i < 4; i++)
+		{
+			Files.copy(ODA.resolve("xml/international-subscriptions-oda-data.xml"), rootDirectory.resolve("xml/oda-" + i + ".xml"));
+		}
+		final XmlFlattenerSpec spec = XmlFlattenerSpecFactory.parse(rootDirectory.resolve("oda-flattening-transactions.yml")).values().iterator().next();
+
+		final List<XmlFlattenerExplainer> explainers = XmlFlattenerExplainer.explain(new Timestamp(System.currentTimeMillis()), spec, spec.getInputPath(), 0.5);
+		Assertions.assertEquals(1, explainers.size());
+		final XmlFlattenerExplainer explainer = explainers.get(0);
+		Assertions.assertEquals(2, explainer.getSampledFiles());
+
+		final List<XmlFlattenerExplainer.Layer> layers = explainer.getLayers();
+		Assertions.assertEquals(Arrays.asList("oda-flattened-transactions", "IATI-Items", "Transaction-Items"), layers.stream().map(XmlFlattenerExplainer.Layer::getName).collect(Collectors.toList()));
+		Assertions.assertEquals(9, layers.get(1).getAverageFanOut(), 0.001);
+		Assertions.assertEquals(136 / 9.0, layers.get(2).getAverageFanOut(), 0.001);
+		Assertions.assertEquals(136, layers.get(2).getAverageRows(), 0.001);
+		Assertions.assertEquals(1.0, layers.get(2).getCrossedFraction(), 0.001);
+
+		//the activities are crossed with all of the transactions of the document - not just their own
+		final long flattened;
+		try (Stream<XmlFlattenerRow> rows = XmlFlattener.stream(spec, Stream.of(XmlDocumentSource.read(rootDirectory.resolve("xml/oda-0.xml")))))
+		{
+			flattened = rows.count();
+		}
+		Assertions.assertEquals(9 * 136, flattened);
+		Assertions.assertEquals(flattened, explainer.getAverageRowsPerDocument(), 0.001);
+		Assertions.assertEquals(flattened, explainer.getP99RowsPerDocument());
+		Assertions.assertTrue(explainer.getAverageBytesPerDocument() > flattened * 10, explainer.toString());
+		Assertions.assertFalse(explainer.isLikelyToExplode(), explainer.toString());
+		Assertions.assertTrue(explainer.toString().contains("crossed with other layers in 100% of documents"), explainer.toString());
+
+		final long warning = XMLFlattener_PropertyManager.XmlFlattener_ExplainRowsPerDocumentWarning;
+		try
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_ExplainRowsPerDocumentWarning = 1000;
+			Assertions.assertTrue(explainer.isLikelyToExplode());
+			Assertions.assertTrue(explainer.toString().contains("LIKELY TO EXPLODE"), explainer.toString());
+		}
+		finally
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_ExplainRowsPerDocumentWarning = warning;
+		}
+	}
+
+	@Test
+	public void testExplainFromTheRunner() throws Exception
+	{
+		XmlFlattenerRunner.main("examples/Hello-World/hello-world.yml", "--explain", "1");
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new XmlFlattenerRunner(Paths.get("examples/Hello-World/hello-world.yml")).explain(0));
+	}
+}
@@ -1,11 +1,14 @@
 package uk.co.devworx.xmlflattener;
 
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Stream;
 
 public class XmlFlattenerRunnerTest
@@ -16,7 +19,13 @@ public class XmlFlattenerRunnerTest
 	public void runFlatteningTest() throws Exception
 	{
 		String path = "src/test/resources/test-data/sample-data-1-spec.yml";
+		Files.deleteIfExists(Paths.get("target/sample-data-1/table-1.csv"));
 		runTest(path);
+
+		final List<String> table1 = Files.readAllLines(Paths.get("target/sample-data-1/table-1.csv"));
+		Assertions.assertEquals(2, table1.size(), table1.toString());
+		Assertions.assertEquals("element_0,element_1,element_4,current_time", table1.get(0));
+		Assertions.assertTrue(table1.get(1).matches("value-1,,,\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}\\.\\d+"), table1.get(1));
 	}
 
 	@Test
@@ -73,7 +82,25 @@ public class XmlFlattenerRunnerTest
 		});
 	}
 
-
-
-
+	@Test
+	public void runDynElementTest() throws Exception
+	{
+		String path = "src/test/resources/test-data-dyn-elements/sample-data-3-dyn-elements-spec.yml";
+		XmlFlattenerRunner.main(path);
+		final List<String> lines = Files.readAllLines(Paths.get("target/sample-data-dyn-elements/dyn-element.csv"));
+		Assertions.assertEquals(3, lines.size(), lines.toString());
+
+		final List<String> header = Arrays.asList(lines.get(0).split(","));
+		Assertions.assertTrue(header.containsAll(Arrays.asList("record_id", "meta__source", "meta__region", "entry__name", "entry__amount", "entry__currency", "entry_attrb__kind")), header.toString());
+		Assertions.assertFalse(header.contains("meta__Ignored"), header.toString());
+
+		final List<String> first = Arrays.asList(lines.get(1).split(",", -1));
+		Assertions.assertEquals("feed-a", first.get(header.indexOf("meta__source")));
+		Assertions.assertEquals("first", first.get(header.indexOf("entry__name")));
+		Assertions.assertEquals("10", first.get(header.indexOf("entry__amount")));
+		Assertions.assertEquals("a", first.get(header.indexOf("entry_attrb__kind")));
+		final List<String> second = Arrays.asList(lines.get(2).split(",", -1));
+		Assertions.assertEquals("GBP", second.get(header.indexOf("entry__currency")));
+		Assertions.assertEquals("", second.get(header.indexOf("entry__amount")));
+	}
 }
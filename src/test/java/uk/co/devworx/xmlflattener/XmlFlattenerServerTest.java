@@ -0,0 +1,102 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+public class XmlFlattenerServerTest
+{
+	private static final Path DYN_SPEC = Paths.get("src/test/resources/test-data-dyn/sample-data-2-dyn-attrbs-spec.yml").toAbsolutePath();
+	private static final Path DYN_OUTPUT = Paths.get("target/sample-data-dyn/dyn-attribute.csv");
+	private static final Path DYN_ELEMENTS_SPEC = Paths.get("src/test/resources/test-data-dyn-elements/sample-data-3-dyn-elements-spec.yml").toAbsolutePath();
+
+	@Test
+	public void testCachedSpecsGiveTheSameOutput() throws Exception
+	{
+		try (XmlFlattenerServer server = new XmlFlattenerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, 4))
+		{
+			server.submit(DYN_SPEC, null).get();
+			final String first = new String(Files.readAllBytes(DYN_OUTPUT), "UTF-8");
+
+			server.submit(DYN_SPEC, null).get();
+			final String second = new String(Files.readAllBytes(DYN_OUTPUT), "UTF-8");
+
+			Assertions.assertEquals(first, second);
+			Assertions.assertEquals(1, server.getSpecsParsed());
+			Assertions.assertEquals(2, server.getJobsCompleted());
+		}
+	}
+
+	@Test
+	public void testConcurrentFirstRequestsShareTheSpec() throws Exception
+	{
+		//fewer workers than jobs - the queued jobs of a spec wait their turn without holding on to a worker
+		try (XmlFlattenerServer server = new XmlFlattenerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, 4))
+		{
+			final List<Future<?>> jobs = new ArrayList<>();
+			for (int i = 0; i < 4; i++)
+			{
+				jobs.add(server.submit(DYN_SPEC, null));
+				jobs.add(server.submit(DYN_ELEMENTS_SPEC, null));
+			}
+			for (Future<?> job : jobs)
+			{
+				job.get();
+			}
+
+			Assertions.assertEquals(2, server.getSpecsParsed());
+			Assertions.assertEquals(8, server.getJobsCompleted());
+			Assertions.assertEquals(7, Files.readAllLines(DYN_OUTPUT).size());
+			Assertions.assertEquals(0, server.getQueuedSpecs()); //nothing is kept for the specs once their jobs are done
+		}
+	}
+
+	@Test
+	public void testHttpRequests() throws Exception
+	{
+		try (XmlFlattenerServer started = XmlFlattenerServer.start(0))
+		{
+			final String base = "http://127.0.0.1:" + started.getPort();
+
+			final HttpURLConnection ok = (HttpURLConnection) new URL(base + "/flatten?spec=" + URLEncoder.encode(DYN_SPEC.toString(), "UTF-8")).openConnection();
+			Assertions.assertEquals(200, ok.getResponseCode());
+			final String body = ___read(ok.getInputStream());
+			Assertions.assertTrue(body.contains("\"name\":\"table-explode\""), body);
+			Assertions.assertTrue(body.contains("\"rows\":6"), body);
+
+			final HttpURLConnection missing = (HttpURLConnection) new URL(base + "/flatten").openConnection();
+			Assertions.assertEquals(400, missing.getResponseCode());
+
+			final HttpURLConnection notFound = (HttpURLConnection) new URL(base + "/flatten?spec=/does/not/exist.yml").openConnection();
+			Assertions.assertEquals(404, notFound.getResponseCode());
+
+			final HttpURLConnection status = (HttpURLConnection) new URL(base + "/status").openConnection();
+			Assertions.assertTrue(___read(status.getInputStream()).contains("\"jobsCompleted\":1"));
+		}
+	}
+
+	private static String ___read(InputStream in) throws Exception
+	{
+		try (InputStream is = in)
+		{
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			int read;
+			while ((read = is.read(buffer)) != -1) bos.write(buffer, 0, read);
+			return new String(bos.toByteArray(), "UTF-8");
+		}
+	}
+}
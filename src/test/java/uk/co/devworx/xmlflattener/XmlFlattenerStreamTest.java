@@ -0,0 +1,139 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class XmlFlattenerStreamTest
+{
+	private static final String SPEC = "name: Stream Test\n" +
+									   "outputTables:\n" +
+									   "  - name: items\n" +
+									   "    definition:\n" +
+									   "      - columnName: Title\n" +
+									   "        sourceType: xpath\n" +
+									   "        sourceDef: root/title\n" +
+									   "      - columnName: Items\n" +
+									   "        sourceType: xpath\n" +
+									   "        sourceDef: root/item\n" +
+									   "        explode: true\n" +
+									   "        repeatingList:\n" +
+									   "          - columnName: Item-Value\n" +
+									   "            sourceType: xpath\n" +
+									   "            sourceDef: text()\n" +
+									   "            dataType: int\n" +
+									   "          - columnName: Item-Attrb-\n" +
+									   "            sourceType: dynAttribute\n" +
+									   "            sourceDef: \".\"\n" +
+									   "            attributeFilter: \".*\"\n";
+
+	private static XmlDocumentSource document(String xml)
+	{
+		return XmlDocumentSource.of(xml.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testStreamRows()
+	{
+		final XmlFlattenerSpec spec = XmlFlattenerSpecFactory.parse(new StringReader(SPEC)).get("items");
+		Assertions.assertNull(spec.getInputPath());
+
+		final Stream<XmlDocumentSource> documents = Stream.of(document("<root><title>First</title><item a=\"1\">10</item><item>11</item></root>"),
+															  document("<root><title>Second</title><item b=\"2\">012</item></root>"));
+		final List<XmlFlattenerRow> rows = XmlFlattener.stream(spec, documents).collect(Collectors.toList());
+		Assertions.assertEquals(3, rows.size());
+
+		final XmlFlattenerRow first = rows.get(0);
+		Assertions.assertEquals("items", first.getTableName());
+		Assertions.assertEquals(1, first.getDocumentNumber());
+		Assertions.assertEquals(Arrays.asList("Title", "Item-Value", "Item-Attrb-_a"), first.getColumnNames());
+		Assertions.assertEquals("First", first.getString("Title"));
+		Assertions.assertEquals(10, first.getValue("Item-Value"));
+		Assertions.assertEquals(XmlFlattenerDataType.INT, first.getDataType(1));
+		Assertions.assertEquals("1", first.getString("Item-Attrb-_a"));
+		Assertions.assertEquals("", rows.get(1).getString("Item-Attrb-_a"));
+
+		//the dynamic column discovered in the second document is added to its rows
+		final XmlFlattenerRow last = rows.get(2);
+		Assertions.assertEquals(2, last.getDocumentNumber());
+		Assertions.assertEquals(4, last.size());
+		Assertions.assertEquals("12", last.getString("Item-Value"));
+		Assertions.assertEquals("2", last.getString("Item-Attrb-_b"));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> first.getString("Item-Attrb-_b"));
+	}
+
+	@Test
+	public void testStreamIsLazy()
+	{
+		final XmlFlattenerSpec spec = XmlFlattenerSpecFactory.parse(new StringReader(SPEC)).get("items");
+		final AtomicInteger documentsRead = new AtomicInteger();
+		final AtomicInteger closed = new AtomicInteger();
+		final Stream<XmlDocumentSource> documents = Stream.generate(() ->
+																	{
+																		documentsRead.incrementAndGet();
+																		return document("<root><title>T</title><item>1</item><item>2</item></root>");
+																	}).onClose(closed::incrementAndGet);
+
+		try (Stream<XmlFlattenerRow> rows = XmlFlattener.stream(spec, documents))
+		{
+			final Iterator<XmlFlattenerRow> iterator = rows.iterator();
+			Assertions.assertEquals(0, documentsRead.get());
+			iterator.next();
+			iterator.next();
+			Assertions.assertEquals(1, documentsRead.get());
+			iterator.next();
+			Assertions.assertEquals(2, documentsRead.get());
+		}
+		Assertions.assertEquals(1, closed.get());
+	}
+
+	@Test
+	public void testStreamNamespacedDocuments()
+	{
+		final String spec = "name: Namespaces Test\n" +
+							"namespaces:\n" +
+							"  t: urn:trades\n" +
+							"outputTables:\n" +
+							"  - name: trades\n" +
+							"    definition:\n" +
+							"      - columnName: Book\n" +
+							"        sourceType: xpath\n" +
+							"        sourceDef: t:doc/@book\n" +
+							"      - columnName: Trades\n" +
+							"        sourceType: xpath\n" +
+							"        sourceDef: t:doc/t:trade\n" +
+							"        explode: true\n" +
+							"        repeatingList:\n" +
+							"          - columnName: Id\n" +
+							"            sourceType: xpath\n" +
+							"            sourceDef: t:id\n" +
+							"          - columnName: Parties\n" +
+							"            sourceType: xpath\n" +
+							"            sourceDef: count(t:party)\n";
+		final XmlFlattenerSpec namespaced = XmlFlattenerSpecFactory.parse(new StringReader(spec)).get("trades");
+
+		//the same namespace - as the default, and under a prefix other than the one the spec binds
+		final Stream<XmlDocumentSource> documents = Stream.of(document("<doc xmlns=\"urn:trades\" book=\"B1\"><trade><id>1</id><party/><party/></trade></doc>"),
+															  document("<x:doc xmlns:x=\"urn:trades\"><x:trade><x:id>2</x:id><x:party/></x:trade><trade><id>other</id></trade></x:doc>"));
+		final List<XmlFlattenerRow> rows = XmlFlattener.stream(namespaced, documents).collect(Collectors.toList());
+		Assertions.assertEquals(Arrays.asList("1", "2"), rows.stream().map(r -> r.getString("Id")).collect(Collectors.toList()));
+		Assertions.assertEquals(Arrays.asList("2", "1"), rows.stream().map(r -> r.getString("Parties")).collect(Collectors.toList()));
+		Assertions.assertEquals(Arrays.asList("B1", ""), rows.stream().map(r -> r.getString("Book")).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testBrokenDocumentFailsTheStream()
+	{
+		final XmlFlattenerSpec spec = XmlFlattenerSpecFactory.parse(new StringReader(SPEC)).get("items");
+		final Stream<XmlDocumentSource> documents = Stream.of(document("<root><title>T</title>"));
+		Assertions.assertThrows(RuntimeException.class, () -> XmlFlattener.stream(spec, documents).count());
+	}
+}
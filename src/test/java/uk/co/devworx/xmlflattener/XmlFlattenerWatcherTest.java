@@ -0,0 +1,129 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class XmlFlattenerWatcherTest
+{
+	private static final List<String> SPEC = Arrays.asList("name: Watch Test",
+														   "inputPath: xml",
+														   "outputTables:",
+														   "  - name: items",
+														   "    outputFile: output/items.csv",
+														   "    definition:",
+														   "      - columnName: Item",
+														   "        sourceType: xpath",
+														   "        sourceDef: root/item");
+
+	@TempDir
+	Path rootDirectory;
+
+	@Test
+	public void testFlattensNewFilesOnceComplete() throws Exception
+	{
+		final Path xmlDirectory = rootDirectory.resolve("xml");
+		Files.createDirectories(xmlDirectory);
+		Files.write(rootDirectory.resolve("spec.yml"), SPEC);
+		Files.write(xmlDirectory.resolve("first.xml"), "<root><item>1</item></root>".getBytes(StandardCharsets.UTF_8));
+
+		final Map<String, XmlFlattenerSpec> specs = XmlFlattenerSpecFactory.parse(rootDirectory.resolve("spec.yml"));
+		final long start = System.currentTimeMillis();
+		final long quiet = XMLFlattener_PropertyManager.XmlFlattener_WatchPollMillis;
+		try (XmlFlattenerWatcher watcher = new XmlFlattenerWatcher(specs, true))
+		{
+			//files are only flattened once they have stayed the same for the poll interval
+			Assertions.assertEquals(0, watcher.poll(start));
+			Assertions.assertEquals(0, watcher.poll(start + quiet / 2));
+			Assertions.assertEquals(1, watcher.poll(start + quiet));
+			Assertions.assertEquals(0, watcher.poll(start + 2 * quiet));
+
+			//a file that is still being written is skipped until it stops changing
+			final Path second = xmlDirectory.resolve("second.xml");
+			Files.write(second, "<root>".getBytes(StandardCharsets.UTF_8));
+			Assertions.assertEquals(0, watcher.poll(start + 3 * quiet));
+			Files.write(second, "<item>2</item></root>".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+			Assertions.assertEquals(0, watcher.poll(start + 4 * quiet));
+			Assertions.assertEquals(0, watcher.poll(start + 4 * quiet + 1));
+			Assertions.assertEquals(1, watcher.poll(start + 5 * quiet));
+		}
+
+		final List<Path> outputs = ___outputs();
+		Assertions.assertEquals(1, outputs.size());
+		Assertions.assertTrue(outputs.get(0).getFileName().toString().matches("items-\\d{8}-\\d{6}-\\d{3}\\.csv"), outputs.toString());
+		Assertions.assertEquals(Arrays.asList("Item", "1", "2"), Files.readAllLines(outputs.get(0)));
+	}
+
+	@Test
+	public void testWatchServiceWaitsForQuietFiles() throws Exception
+	{
+		final long pollMillis = XMLFlattener_PropertyManager.XmlFlattener_WatchPollMillis;
+		XMLFlattener_PropertyManager.XmlFlattener_WatchPollMillis = 1000;
+		try
+		{
+			final Path xmlDirectory = rootDirectory.resolve("xml");
+			Files.createDirectories(xmlDirectory);
+			Files.write(rootDirectory.resolve("spec.yml"), SPEC);
+
+			final XmlFlattenerWatcher watcher = new XmlFlattenerWatcher(XmlFlattenerSpecFactory.parse(rootDirectory.resolve("spec.yml")), false);
+			final Thread watching = new Thread(() ->
+			{
+				try
+				{
+					watcher.run();
+				}
+				catch (Exception e)
+				{
+					throw new RuntimeException(e);
+				}
+			});
+			watching.start();
+			try
+			{
+				//a writer pauses half way through its file - while other files keep arriving, each triggering a scan
+				final Path slow = xmlDirectory.resolve("slow.xml");
+				Files.write(slow, "<root>".getBytes(StandardCharsets.UTF_8));
+				for (int i = 0; i < 8; i++)
+				{
+					Thread.sleep(50);
+					Files.write(xmlDirectory.resolve("other-" + i + ".xml"), ("<root><item>" + i + "</item></root>").getBytes(StandardCharsets.UTF_8));
+				}
+				Files.write(slow, "<item>slow</item></root>".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+				Thread.sleep(3000);
+			}
+			finally
+			{
+				watcher.close();
+				watching.join(10000);
+			}
+
+			final List<Path> outputs = ___outputs();
+			Assertions.assertEquals(1, outputs.size());
+			final List<String> lines = Files.readAllLines(outputs.get(0));
+			Assertions.assertEquals(10, lines.size(), lines.toString());
+			Assertions.assertTrue(lines.contains("slow"), lines.toString());
+		}
+		finally
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_WatchPollMillis = pollMillis;
+		}
+	}
+
+	private List<Path> ___outputs() throws Exception
+	{
+		try (Stream<Path> files = Files.list(rootDirectory.resolve("output")))
+		{
+			return files.collect(Collectors.toList());
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class XmlInputFileScannerTest
+{
+	@TempDir
+	Path inputDirectory;
+
+	@Test
+	public void testScanDefaultsToXmlSuffix() throws Exception
+	{
+		createInputs();
+		final Set<String> found = scan(XmlInputFileFilter.acceptAllXml());
+		Assertions.assertEquals(new TreeSet<>(Arrays.asList("a.xml", "sub/b.xml", "sub/archive/c.xml", "sub/deeper/empty.xml")), found);
+	}
+
+	@Test
+	public void testScanWithIncludeExcludeAndSize() throws Exception
+	{
+		createInputs();
+		final XmlInputFileFilter filter = XmlInputFileFilter.create(Arrays.asList("**.xml", "*.txt"),
+																	Collections.singletonList("**/archive"),
+																	Optional.of("2000-01-01"),
+																	OptionalLong.of(1),
+																	OptionalLong.empty());
+		final Set<String> found = scan(filter);
+		Assertions.assertEquals(new TreeSet<>(Arrays.asList("a.xml", "notes.txt", "sub/b.xml")), found);
+	}
+
+	@Test
+	public void testScanOrderAndTopLevelExclude() throws Exception
+	{
+		createInputs();
+		Files.createDirectories(inputDirectory.resolve("archive"));
+		Files.write(inputDirectory.resolve("archive/d.xml"), "<root/>".getBytes());
+		for (String name : Arrays.asList("m.xml", "z.xml", "b.xml", "k.xml"))
+		{
+			Files.write(inputDirectory.resolve("sub/deeper/" + name), "<root/>".getBytes());
+		}
+
+		final XmlInputFileFilter filter = XmlInputFileFilter.create(Collections.emptyList(),
+																	Collections.singletonList("{archive,**/archive}"),
+																	Optional.empty(),
+																	OptionalLong.empty(),
+																	OptionalLong.empty());
+		try (Stream<XmlInputFile> files = XmlInputFileScanner.scan(inputDirectory, filter))
+		{
+			final List<String> found = files.map(f -> inputDirectory.relativize(f.getPath()).toString().replace('\\', '/')).collect(Collectors.toList());
+			Assertions.assertEquals(new TreeSet<>(Arrays.asList("a.xml", "sub/b.xml", "sub/deeper/b.xml", "sub/deeper/empty.xml", "sub/deeper/k.xml", "sub/deeper/m.xml", "sub/deeper/z.xml")), new TreeSet<>(found));
+			//the files of the one directory come out in the order of their names
+			Assertions.assertEquals(Arrays.asList("sub/deeper/b.xml", "sub/deeper/empty.xml", "sub/deeper/k.xml", "sub/deeper/m.xml", "sub/deeper/z.xml"),
+									found.stream().filter(f -> f.startsWith("sub/deeper/")).collect(Collectors.toList()));
+		}
+	}
+
+	@Test
+	public void testScanSingleFile() throws Exception
+	{
+		createInputs();
+		try (Stream<XmlInputFile> files = XmlInputFileScanner.scan(inputDirectory.resolve("sub/b.xml"), XmlInputFileFilter.acceptAllXml()))
+		{
+			Assertions.assertEquals(Collections.singletonList(inputDirectory.resolve("sub/b.xml")), files.map(XmlInputFile::getPath).collect(Collectors.toList()));
+		}
+		try (Stream<XmlInputFile> files = XmlInputFileScanner.scan(inputDirectory.resolve("notes.txt"), XmlInputFileFilter.acceptAllXml()))
+		{
+			Assertions.assertEquals(0, files.count());
+		}
+	}
+
+	private Set<String> scan(XmlInputFileFilter filter)
+	{
+		try (Stream<XmlInputFile> files = XmlInputFileScanner.scan(inputDirectory, filter))
+		{
+			return files.peek(f -> Assertions.assertNotNull(f.getAttributes()))
+						.map(f -> inputDirectory.relativize(f.getPath()).toString().replace('\\', '/'))
+						.collect(Collectors.toCollection(TreeSet::new));
+		}
+	}
+
+	private void createInputs() throws Exception
+	{
+		Files.createDirectories(inputDirectory.resolve("sub/archive"));
+		Files.createDirectories(inputDirectory.resolve("sub/deeper"));
+		Files.write(inputDirectory.resolve("a.xml"), "<root/>".getBytes());
+		Files.write(inputDirectory.resolve("notes.txt"), "notes".getBytes());
+		Files.write(inputDirectory.resolve("sub/b.xml"), "<root/>".getBytes());
+		Files.write(inputDirectory.resolve("sub/archive/c.xml"), "<root/>".getBytes());
+		Files.write(inputDirectory.resolve("sub/deeper/empty.xml"), new byte[0]);
+	}
+}
@@ -18,7 +18,7 @@ public class XmlPathsTest
 	@Test
 	public void testXmlPaths() throws Exception
 	{
-		final Document doc =  ParameterBag.builder.parse("src/test/resources/test-data/sample-data-1-document-type-1.xml");
+		final Document doc =  ParameterBag.builder.get().parse("src/test/resources/test-data/sample-data-1-document-type-1.xml");
 
 		String xpath1 = "root/element-3/element-3-sub";
 		String xpath2 = "text()";
@@ -40,7 +40,7 @@ public class XmlPathsTest
 	@Test
 	public void testXmlPathsAttributes() throws Exception
 	{
-		final Document doc =  ParameterBag.builder.parse("src/test/resources/test-data/sample-data-1-document-type-1.xml");
+		final Document doc =  ParameterBag.builder.get().parse("src/test/resources/test-data/sample-data-1-document-type-1.xml");
 
 		String xpath1 = "root/element-2/element-2-tag-name";
 		String xpath2 = "@key-1";
@@ -0,0 +1,129 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class XmlQuarantineTest
+{
+	private static final String SPEC = "name: Quarantine Test\n" +
+									   "inputPath: xml\n" +
+									   "%s" +
+									   "outputTables:\n" +
+									   "  - name: items\n" +
+									   "    outputFile: output/items.csv\n" +
+									   "    definition:\n" +
+									   "      - columnName: Title\n" +
+									   "        sourceType: xpath\n" +
+									   "        sourceDef: root/title\n";
+
+	private final String dumpDirectory = XMLFlattener_PropertyManager.XmlFlattener_DumpXMLDirectory;
+	private final String mode = XMLFlattener_PropertyManager.XmlFlattener_QuarantineMode;
+	private final long minFiles = XMLFlattener_PropertyManager.XmlFlattener_ErrorBudgetMinFiles;
+
+	@TempDir
+	Path rootDirectory;
+
+	@AfterEach
+	public void restore()
+	{
+		XMLFlattener_PropertyManager.XmlFlattener_DumpXMLDirectory = dumpDirectory;
+		XMLFlattener_PropertyManager.XmlFlattener_QuarantineMode = mode;
+		XMLFlattener_PropertyManager.XmlFlattener_ErrorBudgetMinFiles = minFiles;
+	}
+
+	private XmlFlattenerSpec ___parse()
+	{
+		return XmlFlattenerSpecFactory.parse(rootDirectory.resolve("spec.yml")).get("items");
+	}
+
+	private XmlFlattenerSpec ___setUp(String budget) throws IOException
+	{
+		Files.createDirectories(rootDirectory.resolve("xml"));
+		for (int i = 0; i < 3; i++)
+		{
+			Files.write(rootDirectory.resolve("xml/good-" + i + ".xml"), ("<root><title>T" + i + "</title></root>").getBytes(StandardCharsets.UTF_8));
+		}
+		Files.write(rootDirectory.resolve("xml/broken-0.xml"), "<root>\n<title>T</root>".getBytes(StandardCharsets.UTF_8));
+		Files.write(rootDirectory.resolve("xml/broken-1.xml"), "<root><title>".getBytes(StandardCharsets.UTF_8));
+		Files.write(rootDirectory.resolve("spec.yml"), String.format(SPEC, budget).getBytes(StandardCharsets.UTF_8));
+		XMLFlattener_PropertyManager.XmlFlattener_DumpXMLDirectory = "broken";
+		return ___parse();
+	}
+
+	@Test
+	public void testBrokenFilesAreQuarantined() throws Exception
+	{
+		final XmlFlattenerSpec spec = ___setUp("");
+		XmlFlattener.produceCSVFlattens(new Timestamp(System.currentTimeMillis()), spec);
+		Assertions.assertEquals(4, Files.readAllLines(rootDirectory.resolve("output/items.csv")).size());
+
+		final List<Path> quarantined;
+		try (Stream<Path> files = Files.list(rootDirectory.resolve("broken")))
+		{
+			quarantined = files.filter(p -> p.toString().endsWith(".broken")).sorted().collect(Collectors.toList());
+		}
+		Assertions.assertEquals(2, quarantined.size());
+		Assertions.assertTrue(quarantined.get(0).getFileName().toString().startsWith("broken-0.xml-"), quarantined.toString());
+		Assertions.assertTrue(Files.isSameFile(quarantined.get(0), rootDirectory.resolve("xml/broken-0.xml")) ||
+							  Files.readAllLines(quarantined.get(0)).equals(Files.readAllLines(rootDirectory.resolve("xml/broken-0.xml"))));
+
+		final List<String> errorLog;
+		try (Stream<Path> files = Files.list(rootDirectory.resolve("broken")))
+		{
+			errorLog = Files.readAllLines(files.filter(p -> p.getFileName().toString().startsWith("broken-xml-")).findFirst().get());
+		}
+		Assertions.assertEquals(3, errorLog.size(), errorLog.toString());
+		Assertions.assertEquals("time,spec,file,line,column,message,quarantined_as", errorLog.get(0));
+		final String brokenZero = errorLog.stream().filter(l -> l.contains("broken-0.xml,")).findFirst().get();
+		Assertions.assertTrue(brokenZero.contains(",2,"), brokenZero);
+
+		//a second run leaves the files of the first one alone
+		XmlFlattener.produceCSVFlattens(new Timestamp(System.currentTimeMillis()), ___parse());
+		try (Stream<Path> files = Files.list(rootDirectory.resolve("broken")))
+		{
+			Assertions.assertEquals(4, files.filter(p -> p.toString().endsWith(".broken")).count());
+		}
+	}
+
+	@Test
+	public void testReferencedAndCompressed() throws Exception
+	{
+		final XmlFlattenerSpec spec = ___setUp("");
+		XMLFlattener_PropertyManager.XmlFlattener_QuarantineMode = "gzip";
+		XmlFlattener.produceCSVFlattens(new Timestamp(System.currentTimeMillis()), spec);
+		XMLFlattener_PropertyManager.XmlFlattener_QuarantineMode = "reference";
+		XmlFlattener.produceCSVFlattens(new Timestamp(System.currentTimeMillis()), ___parse());
+		try (Stream<Path> files = Files.list(rootDirectory.resolve("broken")))
+		{
+			final List<String> names = files.map(p -> p.getFileName().toString()).collect(Collectors.toList());
+			Assertions.assertEquals(2, names.stream().filter(n -> n.endsWith(".broken.gz")).count(), names.toString());
+			Assertions.assertEquals(2, names.stream().filter(n -> n.startsWith("broken-xml-")).count(), names.toString());
+			Assertions.assertEquals(4, names.size(), names.toString());
+		}
+	}
+
+	@Test
+	public void testErrorBudget() throws Exception
+	{
+		final XmlFlattenerSpec spec = ___setUp("maxBrokenPercent: 10\n");
+		Assertions.assertEquals(10, spec.getMaxBrokenPercent().getAsDouble(), 0.001);
+
+		//2 of the 5 files are within the budget while it counts at least 100 files
+		XmlFlattener.produceCSVFlattens(new Timestamp(System.currentTimeMillis()), spec);
+
+		XMLFlattener_PropertyManager.XmlFlattener_ErrorBudgetMinFiles = 5;
+		Assertions.assertThrows(XmlErrorBudgetExceededException.class, () -> XmlFlattener.produceCSVFlattens(new Timestamp(System.currentTimeMillis()), ___parse()));
+		Assertions.assertThrows(XmlErrorBudgetExceededException.class, () -> XmlFlattenerRunner.flatten(new Timestamp(System.currentTimeMillis()), XmlFlattenerSpecFactory.parse(rootDirectory.resolve("spec.yml")), null));
+	}
+}
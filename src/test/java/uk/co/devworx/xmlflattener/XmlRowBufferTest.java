@@ -0,0 +1,57 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class XmlRowBufferTest
+{
+	@Test
+	public void testRowsRoundTrip()
+	{
+		final char[] large = new char[XmlRowBuffer.SEGMENT_BYTES];
+		Arrays.fill(large, 'x');
+		final List<String[]> expected = new ArrayList<>();
+		expected.add(new String[] {"a", "", "c"});
+		expected.add(new String[] {"São Paulo", "€ 10", "🌍"});
+		expected.add(new String[] {"", "", ""});
+		expected.add(new String[] {new String(large), "after", ""});
+		for (int i = 0; i < 20000; i++)
+		{
+			expected.add(new String[] {"row-" + i, String.valueOf(i * 7), i % 2 == 0 ? "even" : ""});
+		}
+
+		final XmlRowBuffer buffer = new XmlRowBuffer(3);
+		for (String[] row : expected)
+		{
+			//the empty values are left out - and written in reverse, to check the ordinals are used
+			int valueCount = 0;
+			for (String value : row) if (value.isEmpty() == false) valueCount++;
+			buffer.startRow(valueCount, Arrays.stream(row).mapToLong(String::length).sum());
+			for (int c = row.length - 1; c >= 0; c--)
+			{
+				if (row[c].isEmpty() == false) buffer.addValue(c, row[c]);
+			}
+		}
+		Assertions.assertEquals(expected.size(), buffer.getRows());
+
+		final XmlRowBuffer.Cursor cursor = buffer.cursor();
+		for (String[] row : expected)
+		{
+			Assertions.assertTrue(cursor.next());
+			for (int c = 0; c < row.length; c++)
+			{
+				Assertions.assertEquals(row[c], cursor.getString(c));
+				Assertions.assertEquals(row[c].getBytes(StandardCharsets.UTF_8).length, cursor.getByteLength(c));
+			}
+		}
+		Assertions.assertFalse(cursor.next());
+
+		buffer.release();
+		Assertions.assertThrows(IllegalStateException.class, buffer::cursor);
+	}
+}
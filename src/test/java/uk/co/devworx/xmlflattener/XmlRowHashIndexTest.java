@@ -0,0 +1,100 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class XmlRowHashIndexTest
+{
+	@TempDir
+	Path rootDirectory;
+
+	@Test
+	public void testIndexSpillsOffHeapAndToDisk() throws Exception
+	{
+		final long heapBytes = XMLFlattener_PropertyManager.XmlFlattener_DedupeHeapBytes;
+		final long offHeapBytes = XMLFlattener_PropertyManager.XmlFlattener_DedupeOffHeapBytes;
+		final String spillDirectory = XMLFlattener_PropertyManager.XmlFlattener_DedupeSpillDirectory;
+		try
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_DedupeHeapBytes = 128 * 1024;
+			XMLFlattener_PropertyManager.XmlFlattener_DedupeOffHeapBytes = 256 * 1024;
+			XMLFlattener_PropertyManager.XmlFlattener_DedupeSpillDirectory = rootDirectory.toString();
+
+			final int[] indexes = {0, 2};
+			try (XmlRowHashIndex index = new XmlRowHashIndex("test"))
+			{
+				Assertions.assertEquals("heap", index.getTier());
+				for (int i = 0; i < 10000; i++)
+				{
+					Assertions.assertTrue(index.add(Arrays.asList("key-" + i, "ignored", String.valueOf(i % 7)), indexes));
+					if (i == 5000) Assertions.assertEquals("off-heap", index.getTier());
+				}
+				Assertions.assertEquals("disk", index.getTier());
+				Assertions.assertEquals(1, Files.list(rootDirectory).count());
+
+				for (int i = 0; i < 10000; i++)
+				{
+					Assertions.assertFalse(index.add(Arrays.asList("key-" + i, "different", String.valueOf(i % 7)), indexes));
+				}
+				Assertions.assertEquals(10000, index.size());
+
+				//the values are kept apart - "ab" + "c" is not "a" + "bc"
+				Assertions.assertTrue(index.add(Arrays.asList("ab", "", "c"), indexes));
+				Assertions.assertTrue(index.add(Arrays.asList("a", "", "bc"), indexes));
+			}
+			Assertions.assertEquals(0, Files.list(rootDirectory).count());
+		}
+		finally
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_DedupeHeapBytes = heapBytes;
+			XMLFlattener_PropertyManager.XmlFlattener_DedupeOffHeapBytes = offHeapBytes;
+			XMLFlattener_PropertyManager.XmlFlattener_DedupeSpillDirectory = spillDirectory;
+		}
+	}
+
+	@Test
+	public void testDedupeOnAcrossFiles() throws Exception
+	{
+		Files.createDirectories(rootDirectory.resolve("xml"));
+		Files.write(rootDirectory.resolve("spec.yml"), Arrays.asList("name: Dedupe Test",
+																	 "inputPath: xml",
+																	 "outputTables:",
+																	 "  - name: items",
+																	 "    outputFile: output/items.csv",
+																	 "    dedupeOn: [Id, Version]",
+																	 "    definition:",
+																	 "      - columnName: Snapshot",
+																	 "        sourceType: xpath",
+																	 "        sourceDef: root/@day",
+																	 "      - columnName: Items",
+																	 "        sourceType: xpath",
+																	 "        sourceDef: root/item",
+																	 "        explode: true",
+																	 "        repeatingList:",
+																	 "          - columnName: Id",
+																	 "            sourceType: xpath",
+																	 "            sourceDef: id",
+																	 "          - columnName: Version",
+																	 "            sourceType: xpath",
+																	 "            sourceDef: version"));
+		Files.write(rootDirectory.resolve("xml/day-1.xml"), ("<root day=\"1\"><item><id>A</id><version>1</version></item><item><id>B</id><version>1</version></item>" +
+															 "<item><id>A</id><version>1</version></item></root>").getBytes(StandardCharsets.UTF_8));
+		Files.write(rootDirectory.resolve("xml/day-2.xml"), ("<root day=\"2\"><item><id>A</id><version>1</version></item><item><id>B</id><version>2</version></item></root>").getBytes(StandardCharsets.UTF_8));
+
+		final Map<String, XmlFlattenerSpec> specs = XmlFlattenerSpecFactory.parse(rootDirectory.resolve("spec.yml"));
+		final List<FlattenerListItem> items = XmlFlattenerRunner.flatten(new Timestamp(System.currentTimeMillis()), specs, null);
+
+		Assertions.assertEquals(3, items.get(0).getCsvRowsWritten());
+		Assertions.assertEquals(2, items.get(0).getDuplicateRowsSkipped());
+		Assertions.assertEquals(Arrays.asList("Snapshot,Id,Version", "1,A,1", "1,B,1", "2,B,2"), Files.readAllLines(rootDirectory.resolve("output/items.csv")));
+	}
+}
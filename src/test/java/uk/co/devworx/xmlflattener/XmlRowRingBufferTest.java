@@ -0,0 +1,73 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class XmlRowRingBufferTest
+{
+	@Test
+	public void testConcurrentPublishersWriteEveryRowOnce() throws Exception
+	{
+		final int publishers = 4;
+		final int rowsEach = 20000;
+		final List<List<String>> written = new ArrayList<>();
+		final Object writeLock = new Object();
+
+		final ExecutorService executor = Executors.newFixedThreadPool(publishers);
+		try (XmlRowRingBuffer ring = new XmlRowRingBuffer("test", 64, 2, writeLock, row -> written.add(new ArrayList<>(row))))
+		{
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int p = 0; p < publishers; p++)
+			{
+				final String publisher = "p" + p;
+				futures.add(executor.submit(() ->
+				{
+					for (int i = 0; i < rowsEach; i++)
+					{
+						ring.publish(Arrays.asList(publisher, String.valueOf(i)));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) future.get();
+			ring.drain();
+			synchronized (writeLock)
+			{
+				Assertions.assertEquals(publishers * rowsEach, written.size());
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		//the rows of each publisher are written in the order they were published
+		final int[] next = new int[publishers];
+		for (List<String> row : written)
+		{
+			final int p = Integer.parseInt(row.get(0).substring(1));
+			Assertions.assertEquals(String.valueOf(next[p]++), row.get(1));
+		}
+	}
+
+	@Test
+	public void testWriterFailureIsRethrown() throws Exception
+	{
+		final XmlRowRingBuffer ring = new XmlRowRingBuffer("failing", 8, 1, new Object(), row ->
+		{
+			throw new IOException("disk full");
+		});
+		ring.publish(Arrays.asList("a"));
+		Assertions.assertThrows(IOException.class, ring::drain);
+		Assertions.assertThrows(IOException.class, () -> ring.publish(Arrays.asList("b")));
+		Assertions.assertThrows(IOException.class, ring::close);
+	}
+}
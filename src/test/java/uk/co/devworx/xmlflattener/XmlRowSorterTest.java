@@ -0,0 +1,106 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class XmlRowSorterTest
+{
+	@TempDir
+	Path rootDirectory;
+
+	@Test
+	public void testExternalMergeSortIsStable() throws Exception
+	{
+		final long runBytes = XMLFlattener_PropertyManager.XmlFlattener_SortRunBytes;
+		final int fanIn = XMLFlattener_PropertyManager.XmlFlattener_SortMergeFanIn;
+		final String spillDirectory = XMLFlattener_PropertyManager.XmlFlattener_SortSpillDirectory;
+		try
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_SortRunBytes = 16 * 1024;
+			XMLFlattener_PropertyManager.XmlFlattener_SortMergeFanIn = 3;
+			XMLFlattener_PropertyManager.XmlFlattener_SortSpillDirectory = rootDirectory.toString();
+
+			final Random random = new Random(42);
+			final List<String[]> expected = new ArrayList<>();
+			final List<String[]> sorted = new ArrayList<>();
+			try (XmlRowSorter sorter = new XmlRowSorter("test", new int[] {1, 0}, new XmlFlattenerDataType[] {XmlFlattenerDataType.INT, XmlFlattenerDataType.STRING}))
+			{
+				for (int i = 0; i < 5000; i++)
+				{
+					final String[] row = {"k" + random.nextInt(10), i % 97 == 0 ? "" : String.valueOf(random.nextInt(200) - 100), "séq-" + i};
+					expected.add(row);
+					sorter.add(Arrays.asList(row));
+				}
+				Assertions.assertTrue(Files.list(rootDirectory).count() > 3);
+				sorter.writeTo(sorted::add);
+			}
+			Assertions.assertEquals(0, Files.list(rootDirectory).count());
+
+			expected.sort((left, right) ->
+			{
+				final int c = XmlFlattenerDataType.INT.compareValues(left[1], right[1]);
+				return c != 0 ? c : left[0].compareTo(right[0]);
+			});
+			Assertions.assertEquals(expected.stream().map(Arrays::asList).collect(Collectors.toList()),
+									sorted.stream().map(Arrays::asList).collect(Collectors.toList()));
+		}
+		finally
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_SortRunBytes = runBytes;
+			XMLFlattener_PropertyManager.XmlFlattener_SortMergeFanIn = fanIn;
+			XMLFlattener_PropertyManager.XmlFlattener_SortSpillDirectory = spillDirectory;
+		}
+	}
+
+	@Test
+	public void testSortByOutputTable() throws Exception
+	{
+		Files.createDirectories(rootDirectory.resolve("xml"));
+		Files.write(rootDirectory.resolve("spec.yml"), Arrays.asList("name: Sort Test",
+																	 "inputPath: xml",
+																	 "outputTables:",
+																	 "  - name: items",
+																	 "    outputFile: output/items.csv",
+																	 "    sortBy: [Id, Amount]",
+																	 "    definition:",
+																	 "      - columnName: File",
+																	 "        sourceType: xpath",
+																	 "        sourceDef: root/@file",
+																	 "      - columnName: Items",
+																	 "        sourceType: xpath",
+																	 "        sourceDef: root/item",
+																	 "        explode: true",
+																	 "        repeatingList:",
+																	 "          - columnName: Id",
+																	 "            sourceType: xpath",
+																	 "            sourceDef: id",
+																	 "          - columnName: Amount",
+																	 "            sourceType: xpath",
+																	 "            sourceDef: amount",
+																	 "            dataType: decimal"));
+		Files.write(rootDirectory.resolve("xml/a.xml"), "<root file='a'><item><id>B</id><amount>10</amount></item><item><id>A</id><amount>9.5</amount></item></root>".getBytes(StandardCharsets.UTF_8));
+		Files.write(rootDirectory.resolve("xml/b.xml"), "<root file='b'><item><id>B</id><amount>-2</amount></item><item><id>A</id><amount>100</amount></item></root>".getBytes(StandardCharsets.UTF_8));
+
+		final Map<String, XmlFlattenerSpec> specs = XmlFlattenerSpecFactory.parse(rootDirectory.resolve("spec.yml"));
+		XmlFlattenerRunner.flatten(new Timestamp(System.currentTimeMillis()), specs, null);
+
+		Assertions.assertEquals(Arrays.asList("File,Id,Amount", "a,A,9.5", "b,A,100", "b,B,-2", "a,B,10"), Files.readAllLines(rootDirectory.resolve("output/items.csv")));
+		try (Stream<Path> files = Files.list(rootDirectory.resolve("output")))
+		{
+			Assertions.assertEquals(1, files.count());
+		}
+	}
+}
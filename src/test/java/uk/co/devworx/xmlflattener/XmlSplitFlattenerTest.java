@@ -0,0 +1,114 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.Map;
+
+public class XmlSplitFlattenerTest
+{
+	private static final Path HELLO_WORLD = Paths.get("examples/Hello-World");
+
+	@TempDir
+	Path rootDirectory;
+
+	@Test
+	public void testSplitChunks() throws Exception
+	{
+		final Path xmlFile = rootDirectory.resolve("split.xml");
+		Files.write(xmlFile, ("<?xml version='1.0' encoding='utf-8'?>\n" +
+							  "<root a=\"1\"><title>T</title><!-- <item> --><items><item>1</item><item><![CDATA[</item>]]></item></items>" +
+							  "<items kind=\"b\"><item x='>'/></items></root>").getBytes(StandardCharsets.UTF_8));
+
+		try (XmlRecordSplitter splitter = XmlRecordSplitter.open(xmlFile, "root/items/item", 1))
+		{
+			Assertions.assertEquals("<root a=\"1\"><items><item>1</item></items></root>", new String(splitter.nextChunk(), StandardCharsets.UTF_8));
+			Assertions.assertEquals("<?xml version='1.0' encoding='utf-8'?>\n<root a=\"1\"><title>T</title><!-- <item> --><items></items></root>",
+									new String(splitter.getHeaderDocument(), StandardCharsets.UTF_8));
+			Assertions.assertEquals("<root a=\"1\"><items><item><![CDATA[</item>]]></item></items></root>", new String(splitter.nextChunk(), StandardCharsets.UTF_8));
+			Assertions.assertEquals("<root a=\"1\"><items kind=\"b\"><item x='>'/></items></root>", new String(splitter.nextChunk(), StandardCharsets.UTF_8));
+			Assertions.assertNull(splitter.nextChunk());
+			Assertions.assertEquals(3, splitter.getRecords());
+			Assertions.assertEquals(3, splitter.getChunks());
+			Assertions.assertFalse(splitter.hasContentBetweenRecords());
+		}
+
+		Files.write(xmlFile, "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><root/>".getBytes(StandardCharsets.UTF_8));
+		try (XmlRecordSplitter splitter = XmlRecordSplitter.open(xmlFile, "root/item", 1))
+		{
+			Assertions.assertThrows(UnsupportedXmlException.class, splitter::nextChunk);
+		}
+	}
+
+	@Test
+	public void testOnlySingleExplodeLevelSpecsAreSplit()
+	{
+		final Map<String, XmlFlattenerSpec> helloWorld = XmlFlattenerSpecFactory.parse(HELLO_WORLD.resolve("hello-world.yml"));
+		Assertions.assertEquals("root/continents/continent", XmlSplitFlattener.getRecordPath(helloWorld.values().iterator().next()).orElse(null));
+
+		final Map<String, XmlFlattenerSpec> nested = XmlFlattenerSpecFactory.parse(Paths.get("examples/ODA-International-Subscriptions/oda-flattening-transactions.yml"));
+		Assertions.assertFalse(XmlSplitFlattener.getRecordPath(nested.values().iterator().next()).isPresent());
+	}
+
+	@Test
+	public void testSplitOutputMatchesWholeFile() throws Exception
+	{
+		Files.createDirectories(rootDirectory.resolve("xml"));
+		Files.copy(HELLO_WORLD.resolve("hello-world.yml"), rootDirectory.resolve("hello-world.yml"));
+		Files.copy(HELLO_WORLD.resolve("xml/input-01.xml"), rootDirectory.resolve("xml/input-01.xml"));
+
+		final Path output = rootDirectory.resolve("output/continents-flattened.csv");
+		final String whole = ___flatten(Long.MAX_VALUE, output);
+		final String split = ___flatten(0, output);
+		Assertions.assertEquals(whole, split);
+		Assertions.assertTrue(whole.contains("Continent-Attrb-_demonym"), whole);
+		Assertions.assertEquals(8, whole.split("\r\n").length);
+
+		//files that cannot be split are flattened in one go
+		final Path xmlFile = rootDirectory.resolve("xml/input-01.xml");
+		final String latin1 = new String(Files.readAllBytes(xmlFile), StandardCharsets.UTF_8).replace("encoding='utf-8'", "encoding='ISO-8859-1'");
+		Files.write(xmlFile, latin1.getBytes(StandardCharsets.ISO_8859_1));
+		Assertions.assertEquals(whole, ___flatten(0, output));
+	}
+
+	@Test
+	public void testBrokenRecordWritesNothingOfTheFile() throws Exception
+	{
+		Files.createDirectories(rootDirectory.resolve("xml"));
+		Files.copy(HELLO_WORLD.resolve("hello-world.yml"), rootDirectory.resolve("hello-world.yml"));
+		final String xml = new String(Files.readAllBytes(HELLO_WORLD.resolve("xml/input-01.xml")), StandardCharsets.UTF_8);
+		Files.write(rootDirectory.resolve("xml/input-01.xml"), xml.replace("<name>Europe</name>", "<name>Europe</nom>").getBytes(StandardCharsets.UTF_8));
+
+		//the records ahead of the broken one are in chunks of their own - but none of their rows are written
+		final Path output = rootDirectory.resolve("output/continents-flattened.csv");
+		final String whole = ___flatten(Long.MAX_VALUE, output);
+		final String split = ___flatten(0, output);
+		Assertions.assertEquals(whole, split);
+		Assertions.assertEquals(1, split.split("\r\n").length, split);
+	}
+
+	private String ___flatten(long thresholdBytes, Path output) throws Exception
+	{
+		final long threshold = XMLFlattener_PropertyManager.XmlFlattener_SplitThresholdBytes;
+		final int chunkBytes = XMLFlattener_PropertyManager.XmlFlattener_SplitChunkBytes;
+		try
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_SplitThresholdBytes = thresholdBytes;
+			XMLFlattener_PropertyManager.XmlFlattener_SplitChunkBytes = 200;
+			final Map<String, XmlFlattenerSpec> specs = XmlFlattenerSpecFactory.parse(rootDirectory.resolve("hello-world.yml"));
+			XmlFlattenerRunner.flatten(new Timestamp(System.currentTimeMillis()), specs, null);
+			return new String(Files.readAllBytes(output), StandardCharsets.UTF_8);
+		}
+		finally
+		{
+			XMLFlattener_PropertyManager.XmlFlattener_SplitThresholdBytes = threshold;
+			XMLFlattener_PropertyManager.XmlFlattener_SplitChunkBytes = chunkBytes;
+		}
+	}
+}
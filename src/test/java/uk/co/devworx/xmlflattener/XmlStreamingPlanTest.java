@@ -0,0 +1,191 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xml.sax.SAXException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class XmlStreamingPlanTest
+{
+	private static final String SPEC = "name: Streaming Test\n" +
+									   "inputPath: xml\n" +
+									   "outputTables:\n" +
+									   "  - name: orders\n" +
+									   "    outputFile: output/orders.csv\n" +
+									   "    definition:\n" +
+									   "      - columnName: Batch\n" +
+									   "        sourceType: xpath\n" +
+									   "        sourceDef: orders/@batch\n" +
+									   "      - columnName: Everything\n" +
+									   "        sourceType: xpath\n" +
+									   "        sourceDef: .\n" +
+									   "      - columnName: Loaded\n" +
+									   "        sourceType: eval\n" +
+									   "        sourceDef: batchTime\n" +
+									   "      - columnName: Order\n" +
+									   "        sourceType: xpath\n" +
+									   "        sourceDef: orders/order\n" +
+									   "        explode: true\n" +
+									   "        circuitBreaker: 3\n" +
+									   "        repeatingList:\n" +
+									   "          - columnName: Id\n" +
+									   "            sourceType: xpath\n" +
+									   "            sourceDef: \"@id\"\n" +
+									   "          - columnName: Ref\n" +
+									   "            sourceType: xpath\n" +
+									   "            sourceDef: \"@x:ref\"\n" +
+									   "          - columnName: Note\n" +
+									   "            sourceType: xpath\n" +
+									   "            sourceDef: note/text()\n" +
+									   "          - columnName: Customer\n" +
+									   "            sourceType: xpath\n" +
+									   "            sourceDef: customer\n" +
+									   "          - columnName: City\n" +
+									   "            sourceType: xpath\n" +
+									   "            sourceDef: customer/address/city\n" +
+									   "          - columnName: Line\n" +
+									   "            sourceType: xpath\n" +
+									   "            sourceDef: lines/line\n" +
+									   "            explode: true\n" +
+									   "            repeatingList:\n" +
+									   "              - columnName: Sku\n" +
+									   "                sourceType: xpath\n" +
+									   "                sourceDef: sku\n" +
+									   "              - columnName: Qty\n" +
+									   "                sourceType: xpath\n" +
+									   "                sourceDef: \"@qty\"\n" +
+									   "  - name: lines\n" +
+									   "    outputFile: output/lines.csv\n" +
+									   "    definition:\n" +
+									   "      - columnName: File\n" +
+									   "        sourceType: xpath\n" +
+									   "        sourceDef: name(*)\n" +
+									   "      - columnName: Line\n" +
+									   "        sourceType: xpath\n" +
+									   "        sourceDef: orders/order/lines/line\n" +
+									   "        explode: true\n" +
+									   "        repeatingList:\n" +
+									   "          - columnName: Sku\n" +
+									   "            sourceType: xpath\n" +
+									   "            sourceDef: sku/text()\n" +
+									   "          - columnName: Value\n" +
+									   "            sourceType: xpath\n" +
+									   "            sourceDef: .\n";
+
+	private static final String[] DOCUMENTS = {
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<orders batch=\"B1\" xmlns:x=\"urn:x\">\n" +
+		"  <order id=\"1\" x:ref=\"R1\"><note>first<!-- split -->second</note><note>third</note>\n" +
+		"    <customer>  Ann <![CDATA[& Co]]> <address><city>Leeds</city><city>York</city></address></customer>\n" +
+		"    <lines><line qty=\"2\"><sku>A&amp;1</sku></line><line><sku>A2</sku><sku>A3</sku></line></lines>\n" +
+		"  </order>\n" +
+		"  <order id=\"2\"><note/><note>late</note><customer><address/></customer></order>\n" +
+		"  <order id=\"3\"><customer><address><city/></address><address><city>Hull</city></address></customer><lines/></order>\n" +
+		"  <order id=\"4\"><lines><line qty=\"9\"><sku>D1</sku></line></lines></order>\n" +
+		"</orders>",
+		"<orders><order id=\"5\">\r\n<note>\r\ncr lf </note></order></orders>",
+		"<other/>",
+		"<!DOCTYPE orders><orders batch=\"B2\"><order id=\"6\"><note>doctype</note></order></orders>"
+	};
+
+	private final boolean streaming = XMLFlattener_PropertyManager.XmlFlattener_StreamingColumns;
+
+	@TempDir
+	Path rootDirectory;
+
+	@AfterEach
+	public void restore()
+	{
+		XMLFlattener_PropertyManager.XmlFlattener_StreamingColumns = streaming;
+	}
+
+	private Map<String, List<String>> ___flatten(boolean streamingColumns, Timestamp batchTime) throws Exception
+	{
+		XMLFlattener_PropertyManager.XmlFlattener_StreamingColumns = streamingColumns;
+		final Map<String, List<String>> outputs = new HashMap<>();
+		for (String table : new String[] { "orders", "lines" })
+		{
+			XmlFlattener.produceCSVFlattens(batchTime, XmlFlattenerSpecFactory.parse(rootDirectory.resolve("spec.yml")).get(table));
+			final List<String> lines = Files.readAllLines(rootDirectory.resolve("output/" + table + ".csv"));
+			Collections.sort(lines);
+			outputs.put(table, lines);
+		}
+		return outputs;
+	}
+
+	@Test
+	public void testStreamedRowsMatchTheTree() throws Exception
+	{
+		Files.createDirectories(rootDirectory.resolve("xml"));
+		for (int i = 0; i < DOCUMENTS.length; i++)
+		{
+			Files.write(rootDirectory.resolve("xml/doc-" + i + ".xml"), DOCUMENTS[i].getBytes(StandardCharsets.UTF_8));
+		}
+		Files.write(rootDirectory.resolve("spec.yml"), SPEC.getBytes(StandardCharsets.UTF_8));
+
+		final Timestamp batchTime = new Timestamp(System.currentTimeMillis());
+		final Map<String, List<String>> fromTree = ___flatten(false, batchTime);
+		final Map<String, List<String>> streamed = ___flatten(true, batchTime);
+		Assertions.assertEquals(fromTree, streamed);
+
+		//the circuit breaker stops at the 3rd order of the first document
+		final List<String> orders = streamed.get("orders");
+		Assertions.assertFalse(orders.stream().anyMatch(l -> l.contains(",4,")), orders.toString());
+		Assertions.assertTrue(orders.stream().anyMatch(l -> l.contains("Leeds") && l.contains("R1") && l.contains("Ann & Co")), orders.toString());
+		Assertions.assertTrue(streamed.get("lines").stream().anyMatch(l -> l.contains("D1")), streamed.get("lines").toString());
+	}
+
+	@Test
+	public void testValuesAreStreamed() throws Exception
+	{
+		Files.write(rootDirectory.resolve("spec.yml"), SPEC.getBytes(StandardCharsets.UTF_8));
+		final FlattenerListItem item = XmlFlattenerSpecFactory.parse(rootDirectory.resolve("spec.yml")).get("orders").getSpecListItems().get("orders");
+		item.setUpCSVPrinterAndContainers(rootDirectory);
+		try
+		{
+			final XmlStreamingPlan plan = XmlStreamingPlan.compile(Collections.singletonList(item)).get();
+			Assertions.assertEquals(9, plan.getColumnCount());
+
+			final ParameterBag paramBag = ParameterBag.create(XmlDocumentSource.of(DOCUMENTS[0].getBytes(StandardCharsets.UTF_8)), new Timestamp(0), Collections.emptyMap(), plan);
+			final Map<String, List<String>> values = new HashMap<>();
+			for (LayerRowsContainer container : item.getContainers())
+			{
+				for (XmlFlattenerSpecColumn col : container.getXmlExtractorColumns())
+				{
+					if (paramBag.getStreamedValues(col) != null) values.put(col.getColumnName(), paramBag.getStreamedValues(col));
+				}
+			}
+			Assertions.assertEquals(Collections.singletonList("B1"), values.get("Batch"));
+			Assertions.assertEquals(Arrays.asList("1", "2", "3"), values.get("Id"));
+			Assertions.assertEquals(Arrays.asList("first", "late", ""), values.get("Note"));
+			Assertions.assertEquals(Arrays.asList("Leeds", "", ""), values.get("City"));
+			Assertions.assertEquals(Arrays.asList("A&1", "A2"), values.get("Sku"));
+
+			//a document the byte scanner does not support is parsed to the tree instead
+			final ParameterBag fallback = ParameterBag.create(XmlDocumentSource.of(DOCUMENTS[3].getBytes(StandardCharsets.UTF_8)), new Timestamp(0), Collections.emptyMap(), plan);
+			Assertions.assertNull(fallback.getStreamedValues(item.getContainers().get(0).getXmlExtractorColumns().get(0)));
+
+			//and one the JDK parser rejects is rejected, not streamed - so it is quarantined rather than written
+			for (String broken : Arrays.asList("<orders><order id=\"1\"><note>&#0;</note></order></orders>", "<orders><order id=\"1\"><note>]]></note></order></orders>",
+											   "<orders><?xml version=\"1.0\"?><order id=\"1\"/></orders>"))
+			{
+				Assertions.assertThrows(SAXException.class, () -> ParameterBag.create(XmlDocumentSource.of(broken.getBytes(StandardCharsets.UTF_8)), new Timestamp(0), Collections.emptyMap(), plan), broken);
+			}
+		}
+		finally
+		{
+			item.close();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package uk.co.devworx.xmlflattener;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+public class XmlTypedValueConverterTest
+{
+	@Test
+	public void testIntegers()
+	{
+		final XmlTypedValueConverter ints = new XmlTypedValueConverter(XmlFlattenerDataType.INT);
+		final String canonical = "-2147483648";
+		Assertions.assertSame(canonical, ints.convert(canonical));
+		Assertions.assertEquals("42", ints.convert(" +042 "));
+		Assertions.assertEquals("0", ints.convert("-0"));
+		Assertions.assertEquals("", ints.convert("  "));
+		Assertions.assertNull(ints.convert("2147483648"));
+		Assertions.assertNull(ints.convert("12a"));
+		Assertions.assertNull(ints.convert("-"));
+
+		final XmlTypedValueConverter longs = new XmlTypedValueConverter(XmlFlattenerDataType.LONG);
+		Assertions.assertEquals("9223372036854775807", longs.convert("9223372036854775807"));
+		Assertions.assertNull(longs.convert("9223372036854775808"));
+		Assertions.assertEquals(Long.MIN_VALUE, XmlFlattenerDataType.LONG.toTypedValue(longs.convert("-9223372036854775808")));
+	}
+
+	@Test
+	public void testDecimalsAndBooleans()
+	{
+		final XmlTypedValueConverter decimals = new XmlTypedValueConverter(XmlFlattenerDataType.DECIMAL);
+		final String canonical = "-1234.50";
+		Assertions.assertSame(canonical, decimals.convert(canonical));
+		Assertions.assertEquals("150", decimals.convert("1.5E2"));
+		Assertions.assertEquals("0.5", decimals.convert(".5"));
+		Assertions.assertEquals("7.25", decimals.convert("+007.25"));
+		Assertions.assertNull(decimals.convert("1.2.3"));
+		Assertions.assertNull(decimals.convert("1e"));
+
+		//exponents too large to expand - or even to parse - are invalid values, rather than failing the flatten
+		Assertions.assertNull(decimals.convert("1e99999999999"));
+		Assertions.assertNull(decimals.convert("1e100000000"));
+		Assertions.assertNull(decimals.convert("1e-100000000"));
+		Assertions.assertEquals("0", decimals.convert("0e100000000"));
+		Assertions.assertEquals(1 + XmlTypedValueConverter.MAX_DECIMAL_SCALE, decimals.convert("1e" + XmlTypedValueConverter.MAX_DECIMAL_SCALE).length());
+		Assertions.assertEquals(new BigDecimal("-1234.50"), XmlFlattenerDataType.DECIMAL.toTypedValue(canonical));
+
+		final XmlTypedValueConverter booleans = new XmlTypedValueConverter(XmlFlattenerDataType.BOOLEAN);
+		Assertions.assertEquals("true", booleans.convert("TRUE"));
+		Assertions.assertEquals("false", booleans.convert("0"));
+		Assertions.assertNull(booleans.convert("maybe"));
+	}
+
+	@Test
+	public void testDatesLearnTheFormat()
+	{
+		final XmlTypedValueConverter dates = new XmlTypedValueConverter(XmlFlattenerDataType.DATE);
+		Assertions.assertEquals("2019-09-01", dates.convert("01/09/2019"));
+		Assertions.assertEquals("2019-09-30", dates.convert("30/09/2019"));
+		Assertions.assertEquals("2020-02-29", dates.convert("2020-02-29"));
+		Assertions.assertNull(dates.convert("2019-02-29"));
+		Assertions.assertNull(dates.convert("not a date"));
+		Assertions.assertEquals(LocalDate.of(2020, 2, 29), XmlFlattenerDataType.DATE.toTypedValue("2020-02-29"));
+
+		final TimeFormatResolver resolver = TimeFormatResolver.create();
+		Assertions.assertTrue(resolver.parse("2019/9/1 15:01:00").isPresent());
+		Assertions.assertNotSame(DateTimeFormatter.ISO_LOCAL_DATE_TIME, resolver.getPreferredFormat());
+		Assertions.assertTrue(resolver.parse("2019-09-01T15:01:00").isPresent());
+		Assertions.assertSame(DateTimeFormatter.ISO_LOCAL_DATE_TIME, resolver.getPreferredFormat());
+
+		final XmlTypedValueConverter timestamps = new XmlTypedValueConverter(XmlFlattenerDataType.TIMESTAMP);
+		Assertions.assertEquals("2019-09-01 15:01:00.0", timestamps.convert("2019-09-01T15:01"));
+		Assertions.assertEquals("2019-09-01 00:00:00.0", timestamps.convert("20190901"));
+		Assertions.assertEquals(Timestamp.valueOf("2019-09-01 15:01:00"), XmlFlattenerDataType.TIMESTAMP.toTypedValue("2019-09-01 15:01:00.0"));
+	}
+
+	@Test
+	public void testDataTypeFromSpec()
+	{
+		Assertions.assertEquals(XmlFlattenerDataType.STRING, XmlFlattenerDataType.fromSpec(null));
+		Assertions.assertEquals(XmlFlattenerDataType.DECIMAL, XmlFlattenerDataType.fromSpec("decimal"));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> XmlFlattenerDataType.fromSpec("float"));
+	}
+}